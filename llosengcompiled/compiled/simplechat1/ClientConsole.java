@@ -26,7 +26,7 @@ public class ClientConsole implements ChatIF
     private static String loginId = "";
     final public static int DEFAULT_PORT = 5555;
     public static final String ALREADY_LOGGED_IN = "Error, user is already logged in.";
-    public static final String USER_COMMANDS = "Command list: \n#quit\n#logoff\n#sethost <host>\n#setport <port>\n#login\n#gethost\n#getport\n#getloginid\n#setloginid";
+    public static final String USER_COMMANDS = "Command list: \n#quit\n#logoff\n#sethost <host>\n#setport <port>\n#login\n#gethost\n#getport\n#getloginid\n#setloginid\n#history [<n> | since <offset>]\n#whisper <loginId> <message>";
     public static final String QUIT = "User selected quit - shutting down client.";
     public static final String LOGOFF = "User selected logoff - disconnecting client from server.";
     public static final String LOGIN = "User selected login - connecting client to server.";
@@ -131,6 +131,14 @@ public class ClientConsole implements ChatIF
                 display("ERROR. Port must be a number.");
             }
         }
+        if(message.equals("#history") || message.startsWith("#history ")){
+            //answered by the server with the past messages
+            client.handleMessageFromClientUI(message);
+        }
+        if(message.startsWith("#whisper ")){
+            //delivered by the server to that user only, on any node, or kept until the user logs in
+            client.handleMessageFromClientUI(message);
+        }
         switch (message) {
             case "#" -> {
                 display(USER_COMMANDS);
@@ -158,9 +166,8 @@ public class ClientConsole implements ChatIF
                 //this opens a connection even if the server is not listening (server #stop command) causing all messages to keep stacking
                 //if (server #start), all stacked messages pass at once
                 try{
-                    client.openConnection();
+                    client.openConnection(); //resumes the session if the connection was lost, otherwise ChatClient sends '#login <loginid>'
                     display(LOGIN);
-                    client.handleMessageFromClientUI("#login "+client.getLoginId()); //sends the initial '#login <loginid>' to the server.
                 }
                 catch (Exception ex)
                 {
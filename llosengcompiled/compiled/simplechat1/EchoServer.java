@@ -5,13 +5,38 @@
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.net.ssl.SSLContext;
 
+import cluster.ClusterListener;
+import cluster.ClusterMessage;
+import cluster.ClusterNode;
 import common.AbstractConnectionFactory;
+import common.AsyncChatLog;
+import common.ChatDictionary;
+import common.ChatHistory;
 import common.ChatIF;
+import common.ChatIndex;
+import common.HistoryEntry;
+import common.OfflineMailbox;
+import common.SearchQuery;
+import ocsf.protocol.Batch;
+import ocsf.protocol.Compression;
+import ocsf.protocol.FileOffer;
+import ocsf.protocol.Lane;
+import ocsf.protocol.MessageFilter;
+import ocsf.protocol.TlsContext;
 import ocsf.server.*;
 
 /**
@@ -26,12 +51,12 @@ import ocsf.server.*;
  */
 
 // this was previously AbstractServer
-public class EchoServer extends ObservableServer
+public class EchoServer extends ObservableServer implements ClusterListener
 {
     /**
      * Needed to determine #logoff clients
      */
-    String loginId = "loginId";
+    static final AttributeKey<String> LOGIN_ID = AttributeKey.register("loginId", String.class);
     String joinedLoginId = "";
     private String[] joinedConnections = new String[0];
 
@@ -41,8 +66,89 @@ public class EchoServer extends ObservableServer
      * The default port to listen on.
      */
     final public static int DEFAULT_PORT = 5555;
+
+    /**
+     * Number of messages kept for each client so that a client whose
+     * connection drops receives what it missed when it resumes.
+     */
+    final public static int REPLAY_SIZE = 256;
+
+    /**
+     * How long a dropped client can resume its session, in ms.
+     */
+    final public static long RESUME_TIMEOUT = 60000;
+
+    /**
+     * Directory of the chat history, and how much of it is kept: by size,
+     * in bytes, and by age, in ms.
+     */
+    final public static String HISTORY_DIRECTORY = "history";
+    final public static long HISTORY_MAX_BYTES = 1024L * 1024 * 1024;
+    final public static long HISTORY_MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Number of past messages a client gets for '#history', and the most
+     * it gets for one '#history' command.
+     */
+    final public static int HISTORY_DEFAULT = 20;
+    final public static int HISTORY_PAGE = 1000;
+
+    /**
+     * Directory of the mailboxes of the users logged off, and how long the
+     * messages wait in them, in ms.
+     */
+    final public static String MAILBOX_DIRECTORY = "mailbox";
+    final public static long MAILBOX_MAX_AGE = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Number of messages found shown at once by '#search'.
+     */
+    final public static int SEARCH_PAGE = 20;
+
+    /**
+     * Bytes counted for a batch of echoed messages, and for each message
+     * in it besides its text, when keeping the batch under the largest
+     * message size.
+     */
+    private static final int BATCH_OVERHEAD = 256;
     AbstractConnectionFactory serverUI;
 
+    /**
+     * Log of the chat traffic. Written by a background thread so that
+     * echoing a message never waits on the console or the log file.
+     */
+    private final AsyncChatLog chatLog;
+
+    /**
+     * History of the messages broadcast, replayed to the clients that ask
+     * for it; null when the server keeps none.
+     */
+    private final ChatHistory history;
+
+    /**
+     * Index of the history, searched by '#search'; null when the server
+     * keeps no history.
+     */
+    private final ChatIndex index;
+
+    /**
+     * Messages kept for the users logged off, delivered when they log in;
+     * null when the server keeps none.
+     */
+    private final OfflineMailbox mailbox;
+
+    /**
+     * The node linking this server to the other servers of a cluster,
+     * or null when the server runs alone.
+     */
+    private ClusterNode cluster;
+
+    /**
+     * The users logged in on the other nodes of the cluster, with the
+     * node each one is on.
+     */
+    private final ConcurrentHashMap<String, String> remoteUsers = new ConcurrentHashMap<>();
+
 
     //Constructors ****************************************************
 
@@ -52,8 +158,44 @@ public class EchoServer extends ObservableServer
      * @param port The port number to connect on.
      */
     public EchoServer(int port, AbstractConnectionFactory connectionFactory)
+    {
+        this(port, connectionFactory, new AsyncChatLog());
+    }
+
+    /**
+     * Constructs an instance of the echo server that logs chat traffic
+     * to the given log.
+     *
+     * @param port The port number to connect on.
+     * @param chatLog The log receiving every echoed message.
+     */
+    public EchoServer(int port, AbstractConnectionFactory connectionFactory, AsyncChatLog chatLog)
+    {
+        this(port, connectionFactory, chatLog, null, null);
+    }
+
+    /**
+     * Constructs an instance of the echo server that logs chat traffic
+     * to the given log and keeps the messages broadcast in a history.
+     *
+     * @param port The port number to connect on.
+     * @param chatLog The log receiving every echoed message.
+     * @param history The history of the messages broadcast, or null.
+     * @param mailbox The mailboxes of the users logged off, or null.
+     */
+    public EchoServer(int port, AbstractConnectionFactory connectionFactory, AsyncChatLog chatLog,
+            ChatHistory history, OfflineMailbox mailbox)
     {
         super(port, connectionFactory);
+        this.chatLog = chatLog;
+        this.history = history;
+        this.index = history == null ? null : new ChatIndex(history); //indexes what is already in the history in the background
+        this.mailbox = mailbox;
+        setSessionResume(REPLAY_SIZE, RESUME_TIMEOUT);
+        //chat clients only send text; anything else is refused while it is being read
+        setMessageFilter(new MessageFilter().allow("java.lang.String"));
+        //chat clients with the same dictionary get compressed frames; an echo is compressed once for all of them
+        setCompression(ChatDictionary.create());
     }
 
 
@@ -88,12 +230,287 @@ public class EchoServer extends ObservableServer
         }
     }
 
+    /**
+     * A client whose connection dropped has reconnected and resumed its
+     * session; it is still logged in under the same login id.
+     */
+    synchronized protected void clientResumed(ConnectionToClient client) {
+        String id = client.getAttribute(LOGIN_ID);
+        if (id == null) {
+            return; // dropped before logging in
+        }
+        System.out.println("Welcome back / Bon retour / 欢迎回来: " + id);
+        if (cluster != null) {
+            cluster.join(id);
+        }
+        deliverMail(client, id, true); //the session replays the rest
+    }
+
     synchronized protected void clientDisconnected(ConnectionToClient client) {
         disconnectedString();
+        announceLeave(client);
     }
 
     synchronized protected void clientException(ConnectionToClient client, Throwable exception) {
         disconnectedString();
+        announceLeave(client);
+    }
+
+    /**
+     * Tells the other nodes of the cluster that a logged in client has left.
+     * The login id is cleared so that the client is only announced once.
+     */
+    private void announceLeave(ConnectionToClient client) {
+        String id = client.getAttribute(LOGIN_ID);
+        if (id != null) {
+            client.setAttribute(LOGIN_ID, null);
+            if (cluster != null) {
+                cluster.leave(id);
+            }
+            if (mailbox != null) {
+                try {
+                    mailbox.logoff(id); //what is sent from now on waits in the mailbox
+                }
+                catch (IOException ex) {
+                    System.out.println("Could not open the mailbox of " + id + ": " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a user who logs in the messages that waited in the user's mailbox,
+     * all at once, in the bulk lane.
+     *
+     * @param resumed true if the session of the user replays the messages
+     *                broadcast since it left; only the whispers are sent then.
+     */
+    private void deliverMail(ConnectionToClient client, String id, boolean resumed) {
+        if (mailbox == null) {
+            return;
+        }
+        try {
+            List<byte[]> messages = mailbox.login(id, resumed);
+            for (byte[] message : messages) {
+                client.sendSerializedToClient(message, Lane.BULK); //read from the disk as they are sent
+            }
+            if (!messages.isEmpty()) {
+                client.sendToClient("SERVER msg> " + messages.size() + " message(s) sent while you were away.", Lane.BULK);
+            }
+        }
+        catch (IOException ex) {
+            System.out.println("Could not deliver the mailbox of " + id + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Links this server to the other nodes of a cluster. Broadcasts, whispers
+     * and logins are then shared with the clients of every node.
+     *
+     * @param cluster the node, not yet started.
+     */
+    public void joinCluster(ClusterNode cluster) throws IOException {
+        this.cluster = cluster;
+        cluster.start();
+    }
+
+    /**
+     * Delivers a message coming from another node of the cluster.
+     *
+     * @param message the message.
+     */
+    public void clusterMessage(ClusterMessage message) {
+        switch (message.getKind()) {
+            case BROADCAST -> {
+                chatLog.log(message.getLoginId(), message.getPayload());
+                record(message.getLoginId(), message.getPayload());
+                keepForAway(message.getLoginId(), message.getPayload());
+                sendToAllClients(message.getPayload());
+            }
+            case WHISPER -> {
+                ConnectionToClient target = findClient(message.getTarget());
+                if (target != null) {
+                    sendWhisper(target, message.getLoginId(), message.getPayload());
+                }
+            }
+            case JOIN -> {
+                remoteUsers.put(message.getLoginId(), message.getOrigin());
+                System.out.println("Welcome / Bienvenue / 欢迎: " + message.getLoginId() + " (" + message.getOrigin() + ")");
+            }
+            case LEAVE -> {
+                remoteUsers.remove(message.getLoginId(), message.getOrigin());
+                System.out.println("Goodbye / Au revoir / 再见: " + message.getLoginId() + " (" + message.getOrigin() + ")");
+            }
+        }
+    }
+
+    /**
+     * Forgets the users of a node that restarted or can no longer be
+     * reached, so that whispers to them go to the mailbox instead.
+     */
+    public void originLost(String origin) {
+        if (remoteUsers.values().removeIf(origin::equals)) {
+            System.out.println("Lost the users of " + origin);
+        }
+    }
+
+    /**
+     * Returns the connection of a client logged in on this node.
+     *
+     * @param id the login id.
+     * @return the connection, or null if the user is not logged in here.
+     */
+    private ConnectionToClient findClient(String id) {
+        for (Thread thread : getClientConnections()) {
+            ConnectionToClient client = (ConnectionToClient) thread;
+            if (id.equals(client.getAttribute(LOGIN_ID))) {
+                return client;
+            }
+        }
+        return null;
+    }
+
+    private void sendWhisper(ConnectionToClient target, Object from, Object msg) {
+        try {
+            target.sendToClient(from + " (whisper)> " + msg);
+        }
+        catch (IOException ex) {
+            System.out.println(ex);
+        }
+    }
+
+    /**
+     * Handles "#whisper &lt;loginId&gt; &lt;message&gt;" from a logged in client.
+     */
+    private void whisper(String command, ConnectionToClient client) throws IOException {
+        String[] parts = command.substring(9).trim().split(" ", 2);
+        if (parts.length < 2 || parts[0].isBlank()) {
+            client.sendToClient("SERVER msg> Usage: #whisper <loginId> <message>", Lane.CONTROL);
+            return;
+        }
+        String from = client.getAttribute(LOGIN_ID);
+        ConnectionToClient target = findClient(parts[0]);
+        if (target != null) {
+            sendWhisper(target, from, parts[1]);
+        }
+        else if (cluster != null && remoteUsers.containsKey(parts[0])) {
+            cluster.whisper(from, parts[0], parts[1]);
+        }
+        else if (mailbox != null && mailbox.whisper(from, parts[0], parts[1])) {
+            client.sendToClient("SERVER msg> " + parts[0] + " is away; the message will be delivered at login.", Lane.CONTROL);
+        }
+        else {
+            client.sendToClient("SERVER msg> No user logged in as " + parts[0] + ".", Lane.CONTROL);
+        }
+    }
+
+    /**
+     * Adds a message broadcast to the history, if the server keeps one.
+     */
+    private void record(String loginId, Object msg) {
+        if (history != null) {
+            try {
+                history.append(loginId, msg);
+                index.update();
+            }
+            catch (IOException ex) {
+                System.out.println("Could not add to the history: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Keeps a message broadcast for the users logged off, if the server
+     * keeps mailboxes.
+     */
+    private void keepForAway(String loginId, Object msg) {
+        if (mailbox != null) {
+            try {
+                mailbox.sendToAll(loginId, msg);
+            }
+            catch (IOException ex) {
+                System.out.println("Could not keep the message for the users away: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Handles "#history [&lt;n&gt; | since &lt;offset&gt;]" from a logged in client: sends
+     * the last n messages of the history, or those from an offset on, at most
+     * HISTORY_PAGE at a time. The messages are sent as they are kept, in the
+     * bulk lane so that they do not hold up the live chat, and are followed
+     * by the offset to continue from.
+     */
+    private void replayHistory(String command, ConnectionToClient client) throws IOException {
+        if (history == null) {
+            client.sendToClient("SERVER msg> No history is kept.", Lane.CONTROL);
+            return;
+        }
+        String[] args = command.substring(8).trim().split("\\s+");
+        long from;
+        int count;
+        try {
+            if (args[0].isEmpty()) {
+                count = HISTORY_DEFAULT;
+                from = history.getNextOffset() - count;
+            }
+            else if (args[0].equals("since") && args.length == 2) {
+                from = Long.parseLong(args[1]);
+                count = HISTORY_PAGE;
+            }
+            else if (args.length == 1) {
+                count = Math.min(Integer.parseInt(args[0]), HISTORY_PAGE);
+                from = history.getNextOffset() - count;
+            }
+            else {
+                throw new NumberFormatException();
+            }
+        }
+        catch (NumberFormatException ex) {
+            client.sendToClient("SERVER msg> Usage: #history [<n> | since <offset>]", Lane.CONTROL);
+            return;
+        }
+
+        from = Math.min(Math.max(from, history.getFirstOffset()), history.getNextOffset()); //older messages are no longer kept
+        List<byte[]> entries = history.read(from, Math.max(count, 0));
+        for (byte[] entry : entries) {
+            client.sendSerializedToClient(entry, Lane.BULK); //straight from the history, not deserialized
+        }
+        long next = from + entries.size();
+        client.sendToClient(next < history.getNextOffset()
+                ? "SERVER msg> More history with #history since " + next
+                : "SERVER msg> End of history (" + entries.size() + " messages, next offset " + next + ").", Lane.BULK);
+    }
+
+    /**
+     * Handles "#search &lt;words&gt; ..." from the server console: shows the
+     * messages of the history that match, newest first, a page at a time.
+     *
+     * @see SearchQuery
+     */
+    private void search(String text) {
+        if (index == null) {
+            System.out.println("No history is kept.");
+            return;
+        }
+        SearchQuery query;
+        try {
+            query = SearchQuery.parse(text);
+        }
+        catch (IllegalArgumentException ex) {
+            System.out.println("ERROR. " + ex.getMessage());
+            return;
+        }
+        List<HistoryEntry> found = index.search(query, (long)(query.getPage() - 1) * SEARCH_PAGE,
+                SEARCH_PAGE + 1); //one more tells whether there is a next page
+        for (HistoryEntry entry : found.subList(0, Math.min(found.size(), SEARCH_PAGE))) {
+            System.out.println(new Date(entry.getTime()) + " " + entry);
+        }
+        if (found.size() > SEARCH_PAGE) {
+            System.out.println("More results with page:" + (query.getPage() + 1));
+        } else {
+            System.out.println("End of results (" + index.getDocumentCount() + " messages indexed).");
+        }
     }
 
     /**
@@ -105,12 +522,13 @@ public class EchoServer extends ObservableServer
     public void handleMessageFromClient(Object msg, ConnectionToClient client)
     {
         String check = msg.toString();
+        String id = client.getAttribute(LOGIN_ID); // read once; null until #login
         // 1. The #login commend should be recognized by the server.
         if(check.startsWith("#login ")) {
             joinedLoginId = check.substring(7).trim();
             if(joinedLoginId.isBlank()){
                 try {
-                    client.sendToClient("SERVER msg> Invalid login id.");
+                    client.sendToClient("SERVER msg> Invalid login id.", Lane.CONTROL);
                     client.close();
                 }
                 catch (Exception ex){
@@ -120,14 +538,18 @@ public class EchoServer extends ObservableServer
             // 4. The #login command should only be allowed as the first command received after a client connect.
             // If #login is received at any other time, the server should send an error message back to the client.
             try{
-                client.getInfo(loginId); // if the loginId exists -> already logged in
-                if(client.getInfo(loginId)==null){
+                // if the loginId exists -> already logged in
+                if(id==null){
                     //2. The login id should be saved, so that the server can always identify the client.
-                    client.setInfo(loginId,joinedLoginId);
+                    client.setAttribute(LOGIN_ID, joinedLoginId);
+                    if (cluster != null) {
+                        cluster.join(joinedLoginId);
+                    }
+                    deliverMail(client, joinedLoginId, false);
                     return;
                 }
                 else{
-                    client.sendToClient("SERVER msg> Already logged in.");
+                    client.sendToClient("SERVER msg> Already logged in.", Lane.CONTROL);
                 }
             }
             catch (Exception ex){
@@ -137,26 +559,117 @@ public class EchoServer extends ObservableServer
         }
         // 5. If the #login command is not received as the first command, then the server should send an error message back to the client
         // and terminate the client’s connection. (use the method close in ConnectionToClient).
-        if(client.getInfo(loginId)==null) { // the only way the client loginId is not null is if #login command is used.
+        if(id==null) { // the only way the client loginId is not null is if #login command is used.
             try {
-                client.sendToClient("SERVER msg> Error user, must log in first.");
+                client.sendToClient("SERVER msg> Error user, must log in first.", Lane.CONTROL);
                 client.close();
             }
             catch (Exception ex){
                 return;
             }
         }
-        if(client.getInfo(loginId)!=null) {
+        if(id!=null) {
             if (check.startsWith("SERVER msg> #")) { // to prevent client spoofing as server
                 System.out.println("Illegal phrase from client: " + client);
                 return;
             }
+            if (check.startsWith("#whisper ")) {
+                try {
+                    whisper(check, client);
+                }
+                catch (IOException ex) {
+                    System.out.println(ex);
+                }
+                return;
+            }
+            if (check.equals("#history") || check.startsWith("#history ")) {
+                try {
+                    replayHistory(check, client);
+                }
+                catch (IOException ex) {
+                    System.out.println(ex);
+                }
+                return;
+            }
             //3. Each message echoed by the server should be prefixed by the login id of the client that sent the message.
-            System.out.println(client.getInfo(loginId) + ": " + msg);
-            this.sendToAllClients(msg); // this sends the message back to the client (echo from the server); AbstractServer.java
+            echo(id, Collections.singletonList(msg));
         }
     }
 
+    /**
+     * This method handles the messages that a client sent in a burst.
+     * The chat of a logged in client is logged, kept and echoed in one
+     * pass; the commands, and anything before the login, are handled one
+     * by one by handleMessageFromClient, in order.
+     *
+     * @param messages The messages received from the client, in order.
+     * @param client The connection from which the messages originated.
+     */
+    protected void handleMessagesFromClient(List<Object> messages, ConnectionToClient client)
+    {
+        List<Object> burst = new ArrayList<>();
+        String burstId = null;
+        for (Object msg : messages) {
+            if (client.isClosing()) {
+                break;
+            }
+            String id = client.getAttribute(LOGIN_ID);
+            if (id != null && !msg.toString().startsWith("#") && !msg.toString().startsWith("SERVER msg> #")) {
+                burst.add(msg);
+                burstId = id;
+                continue;
+            }
+            echo(burstId, burst); //what was said before the command goes first
+            burst = new ArrayList<>();
+            handleMessageFromClient(msg, client);
+        }
+        echo(burstId, burst);
+    }
+
+    /**
+     * Logs, keeps and echoes chat messages from one user: to the clients
+     * in as few frames as the largest message size allows, each serialized
+     * once, and to the other nodes of the cluster.
+     */
+    private void echo(String id, List<Object> burst) {
+        if (burst.isEmpty()) {
+            return;
+        }
+        for (Object msg : burst) {
+            chatLog.log(id, msg);
+            record(id, msg);
+            keepForAway(id, msg);
+        }
+        // this sends the messages back to the clients (echo from the server); AbstractServer.java
+        // a batch larger than the largest message would not be sent at all
+        int limit = getMaxMessageSize();
+        int from = 0;
+        long bytes = BATCH_OVERHEAD;
+        for (int i = 0; i < burst.size(); i++) {
+            Object msg = burst.get(i);
+            long size = msg instanceof String ? 3L * ((String) msg).length() + BATCH_OVERHEAD : limit;
+            if (i > from && bytes + size > limit) {
+                sendBatch(burst.subList(from, i));
+                from = i;
+                bytes = BATCH_OVERHEAD;
+            }
+            bytes += size;
+        }
+        sendBatch(burst.subList(from, burst.size()));
+        if (cluster != null) {
+            for (Object msg : burst) {
+                cluster.broadcast(id, msg);
+            }
+        }
+    }
+
+    /**
+     * Sends messages to every client in one frame.
+     */
+    private void sendBatch(List<Object> messages) {
+        this.sendToAllClients(messages.size() == 1 ? messages.get(0) : new Batch(messages.toArray()));
+    }
+
     /**
      * This method overrides the one in the superclass.  Called
      * when the server starts listening for connections.
@@ -199,7 +712,7 @@ public class EchoServer extends ObservableServer
                         specialFunctions(serverMessage);
                     }
                     else {
-                        server.sendToAllClients(serverMessage);
+                        server.sendToAllClients(serverMessage, Lane.CONTROL); //ahead of the chat queued for each client
                     }
                 }
             }
@@ -216,31 +729,75 @@ public class EchoServer extends ObservableServer
 
         public void specialFunctions(String message) throws IOException {
             if(message.startsWith("SERVER msg> #setport ")){
-                //cannot use "if (server.isListening()) {" control because client will continue to communicate on a different port if changed
-                /*if (server.isListening()) {
-                    System.out.println("ERROR. Port can only be set if the server is closed.");
-                    return;
-                }*/
-                server.close();
+                //the new port is bound before the old one is released, so connected clients stay connected
                 String newPort = message.substring(21).trim();
                 try {
-                    Integer.parseInt(newPort);
-                    server.setPort(Integer.parseInt(newPort));
+                    server.changePort(Integer.parseInt(newPort));
                     display("Port set to: " + server.getPort());
                 } catch (NumberFormatException e) {
                     display("ERROR. Port must be a number.");
+                } catch (IOException e) {
+                    display("ERROR. Could not listen on port " + newPort + ": " + e.getMessage());
+                }
+            }
+            if(message.startsWith("SERVER msg> #addport ")){
+                String newPort = message.substring(21).trim();
+                try {
+                    ListenEndpoint endpoint = server.addEndpoint(new InetSocketAddress(Integer.parseInt(newPort)));
+                    display("Also listening on: " + endpoint.getLocalAddress());
+                } catch (NumberFormatException e) {
+                    display("ERROR. Port must be a number.");
+                } catch (IOException e) {
+                    display("ERROR. Could not listen on port " + newPort + ": " + e.getMessage());
+                }
+            }
+            if(message.startsWith("SERVER msg> #removeport ")){
+                String oldPort = message.substring(24).trim();
+                try {
+                    int port = Integer.parseInt(oldPort);
+                    boolean removed = false;
+                    for (ListenEndpoint endpoint : server.getEndpoints()) {
+                        if (endpoint.getPort() == port) {
+                            server.removeEndpoint(endpoint); //clients that connected on this port stay connected
+                            removed = true;
+                        }
+                    }
+                    display(removed ? "Stopped listening on port " + port : "ERROR. Not listening on port " + port);
+                } catch (NumberFormatException e) {
+                    display("ERROR. Port must be a number.");
+                }
+            }
+            if(message.startsWith("SERVER msg> #search ")){
+                server.search(message.substring(20).trim());
+            }
+            if(message.startsWith("SERVER msg> #sendfile ")){
+                //the clients pull the file at their own pace; it goes from the disk to the sockets without being copied
+                String file = message.substring(22).trim();
+                try {
+                    FileOffer offer = server.sendFileToAllClients(Paths.get(file));
+                    display("Offered " + offer);
+                } catch (IOException e) {
+                    display("ERROR. Could not send " + file + ": " + e.getMessage());
                 }
             }
             switch (message) {
                 case "SERVER msg> #" -> {
-                    System.out.println("Command list: \n#quit\n#stop\n#close\n#setport <port>\n#start\n#getport");
+                    System.out.println("Command list: \n#quit\n#stop\n#close\n#setport <port>\n#addport <port>\n#removeport <port>\n#endpoints\n#rejected\n#tls\n#compression\n#sendfile <path>\n#search <words> [\"phrase\"] [from:<id>] [after:<date>] [before:<date>] [page:<n>]\n#start\n#getport");
                 }
                 case "SERVER msg> #quit" -> {
                     System.out.println("Server is terminating");
+                    server.chatLog.close();
+                    if (server.history != null) {
+                        server.index.close();
+                        server.history.close();
+                    }
+                    if (server.mailbox != null) {
+                        server.mailbox.close();
+                    }
                     System.exit(1);
                 }
                 case "SERVER msg> #stop" -> {
-                    server.sendToAllClients("Server has stopped listening for connections.");
+                    server.sendToAllClients("Server has stopped listening for connections.", Lane.CONTROL);
                     server.stopListening(); //New clients cannot log in. If already connected, client can still chat.
                 }
                 case "SERVER msg> #close" -> {
@@ -252,6 +809,46 @@ public class EchoServer extends ObservableServer
                 case "SERVER msg> #getport" -> {
                     System.out.println(server.getPort());
                 }
+                case "SERVER msg> #endpoints" -> {
+                    for (ListenEndpoint endpoint : server.getEndpoints()) {
+                        System.out.println(endpoint);
+                    }
+                }
+                case "SERVER msg> #rejected" -> {
+                    //messages refused while being deserialized, by reason
+                    MessageFilter filter = server.getMessageFilter();
+                    for (MessageFilter.Reason reason : MessageFilter.Reason.values()) {
+                        System.out.println(reason + ": " + filter.getRejected(reason));
+                    }
+                }
+                case "SERVER msg> #tls" -> {
+                    TlsContext tls = server.getTlsContext();
+                    if (tls == null) {
+                        System.out.println("TLS is off.");
+                    } else {
+                        long handshakes = tls.getHandshakes();
+                        System.out.println("Handshakes: " + handshakes + " (" + tls.getResumedHandshakes() + " resumed, "
+                                + tls.getFailedHandshakes() + " failed)");
+                        System.out.println("Average: " + (handshakes == 0 ? 0 : tls.getHandshakeNanos() / handshakes / 1000)
+                                + " us, longest: " + tls.getMaxHandshakeNanos() / 1000 + " us");
+                    }
+                }
+                case "SERVER msg> #compression" -> {
+                    Compression compression = server.getCompression();
+                    if (compression == null) {
+                        System.out.println("Compression is off.");
+                    } else {
+                        long compressions = compression.getCompressions();
+                        long decompressed = compression.getDecompressedFrames();
+                        System.out.println("Frames: " + compression.getCompressedFrames() + " compressed ("
+                                + compressions + " compressions), " + compression.getRawFrames() + " raw");
+                        System.out.println(String.format("Ratio: %.2f (%d bytes to %d)", compression.getRatio(),
+                                compression.getBytesIn(), compression.getBytesOut()));
+                        System.out.println("Compressing: " + (compressions == 0 ? 0 : compression.getCompressNanos() / compressions)
+                                + " ns on average, decompressing: " + (decompressed == 0 ? 0 : compression.getDecompressNanos() / decompressed)
+                                + " ns on average");
+                    }
+                }
             }
         }
     }
@@ -261,10 +858,25 @@ public class EchoServer extends ObservableServer
     /**
      * This method is responsible for the creation of
      * the server instance (there is no UI in this phase).
+     * The optional second argument names a file that receives the
+     * chat log instead of the console. The messages broadcast are kept
+     * in the "history" directory, for the clients that ask for them, and
+     * the messages for the users logged off in the "mailbox" directory.
+     *
+     * To run the server as a node of a cluster, add
+     * "--cluster &lt;nodeId&gt; &lt;clusterPort&gt; [&lt;host:port&gt; ...]"
+     * with the cluster ports of the other nodes, e.g.
+     * "java EchoServer 5555 --cluster a 6555 localhost:6556".
+     *
+     * To accept TLS connections only, give the key store of the server
+     * with the javax.net.ssl system properties, e.g.
+     * "java -Djavax.net.ssl.keyStore=server.p12
+     * -Djavax.net.ssl.keyStorePassword=... EchoServer".
      */
     public static void main(String[] args)
     {
         int port = 0; //Port to listen on
+        AsyncChatLog chatLog;
 
         try
         {
@@ -274,10 +886,62 @@ public class EchoServer extends ObservableServer
         {
             port = DEFAULT_PORT; //Set port to 5555
         }
-        
+
+        int clusterArg = Arrays.asList(args).indexOf("--cluster");
+        String[] serverArgs = clusterArg < 0 ? args : Arrays.copyOf(args, clusterArg);
+
+        try
+        {
+            chatLog = serverArgs.length > 1
+                    ? new AsyncChatLog(serverArgs[1], AsyncChatLog.OverflowPolicy.DROP)
+                    : new AsyncChatLog();
+        }
+        catch (IOException ex)
+        {
+            System.out.println("ERROR - Could not open chat log, using the console.");
+            chatLog = new AsyncChatLog();
+        }
+
+        ChatHistory history;
+        try
+        {
+            history = new ChatHistory(Paths.get(HISTORY_DIRECTORY), ChatHistory.DEFAULT_SEGMENT_SIZE,
+                    HISTORY_MAX_BYTES, HISTORY_MAX_AGE);
+        }
+        catch (IOException ex)
+        {
+            System.out.println("ERROR - Could not open the chat history, none is kept.");
+            history = null;
+        }
+
+        OfflineMailbox mailbox;
+        try
+        {
+            mailbox = new OfflineMailbox(Paths.get(MAILBOX_DIRECTORY), OfflineMailbox.DEFAULT_SEGMENT_SIZE,
+                    MAILBOX_MAX_AGE);
+        }
+        catch (IOException ex)
+        {
+            System.out.println("ERROR - Could not open the mailboxes, messages to users away are lost.");
+            mailbox = null;
+        }
+
         // creates a connection using ServerToClientCxn to implement an AbstractConnectionFactory interface
         AbstractConnectionFactory connectionFactory = new ServerToClientCxn();
-        EchoServer sv = new EchoServer(port, connectionFactory);
+        EchoServer sv = new EchoServer(port, connectionFactory, chatLog, history, mailbox);
+
+        if (System.getProperty("javax.net.ssl.keyStore") != null)
+        {
+            try
+            {
+                sv.setTlsContext(new TlsContext(SSLContext.getDefault())); //key store from the javax.net.ssl properties
+            }
+            catch (NoSuchAlgorithmException ex)
+            {
+                System.out.println("ERROR - Could not set up TLS!");
+                return;
+            }
+        }
 
         try
         {
@@ -287,6 +951,20 @@ public class EchoServer extends ObservableServer
         {
             System.out.println("ERROR - Could not listen for clients!");
         }
+
+        if (clusterArg >= 0)
+        {
+            try
+            {
+                List<String> peers = new ArrayList<>(Arrays.asList(args).subList(clusterArg + 3, args.length));
+                sv.joinCluster(new ClusterNode(args[clusterArg + 1],
+                        Integer.parseInt(args[clusterArg + 2]), peers, false, sv));
+            }
+            catch (Exception ex)
+            {
+                System.out.println("ERROR - Could not join the cluster!");
+            }
+        }
         ServerConsole consoleChat = new ServerConsole(sv);
         consoleChat.accept();  //Wait for console data
     }
@@ -0,0 +1,106 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import common.AsyncChatLog;
+import ocsf.client.AbstractClient;
+import ocsf.server.ListenEndpoint;
+import ocsf.server.ServerToClientCxn;
+
+/**
+ * Floods the chat server with the messages of a resumable session, as
+ * fast as the client can send them, and checks that none is lost: every
+ * send succeeds, the server broadcasts every message back in order, to
+ * the sender and to another client, and no message is pushed out of a
+ * replay buffer before it is acknowledged. The messages are large
+ * enough to fill the socket buffers both ways, so the client writes
+ * while the server is blocked writing the echoes back to it.
+ *
+ * Usage: "java SessionFlood [messages] [size]",
+ * e.g. "java SessionFlood 200000 1024" or "java SessionFlood 20000 16384".
+ */
+public class SessionFlood
+{
+    /**
+     * Counts the messages of the flood echoed, and those out of order.
+     */
+    static class FloodClient extends AbstractClient
+    {
+        final CountDownLatch echoed;
+        volatile int next = 0;
+        volatile int outOfOrder = 0;
+
+        FloodClient(String loginId, int port, int messages)
+        {
+            super(loginId, "localhost", port);
+            echoed = new CountDownLatch(messages);
+            setSessionResume(true);
+        }
+
+        protected void handleMessageFromServer(Object msg)
+        {
+            String text = msg.toString();
+            if (!text.startsWith("flood "))
+                return;
+            int end = text.indexOf(' ', 6);
+            int sequence = Integer.parseInt(text.substring(6, end));
+            if (sequence != next)
+                outOfOrder++;
+            next = sequence + 1;
+            echoed.countDown();
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+
+        AsyncChatLog chatLog = new AsyncChatLog(OutputStream.nullOutputStream(), 8192,
+                AsyncChatLog.OverflowPolicy.DROP);
+        EchoServer server = new EchoServer(0, new ServerToClientCxn(), chatLog, null, null);
+        ListenEndpoint tcp = server.addEndpoint(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        FloodClient sender = new FloodClient("sender", tcp.getPort(), messages);
+        FloodClient listener = new FloodClient("listener", tcp.getPort(), messages);
+        try {
+            listener.openConnection();
+            listener.sendToServer("#login listener");
+            sender.openConnection();
+            sender.sendToServer("#login sender");
+
+            char[] padding = new char[size];
+            Arrays.fill(padding, 'x');
+            String filler = new String(padding);
+
+            int failed = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                try {
+                    sender.sendToServer("flood " + i + " " + filler);
+                } catch (IOException e) {
+                    failed++;
+                }
+            }
+            boolean complete = sender.echoed.await(120, TimeUnit.SECONDS)
+                    && listener.echoed.await(120, TimeUnit.SECONDS);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.printf("%d messages of %d bytes%n", messages, size);
+            System.out.printf("sends failed %d, echoes missing %d and %d, out of order %d and %d, "
+                    + "replay overflows %d, %.0f msg/s%n", failed, sender.echoed.getCount(),
+                    listener.echoed.getCount(), sender.outOfOrder, listener.outOfOrder,
+                    server.getReplayOverflows(), messages / seconds);
+            if (!complete || failed > 0 || sender.outOfOrder > 0 || listener.outOfOrder > 0
+                    || server.getReplayOverflows() > 0)
+                System.exit(1);
+        } finally {
+            sender.closeConnection();
+            listener.closeConnection();
+        }
+        System.exit(0);  // Ends the server with its connections
+    }
+}
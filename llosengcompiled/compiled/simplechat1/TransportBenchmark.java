@@ -0,0 +1,154 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import ocsf.client.AbstractClient;
+import ocsf.server.AbstractServer;
+import ocsf.server.ConnectionToClient;
+import ocsf.server.ListenEndpoint;
+import ocsf.server.ServerToClientCxn;
+
+/**
+ * Compares the transports a client on the same host can use to reach
+ * the server: loopback TCP, a Unix domain socket and shared memory. One
+ * server listens on all three; for each transport a client measures the
+ * round trip of a small message, then how many messages of a given size
+ * per second the server reads.
+ *
+ * Usage: "java TransportBenchmark [roundTrips] [messages] [size]",
+ * e.g. "java TransportBenchmark 20000 200000 1024".
+ */
+public class TransportBenchmark
+{
+    /**
+     * Echoes back every message except the byte arrays, which it only
+     * counts.
+     */
+    static class BenchmarkServer extends AbstractServer
+    {
+        BenchmarkServer()
+        {
+            super(0, new ServerToClientCxn());
+        }
+
+        protected void handleMessageFromClient(Object msg, ConnectionToClient client)
+        {
+            if (msg instanceof byte[])
+                return;
+            try {
+                client.sendToClient(msg);
+            } catch (IOException e) {
+                System.out.println("ERROR - Could not answer the client: " + e);
+            }
+        }
+    }
+
+    /**
+     * Hands the messages of the server to the thread measuring.
+     */
+    static class BenchmarkClient extends AbstractClient
+    {
+        final BlockingQueue<Object> received = new LinkedBlockingQueue<>();
+
+        BenchmarkClient(String host, int port)
+        {
+            super("benchmark", host, port);
+        }
+
+        protected void handleMessageFromServer(Object msg)
+        {
+            received.add(msg);
+        }
+
+        Object next() throws Exception
+        {
+            Object msg = received.poll(10, TimeUnit.SECONDS);
+            if (msg == null)
+                throw new IOException("no answer from the server");
+            return msg;
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int roundTrips = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        int size = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+
+        Path directory = Files.createTempDirectory("ocsf");
+        UnixDomainSocketAddress unix = UnixDomainSocketAddress.of(directory.resolve("server.sock"));
+        Path rings = Files.createDirectory(directory.resolve("rings"));
+
+        BenchmarkServer server = new BenchmarkServer();
+        ListenEndpoint tcp = server.addEndpoint(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        server.addEndpoint(unix);
+        server.addSharedMemoryEndpoint(rings);
+
+        System.out.printf("%d round trips, %d messages of %d bytes%n", roundTrips, messages, size);
+        System.out.printf("%-10s %12s %12s %14s %10s%n", "transport", "rtt p50 us", "rtt p99 us", "msg/s", "MB/s");
+        try {
+            // The first pass warms up the code shared by the transports
+            for (int pass = 0; pass < 2; pass++) {
+                BenchmarkClient overTcp = new BenchmarkClient("localhost", tcp.getPort());
+                run("tcp", overTcp, roundTrips, messages, size, pass > 0);
+
+                BenchmarkClient overUnix = new BenchmarkClient("localhost", 0);
+                overUnix.setUnixDomainAddress(unix);
+                run("unix", overUnix, roundTrips, messages, size, pass > 0);
+
+                BenchmarkClient overSharedMemory = new BenchmarkClient("localhost", 0);
+                overSharedMemory.setSharedMemoryDirectory(rings);
+                run("shm", overSharedMemory, roundTrips, messages, size, pass > 0);
+            }
+        } finally {
+            server.close();
+            Files.deleteIfExists(rings);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    /**
+     * Measures one transport and prints the results if asked.
+     */
+    private static void run(String transport, BenchmarkClient client, int roundTrips,
+                            int messages, int size, boolean print) throws Exception
+    {
+        client.openConnection();
+        try {
+            // Latency: one small message at a time
+            long[] times = new long[roundTrips];
+            for (int i = 0; i < roundTrips; i++) {
+                long start = System.nanoTime();
+                client.sendToServer(i);
+                client.next();
+                times[i] = System.nanoTime() - start;
+            }
+            Arrays.sort(times);
+
+            // Throughput: a stream of messages, then one echoed to know they were all read
+            byte[] payload = new byte[size];
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                client.sendToServer(payload);
+            }
+            client.sendToServer("sync");
+            client.next();
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            if (print) {
+                System.out.printf("%-10s %12.1f %12.1f %14.0f %10.1f%n", transport,
+                        times[roundTrips / 2] / 1e3, times[(int)(roundTrips * 0.99)] / 1e3,
+                        messages / seconds, (double)messages * size / seconds / (1 << 20));
+            }
+        } finally {
+            client.closeConnection();
+        }
+    }
+}
@@ -7,6 +7,14 @@ package client;
 import ocsf.client.*;
 import common.*;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import javax.net.ssl.SSLContext;
+import ocsf.protocol.Chunk;
+import ocsf.protocol.FileOffer;
+import ocsf.protocol.TlsContext;
 
 /**
  * This class overrides some of the methods defined in the abstract
@@ -27,6 +35,23 @@ public class ChatClient extends ObservableClient
      */
     public static final String CONNECTION_CLOSED = "The server has shut down - quitting.";
     public static final String CLOSE = "Server closed unexpectedly - client disconnected from server.";
+    public static final String CONNECTION_LOST = "Connection lost - reconnecting.";
+    public static final String RESUMED = "Session resumed.";
+
+    /**
+     * Delay before the first attempt to reconnect, in ms.
+     */
+    public static final long RECONNECT_DELAY = 500;
+
+    /**
+     * Number of messages typed while reconnecting that are sent once reconnected.
+     */
+    public static final int RECONNECT_BUFFER_SIZE = 256;
+
+    /**
+     * Directory where the files sent by the server are saved.
+     */
+    public static final String DOWNLOADS = "downloads";
 
     //Instance variables **********************************************
 
@@ -40,7 +65,9 @@ public class ChatClient extends ObservableClient
     //Constructors ****************************************************
 
     /**
-     * Constructs an instance of the chat client.
+     * Constructs an instance of the chat client. The client connects
+     * with TLS when the javax.net.ssl.trustStore system property names
+     * the trust store holding the certificate of the server.
      *
      * @param loginId         //PROBABLY USE THIS FOR LOGIN_IN
      * @param host     The server to connect to.
@@ -53,6 +80,16 @@ public class ChatClient extends ObservableClient
     {
         super(loginId, host, port); //Call the superclass constructor
         this.clientUI = clientUI;
+        setSessionResume(true); //a lost connection can be resumed without logging in again
+        setAutoReconnect(RECONNECT_DELAY, RECONNECT_BUFFER_SIZE); //no #login needed after a drop
+        setCompression(ChatDictionary.create()); //used if the server has the same dictionary
+        if (System.getProperty("javax.net.ssl.trustStore") != null) {
+            try {
+                setTlsContext(new TlsContext(SSLContext.getDefault())); //a reconnect resumes the TLS session
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("Could not set up TLS", e);
+            }
+        }
         //openConnection(); //if commented, client needs to log in. If not client logs in automatically //TEST CASE FOR #5. Phase 2
     }
 
@@ -68,6 +105,79 @@ public class ChatClient extends ObservableClient
         clientUI.display(msg.toString());
     }
 
+    /**
+     * Called when the server answers the session request sent on connection.
+     * A new session needs the '#login <loginid>' command, for instance after
+     * the server restarted; a resumed one is still logged in and the server
+     * sends the messages that were missed. What was typed while reconnecting
+     * is sent after this method returns.
+     *
+     * @param resumed true if the previous session was resumed.
+     */
+    protected void sessionGranted(boolean resumed)
+    {
+        if (resumed) {
+            clientUI.display(RESUMED);
+        }
+        else {
+            handleMessageFromClientUI("#login " + getLoginId());
+        }
+    }
+
+    /**
+     * Called when the server sends a file. The file is saved in the downloads
+     * directory under its own name; a file of that name left unfinished, e.g.
+     * when the client quit, is completed instead of received again.
+     *
+     * @param offer the file offered by the server.
+     * @return where to save the file, or null to decline it.
+     */
+    protected Path fileOffered(FileOffer offer)
+    {
+        //the name comes from the server: keep the last part only, so it cannot point outside the downloads
+        Path name = Paths.get(offer.getName()).getFileName();
+        if (name == null || name.toString().equals(".") || name.toString().equals("..")) {
+            clientUI.display("Declined file with an invalid name: " + offer.getName());
+            return null;
+        }
+        try {
+            Files.createDirectories(Paths.get(DOWNLOADS));
+        } catch (IOException e) {
+            clientUI.display("Could not create " + DOWNLOADS + ": " + e.getMessage());
+            return null;
+        }
+        clientUI.display("Receiving " + offer);
+        return Paths.get(DOWNLOADS).resolve(name);
+    }
+
+    /**
+     * Shows the progress of a file every 10%; the data arrives in chunks.
+     *
+     * @param offer    the file offered by the server.
+     * @param received how much of the file was received, in bytes.
+     */
+    protected void fileProgress(FileOffer offer, long received)
+    {
+        long step = Math.max(offer.getSize() / 10, 1);
+        if (received < offer.getSize() && received / step != (received - Chunk.SIZE) / step) {
+            clientUI.display(offer.getName() + ": " + received * 100 / offer.getSize() + "%");
+        }
+    }
+
+    /**
+     * Tells the user where a file was saved, or that it is unfinished.
+     *
+     * @param offer    the file offered by the server.
+     * @param file     where the file was saved.
+     * @param complete true if the whole file was received.
+     */
+    protected void fileReceived(FileOffer offer, Path file, boolean complete)
+    {
+        super.fileReceived(offer, file, complete);
+        clientUI.display(complete ? "Saved " + offer.getName() + " to " + file
+                : offer.getName() + " is unfinished; it will be completed if sent again.");
+    }
+
     /**
      * This method handles all data coming from the UI
      *
@@ -99,7 +209,11 @@ public class ChatClient extends ObservableClient
         //System.out.println(exception.toString());
         // #close = java.io.EOFException -> closeConnection();
         // #quit = java.net.SocketException: Connection reset -> quit();
-        if (exception instanceof java.io.EOFException) {
+        // a lost connection is reconnected, resuming the session or logging in again
+        if (isReconnecting()) {
+            clientUI.display(CONNECTION_LOST);
+        }
+        else if (exception instanceof java.io.EOFException) {
             clientUI.display(CLOSE);
             try {
                 closeConnection();
@@ -0,0 +1,26 @@
+package cluster;
+
+/**
+ * Implemented by the chat server that owns a <code>ClusterNode</code>
+ * in order to receive the messages originated by the other nodes.
+ */
+public interface ClusterListener
+{
+  /**
+   * Called once for each message of another node, in the order in which
+   * that node originated its messages. Duplicates are never delivered.
+   *
+   * @param message the message to deliver to the local clients.
+   */
+  void clusterMessage(ClusterMessage message);
+
+  /**
+   * Called when another node restarted, or its link to this node was
+   * lost: the users it announced can no longer be reached through it.
+   * If the node is heard from again without having restarted, a JOIN is
+   * delivered again for each of its users.
+   *
+   * @param origin the id of the node.
+   */
+  void originLost(String origin);
+}
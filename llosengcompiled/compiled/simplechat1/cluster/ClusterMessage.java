@@ -0,0 +1,141 @@
+package cluster;
+
+import java.io.Serializable;
+
+/**
+ * A message exchanged between the nodes of a chat cluster. Every
+ * message is stamped with the node that originated it, the epoch of
+ * that node (its start time, so a restarted node is recognised) and a
+ * sequence number that increases by one for each message the node
+ * originates. Receivers use the stamp to drop duplicates and to
+ * deliver the messages of each origin in order.
+ *
+ * @see cluster.ClusterNode
+ */
+public class ClusterMessage implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The kinds of cluster messages.
+   */
+  public enum Kind
+  {
+    /** A chat message to be echoed to every client. */
+    BROADCAST,
+    /** A private message for one login id. */
+    WHISPER,
+    /** A user logged in on the origin node. */
+    JOIN,
+    /** A user logged off from the origin node. */
+    LEAVE,
+    /**
+     * Sent ahead of the messages of the origin when a link (re)connects:
+     * those that follow on the link start at its sequence number. Never
+     * delivered to the listener.
+     */
+    SYNC
+  }
+
+  private final String origin;
+
+  private final long epoch;
+
+  private final long sequence;
+
+  private final Kind kind;
+
+  /**
+   * The login id of the user who sent the message or changed presence.
+   */
+  private final String loginId;
+
+  /**
+   * The recipient of a whisper; null otherwise.
+   */
+  private final String target;
+
+  /**
+   * The chat message; null for presence changes.
+   */
+  private final Object payload;
+
+// Constructor ***************************************************************
+
+  ClusterMessage(String origin, long epoch, long sequence, Kind kind,
+    String loginId, String target, Object payload)
+  {
+    this.origin = origin;
+    this.epoch = epoch;
+    this.sequence = sequence;
+    this.kind = kind;
+    this.loginId = loginId;
+    this.target = target;
+    this.payload = payload;
+  }
+
+// Accessor methods *********************************************************
+
+  /**
+   * @return the id of the node that originated the message.
+   */
+  public String getOrigin()
+  {
+    return origin;
+  }
+
+  /**
+   * @return the start time of the origin node.
+   */
+  public long getEpoch()
+  {
+    return epoch;
+  }
+
+  /**
+   * @return the position of the message among those of its origin.
+   */
+  public long getSequence()
+  {
+    return sequence;
+  }
+
+  /**
+   * @return the kind of message.
+   */
+  public Kind getKind()
+  {
+    return kind;
+  }
+
+  /**
+   * @return the login id of the sender.
+   */
+  public String getLoginId()
+  {
+    return loginId;
+  }
+
+  /**
+   * @return the recipient of a whisper, or null.
+   */
+  public String getTarget()
+  {
+    return target;
+  }
+
+  /**
+   * @return the chat message, or null.
+   */
+  public Object getPayload()
+  {
+    return payload;
+  }
+
+  public String toString()
+  {
+    return origin + "#" + sequence + " " + kind + " " + loginId
+      + (target == null ? "" : " -> " + target)
+      + (payload == null ? "" : ": " + payload);
+  }
+}
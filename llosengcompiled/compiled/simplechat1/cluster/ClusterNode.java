@@ -0,0 +1,600 @@
+package cluster;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import ocsf.client.AbstractClient;
+import ocsf.protocol.MessageFilter;
+import ocsf.server.AbstractServer;
+import ocsf.server.AttributeKey;
+import ocsf.server.ConnectionToClient;
+import ocsf.server.ServerToClientCxn;
+
+/**
+ * One node of a chat cluster: several chat servers that share one
+ * logical chat space, each accepting its own clients.<p>
+ *
+ * The inter-node channel is built on the OCSF itself. Each node listens
+ * for its peers with an <code>AbstractServer</code> and keeps one
+ * <code>AbstractClient</code> link to every peer it was given. Messages
+ * a node originates are queued on every link and written by the link's
+ * own thread, so the chat path never waits on a peer. The last
+ * <code>HISTORY_SIZE</code> messages are kept and sent again whenever a
+ * link reconnects.<p>
+ *
+ * Receivers drop the messages they have already delivered and hold
+ * back those that arrive ahead of a gap, so the messages of each origin
+ * are delivered exactly once and in order. With relaying on, a node
+ * also forwards the messages of other origins, which lets the cluster
+ * work when the peers do not form a full mesh.<p>
+ *
+ * Where the messages of an origin start is not taken from the first one
+ * heard, which may be relayed ahead of the history: the history sent
+ * on a link starts with a <code>SYNC</code> handshake giving its first
+ * message, and the messages of an origin are held until one of its
+ * handshakes is heard. A relaying node passes on the handshake it
+ * starts from, and keeps the last messages of every origin it relays,
+ * which it sends again after a handshake when a link reconnects.<p>
+ *
+ * Each node keeps the users that every origin announced. When an origin
+ * restarts, or its link to this node is lost, the listener is told that
+ * those users are gone; if the origin is heard from again without having
+ * restarted, its users are announced again.<p>
+ *
+ * A cluster can be tested on one machine by starting several nodes
+ * on different ports of localhost.
+ */
+public class ClusterNode
+{
+  // Class variables *************************************************
+
+  /**
+   * Number of originated messages kept for resending after a link
+   * reconnects; with relaying on, as many messages of every other
+   * origin are kept too.
+   */
+  public static final int HISTORY_SIZE = 1024;
+
+  /**
+   * Maximum number of messages of one origin held back behind a gap.
+   * When exceeded the gap is considered lost and skipped.
+   */
+  public static final int MAX_PENDING = 1024;
+
+  /**
+   * Maximum number of messages waiting on a link. When exceeded the
+   * link drops its queue and resends the history instead.
+   */
+  public static final int LINK_QUEUE_SIZE = 8192;
+
+  /**
+   * Delay between two attempts to connect to a peer, in ms.
+   */
+  public static final int RETRY_DELAY = 1000;
+
+  /**
+   * The node id of the peer at the other end of an incoming link, which
+   * the peer sends first when it connects.
+   */
+  private static final AttributeKey<String> PEER =
+    AttributeKey.register("cluster.peer", String.class);
+
+  // Instance variables **********************************************
+
+  private final String nodeId;
+
+  /**
+   * The start time of this node, sent with every message.
+   */
+  private final long epoch = System.currentTimeMillis();
+
+  private final ClusterListener listener;
+
+  /**
+   * True if messages of other origins are forwarded to the peers.
+   */
+  private final boolean relay;
+
+  /**
+   * Accepts the links of the peers.
+   */
+  private final LinkServer linkServer;
+
+  /**
+   * One outgoing link per peer.
+   */
+  private final PeerLink[] peers;
+
+  /**
+   * The last messages originated here, indexed by sequence number.
+   */
+  private final ClusterMessage[] history = new ClusterMessage[HISTORY_SIZE];
+
+  /**
+   * The sequence number of the next message originated here.
+   */
+  private long nextSequence = 0;
+
+  /**
+   * Delivery state of every origin heard of, by node id.
+   */
+  private final Map<String, OriginState> origins = new HashMap<>();
+
+  private volatile boolean running = false;
+
+  // Constructor *****************************************************
+
+  /**
+   * Constructs a node.
+   *
+   * @param nodeId   a name unique within the cluster.
+   * @param port     the port on which the peers connect to this node.
+   * @param peers    the peers to connect to, as "host:port" strings.
+   * @param relay    true to forward the messages of other origins.
+   * @param listener receives the messages of the other nodes.
+   */
+  public ClusterNode(String nodeId, int port, List<String> peers,
+    boolean relay, ClusterListener listener)
+  {
+    this.nodeId = nodeId;
+    this.relay = relay;
+    this.listener = listener;
+    this.linkServer = new LinkServer(port);
+    this.peers = new PeerLink[peers.size()];
+    for (int i = 0; i < this.peers.length; i++)
+    {
+      String address = peers.get(i);
+      int colon = address.lastIndexOf(':');
+      this.peers[i] = new PeerLink(address.substring(0, colon),
+        Integer.parseInt(address.substring(colon + 1)));
+    }
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * Starts listening for the peers and connecting to them.
+   *
+   * @exception IOException if the node cannot listen on its port.
+   */
+  public void start() throws IOException
+  {
+    running = true;
+    linkServer.listen();
+    for (PeerLink peer : peers)
+    {
+      peer.sender.start();
+    }
+  }
+
+  /**
+   * Closes every link of this node.
+   */
+  public void close()
+  {
+    running = false;
+    try
+    {
+      linkServer.close();
+    }
+    catch (IOException e) {}
+    for (PeerLink peer : peers)
+    {
+      peer.sender.interrupt();
+      try
+      {
+        peer.closeConnection();
+      }
+      catch (IOException e) {}
+    }
+  }
+
+  /**
+   * Sends a chat message to the clients of every other node.
+   *
+   * @param loginId the sender.
+   * @param message the message.
+   */
+  public void broadcast(String loginId, Object message)
+  {
+    originate(ClusterMessage.Kind.BROADCAST, loginId, null, message);
+  }
+
+  /**
+   * Sends a private message to a user logged in on another node.
+   *
+   * @param loginId the sender.
+   * @param target  the recipient.
+   * @param message the message.
+   */
+  public void whisper(String loginId, String target, Object message)
+  {
+    originate(ClusterMessage.Kind.WHISPER, loginId, target, message);
+  }
+
+  /**
+   * Tells the other nodes that a user logged in here.
+   *
+   * @param loginId the user.
+   */
+  public void join(String loginId)
+  {
+    originate(ClusterMessage.Kind.JOIN, loginId, null, null);
+  }
+
+  /**
+   * Tells the other nodes that a user logged off from here.
+   *
+   * @param loginId the user.
+   */
+  public void leave(String loginId)
+  {
+    originate(ClusterMessage.Kind.LEAVE, loginId, null, null);
+  }
+
+// ACCESSING METHODS ------------------------------------------------
+
+  /**
+   * @return the id of this node.
+   */
+  public String getNodeId()
+  {
+    return nodeId;
+  }
+
+  /**
+   * @return the number of peers currently linked to by this node.
+   */
+  public int getConnectedPeers()
+  {
+    int count = 0;
+    for (PeerLink peer : peers)
+    {
+      if (peer.isConnected())
+        count++;
+    }
+    return count;
+  }
+
+// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+  /**
+   * Stamps a new message, records it and queues it on every link.
+   */
+  private void originate(ClusterMessage.Kind kind, String loginId,
+    String target, Object payload)
+  {
+    ClusterMessage message;
+    synchronized (history)
+    {
+      message = new ClusterMessage(nodeId, epoch, nextSequence, kind,
+        loginId, target, payload);
+      history[(int)(nextSequence % HISTORY_SIZE)] = message;
+      nextSequence++;
+    }
+    forward(message);
+  }
+
+  /**
+   * Queues a message on every link.
+   */
+  private void forward(ClusterMessage message)
+  {
+    for (PeerLink peer : peers)
+    {
+      peer.queue(message);
+    }
+  }
+
+  /**
+   * Drops what is queued on a link and returns what the link sends
+   * instead when it (re)connects: the handshake of this node and the
+   * recorded messages, oldest first, then with relaying on the same for
+   * every other origin.
+   */
+  private synchronized List<ClusterMessage> resyncMessages(PeerLink link)
+  {
+    // Under the lock of receive, so that what is forwarded after the
+    // handshakes is queued after them
+    link.outbound.clear();
+
+    List<ClusterMessage> messages = new ArrayList<>();
+    synchronized (history)
+    {
+      int count = (int)Math.min(nextSequence, HISTORY_SIZE);
+      messages.add(new ClusterMessage(nodeId, epoch, nextSequence - count,
+        ClusterMessage.Kind.SYNC, null, null, null));
+      for (int i = 0; i < count; i++)
+      {
+        messages.add(
+          history[(int)((nextSequence - count + i) % HISTORY_SIZE)]);
+      }
+    }
+    if (relay)
+    {
+      for (Map.Entry<String, OriginState> entry : origins.entrySet())
+      {
+        OriginState state = entry.getValue();
+        if (!state.synced || state.lost)
+          continue;
+        long first = state.recent.isEmpty()
+          ? state.delivered + 1 : state.recent.peekFirst().getSequence();
+        messages.add(new ClusterMessage(entry.getKey(), state.epoch, first,
+          ClusterMessage.Kind.SYNC, null, null, null));
+        messages.addAll(state.recent);
+      }
+    }
+    return messages;
+  }
+
+  /**
+   * Delivers the messages received from a peer, in order and once.
+   */
+  private synchronized void receive(ClusterMessage message)
+  {
+    if (message.getOrigin().equals(nodeId))
+      return;
+
+    OriginState state = origins.get(message.getOrigin());
+    if (state == null || message.getEpoch() > state.epoch)
+    {
+      // First message heard from this origin, or the origin restarted;
+      // where its messages start is known from its handshake
+      if (state != null && !state.lost)
+        listener.originLost(message.getOrigin());
+      state = new OriginState(message.getEpoch());
+      origins.put(message.getOrigin(), state);
+    }
+    else if (message.getEpoch() < state.epoch)
+    {
+      return; // From a previous run of the origin
+    }
+    else if (state.lost)
+    {
+      // Back without having restarted; its users are still there
+      state.lost = false;
+      for (String user : state.users)
+      {
+        listener.clusterMessage(new ClusterMessage(message.getOrigin(),
+          state.epoch, state.delivered, ClusterMessage.Kind.JOIN, user,
+          null, null));
+      }
+    }
+
+    if (message.getKind() == ClusterMessage.Kind.SYNC)
+    {
+      if (state.synced)
+        return; // Where the messages start is known already
+      state.synced = true;
+      state.delivered = message.getSequence() - 1;
+      state.pending.headMap(message.getSequence()).clear();
+      if (relay)
+        forward(message);  // The messages forwarded start there too
+    }
+    else
+    {
+      if (state.synced && message.getSequence() <= state.delivered)
+        return; // Duplicate
+
+      state.pending.put(message.getSequence(), message);
+      if (state.pending.size() > MAX_PENDING)
+      {
+        // The missing messages, or the handshake, are not coming back;
+        // skip the gap
+        state.synced = true;
+        state.delivered = state.pending.firstKey() - 1;
+      }
+    }
+    if (!state.synced)
+      return; // Held until the handshake
+
+    ClusterMessage next;
+    while ((next = state.pending.remove(state.delivered + 1)) != null)
+    {
+      state.delivered++;
+      if (next.getKind() == ClusterMessage.Kind.JOIN)
+        state.users.add(next.getLoginId());
+      else if (next.getKind() == ClusterMessage.Kind.LEAVE)
+        state.users.remove(next.getLoginId());
+      listener.clusterMessage(next);
+      if (relay)
+      {
+        forward(next);
+        state.recent.add(next);
+        if (state.recent.size() > HISTORY_SIZE)
+          state.recent.poll();
+      }
+    }
+  }
+
+  /**
+   * Tells the listener that the users of an origin are gone, when the
+   * link of the peer that is that origin is lost.
+   */
+  private synchronized void lost(String origin)
+  {
+    OriginState state = origins.get(origin);
+    if (state == null || state.lost)
+      return;
+    state.lost = true;
+    listener.originLost(origin);
+  }
+
+// NESTED CLASSES ---------------------------------------------------
+
+  /**
+   * What has been delivered from one origin.
+   */
+  private static class OriginState
+  {
+    final long epoch;
+
+    /**
+     * Sequence number of the last message delivered.
+     */
+    long delivered;
+
+    /**
+     * True once a handshake of the origin told where its messages
+     * start; until then they are held.
+     */
+    boolean synced = false;
+
+    /**
+     * Messages received ahead of a gap.
+     */
+    final TreeMap<Long, ClusterMessage> pending = new TreeMap<>();
+
+    /**
+     * The last messages delivered, oldest first, kept with relaying on
+     * to be sent again when a link reconnects.
+     */
+    final ArrayDeque<ClusterMessage> recent = new ArrayDeque<>();
+
+    /**
+     * The users logged in on the origin, as it announced them.
+     */
+    final Set<String> users = new HashSet<>();
+
+    /**
+     * True if the link of the origin was lost, and the listener told so.
+     */
+    boolean lost = false;
+
+    OriginState(long epoch)
+    {
+      this.epoch = epoch;
+    }
+  }
+
+  /**
+   * Accepts the links of the peers and passes on what they send.
+   */
+  private class LinkServer extends AbstractServer
+  {
+    LinkServer(int port)
+    {
+      super(port, new ServerToClientCxn());
+      setMessageFilter(new MessageFilter().allow("cluster.*", "java.lang.String"));
+    }
+
+    protected void handleMessageFromClient(Object msg,
+      ConnectionToClient client)
+    {
+      if (msg instanceof ClusterMessage)
+        receive((ClusterMessage)msg);
+      else if (msg instanceof String)
+        client.setAttribute(PEER, (String)msg);  // The peer's node id
+    }
+
+    synchronized protected void clientDisconnected(
+      ConnectionToClient client)
+    {
+      linkLost(client);
+    }
+
+    synchronized protected void clientException(
+      ConnectionToClient client, Throwable exception)
+    {
+      linkLost(client);
+    }
+
+    private void linkLost(ConnectionToClient client)
+    {
+      String peer = client.getAttribute(PEER);
+      if (peer != null && running)
+        lost(peer);
+    }
+  }
+
+  /**
+   * The link to one peer, with the thread that writes to it.
+   */
+  private class PeerLink extends AbstractClient
+  {
+    private final LinkedBlockingQueue<ClusterMessage> outbound =
+      new LinkedBlockingQueue<>(LINK_QUEUE_SIZE);
+
+    /**
+     * Set when the history must be sent again before the queue.
+     */
+    private volatile boolean resync = true;
+
+    final Thread sender = new Thread(this::send, "ClusterNode link");
+
+    PeerLink(String host, int port)
+    {
+      super(nodeId, host, port);
+      sender.setDaemon(true);
+    }
+
+    void queue(ClusterMessage message)
+    {
+      if (!outbound.offer(message))
+      {
+        outbound.clear();
+        resync = true;
+      }
+    }
+
+    /**
+     * Connects to the peer, then writes the queued messages until the
+     * node is closed.
+     */
+    private void send()
+    {
+      while (running)
+      {
+        try
+        {
+          if (!isConnected())
+          {
+            openConnection();
+            sendToServer(nodeId);  // Names this link to the peer
+            resync = true;
+          }
+          if (resync)
+          {
+            resync = false;
+            for (ClusterMessage message : resyncMessages(this))
+            {
+              sendToServer(message);
+            }
+          }
+          ClusterMessage message =
+            outbound.poll(RETRY_DELAY, TimeUnit.MILLISECONDS);
+          if (message != null)
+            sendToServer(message);
+        }
+        catch (IOException e)
+        {
+          resync = true;
+          try
+          {
+            closeConnection();
+            Thread.sleep(RETRY_DELAY);
+          }
+          catch (IOException ex) {}
+          catch (InterruptedException ex)
+          {
+            return;
+          }
+        }
+        catch (InterruptedException e)
+        {
+          return;
+        }
+      }
+    }
+
+    protected void handleMessageFromServer(Object msg) {}
+
+    protected void connectionException(Exception exception)
+    {
+      resync = true;
+    }
+  }
+}
+// End of ClusterNode class
@@ -3,6 +3,8 @@ import ocsf.server.AbstractServer;
 import ocsf.server.ConnectionToClient;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import ocsf.protocol.SharedMemoryChannel;
 
 //this creates an interface for a server to connect to a client in AbstractServer, AdaptableServer, and ObservableServer
 public interface AbstractConnectionFactory {
@@ -11,5 +13,23 @@ public interface AbstractConnectionFactory {
             Socket socket,
             AbstractServer server)
             throws IOException;
+
+    //called for the clients accepted on a Unix domain socket endpoint, whose channel has no Socket
+    default ConnectionToClient createConnection(
+            ThreadGroup group,
+            SocketChannel channel,
+            AbstractServer server)
+            throws IOException {
+        throw new IOException("Unix domain socket connections are not supported by this factory");
+    }
+
+    //called for the clients accepted on a shared memory endpoint
+    default ConnectionToClient createConnection(
+            ThreadGroup group,
+            SharedMemoryChannel channel,
+            AbstractServer server)
+            throws IOException {
+        throw new IOException("shared memory connections are not supported by this factory");
+    }
 }
 
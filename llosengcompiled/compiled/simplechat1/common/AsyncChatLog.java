@@ -0,0 +1,370 @@
+package common;
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An asynchronous logger for chat traffic. Threads that handle messages
+ * only copy the login id and the message into a preallocated slot of a
+ * ring buffer; a single background thread drains the ring in batches and
+ * writes each batch to the console or to a file with one flush.<p>
+ *
+ * Claiming a slot is lock-free. The slots are reusable
+ * <code>StringBuilder</code> instances, so logging a <code>String</code>
+ * message does not allocate once the slots have grown to the usual
+ * message size.<p>
+ *
+ * When the ring is full the <code>OverflowPolicy</code> decides what
+ * happens: <code>DROP</code> (the default) discards the line and counts
+ * it, so the message path never waits on the log. <code>BLOCK</code>
+ * waits for the writer and should only be used when no line may be lost.
+ */
+public class AsyncChatLog implements Runnable
+{
+  // Class variables *************************************************
+
+  /**
+   * What to do with a line when the ring buffer is full.
+   */
+  public enum OverflowPolicy
+  {
+    /** Discard the line and count it as dropped. */
+    DROP,
+    /** Wait until the writer thread frees a slot. */
+    BLOCK
+  }
+
+  /**
+   * The default number of slots in the ring. Must be a power of two.
+   */
+  public static final int DEFAULT_CAPACITY = 8192;
+
+  /**
+   * The initial size of each slot, in characters.
+   */
+  private static final int SLOT_SIZE = 256;
+
+  /**
+   * The size of the character buffer used to write a batch.
+   */
+  private static final int BATCH_CHARS = 64 * 1024;
+
+  /**
+   * How long the writer thread sleeps when the ring is empty.
+   */
+  private static final long IDLE_PARK_NANOS = 1_000_000L;
+
+  // Instance variables **********************************************
+
+  /**
+   * The preallocated slots of the ring.
+   */
+  private final StringBuilder[] slots;
+
+  /**
+   * For each slot, the sequence number of the line it holds once that
+   * line is completely written. A slot is readable when its entry equals
+   * the sequence number the writer expects.
+   */
+  private final AtomicLongArray published;
+
+  /**
+   * Used to turn a sequence number into a slot index.
+   */
+  private final int mask;
+
+  /**
+   * The next sequence number to be claimed by a producer.
+   */
+  private final AtomicLong claimed = new AtomicLong();
+
+  /**
+   * The next sequence number to be written by the writer thread.
+   * Every slot before it can be reused.
+   */
+  private volatile long consumed = 0;
+
+  /**
+   * Number of lines discarded because the ring was full.
+   */
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * Number of lines written so far.
+   */
+  private volatile long written = 0;
+
+  /**
+   * Destination of the log lines.
+   */
+  private final Writer out;
+
+  private final OverflowPolicy policy;
+
+  /**
+   * True if the stream belongs to this log and is closed with it.
+   */
+  private final boolean ownsStream;
+
+  /**
+   * The writer thread.
+   */
+  private final Thread writer;
+
+  /**
+   * Set while the writer thread is parked so producers know to wake it.
+   */
+  private volatile boolean sleeping = false;
+
+  /**
+   * Set to false by close().
+   */
+  private volatile boolean running = true;
+
+  // Constructors ****************************************************
+
+  /**
+   * Constructs a log that writes to the given stream.
+   *
+   * @param out      where log lines are written.
+   * @param capacity the number of slots, rounded up to a power of two.
+   * @param policy   what to do when the ring is full.
+   */
+  public AsyncChatLog(OutputStream out, int capacity, OverflowPolicy policy)
+  {
+    this(out, capacity, policy, false);
+  }
+
+  /**
+   * Constructs a log that appends to a file.
+   *
+   * @param fileName the file to append to.
+   * @param policy   what to do when the ring is full.
+   * @exception IOException if the file cannot be opened.
+   */
+  public AsyncChatLog(String fileName, OverflowPolicy policy)
+    throws IOException
+  {
+    this(new FileOutputStream(fileName, true), DEFAULT_CAPACITY, policy,
+      true);
+  }
+
+  /**
+   * Constructs a log that writes to the console and drops lines
+   * when it cannot keep up.
+   */
+  public AsyncChatLog()
+  {
+    this(System.out, DEFAULT_CAPACITY, OverflowPolicy.DROP);
+  }
+
+  private AsyncChatLog(OutputStream out, int capacity,
+    OverflowPolicy policy, boolean ownsStream)
+  {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    this.slots = new StringBuilder[size];
+    for (int i = 0; i < size; i++)
+    {
+      slots[i] = new StringBuilder(SLOT_SIZE);
+    }
+    this.published = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++)
+    {
+      published.set(i, -1);
+    }
+    this.mask = size - 1;
+    this.out = new OutputStreamWriter(out);
+    this.policy = policy;
+    this.ownsStream = ownsStream;
+
+    writer = new Thread(this, "AsyncChatLog writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * Queues the line <code>loginId + ": " + msg</code>. Never blocks
+   * unless the policy is <code>BLOCK</code>.
+   *
+   * @param loginId the login id of the sender.
+   * @param msg     the message.
+   * @return false if the line was dropped.
+   */
+  public boolean log(Object loginId, Object msg)
+  {
+    if (!running)
+    {
+      dropped.incrementAndGet();
+      return false;
+    }
+
+    long seq;
+    do
+    {
+      seq = claimed.get();
+      if (seq - consumed >= slots.length)
+      {
+        if (policy == OverflowPolicy.DROP)
+        {
+          dropped.incrementAndGet();
+          return false;
+        }
+        wakeWriter();
+        Thread.onSpinWait();
+        seq = -1;
+      }
+    }
+    while (seq < 0 || !claimed.compareAndSet(seq, seq + 1));
+
+    int index = (int)(seq & mask);
+    StringBuilder slot = slots[index];
+    slot.setLength(0);
+    slot.append(loginId).append(": ").append(msg).append(System.lineSeparator());
+    published.lazySet(index, seq);
+    wakeWriter();
+    return true;
+  }
+
+  /**
+   * Writes every queued line and stops the writer thread.
+   */
+  public void close()
+  {
+    running = false;
+    LockSupport.unpark(writer);
+    try
+    {
+      writer.join();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+// ACCESSING METHODS ------------------------------------------------
+
+  /**
+   * @return the number of lines dropped because the ring was full.
+   */
+  public long getDropped()
+  {
+    return dropped.get();
+  }
+
+  /**
+   * @return the number of lines written so far.
+   */
+  public long getWritten()
+  {
+    return written;
+  }
+
+  /**
+   * @return the number of lines waiting to be written.
+   */
+  public long getBacklog()
+  {
+    return claimed.get() - consumed;
+  }
+
+// RUN METHOD -------------------------------------------------------
+
+  /**
+   * Drains the ring in batches. Not to be called.
+   */
+  public void run()
+  {
+    char[] batch = new char[BATCH_CHARS];
+    long reportedDrops = 0;
+
+    while (true)
+    {
+      long next = consumed;
+      int length = 0;
+
+      try
+      {
+        while (published.get((int)(next & mask)) == next)
+        {
+          StringBuilder slot = slots[(int)(next & mask)];
+          if (length + slot.length() > batch.length)
+          {
+            out.write(batch, 0, length);
+            length = 0;
+          }
+          if (slot.length() > batch.length)
+          {
+            out.append(slot);
+          }
+          else
+          {
+            slot.getChars(0, slot.length(), batch, length);
+            length += slot.length();
+          }
+          next++;
+          consumed = next; // The slot may now be reused
+        }
+
+        long drops = dropped.get();
+        if (drops != reportedDrops)
+        {
+          out.write("[log] " + (drops - reportedDrops)
+            + " line(s) dropped" + System.lineSeparator());
+          reportedDrops = drops;
+        }
+
+        if (length > 0 || next != written)
+        {
+          out.write(batch, 0, length);
+          out.flush();
+          written = next;
+        }
+      }
+      catch (IOException e)
+      {
+        // The log must never take the server down; skip the batch.
+        written = next;
+      }
+
+      if (published.get((int)(next & mask)) == next)
+        continue;
+      if (!running && claimed.get() == next)
+        break;
+
+      sleeping = true;
+      if (published.get((int)(next & mask)) != next && running)
+      {
+        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+      }
+      sleeping = false;
+    }
+
+    try
+    {
+      if (ownsStream)
+        out.close();
+      else
+        out.flush();
+    }
+    catch (IOException e) {}
+  }
+
+// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+  /**
+   * Unparks the writer thread if it is waiting for work.
+   */
+  private void wakeWriter()
+  {
+    if (sleeping)
+    {
+      LockSupport.unpark(writer);
+    }
+  }
+}
+// End of AsyncChatLog class
@@ -0,0 +1,80 @@
+package common;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+import ocsf.protocol.Compression;
+
+/**
+ * The preset dictionary with which the chat server and the chat clients
+ * compress their frames. It is trained on sample chat traffic: the
+ * commands and the notices of the server, and the phrases that chat
+ * lines are made of. The server and a client only compress when their
+ * dictionaries are the same, so a change to the samples makes clients
+ * and servers of different versions fall back to raw frames.<p>
+ *
+ * A line repeated in the samples weighs more, and is placed nearer the
+ * end of the dictionary, where it costs less to refer to.
+ */
+public class ChatDictionary
+{
+    /**
+     * The size of the dictionary, in bytes.
+     */
+    public static final int SIZE = 8 * 1024;
+
+    /**
+     * Sample chat traffic, as sent over the connections.
+     */
+    private static final List<String> SAMPLES = Arrays.asList(
+            "#login ",
+            "#logoff",
+            "#whisper ",
+            " (whisper)> ",
+            "SERVER msg> ",
+            "SERVER msg> Error user, must log in first.",
+            "SERVER msg> Already logged in.",
+            "SERVER msg> Invalid login id.",
+            "SERVER msg> Usage: #whisper <loginId> <message>",
+            "SERVER msg> No user logged in as ",
+            "Server has stopped listening for connections.",
+            "hello everyone",
+            "hello everyone",
+            "hi, how are you doing today?",
+            "hi, how are you doing today?",
+            "I'm doing well, thanks for asking. What about you?",
+            "good morning everyone, did you see the message I sent yesterday?",
+            "good morning everyone, did you see the message I sent yesterday?",
+            "thanks, that makes sense to me. I will take a look at it later",
+            "thanks, that makes sense to me. I will take a look at it later",
+            "can you send me the link to the meeting notes please?",
+            "sorry, I was away from my computer for a few minutes",
+            "sorry, I was away from my computer for a few minutes",
+            "does anyone know when the next meeting is going to be?",
+            "I think we should be able to finish this by the end of the week",
+            "let me know if you have any questions about the project",
+            "let me know if you have any questions about the project",
+            "yes, that sounds good to me. see you there",
+            "no problem, I'll get back to you as soon as I can",
+            "I don't know, but I can ask and let you know",
+            "ok, thank you! have a great day",
+            "ok, thank you! have a great day",
+            "lol that is so funny haha",
+            "what time is it there right now?",
+            "I have to go now, talk to you later. bye!",
+            "I have to go now, talk to you later. bye!");
+
+    /**
+     * @return a new compression with the chat dictionary.
+     */
+    public static Compression create()
+    {
+        try {
+            return new Compression(Compression.train(SAMPLES, SIZE));
+        }
+        catch (IOException ex) {
+            throw new UncheckedIOException(ex); // strings always serialize
+        }
+    }
+}
@@ -0,0 +1,549 @@
+package common;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import ocsf.protocol.FrameCodec;
+
+/**
+ * The history of the chat: every message broadcast, kept on disk so
+ * that a client can be sent what was said before it logged in. Each
+ * message is given an offset, its position in the history, and is
+ * appended as a <code>HistoryEntry</code> already serialized, so that
+ * it is replayed from the disk to the clients without being
+ * deserialized again.<p>
+ *
+ * The history is a log split into segments, files of at most
+ * <code>segmentSize</code> bytes named after the offset of their first
+ * message. Segments are memory-mapped: appending a message copies it
+ * into the mapping of the last segment, and reading copies it out of
+ * the mapping, with no system call in either case. Each segment has a
+ * sparse index, mapped as well, giving the position of one message
+ * every <code>INDEX_INTERVAL</code> bytes; a message is found by a
+ * binary search of the index followed by a short scan.<p>
+ *
+ * When the last segment is full a new one is started, and the oldest
+ * segments are deleted while the history is larger than its maximum
+ * size, or while they are older than its maximum age. Every record is
+ * checked with a CRC when the history is opened again, so that the
+ * messages appended last before a crash are dropped rather than read
+ * back corrupt.<p>
+ *
+ * Appending is synchronized; reading takes no lock and may run along
+ * with appends.
+ *
+ * @see common.HistoryEntry
+ */
+public class ChatHistory implements Closeable
+{
+  // Class variables *************************************************
+
+  /**
+   * The default size of a segment, in bytes.
+   */
+  public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+  /**
+   * How many bytes of records are between two entries of an index.
+   */
+  private static final int INDEX_INTERVAL = 4096;
+
+  /**
+   * The length and the CRC-32 in front of each record.
+   */
+  private static final int RECORD_HEADER = 8;
+
+  /**
+   * The offset of a record relative to its segment, and its position.
+   */
+  private static final int INDEX_ENTRY = 8;
+
+  private static final String LOG_SUFFIX = ".log";
+
+  private static final String INDEX_SUFFIX = ".index";
+
+  // Instance variables **********************************************
+
+  private final Path directory;
+
+  private final int segmentSize;
+
+  private final long maxBytes;
+
+  private final long maxAge;
+
+  /**
+   * The segments, oldest first; messages are appended to the last one.
+   * Replaced as a whole, so that readers can go through it unlocked.
+   */
+  private volatile Segment[] segments;
+
+  /**
+   * The offset of the next message appended. Written after the message
+   * before it, so that any message below it can be read.
+   */
+  private volatile long nextOffset;
+
+  private boolean closed = false;
+
+  // Constructors ****************************************************
+
+  /**
+   * Opens the history kept in a directory, creating it if need be.
+   *
+   * @param directory   the directory of the segments.
+   * @param segmentSize the size of a segment, in bytes.
+   * @param maxBytes    the size above which the oldest segments are
+   *                    deleted, in bytes; <code>Long.MAX_VALUE</code>
+   *                    to keep them.
+   * @param maxAge      the time after which a segment no longer
+   *                    appended to is deleted, in ms;
+   *                    <code>Long.MAX_VALUE</code> to keep them.
+   * @exception IOException if the directory or a segment cannot be
+   *    opened.
+   */
+  public ChatHistory(Path directory, int segmentSize, long maxBytes,
+    long maxAge) throws IOException
+  {
+    if (segmentSize < INDEX_INTERVAL)
+      throw new IllegalArgumentException("invalid segment size "
+        + segmentSize);
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.maxBytes = maxBytes;
+    this.maxAge = maxAge;
+
+    Files.createDirectories(directory);
+    List<Long> baseOffsets = new ArrayList<>();
+    try (DirectoryStream<Path> files =
+      Files.newDirectoryStream(directory, "*" + LOG_SUFFIX))
+    {
+      for (Path file : files)
+      {
+        String name = file.getFileName().toString();
+        try
+        {
+          baseOffsets.add(Long.parseLong(
+            name.substring(0, name.length() - LOG_SUFFIX.length())));
+        }
+        catch (NumberFormatException ex) {}  // Not a segment
+      }
+    }
+    Collections.sort(baseOffsets);
+    if (baseOffsets.isEmpty())
+      baseOffsets.add(0L);
+
+    Segment[] opened = new Segment[baseOffsets.size()];
+    for (int i = 0; i < opened.length; i++)
+    {
+      opened[i] = new Segment(baseOffsets.get(i), i == opened.length - 1);
+    }
+    segments = opened;
+    Segment last = opened[opened.length - 1];
+    nextOffset = last.baseOffset + last.records;
+    synchronized (this)
+    {
+      enforceRetention(System.currentTimeMillis());
+    }
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * Appends a message to the history.
+   *
+   * @param loginId the login id of the sender.
+   * @param message the message.
+   * @return the offset of the message.
+   * @exception IOException if the message cannot be serialized, is
+   *    larger than a segment, or the history is closed.
+   */
+  public long append(String loginId, Object message) throws IOException
+  {
+    long now = System.currentTimeMillis();
+    synchronized (this)
+    {
+      if (closed)
+        throw new IOException("history closed");
+
+      long offset = nextOffset;
+      byte[] record = FrameCodec.serialize(
+        new HistoryEntry(offset, now, loginId, message));
+      if (RECORD_HEADER + record.length > segmentSize)
+        throw new IOException("message of " + record.length
+          + " bytes exceeds the segment size");
+
+      Segment last = segments[segments.length - 1];
+      if (!last.hasRoom(record.length))
+        last = roll(now);
+      last.append(record, now);
+      nextOffset = offset + 1;
+
+      if (now - segments[0].lastModified > maxAge)
+        enforceRetention(now);
+      return offset;
+    }
+  }
+
+  /**
+   * Reads messages from the history, as serialized
+   * <code>HistoryEntry</code> objects that can be sent as they are
+   * with <code>ConnectionToClient.sendSerializedToClient</code>.
+   *
+   * @param from the offset of the first message; messages deleted
+   *             already are skipped.
+   * @param max  the maximum number of messages read.
+   * @return the messages, in order.
+   */
+  public List<byte[]> read(long from, int max)
+  {
+    long end = nextOffset;  // Read first: what is below it is written
+    Segment[] current = segments;
+    List<byte[]> records = new ArrayList<>(
+      (int)Math.max(0, Math.min(max, end - from)));
+    from = Math.max(from, current[0].baseOffset);
+
+    int i = current.length - 1;
+    while (i > 0 && current[i].baseOffset > from)
+      i--;
+    for (; i < current.length && from < end && records.size() < max; i++)
+    {
+      Segment segment = current[i];
+      long segmentEnd = i + 1 < current.length
+        ? current[i + 1].baseOffset : end;
+      int count = (int)Math.min(segmentEnd - from, max - records.size());
+      segment.read((int)(from - segment.baseOffset), count, records);
+      from += count;
+    }
+    return records;
+  }
+
+  /**
+   * Writes the last segment to the disk, and closes the history.
+   */
+  public synchronized void close() throws IOException
+  {
+    if (closed)
+      return;
+    closed = true;
+    segments[segments.length - 1].seal();
+  }
+
+// ACCESSING METHODS ------------------------------------------------
+
+  /**
+   * @return the offset of the oldest message kept.
+   */
+  public long getFirstOffset()
+  {
+    return segments[0].baseOffset;
+  }
+
+  /**
+   * @return the offset of the next message appended.
+   */
+  public long getNextOffset()
+  {
+    return nextOffset;
+  }
+
+  /**
+   * @return the number of segments.
+   */
+  public int getSegmentCount()
+  {
+    return segments.length;
+  }
+
+  /**
+   * @return the size of the messages kept, in bytes.
+   */
+  public long getSize()
+  {
+    long size = 0;
+    for (Segment segment : segments)
+    {
+      size += segment.size;
+    }
+    return size;
+  }
+
+// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+  /**
+   * Seals the last segment and starts a new one. Called with the lock
+   * held.
+   *
+   * @return the new segment.
+   */
+  private Segment roll(long now) throws IOException
+  {
+    Segment[] current = segments;
+    current[current.length - 1].seal();
+
+    Segment segment = new Segment(nextOffset, true);
+    Segment[] rolled = Arrays.copyOf(current, current.length + 1);
+    rolled[current.length] = segment;
+    segments = rolled;
+    enforceRetention(now);
+    return segment;
+  }
+
+  /**
+   * Deletes the oldest segments while the history is too large or they
+   * are too old. The last segment is never deleted. Called with the
+   * lock held.
+   */
+  private void enforceRetention(long now)
+  {
+    Segment[] current = segments;
+    long size = getSize();
+    int deleted = 0;
+    while (deleted < current.length - 1 && (size > maxBytes
+      || now - current[deleted].lastModified > maxAge))
+    {
+      size -= current[deleted].size;
+      deleted++;
+    }
+    if (deleted == 0)
+      return;
+
+    // Readers still holding a deleted segment read it from its mapping
+    segments = Arrays.copyOfRange(current, deleted, current.length);
+    for (int i = 0; i < deleted; i++)
+    {
+      try
+      {
+        Files.deleteIfExists(current[i].indexFile);
+        Files.deleteIfExists(current[i].logFile);
+      }
+      catch (IOException ex) {}  // Deleted again on the next start
+    }
+  }
+
+  // Nested classes **************************************************
+
+  /**
+   * A segment of the history: its records, and the index of their
+   * positions. The last segment is mapped to its full size and written
+   * to; the others are mapped read-only to the size of their records.
+   */
+  private class Segment
+  {
+    /**
+     * The offset of the first message of the segment.
+     */
+    final long baseOffset;
+
+    final Path logFile;
+
+    final Path indexFile;
+
+    /**
+     * The records, each one its length, its CRC-32 and the message.
+     */
+    volatile MappedByteBuffer log;
+
+    /**
+     * The index, each entry the offset of a record relative to the
+     * segment and its position.
+     */
+    volatile MappedByteBuffer index;
+
+    /**
+     * The channels of the last segment, to seal it.
+     */
+    private FileChannel logChannel;
+
+    private FileChannel indexChannel;
+
+    /**
+     * The size of the records, in bytes.
+     */
+    volatile int size;
+
+    /**
+     * The number of entries of the index.
+     */
+    volatile int indexEntries;
+
+    /**
+     * The number of records, known for the last segment only.
+     */
+    int records;
+
+    /**
+     * The position of the record indexed last.
+     */
+    private int indexedPosition;
+
+    /**
+     * When a record was last appended, in ms since the epoch.
+     */
+    long lastModified;
+
+    /**
+     * Opens a segment, creating it if need be. The records of the last
+     * segment are checked, and its index rebuilt.
+     */
+    Segment(long baseOffset, boolean last) throws IOException
+    {
+      this.baseOffset = baseOffset;
+      String name = String.format("%020d", baseOffset);
+      logFile = directory.resolve(name + LOG_SUFFIX);
+      indexFile = directory.resolve(name + INDEX_SUFFIX);
+
+      if (last)
+      {
+        logChannel = FileChannel.open(logFile, StandardOpenOption.CREATE,
+          StandardOpenOption.READ, StandardOpenOption.WRITE);
+        indexChannel = FileChannel.open(indexFile, StandardOpenOption.CREATE,
+          StandardOpenOption.READ, StandardOpenOption.WRITE);
+        int capacity = (int)Math.max(segmentSize, logChannel.size());
+        log = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+          (long)(capacity / INDEX_INTERVAL + 1) * INDEX_ENTRY);
+        recover();
+      }
+      else
+      {
+        try (FileChannel channel = FileChannel.open(logFile))
+        {
+          log = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+          size = (int)channel.size();
+        }
+        try (FileChannel channel = FileChannel.open(indexFile))
+        {
+          index = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+            channel.size());
+          indexEntries = (int)(channel.size() / INDEX_ENTRY);
+        }
+      }
+      lastModified = Files.getLastModifiedTime(logFile).toMillis();
+    }
+
+    /**
+     * @return true if a record of the given length fits in the segment.
+     */
+    boolean hasRoom(int length)
+    {
+      return size + RECORD_HEADER + length <= log.capacity();
+    }
+
+    /**
+     * Appends a record. Called with the lock of the history held.
+     */
+    void append(byte[] record, long now)
+    {
+      CRC32 crc = new CRC32();
+      crc.update(record);
+      int position = size;
+      log.putInt(position + 4, (int)crc.getValue());
+      log.put(position + RECORD_HEADER, record);
+      log.putInt(position, record.length);  // Last: the record is whole
+      if (indexEntries == 0 || position - indexedPosition >= INDEX_INTERVAL)
+        addIndexEntry(position);
+      records++;
+      size = position + RECORD_HEADER + record.length;
+      lastModified = now;
+    }
+
+    /**
+     * Reads records, starting from an offset relative to the segment.
+     */
+    void read(int from, int count, List<byte[]> out)
+    {
+      if (count <= 0)
+        return;
+      ByteBuffer data = log;
+      ByteBuffer entries = index;
+
+      // The last entry at or before the offset
+      int low = 0;
+      int high = indexEntries - 1;
+      while (low < high)
+      {
+        int middle = (low + high + 1) >>> 1;
+        if (entries.getInt(middle * INDEX_ENTRY) <= from)
+          low = middle;
+        else
+          high = middle - 1;
+      }
+      int offset = entries.getInt(low * INDEX_ENTRY);
+      int position = entries.getInt(low * INDEX_ENTRY + 4);
+
+      for (; offset < from; offset++)
+      {
+        position += RECORD_HEADER + data.getInt(position);
+      }
+      for (int i = 0; i < count; i++)
+      {
+        byte[] record = new byte[data.getInt(position)];
+        data.get(position + RECORD_HEADER, record);
+        out.add(record);
+        position += RECORD_HEADER + record.length;
+      }
+    }
+
+    /**
+     * Finds the records left whole, and indexes them. Records after the
+     * first one that is incomplete or corrupt are dropped.
+     */
+    private void recover()
+    {
+      CRC32 crc = new CRC32();
+      int position = 0;
+      while (position + RECORD_HEADER <= log.capacity())
+      {
+        int length = log.getInt(position);
+        if (length <= 0 || length > log.capacity() - position - RECORD_HEADER)
+          break;
+        crc.reset();
+        crc.update(log.slice(position + RECORD_HEADER, length));
+        if ((int)crc.getValue() != log.getInt(position + 4))
+          break;
+
+        if (indexEntries == 0 || position - indexedPosition >= INDEX_INTERVAL)
+          addIndexEntry(position);
+        records++;
+        position += RECORD_HEADER + length;
+      }
+      size = position;
+
+      // Clears what is left of a torn record
+      if (position + RECORD_HEADER <= log.capacity())
+        log.putInt(position, 0);
+    }
+
+    private void addIndexEntry(int position)
+    {
+      int entry = indexEntries * INDEX_ENTRY;
+      index.putInt(entry, records);
+      index.putInt(entry + 4, position);
+      indexedPosition = position;
+      indexEntries++;
+    }
+
+    /**
+     * Writes the last segment to the disk, cuts its files to the size
+     * of the records, and maps them read-only.
+     */
+    void seal() throws IOException
+    {
+      log.force();
+      index.force();
+      logChannel.truncate(size);
+      indexChannel.truncate((long)indexEntries * INDEX_ENTRY);
+      log = logChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0,
+        (long)indexEntries * INDEX_ENTRY);
+      logChannel.close();
+      indexChannel.close();
+    }
+  }
+}
+// End of ChatHistory class
@@ -0,0 +1,715 @@
+package common;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import ocsf.protocol.FrameCodec;
+
+/**
+ * An inverted index of the chat history, to search past messages by
+ * word, phrase, sender and time. For each word, the index holds the
+ * offsets in the history of the messages that contain it: its postings.
+ * The sender of each message is indexed as a word of its own.<p>
+ *
+ * Postings are compressed: they are kept in blocks of
+ * <code>BLOCK_SIZE</code> offsets, each block its first offset followed
+ * by the gaps to the next ones as variable-length integers, one byte for
+ * a gap under 128. A chat word costs one or two bytes per message that
+ * holds it, and a block can be skipped or decoded on its own, so that
+ * postings are intersected, newest first, without decoding the blocks
+ * that cannot match. Phrases are looked for with their words, and
+ * checked against the messages found; so are the times, which only set
+ * the range of offsets searched.<p>
+ *
+ * The index follows the history from a thread of its own: it reads the
+ * messages appended since it last looked, straight from the history,
+ * so that indexing never holds up the thread that handles a message.
+ * The index is in memory only, and is built again from the history
+ * when the server starts. The postings of the messages deleted from the
+ * history are dropped as the history deletes them.
+ *
+ * @see common.ChatHistory
+ * @see common.SearchQuery
+ */
+public class ChatIndex implements Closeable
+{
+  // Class variables *************************************************
+
+  /**
+   * The number of offsets in a block of postings.
+   */
+  public static final int BLOCK_SIZE = 128;
+
+  /**
+   * The number of messages read from the history at once.
+   */
+  private static final int BATCH_SIZE = 1024;
+
+  /**
+   * How often the time of a message is kept, to find the offsets of a
+   * range of times.
+   */
+  private static final int TIME_INTERVAL = 256;
+
+  /**
+   * How long the indexer waits for new messages when it is not woken.
+   */
+  private static final long IDLE_PARK_NANOS = 100_000_000L;
+
+  /**
+   * Prefix of the words standing for the senders.
+   */
+  private static final String SENDER = "\u0000";
+
+  // Instance variables **********************************************
+
+  private final ChatHistory history;
+
+  /**
+   * The postings of each word.
+   */
+  private final Map<String, Postings> postings = new HashMap<>();
+
+  /**
+   * The offset and time of one message every TIME_INTERVAL.
+   */
+  private long[] timeOffsets = new long[64];
+
+  private long[] times = new long[64];
+
+  private int timeCount = 0;
+
+  /**
+   * The offset of the first message indexed still in the history, and
+   * of the next message to index.
+   */
+  private long first;
+
+  private volatile long next;
+
+  /**
+   * The number of messages indexed, and of postings.
+   */
+  private long documents = 0;
+
+  private long postingCount = 0;
+
+  /**
+   * Taken to read by the searches, to write by the indexer.
+   */
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private final Thread indexer;
+
+  private volatile boolean running = true;
+
+  // Constructors ****************************************************
+
+  /**
+   * Constructs the index of a history, and starts indexing it.
+   *
+   * @param history the history.
+   */
+  public ChatIndex(ChatHistory history)
+  {
+    this.history = history;
+    first = next = history.getFirstOffset();
+    indexer = new Thread(this::run, "ChatIndex indexer");
+    indexer.setDaemon(true);
+    indexer.start();
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * Tells the index that messages were appended to the history, so that
+   * it indexes them now rather than the next time it looks.
+   */
+  public void update()
+  {
+    LockSupport.unpark(indexer);
+  }
+
+  /**
+   * Searches the messages indexed, newest first. The page of the query
+   * is left to the caller, which gives the number of messages to skip.
+   *
+   * @param query the search.
+   * @param skip  the number of matching messages skipped, the newest.
+   * @param max   the most messages returned.
+   * @return the messages found; fewer than <code>max</code> when there
+   *         are no more.
+   */
+  public List<HistoryEntry> search(SearchQuery query, long skip, int max)
+  {
+    List<HistoryEntry> found = new ArrayList<>();
+
+    lock.readLock().lock();
+    try
+    {
+      // The postings to match, the shortest one driving the search
+      List<Cursor> cursors = new ArrayList<>();
+      Set<String> words = new LinkedHashSet<>(query.getTerms());
+      if (query.getLoginId() != null)
+        words.add(SENDER + query.getLoginId());
+      for (String word : words)
+      {
+        Postings list = postings.get(word);
+        if (list == null)
+          return found;
+        cursors.add(new Cursor(list));
+      }
+      cursors.sort(Comparator.comparingLong(cursor -> cursor.postings.size));
+
+      long low = Math.max(offsetAt(query.getAfter(), false),
+        history.getFirstOffset());
+      long high = Math.min(offsetAt(query.getBefore(), true), next);
+      Iterator<Long> candidates = cursors.isEmpty()
+        ? descending(low, high) : cursors.remove(0).descending();
+
+      while (candidates.hasNext() && found.size() < max)
+      {
+        long offset = candidates.next();
+        if (offset >= high)
+          continue;
+        if (offset < low)
+          break;
+        if (!containsAll(cursors, offset))
+          continue;
+
+        HistoryEntry entry = read(offset);
+        if (entry == null || entry.getTime() < query.getAfter()
+          || entry.getTime() >= query.getBefore()
+          || !hasPhrases(entry, query.getPhrases()))
+          continue;
+        if (skip > 0)
+          skip--;
+        else
+          found.add(entry);
+      }
+      return found;
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Stops indexing.
+   */
+  public void close()
+  {
+    running = false;
+    LockSupport.unpark(indexer);
+  }
+
+// ACCESSING METHODS ------------------------------------------------
+
+  /**
+   * @return the offset of the next message to index; the messages
+   *         before it can be found.
+   */
+  public long getIndexedOffset()
+  {
+    return next;
+  }
+
+  /**
+   * @return the number of messages indexed since the index was
+   *         constructed, those deleted from the history since included.
+   */
+  public long getDocumentCount()
+  {
+    lock.readLock().lock();
+    try
+    {
+      return documents;
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the number of words indexed, senders included.
+   */
+  public int getTermCount()
+  {
+    lock.readLock().lock();
+    try
+    {
+      return postings.size();
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the number of postings: of word and message pairs.
+   */
+  public long getPostingCount()
+  {
+    lock.readLock().lock();
+    try
+    {
+      return postingCount;
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the size of the postings, in bytes.
+   */
+  public long getPostingBytes()
+  {
+    lock.readLock().lock();
+    try
+    {
+      long bytes = 0;
+      for (Postings list : postings.values())
+      {
+        bytes += list.bytes();
+      }
+      return bytes;
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+// RUN METHOD -------------------------------------------------------
+
+  /**
+   * Indexes the messages appended to the history, in batches.
+   */
+  private void run()
+  {
+    while (running)
+    {
+      long oldest = history.getFirstOffset();
+      if (oldest > first)
+      {
+        lock.writeLock().lock();
+        try
+        {
+          removeBefore(oldest);
+          first = oldest;
+        }
+        finally
+        {
+          lock.writeLock().unlock();
+        }
+      }
+
+      long from = Math.max(next, oldest);
+      List<byte[]> batch = history.read(from, BATCH_SIZE);
+      if (batch.isEmpty())
+      {
+        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        continue;
+      }
+
+      // Words found before the lock is taken
+      List<HistoryEntry> entries = new ArrayList<>(batch.size());
+      List<Set<String>> words = new ArrayList<>(batch.size());
+      for (byte[] record : batch)
+      {
+        HistoryEntry entry = deserialize(record);
+        if (entry == null)
+          continue;
+        Set<String> terms = new HashSet<>(
+          SearchQuery.tokenize(String.valueOf(entry.getMessage())));
+        terms.add(SENDER + entry.getLoginId());
+        entries.add(entry);
+        words.add(terms);
+      }
+
+      lock.writeLock().lock();
+      try
+      {
+        for (int i = 0; i < entries.size(); i++)
+        {
+          add(entries.get(i), words.get(i));
+        }
+        next = from + batch.size();
+      }
+      finally
+      {
+        lock.writeLock().unlock();
+      }
+    }
+  }
+
+// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+  /**
+   * Indexes a message. Called with the write lock held.
+   */
+  private void add(HistoryEntry entry, Set<String> words)
+  {
+    long offset = entry.getOffset();
+    for (String word : words)
+    {
+      postings.computeIfAbsent(word, w -> new Postings()).add(offset);
+    }
+    postingCount += words.size();
+    if (documents++ % TIME_INTERVAL == 0)
+    {
+      if (timeCount == times.length)
+      {
+        times = Arrays.copyOf(times, timeCount * 2);
+        timeOffsets = Arrays.copyOf(timeOffsets, timeCount * 2);
+      }
+      times[timeCount] = entry.getTime();
+      timeOffsets[timeCount++] = offset;
+    }
+  }
+
+  /**
+   * Drops the postings of the messages deleted from the history. Called
+   * with the write lock held.
+   */
+  private void removeBefore(long first)
+  {
+    Iterator<Postings> lists = postings.values().iterator();
+    while (lists.hasNext())
+    {
+      Postings list = lists.next();
+      postingCount -= list.removeBefore(first);
+      if (list.size == 0)
+        lists.remove();
+    }
+
+    int kept = 0;
+    while (kept < timeCount && timeOffsets[kept] < first)
+      kept++;
+    if (kept > 0)
+      kept--;  // Still bounds the times of the messages after it
+    System.arraycopy(times, kept, times, 0, timeCount - kept);
+    System.arraycopy(timeOffsets, kept, timeOffsets, 0, timeCount - kept);
+    timeCount -= kept;
+  }
+
+  /**
+   * Finds where the messages sent from a time on start, from the times
+   * kept one message every TIME_INTERVAL.
+   *
+   * @param time  the time.
+   * @param after true for an offset at or after the start, false for
+   *              one at or before it.
+   * @return the offset; the lowest or highest one there can be when no
+   *         time kept bounds it.
+   */
+  private long offsetAt(long time, boolean after)
+  {
+    int low = 0;
+    int high = timeCount - 1;
+    while (low <= high)  // Finds the first time kept at or after time
+    {
+      int middle = (low + high) >>> 1;
+      if (times[middle] < time)
+        low = middle + 1;
+      else
+        high = middle - 1;
+    }
+    if (after)
+      return low < timeCount ? timeOffsets[low] : Long.MAX_VALUE;
+    return low > 0 ? timeOffsets[low - 1] : Long.MIN_VALUE;
+  }
+
+  private static boolean containsAll(List<Cursor> cursors, long offset)
+  {
+    for (Cursor cursor : cursors)
+    {
+      if (!cursor.contains(offset))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return true if the words of a message hold every phrase.
+   */
+  private static boolean hasPhrases(HistoryEntry entry,
+    List<List<String>> phrases)
+  {
+    if (phrases.isEmpty())
+      return true;
+    List<String> words =
+      SearchQuery.tokenize(String.valueOf(entry.getMessage()));
+    for (List<String> phrase : phrases)
+    {
+      if (Collections.indexOfSubList(words, phrase) < 0)
+        return false;
+    }
+    return true;
+  }
+
+  private HistoryEntry read(long offset)
+  {
+    List<byte[]> records = history.read(offset, 1);
+    return records.isEmpty() ? null : deserialize(records.get(0));
+  }
+
+  private static HistoryEntry deserialize(byte[] record)
+  {
+    try
+    {
+      return (HistoryEntry)FrameCodec.deserialize(record);
+    }
+    catch (IOException | ClassNotFoundException | ClassCastException ex)
+    {
+      return null;  // Not a message that can be searched
+    }
+  }
+
+  /**
+   * @return the offsets of a range, from the highest.
+   */
+  private static Iterator<Long> descending(long low, long high)
+  {
+    return new Iterator<Long>()
+    {
+      long offset = high;
+
+      public boolean hasNext()
+      {
+        return offset > low;
+      }
+
+      public Long next()
+      {
+        return --offset;
+      }
+    };
+  }
+
+  // Nested classes **************************************************
+
+  /**
+   * The postings of a word: the offsets of the messages that hold it,
+   * in increasing order, compressed in blocks.
+   */
+  private static class Postings
+  {
+    /**
+     * The gaps between the offsets of each block, as variable-length
+     * integers.
+     */
+    private byte[] data = new byte[16];
+
+    private int length = 0;
+
+    /**
+     * The first offset of each block, and where its gaps start.
+     */
+    private long[] firsts = new long[1];
+
+    private int[] starts = new int[1];
+
+    private int blocks = 0;
+
+    /**
+     * The number of offsets in the last block.
+     */
+    private int lastCount = 0;
+
+    private long last;
+
+    /**
+     * The number of offsets.
+     */
+    long size = 0;
+
+    void add(long offset)
+    {
+      if (blocks == 0 || lastCount == BLOCK_SIZE)
+      {
+        if (blocks == firsts.length)
+        {
+          firsts = Arrays.copyOf(firsts, blocks * 2);
+          starts = Arrays.copyOf(starts, blocks * 2);
+        }
+        firsts[blocks] = offset;
+        starts[blocks] = length;
+        blocks++;
+        lastCount = 1;
+      }
+      else
+      {
+        if (length + 10 > data.length)
+          data = Arrays.copyOf(data, data.length * 2);
+        long gap = offset - last;
+        while (gap >= 0x80)
+        {
+          data[length++] = (byte)(gap | 0x80);
+          gap >>>= 7;
+        }
+        data[length++] = (byte)gap;
+        lastCount++;
+      }
+      last = offset;
+      size++;
+    }
+
+    /**
+     * Decodes a block.
+     *
+     * @return the number of offsets written.
+     */
+    int decode(int block, long[] offsets)
+    {
+      long offset = firsts[block];
+      offsets[0] = offset;
+      int count = 1;
+      int end = block + 1 < blocks ? starts[block + 1] : length;
+      for (int i = starts[block]; i < end; )
+      {
+        long gap = 0;
+        int shift = 0;
+        byte b;
+        do
+        {
+          b = data[i++];
+          gap |= (long)(b & 0x7F) << shift;
+          shift += 7;
+        }
+        while (b < 0);
+        offset += gap;
+        offsets[count++] = offset;
+      }
+      return count;
+    }
+
+    /**
+     * @return the block that may hold an offset, or -1.
+     */
+    int blockOf(long offset)
+    {
+      int low = 0;
+      int high = blocks - 1;
+      int found = -1;
+      while (low <= high)
+      {
+        int middle = (low + high) >>> 1;
+        if (firsts[middle] <= offset)
+        {
+          found = middle;
+          low = middle + 1;
+        }
+        else
+          high = middle - 1;
+      }
+      return found;
+    }
+
+    /**
+     * Drops the blocks whose offsets are all below the one given.
+     *
+     * @return the number of offsets dropped.
+     */
+    long removeBefore(long first)
+    {
+      int kept = 0;
+      while (kept < blocks && (kept + 1 < blocks
+        ? firsts[kept + 1] <= first : last < first))
+        kept++;
+      if (kept == 0)
+        return 0;
+
+      long removed = kept < blocks ? (long)kept * BLOCK_SIZE : size;
+      int dropped = kept < blocks ? starts[kept] : length;
+      System.arraycopy(data, dropped, data, 0, length - dropped);
+      length -= dropped;
+      for (int i = kept; i < blocks; i++)
+      {
+        firsts[i - kept] = firsts[i];
+        starts[i - kept] = starts[i] - dropped;
+      }
+      blocks -= kept;
+      size -= removed;
+      if (blocks == 0)
+        lastCount = 0;
+      return removed;
+    }
+
+    long bytes()
+    {
+      return length + blocks * 12L;
+    }
+  }
+
+  /**
+   * Goes through postings, keeping the block decoded last.
+   */
+  private static class Cursor
+  {
+    final Postings postings;
+
+    private final long[] offsets = new long[BLOCK_SIZE];
+
+    private int block = -1;
+
+    private int count;
+
+    Cursor(Postings postings)
+    {
+      this.postings = postings;
+    }
+
+    boolean contains(long offset)
+    {
+      int found = postings.blockOf(offset);
+      if (found < 0)
+        return false;
+      if (found != block)
+      {
+        count = postings.decode(found, offsets);
+        block = found;
+      }
+      return Arrays.binarySearch(offsets, 0, count, offset) >= 0;
+    }
+
+    /**
+     * @return the offsets, from the highest.
+     */
+    Iterator<Long> descending()
+    {
+      return new Iterator<Long>()
+      {
+        int current = postings.blocks;
+
+        int index = 0;
+
+        public boolean hasNext()
+        {
+          while (index == 0 && current > 0)
+          {
+            current--;
+            index = postings.decode(current, offsets);
+            block = current;
+          }
+          return index > 0;
+        }
+
+        public Long next()
+        {
+          if (!hasNext())
+            throw new NoSuchElementException();
+          return offsets[--index];
+        }
+      };
+    }
+  }
+}
+// End of ChatIndex class
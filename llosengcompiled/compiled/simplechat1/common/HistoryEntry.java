@@ -0,0 +1,79 @@
+package common;
+
+import java.io.Serializable;
+
+/**
+ * A message of the chat history, as kept by <code>ChatHistory</code>
+ * and replayed to the clients that ask for it. The offset tells a
+ * client where to continue from.
+ *
+ * @see common.ChatHistory
+ */
+public class HistoryEntry implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+
+  private final long offset;
+
+  private final long time;
+
+  private final String loginId;
+
+  private final Object message;
+
+  /**
+   * Constructs an entry.
+   *
+   * @param offset  the position of the message in the history.
+   * @param time    when the message was sent, in ms since the epoch.
+   * @param loginId the login id of the sender.
+   * @param message the message.
+   */
+  public HistoryEntry(long offset, long time, String loginId, Object message)
+  {
+    this.offset = offset;
+    this.time = time;
+    this.loginId = loginId;
+    this.message = message;
+  }
+
+  /**
+   * @return the position of the message in the history.
+   */
+  public long getOffset()
+  {
+    return offset;
+  }
+
+  /**
+   * @return when the message was sent, in ms since the epoch.
+   */
+  public long getTime()
+  {
+    return time;
+  }
+
+  /**
+   * @return the login id of the sender.
+   */
+  public String getLoginId()
+  {
+    return loginId;
+  }
+
+  /**
+   * @return the message.
+   */
+  public Object getMessage()
+  {
+    return message;
+  }
+
+  /**
+   * @return the message as shown to the user, with its offset.
+   */
+  public String toString()
+  {
+    return "[#" + offset + "] " + loginId + ": " + message;
+  }
+}
@@ -0,0 +1,776 @@
+package common;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import ocsf.protocol.FrameCodec;
+
+/**
+ * The mailboxes of the users who are logged off: the messages sent to
+ * everyone and the whispers sent to them while they were away, kept on
+ * disk until they log in again.<p>
+ *
+ * The mailboxes share one append-only log, split into memory-mapped
+ * segments as in <code>ChatHistory</code>. A message sent to everyone
+ * is appended once, whoever it is for; a whisper is appended with its
+ * recipient; logging in and off are appended too. Nothing is ever
+ * written in place, so storing a message is one sequential append.<p>
+ *
+ * The index is in memory and compact: the positions of the messages
+ * sent to everyone, in one sorted array, and for each user whether the
+ * user is logged in, the position from which the messages sent to
+ * everyone are for the user, and the positions of the whispers waiting.
+ * The messages themselves stay on disk; the index is rebuilt from the
+ * log when the mailbox is opened. The names of the users are kept in a
+ * file of their own, so that a user who has been away for long is still
+ * known once the log no longer mentions the user.<p>
+ *
+ * The oldest segment is deleted once no message it holds is waiting,
+ * or once it is older than the maximum age, the waiting messages then
+ * being lost.
+ *
+ * @see common.OfflineMessage
+ */
+public class OfflineMailbox implements Closeable
+{
+  // Class variables *************************************************
+
+  /**
+   * The default size of a segment, in bytes.
+   */
+  public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+  /**
+   * The kinds of records: a message to everyone, a whisper, a user
+   * logging in or off, and a user logged in when a segment was started.
+   */
+  private static final byte ROOM = 1;
+
+  private static final byte WHISPER = 2;
+
+  private static final byte ONLINE = 3;
+
+  private static final byte OFFLINE = 4;
+
+  private static final byte STILL_ONLINE = 5;
+
+  /**
+   * The length and the CRC-32 in front of each record.
+   */
+  private static final int RECORD_HEADER = 8;
+
+  private static final String LOG_SUFFIX = ".log";
+
+  private static final String USERS_FILE = "users";
+
+  // Instance variables **********************************************
+
+  private final Path directory;
+
+  private final int segmentSize;
+
+  private final long maxAge;
+
+  /**
+   * The segments, oldest first, named after the position of their first
+   * record. Replaced as a whole, so that messages can be read from them
+   * unlocked.
+   */
+  private volatile Segment[] segments;
+
+  /**
+   * The position of the next record.
+   */
+  private long end;
+
+  /**
+   * The mailbox of each user known.
+   */
+  private final Map<String, Box> boxes = new HashMap<>();
+
+  /**
+   * The number of users logged off, who get the messages sent to
+   * everyone.
+   */
+  private int offline;
+
+  /**
+   * The positions of the messages sent to everyone.
+   */
+  private final LongList rooms = new LongList();
+
+  /**
+   * The names of the users known, one per line.
+   */
+  private final Writer users;
+
+  private boolean closed = false;
+
+  // Constructors ****************************************************
+
+  /**
+   * Opens the mailboxes kept in a directory, creating it if need be.
+   * Every user is logged off once the mailboxes are opened.
+   *
+   * @param directory   the directory of the segments.
+   * @param segmentSize the size of a segment, in bytes.
+   * @param maxAge      the time after which a segment no longer appended
+   *                    to is deleted, in ms, with the messages waiting in
+   *                    it; <code>Long.MAX_VALUE</code> to keep them.
+   * @exception IOException if the directory or a segment cannot be
+   *    opened.
+   */
+  public OfflineMailbox(Path directory, int segmentSize, long maxAge)
+    throws IOException
+  {
+    if (segmentSize < 1024)
+      throw new IllegalArgumentException("invalid segment size "
+        + segmentSize);
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.maxAge = maxAge;
+
+    Files.createDirectories(directory);
+    List<Long> bases = new ArrayList<>();
+    try (DirectoryStream<Path> files =
+      Files.newDirectoryStream(directory, "*" + LOG_SUFFIX))
+    {
+      for (Path file : files)
+      {
+        String name = file.getFileName().toString();
+        try
+        {
+          bases.add(Long.parseLong(
+            name.substring(0, name.length() - LOG_SUFFIX.length())));
+        }
+        catch (NumberFormatException ex) {}  // Not a segment
+      }
+    }
+    Collections.sort(bases);
+    if (bases.isEmpty())
+      bases.add(0L);
+
+    Segment[] opened = new Segment[bases.size()];
+    for (int i = 0; i < opened.length; i++)
+    {
+      opened[i] = new Segment(bases.get(i), i == opened.length - 1);
+    }
+    segments = opened;
+
+    // The users whose records were all deleted are away since then
+    Path usersFile = directory.resolve(USERS_FILE);
+    if (Files.exists(usersFile))
+    {
+      for (String name : Files.readAllLines(usersFile, StandardCharsets.UTF_8))
+      {
+        if (!name.isEmpty())
+          boxes.putIfAbsent(name, new Box(opened[0].base));
+      }
+    }
+    offline = boxes.size();
+    users = new OutputStreamWriter(new FileOutputStream(usersFile.toFile(),
+      true), StandardCharsets.UTF_8);
+
+    for (Segment segment : opened)
+    {
+      recover(segment);
+    }
+    Segment last = opened[opened.length - 1];
+    end = last.base + last.size;
+
+    // Whoever was logged in when the server stopped is logged off now
+    synchronized (this)
+    {
+      long now = System.currentTimeMillis();
+      for (Map.Entry<String, Box> entry : boxes.entrySet())
+      {
+        if (entry.getValue().online)
+          logoff(entry.getKey(), now);
+      }
+      deleteSegments(now);
+    }
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * Logs a user in, and takes the messages waiting in the user's
+   * mailbox. A user who is not known yet gets a mailbox from now on.
+   * The messages are read from the disk as the list is gone through,
+   * so that the list takes little memory however many there are; they
+   * count as delivered once taken.
+   *
+   * @param loginId the login id.
+   * @param resumed true if the user is back on a session that replays
+   *                the messages sent to everyone since the user left;
+   *                only the whispers are taken then.
+   * @return the messages, as serialized <code>OfflineMessage</code>
+   *         objects that can be sent as they are with
+   *         <code>ConnectionToClient.sendSerializedToClient</code>.
+   * @exception IOException if the mailbox cannot be written.
+   */
+  public synchronized List<byte[]> login(String loginId, boolean resumed)
+    throws IOException
+  {
+    checkOpen();
+    Box box = boxes.get(loginId);
+    if (box == null)
+    {
+      users.write(loginId + "\n");
+      users.flush();
+      box = new Box(end);
+      boxes.put(loginId, box);
+      offline++;
+    }
+    if (box.online)
+      return Collections.emptyList();
+
+    // The whispers merged with the messages to everyone since the user left
+    LongList whispers = box.whispers;
+    int room = resumed ? rooms.size() : rooms.indexAfter(box.since);
+    long[] positions = new long[rooms.size() - room + whispers.size()];
+    int count = 0;
+    int whisper = 0;
+    while (room < rooms.size() || whisper < whispers.size())
+    {
+      if (whisper == whispers.size() || (room < rooms.size()
+        && rooms.get(room) < whispers.get(whisper)))
+        positions[count++] = rooms.get(room++);
+      else
+        positions[count++] = whispers.get(whisper++);
+    }
+
+    // Taken first: the segments may be deleted once the user is in
+    Segment[] current = segments;
+    append(ONLINE, System.currentTimeMillis(), loginId, null);
+    box.online = true;
+    box.whispers = new LongList();
+    offline--;
+
+    return new AbstractList<byte[]>()
+    {
+      public byte[] get(int index)
+      {
+        return message(current, positions[index]);
+      }
+
+      public int size()
+      {
+        return positions.length;
+      }
+    };
+  }
+
+  /**
+   * Logs a user off: the messages sent to everyone from now on are kept
+   * for the user.
+   *
+   * @param loginId the login id.
+   * @exception IOException if the mailbox cannot be written.
+   */
+  public synchronized void logoff(String loginId) throws IOException
+  {
+    checkOpen();
+    Box box = boxes.get(loginId);
+    if (box != null && box.online)
+      logoff(loginId, System.currentTimeMillis());
+  }
+
+  /**
+   * Keeps a message sent to everyone for the users logged off, if any.
+   *
+   * @param from    the login id of the sender.
+   * @param message the message.
+   * @exception IOException if the message cannot be serialized, is
+   *    larger than a segment, or the mailbox cannot be written.
+   */
+  public synchronized void sendToAll(String from, Object message)
+    throws IOException
+  {
+    checkOpen();
+    if (offline == 0)
+      return;
+    long now = System.currentTimeMillis();
+    rooms.add(append(ROOM, now, from, new OfflineMessage(from, now,
+      message, false)));
+  }
+
+  /**
+   * Keeps a whisper for a user logged off.
+   *
+   * @param from    the login id of the sender.
+   * @param to      the login id of the user.
+   * @param message the message.
+   * @return false if the user is not known, or is logged in.
+   * @exception IOException if the message cannot be serialized, is
+   *    larger than a segment, or the mailbox cannot be written.
+   */
+  public synchronized boolean whisper(String from, String to, Object message)
+    throws IOException
+  {
+    checkOpen();
+    Box box = boxes.get(to);
+    if (box == null || box.online)
+      return false;
+    long now = System.currentTimeMillis();
+    box.whispers.add(append(WHISPER, now, to, new OfflineMessage(from, now,
+      message, true)));
+    return true;
+  }
+
+  /**
+   * Writes the last segment to the disk, and closes the mailboxes.
+   */
+  public synchronized void close() throws IOException
+  {
+    if (closed)
+      return;
+    closed = true;
+    users.close();
+    segments[segments.length - 1].seal();
+  }
+
+// ACCESSING METHODS ------------------------------------------------
+
+  /**
+   * @return the number of messages waiting for a user; 0 if the user is
+   *         not known or is logged in.
+   */
+  public synchronized int getWaitingCount(String loginId)
+  {
+    Box box = boxes.get(loginId);
+    if (box == null || box.online)
+      return 0;
+    return rooms.size() - rooms.indexAfter(box.since) + box.whispers.size();
+  }
+
+  /**
+   * @return the number of users known.
+   */
+  public synchronized int getUserCount()
+  {
+    return boxes.size();
+  }
+
+  /**
+   * @return the number of segments.
+   */
+  public int getSegmentCount()
+  {
+    return segments.length;
+  }
+
+  /**
+   * @return the size of the records kept, in bytes.
+   */
+  public long getSize()
+  {
+    long size = 0;
+    for (Segment segment : segments)
+    {
+      size += segment.size;
+    }
+    return size;
+  }
+
+// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+  private void checkOpen() throws IOException
+  {
+    if (closed)
+      throw new IOException("mailbox closed");
+  }
+
+  private void logoff(String loginId, long now) throws IOException
+  {
+    Box box = boxes.get(loginId);
+    box.since = append(OFFLINE, now, loginId, null);
+    box.online = false;
+    offline++;
+  }
+
+  /**
+   * Appends a record: its kind, its time, the user it is about, and the
+   * message if any. Starts a new segment when the last one is full.
+   * Called with the lock held.
+   *
+   * @return the position of the record.
+   */
+  private long append(byte kind, long time, String loginId, Object message)
+    throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+    DataOutputStream record = new DataOutputStream(bytes);
+    record.writeByte(kind);
+    record.writeLong(time);
+    record.writeUTF(loginId);
+    if (message != null)
+      record.write(FrameCodec.serialize(message));
+    byte[] body = bytes.toByteArray();
+    if (RECORD_HEADER + body.length > segmentSize)
+      throw new IOException("message of " + body.length
+        + " bytes exceeds the segment size");
+
+    Segment last = segments[segments.length - 1];
+    if (!last.hasRoom(body.length))
+      last = roll(time);
+    long position = last.base + last.append(body);
+    end = last.base + last.size;
+    return position;
+  }
+
+  /**
+   * Seals the last segment and starts a new one, which first tells who
+   * is logged in, so that the older segments can be deleted without
+   * losing it. Called with the lock held.
+   *
+   * @return the new segment.
+   */
+  private Segment roll(long now) throws IOException
+  {
+    Segment[] current = segments;
+    current[current.length - 1].seal();
+    Segment segment = new Segment(end, true);
+    Segment[] rolled = Arrays.copyOf(current, current.length + 1);
+    rolled[current.length] = segment;
+    segments = rolled;
+
+    for (Map.Entry<String, Box> entry : boxes.entrySet())
+    {
+      if (entry.getValue().online)
+        append(STILL_ONLINE, now, entry.getKey(), null);
+    }
+    deleteSegments(now);
+    return segment;
+  }
+
+  /**
+   * Deletes the oldest segments while no message they hold is waiting,
+   * or while they are too old. The last segment is never deleted.
+   * Called with the lock held.
+   */
+  private void deleteSegments(long now)
+  {
+    Segment[] current = segments;
+    int deleted = 0;
+    while (deleted < current.length - 1)
+    {
+      long segmentEnd = current[deleted + 1].base;
+      if (now - current[deleted].lastModified <= maxAge
+        && isWaitingBefore(segmentEnd))
+        break;
+      deleted++;
+    }
+    if (deleted == 0)
+      return;
+
+    // The messages still waiting in the segments deleted have expired
+    long first = current[deleted].base;
+    rooms.removeBefore(first);
+    for (Box box : boxes.values())
+    {
+      box.whispers.removeBefore(first);
+      box.since = Math.max(box.since, first);
+    }
+
+    // Readers still holding a deleted segment read it from its mapping
+    segments = Arrays.copyOfRange(current, deleted, current.length);
+    for (int i = 0; i < deleted; i++)
+    {
+      try
+      {
+        Files.deleteIfExists(current[i].file);
+      }
+      catch (IOException ex) {}  // Deleted again on the next start
+    }
+  }
+
+  /**
+   * @return true if a message before a position is waiting for a user.
+   */
+  private boolean isWaitingBefore(long position)
+  {
+    boolean room = rooms.size() > 0 && rooms.get(0) < position;
+    for (Box box : boxes.values())
+    {
+      if (box.online)
+        continue;
+      if (room && rooms.indexAfter(box.since) < rooms.size()
+        && rooms.get(rooms.indexAfter(box.since)) < position)
+        return true;
+      if (box.whispers.size() > 0 && box.whispers.get(0) < position)
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Rebuilds the index from the records of a segment. The records after
+   * the first one that is incomplete or corrupt are dropped.
+   */
+  private void recover(Segment segment)
+  {
+    ByteBuffer log = segment.log;
+    CRC32 crc = new CRC32();
+    int position = 0;
+    while (position + RECORD_HEADER <= log.capacity())
+    {
+      int length = log.getInt(position);
+      if (length <= 0 || length > log.capacity() - position - RECORD_HEADER)
+        break;
+      ByteBuffer body = log.slice(position + RECORD_HEADER, length);
+      crc.reset();
+      crc.update(body.duplicate());
+      if ((int)crc.getValue() != log.getInt(position + 4))
+        break;
+
+      long at = segment.base + position;
+      byte kind = body.get(0);
+      String loginId = readUTF(body);
+      Box box = boxes.get(loginId);
+      if (box == null && kind != ROOM)
+      {
+        box = new Box(at);
+        boxes.put(loginId, box);
+        offline++;
+      }
+      switch (kind)
+      {
+        case ROOM:
+          rooms.add(at);
+          break;
+        case WHISPER:
+          box.whispers.add(at);
+          break;
+        case ONLINE:
+        case STILL_ONLINE:
+          if (!box.online)
+          {
+            if (kind == ONLINE)
+              box.whispers = new LongList();
+            box.online = true;
+            offline--;
+          }
+          break;
+        case OFFLINE:
+          if (box.online)
+          {
+            box.online = false;
+            offline++;
+          }
+          box.since = at;
+          break;
+      }
+      position += RECORD_HEADER + length;
+    }
+    segment.size = position;
+  }
+
+  /**
+   * Reads the message of a record.
+   */
+  private static byte[] message(Segment[] current, long position)
+  {
+    int i = current.length - 1;
+    while (current[i].base > position)
+      i--;
+    ByteBuffer log = current[i].log;
+    int offset = (int)(position - current[i].base);
+    ByteBuffer body = log.slice(offset + RECORD_HEADER, log.getInt(offset));
+    int start = 9 + 2 + (body.getShort(9) & 0xFFFF);
+    byte[] message = new byte[body.capacity() - start];
+    body.get(start, message);
+    return message;
+  }
+
+  /**
+   * @return the login id of a record.
+   */
+  private static String readUTF(ByteBuffer body)
+  {
+    try
+    {
+      int length = body.getShort(9) & 0xFFFF;
+      byte[] utf = new byte[2 + length];
+      body.get(9, utf);
+      return new DataInputStream(new ByteArrayInputStream(utf)).readUTF();
+    }
+    catch (IOException ex)
+    {
+      throw new UncheckedIOException(ex);  // Checked by the CRC
+    }
+  }
+
+  // Nested classes **************************************************
+
+  /**
+   * The mailbox of a user.
+   */
+  private static class Box
+  {
+    boolean online = false;
+
+    /**
+     * The position from which the messages sent to everyone are for
+     * the user, while logged off.
+     */
+    long since;
+
+    /**
+     * The positions of the whispers waiting.
+     */
+    LongList whispers = new LongList();
+
+    Box(long since)
+    {
+      this.since = since;
+    }
+  }
+
+  /**
+   * A growing, sorted list of positions, from which the first ones can
+   * be removed.
+   */
+  private static class LongList
+  {
+    private long[] values = new long[4];
+
+    private int start = 0;
+
+    private int end = 0;
+
+    void add(long value)
+    {
+      if (end == values.length)
+      {
+        if (start > values.length / 2)
+        {
+          System.arraycopy(values, start, values, 0, end - start);
+          end -= start;
+          start = 0;
+        }
+        else
+          values = Arrays.copyOf(values, values.length * 2);
+      }
+      values[end++] = value;
+    }
+
+    long get(int index)
+    {
+      return values[start + index];
+    }
+
+    int size()
+    {
+      return end - start;
+    }
+
+    /**
+     * @return the index of the first value above the one given.
+     */
+    int indexAfter(long value)
+    {
+      int index = Arrays.binarySearch(values, start, end, value);
+      return (index < 0 ? -index - 1 : index + 1) - start;
+    }
+
+    void removeBefore(long value)
+    {
+      int index = Arrays.binarySearch(values, start, end, value);
+      start = index < 0 ? -index - 1 : index;
+    }
+  }
+
+  /**
+   * A segment of the log. The last segment is mapped to its full size
+   * and written to; the others are mapped read-only to the size of
+   * their records.
+   */
+  private class Segment
+  {
+    /**
+     * The position of the first record of the segment.
+     */
+    final long base;
+
+    final Path file;
+
+    volatile MappedByteBuffer log;
+
+    private FileChannel channel;
+
+    /**
+     * The size of the records, in bytes.
+     */
+    volatile int size;
+
+    /**
+     * When a record was last appended, in ms since the epoch.
+     */
+    long lastModified;
+
+    Segment(long base, boolean last) throws IOException
+    {
+      this.base = base;
+      file = directory.resolve(String.format("%020d", base) + LOG_SUFFIX);
+      if (last)
+      {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE,
+          StandardOpenOption.READ, StandardOpenOption.WRITE);
+        log = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+          Math.max(segmentSize, channel.size()));
+      }
+      else
+      {
+        try (FileChannel channel = FileChannel.open(file))
+        {
+          log = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+      }
+      lastModified = Files.getLastModifiedTime(file).toMillis();
+    }
+
+    boolean hasRoom(int length)
+    {
+      return size + RECORD_HEADER + length <= log.capacity();
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @return the position of the record in the segment.
+     */
+    int append(byte[] body)
+    {
+      CRC32 crc = new CRC32();
+      crc.update(body);
+      int position = size;
+      log.putInt(position + 4, (int)crc.getValue());
+      log.put(position + RECORD_HEADER, body);
+      log.putInt(position, body.length);  // Last: the record is whole
+      size = position + RECORD_HEADER + body.length;
+      if (size + RECORD_HEADER <= log.capacity())
+        log.putInt(size, 0);  // Clears what is left of a torn record
+      lastModified = System.currentTimeMillis();
+      return position;
+    }
+
+    /**
+     * Writes the segment to the disk, cuts its file to the size of the
+     * records, and maps it read-only.
+     */
+    void seal() throws IOException
+    {
+      log.force();
+      channel.truncate(size);
+      log = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      channel.close();
+    }
+  }
+}
+// End of OfflineMailbox class
@@ -0,0 +1,81 @@
+package common;
+
+import java.io.Serializable;
+
+/**
+ * A message kept by <code>OfflineMailbox</code> for a user who was
+ * logged off when it was sent, and delivered when the user logs in.
+ *
+ * @see common.OfflineMailbox
+ */
+public class OfflineMessage implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+
+  private final String from;
+
+  private final long time;
+
+  private final Object message;
+
+  private final boolean whisper;
+
+  /**
+   * Constructs a message.
+   *
+   * @param from    the login id of the sender.
+   * @param time    when the message was sent, in ms since the epoch.
+   * @param message the message.
+   * @param whisper true if the message was whispered to the user, false
+   *                if it was sent to everyone.
+   */
+  public OfflineMessage(String from, long time, Object message,
+    boolean whisper)
+  {
+    this.from = from;
+    this.time = time;
+    this.message = message;
+    this.whisper = whisper;
+  }
+
+  /**
+   * @return the login id of the sender.
+   */
+  public String getFrom()
+  {
+    return from;
+  }
+
+  /**
+   * @return when the message was sent, in ms since the epoch.
+   */
+  public long getTime()
+  {
+    return time;
+  }
+
+  /**
+   * @return the message.
+   */
+  public Object getMessage()
+  {
+    return message;
+  }
+
+  /**
+   * @return true if the message was whispered to the user.
+   */
+  public boolean isWhisper()
+  {
+    return whisper;
+  }
+
+  /**
+   * @return the message as shown to the user.
+   */
+  public String toString()
+  {
+    return "(while away) " + from + (whisper ? " (whisper)> " : ": ")
+      + message;
+  }
+}
@@ -0,0 +1,190 @@
+package common;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A search of the chat history, as typed by a moderator: words that
+ * the messages must all hold, phrases in double quotes that they must
+ * hold word for word, and filters.
+ * <pre>
+ *   from:&lt;loginId&gt;   messages sent by that user only
+ *   after:&lt;date&gt;     messages sent at or after a date, e.g.
+ *                     2026-10-19 or 2026-10-19T14:30
+ *   before:&lt;date&gt;    messages sent before a date
+ *   page:&lt;n&gt;         the n-th page of results, from 1
+ * </pre>
+ * Words are matched whatever their case.
+ *
+ * @see common.ChatIndex
+ */
+public class SearchQuery
+{
+  private static final Pattern PARTS = Pattern.compile("\"([^\"]*)\"?|(\\S+)");
+
+  private final List<String> terms = new ArrayList<>();
+
+  private final List<List<String>> phrases = new ArrayList<>();
+
+  private String loginId;
+
+  private long after = Long.MIN_VALUE;
+
+  private long before = Long.MAX_VALUE;
+
+  private int page = 1;
+
+  // Class methods ***************************************************
+
+  /**
+   * Parses a search.
+   *
+   * @param text the words, phrases and filters.
+   * @return the search.
+   * @exception IllegalArgumentException if a filter is invalid, or
+   *    there is nothing to search for.
+   */
+  public static SearchQuery parse(String text)
+  {
+    SearchQuery query = new SearchQuery();
+    Matcher matcher = PARTS.matcher(text);
+    while (matcher.find())
+    {
+      if (matcher.group(1) != null)
+      {
+        List<String> words = tokenize(matcher.group(1));
+        query.terms.addAll(words);
+        if (words.size() > 1)
+          query.phrases.add(words);
+        continue;
+      }
+
+      String part = matcher.group(2);
+      if (part.startsWith("from:") && part.length() > 5)
+        query.loginId = part.substring(5);
+      else if (part.startsWith("after:"))
+        query.after = parseTime(part.substring(6));
+      else if (part.startsWith("before:"))
+        query.before = parseTime(part.substring(7));
+      else if (part.startsWith("page:"))
+      {
+        try
+        {
+          query.page = Integer.parseInt(part.substring(5));
+        }
+        catch (NumberFormatException ex)
+        {
+          query.page = 0;
+        }
+        if (query.page < 1)
+          throw new IllegalArgumentException("invalid page: "
+            + part.substring(5));
+      }
+      else
+        query.terms.addAll(tokenize(part));
+    }
+
+    if (query.terms.isEmpty() && query.loginId == null
+      && query.after == Long.MIN_VALUE && query.before == Long.MAX_VALUE)
+      throw new IllegalArgumentException("nothing to search for");
+    return query;
+  }
+
+  /**
+   * Splits a text into words, in lower case: the runs of letters and
+   * digits.
+   *
+   * @param text the text.
+   * @return the words, in order.
+   */
+  public static List<String> tokenize(String text)
+  {
+    List<String> words = new ArrayList<>();
+    int start = -1;
+    for (int i = 0; i <= text.length(); i++)
+    {
+      boolean inWord = i < text.length()
+        && Character.isLetterOrDigit(text.charAt(i));
+      if (inWord && start < 0)
+        start = i;
+      else if (!inWord && start >= 0)
+      {
+        words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+        start = -1;
+      }
+    }
+    return words;
+  }
+
+  private static long parseTime(String text)
+  {
+    try
+    {
+      LocalDateTime time = text.contains("T") ? LocalDateTime.parse(text)
+        : LocalDate.parse(text).atStartOfDay();
+      return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+    catch (DateTimeParseException ex)
+    {
+      throw new IllegalArgumentException("invalid date: " + text);
+    }
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * @return the words that the messages must all hold, those of the
+   *         phrases included.
+   */
+  public List<String> getTerms()
+  {
+    return Collections.unmodifiableList(terms);
+  }
+
+  /**
+   * @return the phrases that the messages must hold, each as its words.
+   */
+  public List<List<String>> getPhrases()
+  {
+    return Collections.unmodifiableList(phrases);
+  }
+
+  /**
+   * @return the login id of the sender, or null for any sender.
+   */
+  public String getLoginId()
+  {
+    return loginId;
+  }
+
+  /**
+   * @return the time from which messages are searched, in ms since the
+   *         epoch.
+   */
+  public long getAfter()
+  {
+    return after;
+  }
+
+  /**
+   * @return the time before which messages are searched, in ms since
+   *         the epoch.
+   */
+  public long getBefore()
+  {
+    return before;
+  }
+
+  /**
+   * @return the page of results, from 1.
+   */
+  public int getPage()
+  {
+    return page;
+  }
+}
@@ -1 +1,2219 @@
-// This file contains material supporting section 3.7 of the textbook:// "Object Oriented Software Engineering" and is issued under the open-source// license found at www.lloseng.compackage ocsf.client;import java.io.*;import java.net.*;/*** The <code> AbstractClient </code> contains all the* methods necessary to set up the client side of a client-server* architecture.  When a client is thus connected to the* server, the two programs can then exchange <code> Object </code>* instances.<p>** Method <code> handleMessageFromServer </code> must be defined by* a concrete subclass. Several other hook methods may also be* overriden.<p>** Several public service methods are provided to* application that use this framework.<p>** Project Name: OCSF (Object Client-Server Framework)<p>** @author Dr. Robert Lagani&egrave;re* @author Dr. Timothy C. Lethbridge* @author Fran&ccedil;ois  B&eacutel;langer* @author Paul Holden* @version February 2001 (2.12)*/public abstract class AbstractClient implements Runnable{// INSTANCE VARIABLES ***********************************************  /**  * Sockets are used in the operating system as channels  * of communication between two processes.  * @see java.net.Socket  */  private Socket clientSocket;  /**  * The stream to handle data going to the server.  */  private ObjectOutputStream output;  /**  * The stream to handle data from the server.  */  private ObjectInputStream input;  /**  * The thread created to read data from the server.  */  private Thread clientReader;  /**  * Indicates if the thread is ready to stop.  * Needed so that the loop in the run method knows when to stop  * waiting for incoming messages.  */  private boolean readyToStop= false;    /**     * The client's loginId name.     */    private String loginId;  /**  * The server's host name.  */  private String host;  /**  * The port number.  */  private int port;// CONSTRUCTORS *****************************************************  /**   * Constructs the client.   *   * @param loginId   * @param host the server's host name.   * @param port the port number.   */  public AbstractClient(String loginId, String host, int port)  {    // Initialize variables      this.loginId = loginId;      this.host = host;      this.port = port;  }// INSTANCE METHODS *************************************************  /**   * Opens the connection with the server.   * If the connection is already opened, this call has no effect.   *   * @exception IOException if an I/O error occurs when opening.   */  final public void openConnection() throws IOException  {    // Do not do anything if the connection is already open    if(isConnected())      return;    //Create the sockets and the data streams    try    {      clientSocket= new Socket(host, port);      output = new ObjectOutputStream(clientSocket.getOutputStream());      input = new ObjectInputStream(clientSocket.getInputStream());    }    catch (IOException ex)    // All three of the above must be closed when there is a failure    // to create any of them    {      try      {        closeAll();      }      catch (Exception exc) { }      throw ex; // Rethrow the exception.    }    clientReader = new Thread(this);  //Create the data reader thread    readyToStop = false;    clientReader.start();  //Start the thread  }  /**   * Sends an object to the server. This is the only way that   * methods should communicate with the server.   *   * @param msg   The message to be sent.   * @exception IOException if an I/O error occurs when sending   */  final public void sendToServer(Object msg) throws IOException  {    if (clientSocket == null || output == null)      throw new SocketException("socket does not exist");    output.writeObject(msg);  }  /**   * Closes the connection to the server.   *   * @exception IOException if an I/O error occurs when closing.   */  final public void closeConnection() throws IOException  {    // Prevent the thread from looping any more    readyToStop= true;    try    {      closeAll();    }    finally    {      // Call the hook method      connectionClosed();    }  }// ACCESSING METHODS ------------------------------------------------  /**   * @return true if the client is connnected.   */  final public boolean isConnected()  {    return clientReader!=null && clientReader.isAlive();  }    /**     * @return the loginId value.     */    final public String getLoginId()    {        return loginId;    }    /**     * Sets the client loginId value for the next connection.     * The change in port only takes effect at the time of the     * next call to openConnection().     *     * @param loginId the loginId value.     */    final public void setLoginId(String loginId) { this.loginId = loginId; }  /**   * @return the port number.   */  final public int getPort()  {    return port;  }  /**   * Sets the server port number for the next connection.   * The change in port only takes effect at the time of the   * next call to openConnection().   *   * @param port the port number.   */  final public void setPort(int port)  {    this.port = port;  }  /**   * @return the host name.   */  final public String getHost()  {    return host;  }  /**   * Sets the server host for the next connection.   * The change in host only takes effect at the time of the   * next call to openConnection().   *   * @param host the host name.   */  final public void setHost(String host)  {    this.host = host;  }  /**   * returns the client's description.   *   * @return the client's Inet address.   */  final public InetAddress getInetAddress()  {    return clientSocket.getInetAddress();  }// RUN METHOD -------------------------------------------------------  /**   * Waits for messages from the server. When each arrives,   * a call is made to <code>handleMessageFromServer()</code>.   * Not to be explicitly called.   */  final public void run()  {    connectionEstablished();    // The message from the server    Object msg;    // Loop waiting for data    try    {      while(!readyToStop)      {        // Get data from Server and send it to the handler        // The thread waits indefinitely at the following        // statement until something is received from the server        msg = input.readObject();        // Concrete subclasses do what they want with the        // msg by implementing the following method        handleMessageFromServer(msg);      }    }    catch (Exception exception)    {      if(!readyToStop)      {        try        {          closeAll();        }        catch (Exception ex) { }        connectionException(exception);      }    }    finally    {      clientReader = null;    }  }// METHODS DESIGNED TO BE OVERRIDDEN BY CONCRETE SUBCLASSES ---------  /**   * Hook method called after the connection has been closed.   * The default implementation does nothing. The method   * may be overriden by subclasses to perform special processing   * such as cleaning up and terminating, or attempting to   * reconnect.   */  protected void connectionClosed() {}  /**   * Hook method called each time an exception is thrown by the   * client's thread that is waiting for messages from the server.   * The method may be overridden by subclasses.   *   * @param exception the exception raised.   */  protected void connectionException(Exception exception) {}  /**   * Hook method called after a connection has been established.   * The default implementation does nothing.   * It may be overridden by subclasses to do anything they wish.   */  protected void connectionEstablished() {}  /**   * Handles a message sent from the server to this client.   * This MUST be implemented by subclasses, who should respond to   * messages.   *   * @param msg   the message sent.   */  protected abstract void handleMessageFromServer(Object msg);// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------  /**   * Closes all aspects of the connection to the server.   *   * @exception IOException if an I/O error occurs when closing.   */  private void closeAll() throws IOException  {    try    {      //Close the socket      if (clientSocket != null)        clientSocket.close();      //Close the output stream      if (output != null)        output.close();      //Close the input stream      if (input != null)        input.close();    }    finally    {      // Set the streams and the sockets to NULL no matter what      // Doing so allows, but does not require, any finalizers      // of these objects to reclaim system resources if and      // when they are garbage collected.      output = null;      input = null;      clientSocket = null;    }  }}// end of AbstractClient class
\ No newline at end of file
+// This file contains material supporting section 3.7 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.client;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ocsf.protocol.*;
+
+/**
+* The <code> AbstractClient </code> contains all the
+* methods necessary to set up the client side of a client-server
+* architecture.  When a client is thus connected to the
+* server, the two programs can then exchange <code> Object </code>
+* instances.<p>
+*
+* Method <code> handleMessageFromServer </code> must be defined by
+* a concrete subclass. Several other hook methods may also be
+* overriden.<p>
+*
+* Several public service methods are provided to
+* application that use this framework.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @author Dr. Robert Lagani&egrave;re
+* @author Dr. Timothy C. Lethbridge
+* @author Fran&ccedil;ois  B&eacutel;langer
+* @author Paul Holden
+* @version February 2001 (2.12)
+*/
+public abstract class AbstractClient implements Runnable
+{
+
+// CLASS VARIABLES **************************************************
+
+  /**
+  * Maximum number of messages sent in a session that can be waiting
+  * for an acknowledgement.
+  */
+  public static final int RETRANSMIT_WINDOW = 1024;
+
+  /**
+  * Maximum number of messages sent from handleMessageFromServer() that
+  * can be waiting for room in the retransmit window: the thread
+  * cannot wait, since it reads the acknowledgements of the server.
+  */
+  public static final int MAX_OVERFLOW = 65536;
+
+  /**
+  * How long a request waits for its reply by default, in ms.
+  */
+  public static final long REQUEST_TIMEOUT = 30000;
+
+  /**
+  * How long a message sent waits at most, in ms, for the server to
+  * acknowledge enough messages to make room in the retransmit window.
+  */
+  public static final long ACK_TIMEOUT = 30000;
+
+  /**
+  * How long the client waits to reconnect at most, in ms, once the
+  * first attempt failed; see setAutoReconnect.
+  */
+  public static final long RECONNECT_MAX_DELAY = 30000;
+
+  /**
+  * How long closeConnection() waits for the frames queued to be
+  * written, in ms.
+  */
+  private static final long CLOSE_LINGER = 1000;
+
+  /**
+  * Flushes the batches of every client once their delay is over.
+  */
+  private static ScheduledExecutorService batchFlusher;
+
+// INSTANCE VARIABLES ***********************************************
+
+  /**
+  * Sockets are used in the operating system as channels
+  * of communication between two processes.
+  * @see java.net.Socket
+  */
+  private Socket clientSocket;
+
+  /**
+  * The channel of a connection through a Unix domain socket or shared
+  * memory, which has no <code>Socket</code>; null over TCP.
+  */
+  private Closeable clientChannel;
+
+  /**
+  * The stream to handle the frames going to the server.
+  */
+  private volatile DataOutputStream output;
+
+  /**
+  * The stream to handle the frames from the server.
+  */
+  private DataInputStream input;
+
+  /**
+  * The thread created to read data from the server.
+  */
+  private Thread clientReader;
+
+  /**
+  * The frames waiting for the writer thread, encoded; also the lock
+  * that guards them and orders their end with the output. Queued in the order the
+  * messages are numbered, with the unacknowledged lock held, and
+  * written without it, so that the reader thread never waits for a
+  * write blocked by a server that is itself blocked writing to it.
+  */
+  private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+
+  /**
+  * The number of bytes of the frames in outbound.
+  */
+  private int outboundBytes = 0;
+
+  /**
+  * False while the writer thread has frames taken from outbound that
+  * are not flushed yet.
+  */
+  private boolean outboundFlushed = true;
+
+  /**
+  * The event loop that drives the connections opened, or null if each
+  * connection has a reader thread of its own.
+  */
+  private ClientEventLoop eventLoop;
+
+  /**
+  * The non-blocking connection driven by the event loop, or null.
+  */
+  private volatile NonBlockingConnection channel;
+
+  /**
+  * The thread handling a message from the server for this client, if
+  * any: the reader thread, or a thread of the event loop.
+  */
+  private volatile Thread dispatcher;
+
+  /**
+  * Indicates if the thread is ready to stop.
+  * Needed so that the loop in the run method knows when to stop
+  * waiting for incoming messages.
+  */
+  private boolean readyToStop= false;
+
+    /**
+     * The client's loginId name.
+     */
+    private String loginId;
+
+  /**
+  * The server's host name.
+  */
+  private String host;
+
+  /**
+  * The port number.
+  */
+  private int port;
+
+  /**
+  * The Unix domain socket of the server, to connect through instead of
+  * the host and port; null to connect over TCP.
+  */
+  private UnixDomainSocketAddress unixAddress;
+
+  /**
+  * The directory in which the server accepts shared memory rings, or
+  * null to connect through a socket.
+  */
+  private Path sharedDirectory;
+
+  /**
+  * True if the client asks the server for a resumable session.
+  */
+  private boolean sessionResume = false;
+
+  /**
+  * The token of the current session, or null.
+  */
+  private String sessionToken;
+
+  /**
+  * The sequence number of the last message received in the session.
+  */
+  private long lastReceived = 0;
+
+  /**
+  * True between the request to resume a session and its grant.
+  */
+  private boolean resuming = false;
+
+  /**
+  * Messages received since an acknowledgement was last sent.
+  */
+  private int receivedSinceAck = 0;
+
+  /**
+  * The messages sent in the session that the server has not
+  * acknowledged yet, indexed by sequence number. Also the lock that
+  * orders the numbering and the writing of those messages.
+  */
+  private final Sequenced[] unacknowledged = new Sequenced[RETRANSMIT_WINDOW];
+
+  /**
+  * The messages sent by the thread dispatching the messages received,
+  * which cannot wait for an acknowledgement, while the retransmit
+  * window is full; numbered once there is room. Guarded by the
+  * unacknowledged lock.
+  */
+  private final ArrayDeque<Object> overflow = new ArrayDeque<>();
+
+  /**
+  * The sequence number of the last message sent in the session.
+  */
+  private long lastSent = 0;
+
+  /**
+  * The requests waiting for their reply, by correlation id.
+  */
+  private final ConcurrentHashMap<Long, CompletableFuture<Object>>
+    pendingRequests = new ConcurrentHashMap<>();
+
+  /**
+  * The correlation id of the last request sent.
+  */
+  private final AtomicLong lastRequestId = new AtomicLong();
+
+  /**
+  * The maximum number of messages sent in one frame; 0 if the
+  * messages are not batched.
+  */
+  private int maxBatchSize = 0;
+
+  /**
+  * How long a message can wait for its batch to fill, in ms.
+  */
+  private long maxBatchDelay = 0;
+
+  /**
+  * The messages waiting to be sent in one frame. Guarded by the
+  * unacknowledged lock.
+  */
+  private final ArrayList<Object> batch = new ArrayList<>();
+
+  /**
+  * The delay before the first attempt to reconnect, in ms; 0 if the
+  * client does not reconnect by itself.
+  */
+  private long reconnectDelay = 0;
+
+  /**
+  * The maximum number of messages held while reconnecting.
+  */
+  private int reconnectBufferSize = 0;
+
+  /**
+  * The messages sent while reconnecting, or null when connected.
+  * Guarded by the unacknowledged lock.
+  */
+  private ArrayDeque<Object> held;
+
+  /**
+  * The thread reconnecting to the server, or null.
+  */
+  private volatile Thread reconnector;
+
+  /**
+  * Orders the attempts to open the connection.
+  */
+  private final Object connecting = new Object();
+
+  private volatile long reconnectAttempts = 0;
+
+  private volatile long reconnects = 0;
+
+  private volatile long lastReconnectLatency = 0;
+
+  /**
+  * The last sequence number acknowledged by the server.
+  */
+  private long lastAcknowledged = 0;
+
+  /**
+  * The largest message accepted from the server once reassembled from
+  * its chunks, in bytes.
+  */
+  private volatile int maxMessageSize = FrameCodec.MAX_FRAME_SIZE;
+
+  /**
+  * The policy applied to the messages read from the server as they are
+  * deserialized.
+  */
+  private volatile MessageFilter messageFilter = new MessageFilter();
+
+  /**
+  * The TLS configuration of the connections over TCP, or null if they
+  * are not encrypted.
+  */
+  private volatile TlsContext tlsContext;
+
+  /**
+  * The compression offered to the server, or null if the frames are
+  * always raw.
+  */
+  private volatile Compression compression;
+
+  /**
+  * The compression offered on the current connection, with which the
+  * frames of the server are decompressed.
+  */
+  private volatile Compression offered;
+
+  /**
+  * The compression once the server accepted it, with which the frames
+  * to the server are compressed; null until then.
+  */
+  private volatile Compression negotiated;
+
+  /**
+  * The chunked messages and the streams being received from the
+  * server, by stream id.
+  */
+  private final ConcurrentHashMap<Long, InboundStream> inbound =
+    new ConcurrentHashMap<>();
+
+  /**
+  * The files being received from the server, by transfer id.
+  */
+  private final ConcurrentHashMap<Long, InboundFile> files =
+    new ConcurrentHashMap<>();
+
+// CONSTRUCTORS *****************************************************
+
+  /**
+   * Constructs the client.
+   *
+   * @param loginId
+   * @param host the server's host name.
+   * @param port the port number.
+   */
+  public AbstractClient(String loginId, String host, int port)
+  {
+    // Initialize variables
+      this.loginId = loginId;
+      this.host = host;
+      this.port = port;
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Opens the connection with the server.
+   * If the connection is already opened, this call has no effect.
+   *
+   * @exception IOException if an I/O error occurs when opening.
+   */
+  final public void openConnection() throws IOException
+  {
+    synchronized (connecting)
+    {
+      // Do not do anything if the connection is already open
+      if(isConnected())
+        return;
+
+      connect();
+    }
+  }
+
+  /**
+   * Creates the socket and either the data streams and the reader
+   * thread, or the non-blocking connection driven by the event loop.
+   *
+   * @exception IOException if an I/O error occurs when opening.
+   */
+  private void connect() throws IOException
+  {
+    ClientEventLoop loop = eventLoop;
+    TlsContext tls = tlsContext;
+    UnixDomainSocketAddress unix = unixAddress;
+    Path shared = sharedDirectory;
+    if (shared != null)
+      loop = null;  // The rings cannot be selected
+
+    //Create the sockets and the data streams
+    try
+    {
+      if (shared != null)
+      {
+        SharedMemoryChannel rings = SharedMemoryChannel.connect(shared);
+        clientChannel = rings;
+        output = new DataOutputStream(
+          new BufferedOutputStream(rings.getOutputStream()));
+        input = new DataInputStream(
+          new BufferedInputStream(rings.getInputStream()));
+      }
+      else if (unix != null)
+      {
+        SocketChannel socketChannel = SocketChannel.open(unix);
+        clientChannel = socketChannel;
+        if (loop == null)
+        {
+          output = new DataOutputStream(new BufferedOutputStream(
+            ChannelStreams.output(socketChannel)));
+          input = new DataInputStream(new BufferedInputStream(
+            ChannelStreams.input(socketChannel)));
+        }
+        else
+          channel = new NonBlockingConnection(this, socketChannel, null);
+      }
+      else if (loop == null)
+      {
+        clientSocket= new Socket(host, port);
+        InputStream in = clientSocket.getInputStream();
+        OutputStream out = clientSocket.getOutputStream();
+        if (tls != null)
+        {
+          TlsEngine engine = tls.createEngine(host, port, true);
+          in = engine.input(in);
+          out = engine.output(out);
+          clientSocket.setSoTimeout(tls.getHandshakeTimeout());
+          engine.handshake();
+          clientSocket.setSoTimeout(0);
+        }
+        output = new DataOutputStream(new BufferedOutputStream(out));
+        input = new DataInputStream(new BufferedInputStream(in));
+      }
+      else
+      {
+        SocketChannel socketChannel =
+          SocketChannel.open(new InetSocketAddress(host, port));
+        clientSocket = socketChannel.socket();
+        channel = new NonBlockingConnection(this, socketChannel,
+          tls == null ? null : tls.createEngine(host, port, true));
+      }
+
+      // The chunks cut by a lost connection only go on with its session
+      if (!sessionResume)
+        inbound.clear();
+
+      // Raw frames until the server accepts the offer, if it does
+      offered = compression;
+      negotiated = null;
+      if (offered != null)
+      {
+        synchronized (unacknowledged)
+        {
+          write(new CompressionOffer(offered.getDictionaryId()));
+        }
+      }
+
+      // Ask to resume the session, or for a new one if there is none
+      if (sessionResume)
+      {
+        synchronized (unacknowledged)
+        {
+          write(new ResumeRequest(sessionToken, lastReceived));
+          resuming = sessionToken != null;
+        }
+      }
+
+      // Resume the files being received where they stopped
+      if (!files.isEmpty())
+      {
+        synchronized (unacknowledged)
+        {
+          for (InboundFile file : files.values())
+          {
+            write(new FileRequest(file.offer.getId(), file.received));
+          }
+        }
+      }
+    }
+    catch (IOException ex)
+    // All three of the above must be closed when there is a failure
+    // to create any of them
+    {
+      try
+      {
+        closeAll();
+      }
+      catch (Exception exc) { }
+
+      throw ex; // Rethrow the exception.
+    }
+
+    readyToStop = false;
+    if (loop != null)
+    {
+      loop.register(channel);
+      return;
+    }
+
+    // The frames queued meanwhile are written by the writer thread
+    DataOutputStream out = output;
+    Thread writer = new Thread(() -> writeFrames(out), "AbstractClient writer");
+    writer.setDaemon(true);
+    writer.start();
+
+    clientReader = new Thread(this);  //Create the data reader thread
+    clientReader.start();  //Start the thread
+  }
+
+  /**
+   * Sends an object to the server. This is the only way that
+   * methods should communicate with the server.<p>
+   *
+   * Within a session the message is numbered, carries the
+   * acknowledgement of the messages received, and is kept until the
+   * server acknowledges it so that it can be retransmitted after a
+   * resume. When <code>RETRANSMIT_WINDOW</code> messages are already
+   * waiting for an acknowledgement, the caller waits until the server
+   * acknowledges some, up to <code>ACK_TIMEOUT</code> ms; the messages
+   * sent from handleMessageFromServer(), which cannot wait, are queued,
+   * up to <code>MAX_OVERFLOW</code>, and sent in order once there is
+   * room.
+   * While the client is reconnecting by itself, the message is held and
+   * sent once the connection is back.<p>
+   *
+   * Over a connection with a reader thread, the message is written by
+   * a writer thread of its own, so that a server slow to read never
+   * blocks the reading of what it sends; the caller waits while the
+   * frames still to write exceed a few megabytes.
+   *
+   * @param msg   The message to be sent.
+   * @exception IOException if an I/O error occurs when sending, if the
+   *    server acknowledges nothing for <code>ACK_TIMEOUT</code> ms, if
+   *    <code>MAX_OVERFLOW</code> messages are already queued or, from
+   *    handleMessageFromServer(), the frames still to write exceed a
+   *    few megabytes, or if the reconnect buffer is full.
+   */
+  final public void sendToServer(Object msg) throws IOException
+  {
+    synchronized (unacknowledged)
+    {
+      long deadline = 0;
+      while (true)
+      {
+        // Hold the message until reconnected; the hooks called while
+        // reconnecting, such as a login, go first
+        if (held != null && Thread.currentThread() != dispatcher)
+        {
+          if (held.size() >= reconnectBufferSize)
+            throw new IOException("reconnect buffer full");
+          held.add(msg);
+          return;
+        }
+
+        // The thread dispatching cannot wait for the writer thread
+        if (Thread.currentThread() == dispatcher && isOutboundFull())
+          throw new IOException("send buffer full");
+        if (Thread.currentThread() == dispatcher || !isWindowFull()
+          || (clientSocket == null && clientChannel == null))
+          break;
+
+        // Wait for room, once what is numbered reached the server and
+        // it was asked to acknowledge it
+        if (deadline == 0)
+        {
+          deadline = System.currentTimeMillis() + ACK_TIMEOUT;
+          flushBatch();
+          write(new Ack(lastReceived));
+          receivedSinceAck = 0;
+        }
+        long left = deadline - System.currentTimeMillis();
+        if (left <= 0)
+          throw new IOException("no acknowledgement from the server");
+        try
+        {
+          unacknowledged.wait(left);
+        }
+        catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("interrupted while waiting for "
+            + "an acknowledgement");
+        }
+      }
+      send(msg);
+    }
+
+    // Without the lock, which the reader thread needs to go on reading
+    if (Thread.currentThread() != dispatcher)
+      awaitOutbound();
+  }
+
+  /**
+   * Writes a message, numbered if the client has a session, or queues
+   * it while the retransmit window is full.
+   */
+  private void send(Object msg) throws IOException
+  {
+    if (clientSocket == null && clientChannel == null)
+      throw new SocketException("socket does not exist");
+
+    synchronized (unacknowledged)
+    {
+      if (sessionToken == null)
+      {
+        queue(msg);
+        return;
+      }
+
+      if (isWindowFull())
+      {
+        if (overflow.size() >= MAX_OVERFLOW)
+          throw new IOException("retransmit window full");
+        overflow.add(msg);
+        return;
+      }
+      number(msg);
+    }
+  }
+
+  /**
+   * Waits while the frames queued for the writer thread are more than
+   * <code>NonBlockingConnection.MAX_PENDING_BYTES</code>, so that a
+   * sender cannot queue faster than the server reads.
+   *
+   * @exception InterruptedIOException if interrupted while waiting.
+   */
+  private void awaitOutbound() throws IOException
+  {
+    synchronized (outbound)
+    {
+      try
+      {
+        while (isOutboundFull())
+        {
+          outbound.wait();
+        }
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted while queued");
+      }
+    }
+  }
+
+  /**
+   * @return true if the frames queued for the writer thread are more
+   *         than it keeps.
+   */
+  private boolean isOutboundFull()
+  {
+    synchronized (outbound)
+    {
+      return output != null
+        && outboundBytes >= NonBlockingConnection.MAX_PENDING_BYTES;
+    }
+  }
+
+  /**
+   * @return true if the session has messages waiting for room in the
+   *         retransmit window, or no room. Called with the
+   *         unacknowledged lock held.
+   */
+  private boolean isWindowFull()
+  {
+    return sessionToken != null && (!overflow.isEmpty()
+      || lastSent - lastAcknowledged >= RETRANSMIT_WINDOW);
+  }
+
+  /**
+   * Numbers a message, keeps it until acknowledged and writes it.
+   * Called with the unacknowledged lock held.
+   */
+  private void number(Object msg) throws IOException
+  {
+    Sequenced sequenced = new Sequenced(lastSent + 1, lastReceived, msg);
+    unacknowledged[(int)((lastSent + 1) % RETRANSMIT_WINDOW)] = sequenced;
+    lastSent++;
+    receivedSinceAck = 0;  // The acknowledgement travels with the message
+    queue(sequenced);
+  }
+
+  /**
+   * Numbers the messages that waited for room in the retransmit window,
+   * as far as there is room. Called with the unacknowledged lock held.
+   */
+  private void sendOverflow() throws IOException
+  {
+    while (!overflow.isEmpty()
+      && lastSent - lastAcknowledged < RETRANSMIT_WINDOW)
+    {
+      number(overflow.poll());
+    }
+  }
+
+  /**
+   * Sends a request to the server and returns its reply, to come, with
+   * the default timeout.
+   *
+   * @param msg the request.
+   * @return the reply, completed exceptionally on failure or timeout.
+   * @see #request(Object, long)
+   */
+  final public CompletableFuture<Object> request(Object msg)
+  {
+    return request(msg, REQUEST_TIMEOUT);
+  }
+
+  /**
+   * Sends a request to the server and returns its reply, to come.
+   * The request carries a correlation id, so any number of requests can
+   * be in flight at once and the server may answer them in any order.
+   * The server answers with <code>ConnectionToClient.reply</code>;
+   * replies are not passed to handleMessageFromServer.<p>
+   *
+   * The reply fails with the <code>IOException</code> raised if the
+   * request cannot be sent or the connection is closed, and with a
+   * <code>TimeoutException</code> if no reply arrives in time. Within a
+   * resumable session a request survives a lost connection.
+   *
+   * @param msg     the request.
+   * @param timeout how long to wait for the reply, in ms.
+   * @return the reply, completed exceptionally on failure or timeout.
+   */
+  final public CompletableFuture<Object> request(Object msg, long timeout)
+  {
+    long id = lastRequestId.incrementAndGet();
+    CompletableFuture<Object> reply = new CompletableFuture<>();
+    pendingRequests.put(id, reply);
+    reply.orTimeout(timeout, TimeUnit.MILLISECONDS)
+      .whenComplete((result, failure) -> pendingRequests.remove(id));
+
+    try
+    {
+      sendToServer(new Request(id, msg));
+    }
+    catch (IOException ex)
+    {
+      reply.completeExceptionally(ex);
+    }
+    return reply;
+  }
+
+  /**
+   * Closes the connection to the server.
+   *
+   * @exception IOException if an I/O error occurs when closing.
+   */
+  final public void closeConnection() throws IOException
+  {
+    // Prevent the thread from looping any more
+    readyToStop= true;
+
+    // Stop reconnecting; what was held will not be sent
+    Thread stopped = reconnector;
+    reconnector = null;
+    if (stopped != null)
+      stopped.interrupt();
+
+    // A connection closed on purpose ends the session
+    synchronized (unacknowledged)
+    {
+      held = null;
+      sessionToken = null;
+      resetSession();
+    }
+
+    failRequests(new IOException("connection closed"));
+    try
+    {
+      awaitFlushed();
+      closeAll();
+    }
+    finally
+    {
+      // The files being received end unfinished
+      for (InboundFile file : files.values())
+      {
+        endFile(file, false);
+      }
+
+      // Call the hook method
+      connectionClosed();
+    }
+  }
+
+// ACCESSING METHODS ------------------------------------------------
+
+  /**
+   * @return true if the client is connnected.
+   */
+  final public boolean isConnected()
+  {
+    NonBlockingConnection current = channel;
+    if (current != null)
+      return current.isOpen();
+
+    Thread reader = clientReader;
+    return reader!=null && reader.isAlive();
+  }
+
+    /**
+     * @return the loginId value.
+     */
+    final public String getLoginId()
+    {
+        return loginId;
+    }
+
+    /**
+     * Sets the client loginId value for the next connection.
+     * The change in port only takes effect at the time of the
+     * next call to openConnection().
+     *
+     * @param loginId the loginId value.
+     */
+    final public void setLoginId(String loginId) { this.loginId = loginId; }
+
+  /**
+   * Lets an event loop drive the connections opened from now on,
+   * instead of a reader thread per connection, so that a few threads
+   * can serve thousands of clients. The hook methods are then called
+   * from the threads of the event loop and should not block.
+   *
+   * @param eventLoop the event loop, or null to go back to a reader
+   *        thread per connection.
+   */
+  final public void setEventLoop(ClientEventLoop eventLoop)
+  {
+    this.eventLoop = eventLoop;
+  }
+
+  /**
+   * Asks the server for a resumable session on the next connections.
+   * When the connection is lost, the next call to openConnection()
+   * resumes the session: the client is still logged in and only
+   * receives the messages it missed. Closing the connection with
+   * closeConnection() ends the session. A server without session
+   * resume grants none, and the client logs in again on every
+   * connection.
+   *
+   * @param sessionResume true to ask for a resumable session.
+   */
+  final public void setSessionResume(boolean sessionResume)
+  {
+    this.sessionResume = sessionResume;
+  }
+
+  /**
+   * Sets the size of the largest message accepted from the server. The
+   * server sends the messages larger than <code>Chunk.SIZE</code> in
+   * chunks, which the client reassembles up to this size; a larger
+   * message ends the connection. Streams are not limited, since they
+   * are handed over chunk by chunk.
+   *
+   * @param maxMessageSize the size, in bytes.
+   */
+  final public void setMaxMessageSize(int maxMessageSize)
+  {
+    if (maxMessageSize <= 0)
+      throw new IllegalArgumentException("invalid size " + maxMessageSize);
+    this.maxMessageSize = maxMessageSize;
+  }
+
+  /**
+   * @return the size of the largest message accepted from the server,
+   *         in bytes.
+   */
+  final public int getMaxMessageSize()
+  {
+    return maxMessageSize;
+  }
+
+  /**
+   * Sets the policy applied to the messages read from the server: the
+   * classes allowed and the limits on the size of their object graphs,
+   * checked as they are deserialized, chunked messages included. A
+   * message the filter rejects ends the connection, and the rejection
+   * is counted by the filter. By default, any class is allowed, within
+   * the default limits of <code>MessageFilter</code>.
+   *
+   * @param messageFilter the filter.
+   */
+  final public void setMessageFilter(MessageFilter messageFilter)
+  {
+    this.messageFilter = Objects.requireNonNull(messageFilter);
+  }
+
+  /**
+   * @return the policy applied to the messages read from the server,
+   *         with the number of messages it rejected.
+   */
+  final public MessageFilter getMessageFilter()
+  {
+    return messageFilter;
+  }
+
+  /**
+   * Encrypts the connections opened over TCP from now on with TLS. The
+   * handshake completes before <code>openConnection</code> returns, or
+   * as the event loop runs when the client has one; the messages sent
+   * meanwhile are held. The client checks that the certificate of the
+   * server is for its host, and resumes the TLS session it last had
+   * with the server when it reconnects, so that the reconnection costs
+   * an abbreviated handshake. Clients that share a context share their
+   * sessions. The connections through a Unix domain socket or shared
+   * memory are not encrypted.
+   *
+   * @param tlsContext the TLS configuration, which also counts the
+   *                   handshakes; null to connect in plain.
+   */
+  final public void setTlsContext(TlsContext tlsContext)
+  {
+    this.tlsContext = tlsContext;
+  }
+
+  /**
+   * @return the TLS configuration of the connections over TCP, with
+   *         the handshake counts and times; null if they are not
+   *         encrypted.
+   */
+  final public TlsContext getTlsContext()
+  {
+    return tlsContext;
+  }
+
+  /**
+   * Offers compression to the server on the connections opened from
+   * now on. The frames to the server are compressed once the server
+   * has accepted the offer, which it does if it compresses with the
+   * same dictionary; until then, or if it does not, they are raw.
+   *
+   * @param compression the compression, which also counts the frames
+   *                    and bytes it compressed; null for raw frames.
+   */
+  final public void setCompression(Compression compression)
+  {
+    this.compression = compression;
+  }
+
+  /**
+   * @return the compression offered to the server, with its ratio and
+   *         the time spent on it; null if the frames are raw.
+   */
+  final public Compression getCompression()
+  {
+    return compression;
+  }
+
+  /**
+   * @return true if the server accepted the compression offered on the
+   *         current connection.
+   */
+  final public boolean isCompressing()
+  {
+    return negotiated != null;
+  }
+
+  /**
+   * @return the number of messages sent in the session that the server
+   *         has not acknowledged yet.
+   */
+  final public long getUnacknowledgedCount()
+  {
+    synchronized (unacknowledged)
+    {
+      return lastSent - lastAcknowledged;
+    }
+  }
+
+  /**
+   * @return the number of requests waiting for their reply.
+   */
+  final public int getPendingRequestCount()
+  {
+    return pendingRequests.size();
+  }
+
+  /**
+   * Makes the client coalesce the messages it sends into batches, sent
+   * as one frame and one write, when many small messages are sent in a
+   * row. A batch is sent when it holds the given number of messages or
+   * when its first message has waited the given delay, whichever comes
+   * first. The server handles the messages of a batch one by one, as
+   * if they had been sent on their own.<p>
+   *
+   * A message still waiting in its batch when the connection is lost
+   * is only sent again if the session is resumed.
+   *
+   * @param maxBatchSize  the maximum number of messages in a batch; 0
+   *                      or 1 to send every message on its own.
+   * @param maxBatchDelay the maximum time a message waits, in ms.
+   */
+  final public void setBatching(int maxBatchSize, long maxBatchDelay)
+  {
+    synchronized (unacknowledged)
+    {
+      this.maxBatchSize = maxBatchSize;
+      this.maxBatchDelay = maxBatchDelay;
+    }
+    flushBatchLater();
+  }
+
+  /**
+   * Makes the client reconnect by itself when the connection is lost.
+   * The attempts are spaced by a delay that doubles after each failure,
+   * up to <code>RECONNECT_MAX_DELAY</code>, and is randomized so that
+   * the clients of a restarted server do not all retry at once. The
+   * messages sent in the meantime are held, up to the given number, and
+   * sent after the connection is back: after the hook sessionGranted()
+   * when the client asks for a session, so that the hook can log in
+   * again first, and after connectionEstablished() otherwise.
+   * closeConnection() stops reconnecting.
+   *
+   * @param delay      the delay before the first attempt, in ms; 0
+   *                   to stop reconnecting by itself.
+   * @param bufferSize the maximum number of messages held.
+   */
+  final public void setAutoReconnect(long delay, int bufferSize)
+  {
+    this.reconnectDelay = delay;
+    this.reconnectBufferSize = bufferSize;
+  }
+
+  /**
+   * @return true if the client is trying to reconnect by itself.
+   */
+  final public boolean isReconnecting()
+  {
+    return reconnector != null;
+  }
+
+  /**
+   * @return the number of attempts made to reconnect, successful or not.
+   */
+  final public long getReconnectAttempts()
+  {
+    return reconnectAttempts;
+  }
+
+  /**
+   * @return the number of times the client reconnected by itself.
+   */
+  final public long getReconnectCount()
+  {
+    return reconnects;
+  }
+
+  /**
+   * @return the time between the loss of the connection and the last
+   *         successful reconnection, in ms.
+   */
+  final public long getLastReconnectLatency()
+  {
+    return lastReconnectLatency;
+  }
+
+  /**
+   * @return the number of messages held until the client reconnects.
+   */
+  final public int getHeldCount()
+  {
+    synchronized (unacknowledged)
+    {
+      return held == null ? 0 : held.size();
+    }
+  }
+
+  /**
+   * @return true if the client holds a session it can resume.
+   */
+  final public boolean hasSession()
+  {
+    return sessionToken != null;
+  }
+
+  /**
+   * @return the port number.
+   */
+  final public int getPort()
+  {
+    return port;
+  }
+
+  /**
+   * Sets the server port number for the next connection.
+   * The change in port only takes effect at the time of the
+   * next call to openConnection().
+   *
+   * @param port the port number.
+   */
+  final public void setPort(int port)
+  {
+    this.port = port;
+  }
+
+  /**
+   * @return the host name.
+   */
+  final public String getHost()
+  {
+    return host;
+  }
+
+  /**
+   * Sets the server host for the next connection.
+   * The change in host only takes effect at the time of the
+   * next call to openConnection().
+   *
+   * @param host the host name.
+   */
+  final public void setHost(String host)
+  {
+    this.host = host;
+  }
+
+  /**
+   * Makes the next connections go through a Unix domain socket instead
+   * of TCP, for a server on the same host listening on that address.
+   * The messages and the hook methods are the same; only the loopback
+   * TCP stack is skipped. The change only takes effect at the time of
+   * the next call to openConnection().
+   *
+   * @param address the socket of the server, or null to connect to the
+   *        host and port over TCP again.
+   * @see ocsf.server.AbstractServer#addEndpoint(SocketAddress)
+   */
+  final public void setUnixDomainAddress(UnixDomainSocketAddress address)
+  {
+    this.unixAddress = address;
+  }
+
+  /**
+   * @return the Unix domain socket the client connects through, or null
+   *         if it connects over TCP.
+   */
+  final public UnixDomainSocketAddress getUnixDomainAddress()
+  {
+    return unixAddress;
+  }
+
+  /**
+   * Makes the next connections go through shared memory, for a server
+   * on the same host accepting rings in that directory. Messages then
+   * do not go through the kernel at all. Takes precedence over the Unix
+   * domain address; the event loop is not used for these connections,
+   * which have a reader thread each. The change only takes effect at
+   * the time of the next call to openConnection().
+   *
+   * @param directory the directory of the server's shared memory
+   *        endpoint, or null to connect through a socket again.
+   * @see ocsf.protocol.SharedMemoryChannel
+   */
+  final public void setSharedMemoryDirectory(Path directory)
+  {
+    this.sharedDirectory = directory;
+  }
+
+  /**
+   * @return the directory of the server's shared memory endpoint, or
+   *         null if the client connects through a socket.
+   */
+  final public Path getSharedMemoryDirectory()
+  {
+    return sharedDirectory;
+  }
+
+  /**
+   * returns the client's description.
+   *
+   * @return the client's Inet address, or null when connected through a
+   *         Unix domain socket or shared memory.
+   */
+  final public InetAddress getInetAddress()
+  {
+    Socket socket = clientSocket;
+    return socket == null ? null : socket.getInetAddress();
+  }
+
+// RUN METHOD -------------------------------------------------------
+
+  /**
+   * Waits for messages from the server. When each arrives,
+   * a call is made to <code>handleMessageFromServer()</code>.
+   * Not to be explicitly called.
+   */
+  final public void run()
+  {
+    dispatcher = Thread.currentThread();
+    connectionEstablished();
+
+    // The message from the server
+    Object msg;
+
+    // Loop waiting for data
+
+    try
+    {
+      if (!sessionResume)
+        sendHeld();
+
+      while(!readyToStop)
+      {
+        // Get data from Server and send it to the handler
+        // The thread waits indefinitely at the following
+        // statement until something is received from the server
+        msg = FrameCodec.read(input, FrameCodec.MAX_FRAME_SIZE,
+          messageFilter, offered);
+        dispatch(msg);
+      }
+    }
+    catch (Exception exception)
+    {
+      connectionLost(Thread.currentThread(), exception);
+    }
+    finally
+    {
+      dispatcher = null;
+      if (clientReader == Thread.currentThread())
+        clientReader = null;
+    }
+  }
+
+// METHODS DESIGNED TO BE OVERRIDDEN BY CONCRETE SUBCLASSES ---------
+
+  /**
+   * Hook method called after the connection has been closed.
+   * The default implementation does nothing. The method
+   * may be overriden by subclasses to perform special processing
+   * such as cleaning up and terminating, or attempting to
+   * reconnect.
+   */
+  protected void connectionClosed() {}
+
+  /**
+   * Hook method called each time an exception is thrown by the
+   * client's thread that is waiting for messages from the server.
+   * The method may be overridden by subclasses.
+   *
+   * @param exception the exception raised.
+   */
+  protected void connectionException(Exception exception) {}
+
+  /**
+   * Hook method called after a connection has been established.
+   * The default implementation does nothing.
+   * It may be overridden by subclasses to do anything they wish.
+   */
+  protected void connectionEstablished() {}
+
+  /**
+   * Hook method called when the server has answered the session
+   * request of a new connection. The default implementation does
+   * nothing.
+   *
+   * @param resumed true if the previous session was resumed, so the
+   *        client is still logged in; false if a new session started
+   *        and the client must log in.
+   */
+  protected void sessionGranted(boolean resumed) {}
+
+  /**
+   * Handles a message sent from the server to this client.
+   * This MUST be implemented by subclasses, who should respond to
+   * messages.
+   *
+   * @param msg   the message sent.
+   */
+  protected abstract void handleMessageFromServer(Object msg);
+
+  /**
+   * Handles a chunk of a stream the server opened with
+   * <code>ConnectionToClient.openStream</code>. The chunks of a stream
+   * arrive in order, possibly between other messages, and are not kept
+   * by the client. The default implementation does nothing.<p>
+   *
+   * A stream whose server side failed, or whose connection was lost
+   * within a resumable session, ends with a null chunk. A stream cut by
+   * the loss of a connection without a session simply stops.
+   *
+   * @param header the header given by the server when opening it.
+   * @param data   the data of the chunk, possibly empty; null if the
+   *               stream was aborted.
+   * @param last   true for the last chunk of the stream.
+   */
+  protected void handleStreamFromServer(Object header, byte[] data,
+    boolean last) {}
+
+  /**
+   * Hook method called when the server offers a file. Returning a file
+   * takes the offer: the data is written to it as it arrives, after the
+   * data the file already holds, so that a transfer left unfinished,
+   * e.g. by a lost connection or a restart of the client, is resumed
+   * where it stopped. The default implementation declines the offer.
+   *
+   * @param offer the offer, whose name must not be trusted as a path.
+   * @return the file to write, or null to decline the offer.
+   */
+  protected Path fileOffered(FileOffer offer)
+  {
+    return null;
+  }
+
+  /**
+   * Hook method called as the data of a file taken arrives, once per
+   * frame of <code>Chunk.SIZE</code> bytes. The default implementation
+   * does nothing.
+   *
+   * @param offer    the offer.
+   * @param received how much of the file was received, in bytes.
+   */
+  protected void fileProgress(FileOffer offer, long received) {}
+
+  /**
+   * Hook method called when the transfer of a file taken ends: when the
+   * whole file was received, or when the offer was withdrawn, the file
+   * could not be written, or the connection was closed. The default
+   * implementation does nothing.
+   *
+   * @param offer    the offer.
+   * @param file     the file written.
+   * @param complete true if the whole file was received.
+   */
+  protected void fileReceived(FileOffer offer, Path file, boolean complete) {}
+
+
+// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+  /**
+   * @return the compression offered on the current connection, with
+   *         which the event loop decompresses the frames read.
+   */
+  Compression getOfferedCompression()
+  {
+    return offered;
+  }
+
+  /**
+   * Called by the event loop once the connection is registered.
+   */
+  void channelOpened(NonBlockingConnection connection)
+  {
+    if (connection != channel)
+      return;
+
+    dispatcher = Thread.currentThread();
+    try
+    {
+      connectionEstablished();
+      if (!sessionResume)
+        sendHeld();
+    }
+    catch (Exception exception)
+    {
+      connectionLost(null, exception);
+    }
+    finally
+    {
+      dispatcher = null;
+    }
+  }
+
+  /**
+   * Called by the event loop for each message read.
+   */
+  void channelRead(NonBlockingConnection connection, Object msg)
+  {
+    if (connection != channel || readyToStop)
+      return;
+
+    dispatcher = Thread.currentThread();
+    try
+    {
+      dispatch(msg);
+    }
+    catch (Exception exception)
+    {
+      connectionLost(null, exception);
+    }
+    finally
+    {
+      dispatcher = null;
+    }
+  }
+
+  /**
+   * Called by the event loop when the connection fails.
+   */
+  void channelFailed(NonBlockingConnection connection, Exception exception)
+  {
+    if (connection == channel)
+      connectionLost(null, exception);
+  }
+
+  /**
+   * Handles a message from the server: the session control messages
+   * are handled here, the others are passed to
+   * <code>handleMessageFromServer()</code>.
+   *
+   * @exception IOException if an I/O error occurs when answering, or
+   *    if a chunked message is too large.
+   * @exception ClassNotFoundException if the class of a chunked message
+   *    is not found.
+   */
+  private void dispatch(Object msg)
+    throws IOException, ClassNotFoundException
+  {
+    if (msg instanceof FileData)
+    {
+      receive((FileData)msg);  // Not part of the session
+      return;
+    }
+    if (msg instanceof CompressionOffer)
+    {
+      Compression current = offered;
+      if (current != null && current.getDictionaryId()
+        == ((CompressionOffer)msg).getDictionaryId())
+        negotiated = current;
+      return;
+    }
+    if (msg instanceof SessionGrant)
+    {
+      SessionGrant grant = (SessionGrant)msg;
+      startSession(grant);
+      sessionGranted(grant.isResumed());
+      sendHeld();
+      return;
+    }
+    if (resuming)
+      return;  // Broadcast before the resume, and replayed after it
+    if (msg instanceof Ack)
+    {
+      synchronized (unacknowledged)
+      {
+        acknowledge(((Ack)msg).getSequence());
+        sendOverflow();
+
+        // The server is waiting for room in its window too
+        if (receivedSinceAck > 0)
+        {
+          receivedSinceAck = 0;
+          write(new Ack(lastReceived));
+        }
+      }
+      return;
+    }
+    if (msg instanceof Sequenced)
+    {
+      if (!receive((Sequenced)msg))
+        return;  // Already received before the reconnection
+      msg = ((Sequenced)msg).getMessage();
+    }
+    if (msg instanceof Chunk)
+    {
+      msg = receive((Chunk)msg);
+      if (msg == null)
+        return;  // More to come, or data of a stream
+    }
+    if (msg instanceof Batch)
+    {
+      for (Object batched : ((Batch)msg).getMessages())
+      {
+        dispatch(batched);  // Sent together, handled as if one by one
+      }
+      return;
+    }
+    if (msg instanceof FileOffer)
+    {
+      receive((FileOffer)msg);
+      return;
+    }
+    if (msg instanceof Reply)
+    {
+      CompletableFuture<Object> reply =
+        pendingRequests.remove(((Reply)msg).getId());
+      if (reply != null)  // Otherwise timed out already
+        reply.complete(((Reply)msg).getMessage());
+      return;
+    }
+
+    // Concrete subclasses do what they want with the
+    // msg by implementing the following method
+    handleMessageFromServer(msg);
+  }
+
+  /**
+   * Closes a connection that failed, unless it was being closed, and
+   * calls connectionException().
+   *
+   * @param lostReader the reader thread of the connection, if any.
+   */
+  private void connectionLost(Thread lostReader, Exception exception)
+  {
+    if (readyToStop)
+      return;
+
+    try
+    {
+      closeAll();
+    }
+    catch (Exception ex) { }
+
+    // The requests can only be answered in a resumed session
+    if (sessionToken == null)
+      failRequests(exception);
+
+    // The files being received are resumed once reconnected
+    if (reconnectDelay > 0)
+      startReconnecting(lostReader);
+    else
+    {
+      for (InboundFile file : files.values())
+      {
+        endFile(file, false);
+      }
+    }
+
+    // The senders waiting for room hold their message, or fail
+    synchronized (unacknowledged)
+    {
+      unacknowledged.notifyAll();
+    }
+    connectionException(exception);
+  }
+
+  /**
+   * Adds a message to the batch, or writes it if the messages are not
+   * batched. Called with the unacknowledged lock held.
+   */
+  private void queue(Object msg) throws IOException
+  {
+    if (maxBatchSize <= 1)
+    {
+      write(msg);
+      return;
+    }
+
+    batch.add(msg);
+    if (batch.size() >= maxBatchSize)
+      flushBatch();
+    else if (batch.size() == 1)
+      getBatchFlusher().schedule(this::flushBatchLater, maxBatchDelay,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Writes the batch once its delay is over, unless it was already sent.
+   */
+  private void flushBatchLater()
+  {
+    try
+    {
+      synchronized (unacknowledged)
+      {
+        flushBatch();
+      }
+    }
+    catch (IOException e)
+    {
+      writeFailed();  // Without the lock, since the loss may reconnect
+    }
+  }
+
+  /**
+   * Writes the messages waiting in the batch, as one frame. Called
+   * with the unacknowledged lock held.
+   */
+  private void flushBatch() throws IOException
+  {
+    if (batch.isEmpty())
+      return;
+
+    Object frame = batch.size() == 1 ? batch.get(0)
+      : new Batch(batch.toArray());
+    batch.clear();
+    writeFrame(frame);
+  }
+
+  /**
+   * Closes the socket after a write made outside of sendToServer()
+   * failed, so that the connection is handled as lost.
+   */
+  private void writeFailed()
+  {
+    NonBlockingConnection current = channel;
+    if (current != null)
+    {
+      channelFailed(current, new IOException("write failed"));
+      return;
+    }
+
+    Socket socket = clientSocket;
+    Closeable local = clientChannel;
+    try
+    {
+      if (socket != null)
+        socket.close();  // The reader thread handles the loss
+      if (local != null)
+        local.close();
+    }
+    catch (IOException e) {}
+  }
+
+  /**
+   * @return the thread that flushes the batches of every client.
+   */
+  private static synchronized ScheduledExecutorService getBatchFlusher()
+  {
+    if (batchFlusher == null)
+    {
+      batchFlusher = Executors.newSingleThreadScheduledExecutor(task ->
+      {
+        Thread thread = new Thread(task, "AbstractClient batch flusher");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return batchFlusher;
+  }
+
+  /**
+   * Writes a frame to the server, after the messages waiting in the
+   * batch. Called with the unacknowledged lock held.
+   */
+  private void write(Object msg) throws IOException
+  {
+    flushBatch();
+    writeFrame(msg);
+  }
+
+  /**
+   * Writes one frame to the server: hands it to the non-blocking
+   * connection, or queues it for the writer thread.
+   */
+  private void writeFrame(Object msg) throws IOException
+  {
+    Compression compressing = negotiated;
+    ByteBuffer frame = compressing == null ? FrameCodec.encode(msg)
+      : FrameCodec.encode(msg, Lane.NORMAL, compressing);
+    NonBlockingConnection current = channel;
+    if (current != null)
+    {
+      current.send(frame);
+      return;
+    }
+
+    synchronized (outbound)
+    {
+      if (output == null)
+        throw new SocketException("socket does not exist");
+      outbound.add(frame);
+      outboundBytes += frame.remaining();
+      if (outbound.size() == 1)
+        outbound.notifyAll();  // The writer thread waits for it
+    }
+  }
+
+  /**
+   * Writes the frames queued for the server until the connection
+   * closes, flushing the stream whenever none is left. Run by the
+   * writer thread of each connection.
+   *
+   * @param out the stream of the connection.
+   */
+  private void writeFrames(DataOutputStream out)
+  {
+    try
+    {
+      while (true)
+      {
+        ByteBuffer frame;
+        synchronized (outbound)
+        {
+          if (outbound.isEmpty() && !outboundFlushed)
+            frame = null;  // Flush first
+          else
+          {
+            if (outbound.isEmpty())
+              outbound.notifyAll();  // Everything written
+
+            while (outbound.isEmpty() && output == out)
+            {
+              outbound.wait();
+            }
+            if (output != out)
+              return;  // Closed; what is left goes with the connection
+
+            frame = outbound.poll();
+            if (outboundBytes >= NonBlockingConnection.MAX_PENDING_BYTES
+              && outboundBytes - frame.remaining()
+                < NonBlockingConnection.MAX_PENDING_BYTES)
+              outbound.notifyAll();  // Room for the senders waiting
+            outboundBytes -= frame.remaining();
+            outboundFlushed = false;
+          }
+        }
+
+        if (frame != null)
+        {
+          out.write(frame.array(), frame.arrayOffset() + frame.position(),
+            frame.remaining());
+          continue;
+        }
+        out.flush();
+        synchronized (outbound)
+        {
+          outboundFlushed = true;
+        }
+      }
+    }
+    catch (IOException e)
+    {
+      boolean current;
+      synchronized (outbound)
+      {
+        current = output == out;
+      }
+      if (current)
+        writeFailed();  // The reader thread handles the loss
+    }
+    catch (InterruptedException e) {}
+  }
+
+  /**
+   * Waits, up to <code>CLOSE_LINGER</code> ms, for the writer thread to
+   * write and flush the frames queued.
+   */
+  private void awaitFlushed()
+  {
+    synchronized (outbound)
+    {
+      long deadline = System.currentTimeMillis() + CLOSE_LINGER;
+      long left;
+      try
+      {
+        while ((!outbound.isEmpty() || !outboundFlushed) && output != null
+          && (left = deadline - System.currentTimeMillis()) > 0)
+        {
+          outbound.wait(left);
+        }
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Closes all aspects of the connection to the server.
+   *
+   * @exception IOException if an I/O error occurs when closing.
+   */
+  private void closeAll() throws IOException
+  {
+    synchronized (unacknowledged)
+    {
+      batch.clear();  // Resent with the session, if any
+    }
+
+    // Stops the writer thread; the frames it did not write are resent
+    // with the session, if any
+    DataOutputStream out;
+    synchronized (outbound)
+    {
+      out = output;
+      output = null;
+      outbound.clear();
+      outboundBytes = 0;
+      outboundFlushed = true;
+      outbound.notifyAll();
+    }
+
+    NonBlockingConnection current = channel;
+    channel = null;
+    try
+    {
+      if (current != null)
+        current.close();
+
+      //Close the socket
+      if (clientSocket != null)
+        clientSocket.close();
+      if (clientChannel != null)
+        clientChannel.close();
+
+      //Close the output stream
+      if (out != null)
+        out.close();
+
+      //Close the input stream
+      if (input != null)
+        input.close();
+    }
+    finally
+    {
+      // Set the streams and the sockets to NULL no matter what
+      // Doing so allows, but does not require, any finalizers
+      // of these objects to reclaim system resources if and
+      // when they are garbage collected.
+      input = null;
+      clientSocket = null;
+      clientChannel = null;
+    }
+  }
+
+  /**
+   * Starts holding the messages sent and a thread that reconnects.
+   */
+  private void startReconnecting(Thread lostReader)
+  {
+    synchronized (unacknowledged)
+    {
+      if (held == null)
+        held = new ArrayDeque<>();
+    }
+
+    long lostAt = System.currentTimeMillis();
+    Thread thread = new Thread(() -> reconnect(lostReader, lostAt),
+      "AbstractClient reconnect");
+    thread.setDaemon(true);
+    synchronized (connecting)
+    {
+      reconnector = thread;
+      thread.start();
+    }
+  }
+
+  /**
+   * Attempts to reconnect, with an exponential and randomized backoff,
+   * until it succeeds or closeConnection() is called.
+   */
+  private void reconnect(Thread lostReader, long lostAt)
+  {
+    long delay = reconnectDelay;
+    try
+    {
+      if (lostReader != null)
+        lostReader.join();  // Still calling connectionException()
+
+      while (true)
+      {
+        // Wait between half the delay and the whole delay
+        Thread.sleep(delay / 2
+          + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+
+        synchronized (connecting)
+        {
+          if (reconnector != Thread.currentThread())
+            return;  // Closed meanwhile
+
+          reconnectAttempts++;
+          try
+          {
+            if (!isConnected())
+              connect();
+            reconnects++;
+            lastReconnectLatency = System.currentTimeMillis() - lostAt;
+            reconnector = null;
+            return;
+          }
+          catch (IOException e)
+          {
+            delay = Math.min(delay * 2, Math.max(RECONNECT_MAX_DELAY,
+              reconnectDelay));
+          }
+        }
+      }
+    }
+    catch (InterruptedException e) {}
+  }
+
+  /**
+   * Sends the messages held while reconnecting, ahead of any other.
+   */
+  private void sendHeld() throws IOException
+  {
+    synchronized (unacknowledged)
+    {
+      if (held == null)
+        return;
+
+      // Already accepted, so queued whatever the room in the window
+      while (!held.isEmpty())
+      {
+        if (isWindowFull())
+          overflow.add(held.peek());
+        else
+          send(held.peek());
+        held.poll();
+      }
+      held = null;
+    }
+  }
+
+  /**
+   * Fails every request waiting for its reply.
+   */
+  private void failRequests(Exception exception)
+  {
+    for (Long id : pendingRequests.keySet())
+    {
+      CompletableFuture<Object> reply = pendingRequests.remove(id);
+      if (reply != null)
+        reply.completeExceptionally(exception);
+    }
+  }
+
+  /**
+   * Starts the session granted by the server. When the previous session
+   * was resumed, retransmits the messages the server did not receive;
+   * otherwise forgets everything about the previous session and fails
+   * the requests sent in it.
+   *
+   * @exception IOException if an I/O error occurs when retransmitting.
+   */
+  private void startSession(SessionGrant grant) throws IOException
+  {
+    synchronized (unacknowledged)
+    {
+      boolean lost = sessionToken != null && !grant.isResumed();
+      sessionToken = grant.getToken();
+      resuming = false;
+      if (!grant.isResumed())
+      {
+        resetSession();
+        if (lost)  // Nothing sent in the previous session will be answered
+          failRequests(new IOException("session expired"));
+        return;
+      }
+
+      acknowledge(grant.getLastReceived());
+      for (long seq = lastAcknowledged + 1; seq <= lastSent; seq++)
+      {
+        write(unacknowledged[(int)(seq % RETRANSMIT_WINDOW)]);
+      }
+      sendOverflow();
+    }
+  }
+
+  /**
+   * Records a message received in the session, acknowledging it when
+   * <code>Ack.INTERVAL</code> messages have gone unacknowledged.
+   *
+   * @return false if the message was already received.
+   * @exception IOException if an I/O error occurs when acknowledging.
+   */
+  private boolean receive(Sequenced sequenced) throws IOException
+  {
+    synchronized (unacknowledged)
+    {
+      acknowledge(sequenced.getAck());
+      sendOverflow();
+      if (sequenced.getSequence() <= lastReceived)
+        return false;
+
+      lastReceived = sequenced.getSequence();
+      if (++receivedSinceAck >= Ack.INTERVAL)
+      {
+        receivedSinceAck = 0;
+        write(new Ack(lastReceived));
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Releases the messages acknowledged by the server, and wakes up the
+   * senders waiting for room in the retransmit window.
+   */
+  private void acknowledge(long sequence)
+  {
+    if (sequence > lastSent || sequence <= lastAcknowledged)
+      return;  // Belongs to another session, or nothing new
+
+    for (; lastAcknowledged < sequence; lastAcknowledged++)
+    {
+      unacknowledged[(int)((lastAcknowledged + 1) % RETRANSMIT_WINDOW)] = null;
+    }
+    unacknowledged.notifyAll();
+  }
+
+  /**
+   * Handles a chunk: hands the data of a stream to
+   * handleStreamFromServer(), or adds it to its message.
+   *
+   * @return the message, once its last chunk is received; null
+   *         otherwise.
+   */
+  private Object receive(Chunk chunk)
+    throws IOException, ClassNotFoundException
+  {
+    Long id = chunk.getStream();
+    InboundStream stream = inbound.get(id);
+    if (stream == null)
+    {
+      stream = new InboundStream(chunk.getHeader());
+      inbound.put(id, stream);
+    }
+    if (chunk.isLast())
+      inbound.remove(id);
+
+    if (stream.header != null)
+    {
+      handleStreamFromServer(stream.header, chunk.getData(), chunk.isLast());
+      return null;
+    }
+    if (chunk.isAborted())
+      return null;
+
+    stream.size += chunk.getData().length;
+    if (stream.size > maxMessageSize)
+      throw new StreamCorruptedException("message from the server exceeds "
+        + maxMessageSize + " bytes");
+    stream.parts.add(new ByteArrayInputStream(chunk.getData()));
+    if (!chunk.isLast())
+      return null;
+
+    // Read from the chunks, without copying them into one array
+    return FrameCodec.readObject(
+      new SequenceInputStream(Collections.enumeration(stream.parts)),
+      messageFilter);
+  }
+
+  /**
+   * Takes a file offered by the server if fileOffered() returns where
+   * to write it, asking for the data the file does not hold yet; or
+   * ends the transfer of an offer withdrawn.
+   */
+  private void receive(FileOffer offer) throws IOException
+  {
+    if (offer.isWithdrawn())
+    {
+      InboundFile file = files.get(offer.getId());
+      if (file != null)
+        endFile(file, false);
+      return;
+    }
+    if (files.containsKey(offer.getId()))
+      return;  // Offered again, e.g. replayed with the session
+
+    Path path = fileOffered(offer);
+    if (path == null)
+      return;
+    InboundFile file;
+    try
+    {
+      file = new InboundFile(offer, path);
+    }
+    catch (IOException ex)
+    {
+      fileReceived(offer, path, false);
+      return;
+    }
+
+    files.put(offer.getId(), file);
+    if (file.received == offer.getSize())
+    {
+      endFile(file, true);  // Already there
+      return;
+    }
+    synchronized (unacknowledged)
+    {
+      write(new FileRequest(offer.getId(), file.received));
+    }
+  }
+
+  /**
+   * Writes the data of a file being received to the file. The data of
+   * a file no longer being received, or already written before the
+   * connection was lost, is dropped.
+   */
+  private void receive(FileData data)
+  {
+    InboundFile file = files.get(data.getId());
+    if (file == null || data.getOffset() != file.received)
+      return;
+
+    try
+    {
+      file.write(data);
+    }
+    catch (IOException ex)
+    {
+      endFile(file, false);
+      return;
+    }
+    fileProgress(file.offer, file.received);
+    if (file.received == file.offer.getSize())
+      endFile(file, true);
+  }
+
+  /**
+   * Closes a file being received, and calls fileReceived().
+   */
+  private void endFile(InboundFile file, boolean complete)
+  {
+    if (files.remove(file.offer.getId(), file))
+    {
+      file.close();
+      fileReceived(file.offer, file.path, complete);
+    }
+  }
+
+  /**
+   * Forgets the sequence numbers and the unacknowledged messages of the
+   * previous session, and the chunked messages it was receiving.
+   */
+  private void resetSession()
+  {
+    inbound.clear();
+    Arrays.fill(unacknowledged, null);
+    overflow.clear();
+    unacknowledged.notifyAll();
+    lastReceived = 0;
+    lastSent = 0;
+    lastAcknowledged = 0;
+    receivedSinceAck = 0;
+  }
+
+// NESTED CLASSES ---------------------------------------------------
+
+  /**
+   * A chunked message or a stream being received.
+   */
+  private static class InboundStream
+  {
+    /**
+     * The header of a stream; null for a message.
+     */
+    final Object header;
+
+    /**
+     * The chunks of a message received so far.
+     */
+    final List<InputStream> parts = new ArrayList<>();
+
+    long size = 0;
+
+    InboundStream(Object header)
+    {
+      this.header = header;
+    }
+  }
+
+  /**
+   * A file being received.
+   */
+  private static class InboundFile
+  {
+    final FileOffer offer;
+
+    final Path path;
+
+    private final FileChannel channel;
+
+    /**
+     * How much of the file was written, from its start.
+     */
+    volatile long received;
+
+    /**
+     * Opens the file, keeping the data it holds; data beyond the size
+     * of the file offered is cut off.
+     */
+    InboundFile(FileOffer offer, Path path) throws IOException
+    {
+      this.offer = offer;
+      this.path = path;
+      channel = FileChannel.open(path, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE);
+      if (channel.size() > offer.getSize())
+        channel.truncate(offer.getSize());
+      received = channel.size();
+    }
+
+    /**
+     * Writes data that follows what was received.
+     */
+    void write(FileData data) throws IOException
+    {
+      ByteBuffer buffer = data.getData();
+      if (received + buffer.remaining() > offer.getSize())
+        throw new IOException("data beyond the end of " + offer.getName());
+      long position = data.getOffset();
+      while (buffer.hasRemaining())
+      {
+        position += channel.write(buffer, position);
+      }
+      received = position;
+    }
+
+    void close()
+    {
+      try
+      {
+        channel.close();
+      }
+      catch (IOException ex) {}
+    }
+  }
+}
+// end of AbstractClient class
@@ -6,7 +6,9 @@ package ocsf.client;
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.Path;
 import java.util.*;
+import ocsf.protocol.FileOffer;
 
 /**
  * The <code> AdaptableClient </code> is a class
@@ -70,6 +72,17 @@ class AdaptableClient extends AbstractClient
         client.connectionEstablished();
     }
 
+    /**
+     * Hook method called when the server has answered the session
+     * request of a new connection.
+     *
+     * @param resumed true if the previous session was resumed.
+     */
+    final protected void sessionGranted(boolean resumed)
+    {
+        client.sessionGranted(resumed);
+    }
+
     /**
      * Handles a message sent from the server to this client.
      *
@@ -79,4 +92,38 @@ class AdaptableClient extends AbstractClient
     {
         client.handleMessageFromServer(msg);
     }
+
+    /**
+     * Hook method called when the server offers a file.
+     *
+     * @param offer the offer.
+     * @return the file to write, or null to decline the offer.
+     */
+    final protected Path fileOffered(FileOffer offer)
+    {
+        return client.fileOffered(offer);
+    }
+
+    /**
+     * Hook method called as the data of a file taken arrives.
+     *
+     * @param offer    the offer.
+     * @param received how much of the file was received, in bytes.
+     */
+    final protected void fileProgress(FileOffer offer, long received)
+    {
+        client.fileProgress(offer, received);
+    }
+
+    /**
+     * Hook method called when the transfer of a file taken ends.
+     *
+     * @param offer    the offer.
+     * @param file     the file written.
+     * @param complete true if the whole file was received.
+     */
+    final protected void fileReceived(FileOffer offer, Path file, boolean complete)
+    {
+        client.fileReceived(offer, file, complete);
+    }
 }
@@ -0,0 +1,97 @@
+package ocsf.client;
+
+/**
+ * An event published by an <code>ObservableClient</code> to its
+ * subscribers. Replaces the <code>"#OC:..."</code> strings that were
+ * sent to observers.
+ *
+ * @see ocsf.client.ObservableClient#subscribe
+ */
+public class ClientEvent
+{
+  /**
+   * The kinds of events published by the client.
+   */
+  public enum Type
+  {
+    /** The connection to the server was established. */
+    CONNECTION_ESTABLISHED,
+    /** The connection to the server was closed. */
+    CONNECTION_CLOSED,
+    /** A new session was granted; the client must log in. */
+    SESSION_STARTED,
+    /** The previous session was resumed on a new connection. */
+    SESSION_RESUMED,
+    /** The connection failed with an exception. */
+    CONNECTION_EXCEPTION,
+    /** A message was received from the server. */
+    MESSAGE,
+    /** A file offered by the server was received whole. */
+    FILE_RECEIVED
+  }
+
+  private final Type type;
+
+  /**
+   * The message received, for <code>MESSAGE</code> events, or the path
+   * of the file, for <code>FILE_RECEIVED</code> events.
+   */
+  private final Object message;
+
+  /**
+   * The exception raised, for <code>CONNECTION_EXCEPTION</code> events.
+   */
+  private final Exception exception;
+
+// Constructor ***************************************************************
+
+  /**
+   * Constructs an event.
+   *
+   * @param type      the kind of event.
+   * @param message   the message received, or null.
+   * @param exception the exception raised, or null.
+   */
+  public ClientEvent(Type type, Object message, Exception exception)
+  {
+    this.type = type;
+    this.message = message;
+    this.exception = exception;
+  }
+
+// Accessor methods *********************************************************
+
+  /**
+   * @return the kind of event.
+   */
+  public Type getType()
+  {
+    return type;
+  }
+
+  /**
+   * @return the message received, the path of the file received for a
+   * <code>FILE_RECEIVED</code> event, or null.
+   */
+  public Object getMessage()
+  {
+    return message;
+  }
+
+  /**
+   * @return the exception raised, or null.
+   */
+  public Exception getException()
+  {
+    return exception;
+  }
+
+  /**
+   * @return a description of the event.
+   */
+  public String toString()
+  {
+    return type + (message == null ? "" : ": " + message)
+      + (exception == null ? "" : ": " + exception.getMessage());
+  }
+}
@@ -0,0 +1,209 @@
+package ocsf.client;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives the connections of many clients over non-blocking channels
+ * with a few threads, instead of a reader thread per client. Each
+ * thread owns a selector; a client given the event loop with
+ * <code>AbstractClient.setEventLoop</code> has its next connections
+ * assigned to the threads in turn.<p>
+ *
+ * The hook methods of the clients, such as
+ * <code>handleMessageFromServer</code>, are called from the thread
+ * that owns the connection. They should not block, since every other
+ * client of that thread waits meanwhile. Sending to the server never
+ * blocks: what the channel cannot take at once is written when it is
+ * writable again.
+ *
+ * @see ocsf.client.AbstractClient#setEventLoop(ClientEventLoop)
+ */
+public class ClientEventLoop
+{
+  // Instance variables **********************************************
+
+  private final Worker[] workers;
+
+  /**
+   * The worker the next connection is assigned to.
+   */
+  private final AtomicInteger next = new AtomicInteger();
+
+  private final AtomicInteger connections = new AtomicInteger();
+
+  private volatile boolean running = true;
+
+  // Constructors ****************************************************
+
+  /**
+   * Constructs an event loop with a thread per processor.
+   *
+   * @exception IOException if a selector cannot be opened.
+   */
+  public ClientEventLoop() throws IOException
+  {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Constructs an event loop.
+   *
+   * @param threads the number of threads.
+   * @exception IOException if a selector cannot be opened.
+   */
+  public ClientEventLoop(int threads) throws IOException
+  {
+    workers = new Worker[threads];
+    for (int i = 0; i < threads; i++)
+    {
+      workers[i] = new Worker(i);
+    }
+    for (Worker worker : workers)
+    {
+      worker.thread.start();
+    }
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * Stops the threads and closes every connection they drive; the
+   * clients get a connectionException().
+   */
+  public void close()
+  {
+    running = false;
+    for (Worker worker : workers)
+    {
+      worker.selector.wakeup();
+    }
+  }
+
+  /**
+   * @return the number of connections driven by the event loop.
+   */
+  public int getConnectionCount()
+  {
+    return connections.get();
+  }
+
+// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+  /**
+   * Assigns a new connection to one of the threads.
+   *
+   * @exception IOException if the event loop is closed.
+   */
+  void register(NonBlockingConnection connection) throws IOException
+  {
+    if (!running)
+      throw new IOException("event loop closed");
+
+    Worker worker = workers[Math.floorMod(next.getAndIncrement(),
+      workers.length)];
+    worker.registrations.add(connection);
+    worker.selector.wakeup();
+  }
+
+// NESTED CLASSES ---------------------------------------------------
+
+  /**
+   * One thread and its selector.
+   */
+  private class Worker implements Runnable
+  {
+    final Selector selector;
+
+    final Thread thread;
+
+    /**
+     * The connections waiting to be registered with the selector.
+     */
+    final ConcurrentLinkedQueue<NonBlockingConnection> registrations =
+      new ConcurrentLinkedQueue<>();
+
+    Worker(int index) throws IOException
+    {
+      selector = Selector.open();
+      thread = new Thread(this, "ClientEventLoop-" + index);
+      thread.setDaemon(true);
+    }
+
+    public void run()
+    {
+      while (running)
+      {
+        try
+        {
+          selector.select();
+        }
+        catch (IOException e)
+        {
+          break;
+        }
+
+        NonBlockingConnection connection;
+        while ((connection = registrations.poll()) != null)
+        {
+          try
+          {
+            connection.register(selector, connections);
+            connection.opened();
+          }
+          catch (IOException e)
+          {
+            connection.failed(e);
+          }
+        }
+
+        for (SelectionKey key : selector.selectedKeys())
+        {
+          handle(key);
+        }
+        selector.selectedKeys().clear();
+      }
+
+      // Closed: fail what is left
+      IOException closed = new IOException("event loop closed");
+      NonBlockingConnection connection;
+      while ((connection = registrations.poll()) != null)
+      {
+        connection.failed(closed);
+      }
+      for (SelectionKey key : selector.keys())
+      {
+        ((NonBlockingConnection)key.attachment()).failed(closed);
+      }
+      try
+      {
+        selector.close();
+      }
+      catch (IOException e) {}
+    }
+
+    /**
+     * Reads or writes what a ready connection allows.
+     */
+    private void handle(SelectionKey key)
+    {
+      NonBlockingConnection connection =
+        (NonBlockingConnection)key.attachment();
+      try
+      {
+        if (key.isReadable())
+          connection.read();
+        if (key.isValid() && key.isWritable())
+          connection.flush();
+      }
+      catch (CancelledKeyException e) {}  // Closed by its client
+      catch (Exception e)
+      {
+        connection.failed(e);
+      }
+    }
+  }
+}
+// End of ClientEventLoop class
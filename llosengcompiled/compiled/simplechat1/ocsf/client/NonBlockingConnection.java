@@ -0,0 +1,301 @@
+package ocsf.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ocsf.protocol.FrameCodec;
+import ocsf.protocol.TlsEngine;
+
+/**
+ * The connection of a client driven by a <code>ClientEventLoop</code>.
+ * It reassembles the frames read from its channel and passes their
+ * messages to its client, and queues the frames that cannot be written
+ * at once until the channel is writable again. Over TLS, it drives the
+ * handshake as the channel is ready, and holds the frames sent until
+ * the handshake completes.
+ */
+class NonBlockingConnection
+{
+  // Class variables *************************************************
+
+  /**
+   * Initial size of the read buffer. It grows to hold larger frames.
+   */
+  static final int READ_BUFFER_SIZE = 8192;
+
+  /**
+   * Maximum number of bytes waiting to be written. A client that sends
+   * faster than the server reads gets an <code>IOException</code>
+   * instead of filling the memory.
+   */
+  static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+  // Instance variables **********************************************
+
+  private final AbstractClient client;
+
+  private final SocketChannel socket;
+
+  /**
+   * The TLS side of the connection, or null if it is not encrypted.
+   */
+  private final TlsEngine tls;
+
+  /**
+   * Records read and not yet unwrapped, over TLS. Only used by the event
+   * loop.
+   */
+  private ByteBuffer net;
+
+  /**
+   * Frames sent before the TLS handshake completed. Guarded by this.
+   */
+  private final ArrayDeque<ByteBuffer> held = new ArrayDeque<>();
+
+  /**
+   * The registration with the selector of the event loop; null until
+   * registered. Guarded by this.
+   */
+  private SelectionKey key;
+
+  /**
+   * Bytes read and not yet decoded. Only used by the event loop.
+   */
+  private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+  /**
+   * Frames waiting to be written. Guarded by this.
+   */
+  private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+
+  private int pendingBytes = 0;
+
+  /**
+   * The count of open connections of the event loop, once registered.
+   * Guarded by this.
+   */
+  private AtomicInteger openCount;
+
+  // Constructor *****************************************************
+
+  NonBlockingConnection(AbstractClient client, SocketChannel socket,
+    TlsEngine tls) throws IOException
+  {
+    this.client = client;
+    this.socket = socket;
+    this.tls = tls;
+    if (tls != null)
+      net = ByteBuffer.allocate(tls.getPacketSize());
+    socket.configureBlocking(false);
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * Writes a frame, or queues it if the channel cannot take it all.
+   *
+   * @exception IOException if the channel fails or too many bytes are
+   *    waiting to be written.
+   */
+  synchronized void send(ByteBuffer frame) throws IOException
+  {
+    if (tls != null)
+    {
+      if (tls.isHandshaking() || !held.isEmpty())
+      {
+        if (pendingBytes + frame.remaining() > MAX_PENDING_BYTES)
+          throw new IOException("send buffer full");
+        held.add(frame);
+        pendingBytes += frame.remaining();
+        return;
+      }
+      frame = tls.wrap(frame);
+    }
+    queue(frame);
+  }
+
+  /**
+   * Writes bytes, or queues them if the channel cannot take them all.
+   */
+  private void queue(ByteBuffer frame) throws IOException
+  {
+    if (out.isEmpty())
+    {
+      socket.write(frame);
+      if (!frame.hasRemaining())
+        return;
+    }
+
+    else if (pendingBytes + frame.remaining() > MAX_PENDING_BYTES)
+      throw new IOException("send buffer full");
+    out.add(frame);
+    pendingBytes += frame.remaining();
+    if (out.size() == 1 && key != null)
+    {
+      key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      key.selector().wakeup();
+    }
+  }
+
+  boolean isOpen()
+  {
+    return socket.isOpen();
+  }
+
+  synchronized void close() throws IOException
+  {
+    if (openCount != null)
+    {
+      openCount.decrementAndGet();
+      openCount = null;
+    }
+    socket.close();
+  }
+
+// METHODS TO BE USED FROM THE EVENT LOOP ONLY ----------------------
+
+  /**
+   * Registers the channel with a selector of the event loop and counts
+   * it as open until it is closed.
+   */
+  synchronized void register(Selector selector, AtomicInteger openCount)
+    throws IOException
+  {
+    key = socket.register(selector, out.isEmpty() ? SelectionKey.OP_READ
+      : SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
+    openCount.incrementAndGet();
+    this.openCount = openCount;
+
+    // The client speaks first
+    if (tls != null)
+    {
+      tls.beginHandshake();
+      queue(tls.wrap(ByteBuffer.allocate(0)));
+    }
+  }
+
+  void opened()
+  {
+    client.channelOpened(this);
+  }
+
+  void failed(Exception exception)
+  {
+    if (tls != null && exception instanceof IOException)
+      tls.fail((IOException)exception);
+    try
+    {
+      close();
+    }
+    catch (IOException e) {}
+    client.channelFailed(this, exception);
+  }
+
+  /**
+   * Reads what the channel has and passes every complete frame to the
+   * client.
+   */
+  void read() throws IOException, ClassNotFoundException
+  {
+    if (tls != null)
+      readRecords();
+    else if (socket.read(in) < 0)
+      throw new EOFException();
+
+    in.flip();
+    while (in.remaining() >= FrameCodec.HEADER_SIZE)
+    {
+      int length = in.getInt(in.position());
+      FrameCodec.checkHeader(length, in.get(in.position() + 4));
+      if (in.remaining() < FrameCodec.HEADER_SIZE + length)
+        break;
+
+      byte flags = in.get(in.position() + 4);
+      in.position(in.position() + FrameCodec.HEADER_SIZE);
+      byte[] payload = new byte[length];
+      in.get(payload);
+      client.channelRead(this, FrameCodec.decode(payload, flags,
+        FrameCodec.MAX_FRAME_SIZE, client.getMessageFilter(),
+        client.getOfferedCompression()));
+    }
+    in.compact();
+
+    // Make room for a frame larger than the buffer
+    if (in.position() >= FrameCodec.HEADER_SIZE)
+    {
+      int needed = FrameCodec.HEADER_SIZE + in.getInt(0);
+      if (needed > in.capacity())
+      {
+        in.flip();
+        in = ByteBuffer.allocate(needed).put(in);
+      }
+    }
+  }
+
+  /**
+   * Reads the records the channel has and unwraps them, sending the
+   * records the handshake needs in reply. Once the handshake completes,
+   * sends the frames held until then.
+   */
+  private void readRecords() throws IOException
+  {
+    if (socket.read(net) < 0 || tls.isInboundDone())
+      throw new EOFException();
+
+    net.flip();
+    while (true)
+    {
+      in = tls.unwrap(net, in);
+      if (!tls.needsWrap())
+        break;
+      synchronized (this)
+      {
+        queue(tls.wrap(ByteBuffer.allocate(0)));
+      }
+    }
+    net.compact();
+
+    // Make room for a record larger than the buffer
+    if (!net.hasRemaining())
+    {
+      net.flip();
+      net = ByteBuffer.allocate(net.capacity() + tls.getPacketSize()).put(net);
+    }
+
+    synchronized (this)
+    {
+      if (!tls.isHandshaking())
+      {
+        ByteBuffer frame;
+        while ((frame = held.poll()) != null)
+        {
+          pendingBytes -= frame.remaining();
+          queue(tls.wrap(frame));
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the queued frames the channel can take.
+   */
+  synchronized void flush() throws IOException
+  {
+    while (!out.isEmpty())
+    {
+      ByteBuffer frame = out.peek();
+      int before = frame.remaining();
+      socket.write(frame);
+      pendingBytes -= before - frame.remaining();
+      if (frame.hasRemaining())
+        return;
+      out.poll();
+    }
+    key.interestOps(SelectionKey.OP_READ);
+  }
+}
+// End of NonBlockingConnection class
@@ -4,39 +4,31 @@
 
 package ocsf.client;
 
-import java.util.*;
 import java.io.*;
 import java.net.*;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import ocsf.event.*;
+import ocsf.protocol.Compression;
+import ocsf.protocol.FileOffer;
+import ocsf.protocol.MessageFilter;
+import ocsf.protocol.TlsContext;
 
 /**
  * This class acts as a subclass of <code>AbstractClient</code>
- * and is also an <code>Observable</code> class.
- * Each time a new message is received, observers are notified.
+ * and publishes a <code>ClientEvent</code> to its subscribers each
+ * time a message is received or the connection changes state.
+ * Events go through an <code>EventBus</code> instead of
+ * <code>java.util.Observable</code>, so publishing takes no lock.
  *
  * @author Dr Robert Lagani&egrave;re
  * @author Dr Timothy C. Lethbridge
  * @author Fran&ccedil;ois B&eacute;lange
  * @version Febuary 2001
+ * @see ocsf.client.ClientEvent
  */
-public class ObservableClient extends Observable
+public class ObservableClient
 {
-  // Class variables ***************************************************
-
-  /**
-   * Indicates occurence of a connection exception.
-   */
-  public static final String CONNECTION_EXCEPTION = "#OC:Connection error.";
-
-  /**
-   * Indicates a close of the connection to server.
-   */
-  public static final String CONNECTION_CLOSED = "#OC:Connection closed.";
-
-  /**
-   * Indicates establishment of a connection to server.
-   */
-  public static final String CONNECTION_ESTABLISHED = "#OC:Connection established.";
-
   //Instance variables **********************************************
 
   /**
@@ -44,6 +36,11 @@ public class ObservableClient extends Observable
    */
   private AdaptableClient service;
 
+  /**
+   * The bus on which client events are published.
+   */
+  private final EventBus<ClientEvent> events = new EventBus<>();
+
     /**
      * The client's loginId name.
      */
@@ -75,6 +72,48 @@ public class ObservableClient extends Observable
     service.closeConnection();
   }
 
+  /**
+   * Subscribes to the events of this client.
+   *
+   * @param subscriber the subscriber to add.
+   * @param delivery   whether the subscriber runs on the thread reading
+   *        from the server or on its own thread.
+   */
+  public void subscribe(EventSubscriber<? super ClientEvent> subscriber,
+    Delivery delivery)
+  {
+    events.subscribe(subscriber, delivery);
+  }
+
+  /**
+   * Subscribes to the events of this client through a bounded queue, so
+   * that a slow subscriber does not hold up the thread reading from the server
+   * unless the policy is <code>BLOCK</code>.
+   *
+   * @param subscriber the subscriber to add.
+   * @param capacity   the maximum number of events queued.
+   * @param maxBatch   the maximum number of events passed at once to
+   *        the subscriber's onEvents().
+   * @param policy     what to do with an event when the queue is full.
+   * @return the state of the queue, to watch the subscriber's lag.
+   * @see ocsf.event.EventBus#subscribe(EventSubscriber, int, int, OverflowPolicy)
+   */
+  public QueueStats subscribe(EventSubscriber<? super ClientEvent> subscriber,
+    int capacity, int maxBatch, OverflowPolicy policy)
+  {
+    return events.subscribe(subscriber, capacity, maxBatch, policy);
+  }
+
+  /**
+   * Stops a subscriber from receiving the events of this client.
+   *
+   * @param subscriber the subscriber to remove.
+   */
+  public void unsubscribe(EventSubscriber<? super ClientEvent> subscriber)
+  {
+    events.unsubscribe(subscriber);
+  }
+
   /**
    * Sends an object to the server. This is the only way that
    * methods should communicate with the server.
@@ -86,8 +125,221 @@ public class ObservableClient extends Observable
     service.sendToServer(msg);
   }
 
+  /**
+   * Sends a request to the server and returns its reply, to come.
+   *
+   * @see ocsf.client.AbstractClient#request(Object, long)
+   */
+  final public CompletableFuture<Object> request(Object msg, long timeout)
+  {
+    return service.request(msg, timeout);
+  }
+
+  /**
+   * Sends a request to the server and returns its reply, to come, with
+   * the default timeout.
+   *
+   * @see ocsf.client.AbstractClient#request(Object)
+   */
+  final public CompletableFuture<Object> request(Object msg)
+  {
+    return service.request(msg);
+  }
+
+  /**
+   * Lets an event loop drive the connections opened from now on.
+   *
+   * @see ocsf.client.AbstractClient#setEventLoop(ClientEventLoop)
+   */
+  final public void setEventLoop(ClientEventLoop eventLoop)
+  {
+    service.setEventLoop(eventLoop);
+  }
+
+  /**
+   * Asks the server for a resumable session on the next connections.
+   *
+   * @param sessionResume true to ask for a resumable session.
+   * @see ocsf.client.AbstractClient#setSessionResume(boolean)
+   */
+  final public void setSessionResume(boolean sessionResume)
+  {
+    service.setSessionResume(sessionResume);
+  }
+
+  /**
+   * Sets the size of the largest message accepted from the server.
+   *
+   * @param maxMessageSize the size, in bytes.
+   * @see ocsf.client.AbstractClient#setMaxMessageSize(int)
+   */
+  final public void setMaxMessageSize(int maxMessageSize)
+  {
+    service.setMaxMessageSize(maxMessageSize);
+  }
+
+  /**
+   * @return the size of the largest message accepted from the server,
+   *         in bytes.
+   */
+  final public int getMaxMessageSize()
+  {
+    return service.getMaxMessageSize();
+  }
+
+  /**
+   * Sets the policy applied to the messages read from the server.
+   *
+   * @param messageFilter the filter.
+   * @see ocsf.client.AbstractClient#setMessageFilter(MessageFilter)
+   */
+  final public void setMessageFilter(MessageFilter messageFilter)
+  {
+    service.setMessageFilter(messageFilter);
+  }
+
+  /**
+   * @return the policy applied to the messages read from the server.
+   */
+  final public MessageFilter getMessageFilter()
+  {
+    return service.getMessageFilter();
+  }
+
+  /**
+   * Encrypts the connections opened over TCP with TLS.
+   *
+   * @param tlsContext the TLS configuration; null for none.
+   * @see ocsf.client.AbstractClient#setTlsContext(TlsContext)
+   */
+  final public void setTlsContext(TlsContext tlsContext)
+  {
+    service.setTlsContext(tlsContext);
+  }
+
+  /**
+   * @return the TLS configuration of the connections over TCP, or null.
+   */
+  final public TlsContext getTlsContext()
+  {
+    return service.getTlsContext();
+  }
+
+  /**
+   * Offers compression to the server.
+   *
+   * @param compression the compression; null for none.
+   * @see ocsf.client.AbstractClient#setCompression(Compression)
+   */
+  final public void setCompression(Compression compression)
+  {
+    service.setCompression(compression);
+  }
+
+  /**
+   * @return the compression offered to the server, or null.
+   */
+  final public Compression getCompression()
+  {
+    return service.getCompression();
+  }
+
+  /**
+   * @return true if the server accepted the compression offered.
+   */
+  final public boolean isCompressing()
+  {
+    return service.isCompressing();
+  }
+
+  /**
+   * Makes the client coalesce the messages it sends into batches.
+   *
+   * @see ocsf.client.AbstractClient#setBatching(int, long)
+   */
+  final public void setBatching(int maxBatchSize, long maxBatchDelay)
+  {
+    service.setBatching(maxBatchSize, maxBatchDelay);
+  }
+
+  /**
+   * Makes the client reconnect by itself when the connection is lost.
+   *
+   * @see ocsf.client.AbstractClient#setAutoReconnect(long, int)
+   */
+  final public void setAutoReconnect(long delay, int bufferSize)
+  {
+    service.setAutoReconnect(delay, bufferSize);
+  }
+
 // ACCESSING METHODS ------------------------------------------------
 
+  /**
+   * @return true if the client holds a session it can resume.
+   */
+  final public boolean hasSession()
+  {
+    return service.hasSession();
+  }
+
+  /**
+   * @return the number of messages sent in the session that the server
+   *         has not acknowledged yet.
+   */
+  final public long getUnacknowledgedCount()
+  {
+    return service.getUnacknowledgedCount();
+  }
+
+  /**
+   * @return the number of requests waiting for their reply.
+   */
+  final public int getPendingRequestCount()
+  {
+    return service.getPendingRequestCount();
+  }
+
+  /**
+   * @return true if the client is trying to reconnect by itself.
+   */
+  final public boolean isReconnecting()
+  {
+    return service.isReconnecting();
+  }
+
+  /**
+   * @return the number of attempts made to reconnect, successful or not.
+   */
+  final public long getReconnectAttempts()
+  {
+    return service.getReconnectAttempts();
+  }
+
+  /**
+   * @return the number of times the client reconnected by itself.
+   */
+  final public long getReconnectCount()
+  {
+    return service.getReconnectCount();
+  }
+
+  /**
+   * @return the time between the loss of the connection and the last
+   *         successful reconnection, in ms.
+   */
+  final public long getLastReconnectLatency()
+  {
+    return service.getLastReconnectLatency();
+  }
+
+  /**
+   * @return the number of messages held until the client reconnects.
+   */
+  final public int getHeldCount()
+  {
+    return service.getHeldCount();
+  }
+
   /**
    * @used to find out if the client is connnected.
    */
@@ -143,6 +395,42 @@ public class ObservableClient extends Observable
     service.setHost(host);
   }
 
+  /**
+   * Makes the next connections go through a Unix domain socket.
+   *
+   * @see ocsf.client.AbstractClient#setUnixDomainAddress(UnixDomainSocketAddress)
+   */
+  final public void setUnixDomainAddress(UnixDomainSocketAddress address)
+  {
+    service.setUnixDomainAddress(address);
+  }
+
+  /**
+   * @return the Unix domain socket the client connects through, or null.
+   */
+  final public UnixDomainSocketAddress getUnixDomainAddress()
+  {
+    return service.getUnixDomainAddress();
+  }
+
+  /**
+   * Makes the next connections go through shared memory.
+   *
+   * @see ocsf.client.AbstractClient#setSharedMemoryDirectory(Path)
+   */
+  final public void setSharedMemoryDirectory(Path directory)
+  {
+    service.setSharedMemoryDirectory(directory);
+  }
+
+  /**
+   * @return the directory of the server's shared memory endpoint, or null.
+   */
+  final public Path getSharedMemoryDirectory()
+  {
+    return service.getSharedMemoryDirectory();
+  }
+
   /**
    * @return the client's Inet address.
    */
@@ -154,14 +442,13 @@ public class ObservableClient extends Observable
 
   /**
    * This method is used to handle messages from the server.  This method
-   * can be overriden but should always call notifyObservers().
+   * can be overriden but should always call publish().
    *
    * @param message The message received from the client.
    */
   protected void handleMessageFromServer(Object message)
   {
-    setChanged();
-    notifyObservers(message);
+    publish(new ClientEvent(ClientEvent.Type.MESSAGE, message, null));
   }
 
   /**
@@ -169,8 +456,7 @@ public class ObservableClient extends Observable
    */
   protected void connectionClosed()
   {
-    setChanged();
-    notifyObservers(CONNECTION_CLOSED);
+    publish(new ClientEvent(ClientEvent.Type.CONNECTION_CLOSED, null, null));
   }
 
   /**
@@ -181,8 +467,20 @@ public class ObservableClient extends Observable
    */
   protected void connectionException(Exception exception)
   {
-    setChanged();
-    notifyObservers(CONNECTION_EXCEPTION);
+    publish(new ClientEvent(
+      ClientEvent.Type.CONNECTION_EXCEPTION, null, exception));
+  }
+
+  /**
+   * Hook method called when the server has answered the session
+   * request of a new connection.
+   *
+   * @param resumed true if the previous session was resumed.
+   */
+  protected void sessionGranted(boolean resumed)
+  {
+    publish(new ClientEvent(resumed ? ClientEvent.Type.SESSION_RESUMED
+      : ClientEvent.Type.SESSION_STARTED, null, null));
   }
 
   /**
@@ -190,7 +488,52 @@ public class ObservableClient extends Observable
    */
   protected void connectionEstablished()
   {
-    setChanged();
-    notifyObservers(CONNECTION_ESTABLISHED);
+    publish(new ClientEvent(
+      ClientEvent.Type.CONNECTION_ESTABLISHED, null, null));
+  }
+
+  /**
+   * Hook method called when the server offers a file. The default
+   * implementation declines the offer.
+   *
+   * @param offer the offer.
+   * @return the file to write, or null to decline the offer.
+   * @see ocsf.client.AbstractClient#fileOffered(FileOffer)
+   */
+  protected Path fileOffered(FileOffer offer)
+  {
+    return null;
+  }
+
+  /**
+   * Hook method called as the data of a file taken arrives.
+   *
+   * @param offer    the offer.
+   * @param received how much of the file was received, in bytes.
+   */
+  protected void fileProgress(FileOffer offer, long received) {}
+
+  /**
+   * Hook method called when the transfer of a file taken ends. This
+   * method can be overriden but should always call publish().
+   *
+   * @param offer    the offer.
+   * @param file     the file written.
+   * @param complete true if the whole file was received.
+   */
+  protected void fileReceived(FileOffer offer, Path file, boolean complete)
+  {
+    if (complete)
+      publish(new ClientEvent(ClientEvent.Type.FILE_RECEIVED, file, null));
+  }
+
+  /**
+   * Delivers an event to the subscribers of this client.
+   *
+   * @param event the event to publish.
+   */
+  protected void publish(ClientEvent event)
+  {
+    events.publish(event);
   }
 }
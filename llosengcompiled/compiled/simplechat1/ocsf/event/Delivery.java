@@ -0,0 +1,21 @@
+package ocsf.event;
+
+/**
+ * How the events of an <code>EventBus</code> reach a subscriber.
+ *
+ * @see ocsf.event.EventBus#subscribe(EventSubscriber, Delivery)
+ */
+public enum Delivery
+{
+  /**
+   * The subscriber runs on the publishing thread, before
+   * <code>publish</code> returns.
+   */
+  SYNCHRONOUS,
+
+  /**
+   * Events are queued and the subscriber runs on its own thread, in
+   * the order in which the events were published.
+   */
+  ASYNCHRONOUS
+}
@@ -0,0 +1,382 @@
+package ocsf.event;
+
+import java.util.ArrayList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A typed publish/subscribe channel used by the observable layer of
+ * the OCSF in place of <code>java.util.Observable</code>.<p>
+ *
+ * The subscribers are kept in an array that is replaced, never
+ * modified, when a subscriber is added or removed. Publishing reads
+ * that array once and takes no lock, so publishers never wait for each
+ * other and a subscriber may unsubscribe while an event is delivered.<p>
+ *
+ * A slow subscriber can be given a bounded queue of its own, so that it
+ * neither holds up the publisher nor lets events pile up without limit;
+ * its lag can then be watched through the <code>QueueStats</code> of
+ * the subscription.<p>
+ *
+ * Exceptions thrown by a subscriber are ignored so that they cannot
+ * prevent the other subscribers from receiving the event.
+ *
+ * @param <E> the type of the events published.
+ */
+public class EventBus<E>
+{
+  // Instance variables **********************************************
+
+  /**
+   * The current subscriptions. Copied on write.
+   */
+  private final AtomicReference<Subscription<E>[]> subscriptions =
+    new AtomicReference<>(newArray(0));
+
+  // Instance methods ************************************************
+
+  /**
+   * Adds a subscriber. A subscriber that is already subscribed is
+   * subscribed again and will receive each event twice.
+   *
+   * @param subscriber the subscriber to add.
+   * @param delivery   how events reach the subscriber.
+   */
+  public void subscribe(EventSubscriber<? super E> subscriber,
+    Delivery delivery)
+  {
+    add(delivery == Delivery.ASYNCHRONOUS
+      ? new AsyncSubscription<>(subscriber)
+      : new Subscription<>(subscriber));
+  }
+
+  /**
+   * Adds a subscriber that runs on its own thread, fed by a bounded
+   * queue. The thread takes up to maxBatch events from the queue at a
+   * time and passes them to <code>onEvents</code>.
+   *
+   * @param subscriber the subscriber to add.
+   * @param capacity   the maximum number of events queued.
+   * @param maxBatch   the maximum number of events passed at once.
+   * @param policy     what to do with an event published while the
+   *                   queue is full.
+   * @return the state of the queue.
+   */
+  public QueueStats subscribe(EventSubscriber<? super E> subscriber,
+    int capacity, int maxBatch, OverflowPolicy policy)
+  {
+    BoundedSubscription<E> added =
+      new BoundedSubscription<>(subscriber, capacity, maxBatch, policy);
+    add(added);
+    return added;
+  }
+
+  /**
+   * Adds a subscription to the array.
+   */
+  private void add(Subscription<E> added)
+  {
+    Subscription<E>[] current, next;
+    do
+    {
+      current = subscriptions.get();
+      next = newArray(current.length + 1);
+      System.arraycopy(current, 0, next, 0, current.length);
+      next[current.length] = added;
+    }
+    while (!subscriptions.compareAndSet(current, next));
+  }
+
+  /**
+   * Removes the first subscription of a subscriber. Events already
+   * queued for an asynchronous subscriber are still delivered.
+   *
+   * @param subscriber the subscriber to remove.
+   * @return true if the subscriber was subscribed.
+   */
+  public boolean unsubscribe(EventSubscriber<? super E> subscriber)
+  {
+    Subscription<E>[] current, next;
+    Subscription<E> removed;
+    do
+    {
+      current = subscriptions.get();
+      int index = -1;
+      for (int i = 0; i < current.length && index < 0; i++)
+      {
+        if (current[i].subscriber == subscriber)
+          index = i;
+      }
+      if (index < 0)
+        return false;
+
+      removed = current[index];
+      next = newArray(current.length - 1);
+      System.arraycopy(current, 0, next, 0, index);
+      System.arraycopy(current, index + 1, next, index,
+        next.length - index);
+    }
+    while (!subscriptions.compareAndSet(current, next));
+
+    removed.cancel();
+    return true;
+  }
+
+  /**
+   * Delivers an event to every subscriber.
+   *
+   * @param event the event to publish.
+   */
+  public void publish(E event)
+  {
+    Subscription<E>[] current = subscriptions.get();
+    for (int i = 0; i < current.length; i++)
+    {
+      current[i].deliver(event);
+    }
+  }
+
+  /**
+   * @return true if at least one subscriber is subscribed.
+   */
+  public boolean hasSubscribers()
+  {
+    return subscriptions.get().length > 0;
+  }
+
+  /**
+   * @return the number of subscriptions.
+   */
+  public int countSubscribers()
+  {
+    return subscriptions.get().length;
+  }
+
+// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+  @SuppressWarnings("unchecked")
+  private static <E> Subscription<E>[] newArray(int length)
+  {
+    return (Subscription<E>[])new Subscription<?>[length];
+  }
+
+// NESTED CLASSES ---------------------------------------------------
+
+  /**
+   * A subscriber that runs on the publishing thread.
+   */
+  static class Subscription<E>
+  {
+    final EventSubscriber<? super E> subscriber;
+
+    Subscription(EventSubscriber<? super E> subscriber)
+    {
+      this.subscriber = subscriber;
+    }
+
+    void deliver(E event)
+    {
+      try
+      {
+        subscriber.onEvent(event);
+      }
+      catch (RuntimeException ex) {}
+    }
+
+    void cancel() {}
+  }
+
+  /**
+   * A subscriber with its own thread, fed by a lock-free queue.
+   */
+  static class AsyncSubscription<E> extends Subscription<E>
+    implements Runnable
+  {
+    private final ConcurrentLinkedQueue<E> queue =
+      new ConcurrentLinkedQueue<>();
+
+    private final Thread thread;
+
+    private volatile boolean sleeping = false;
+
+    private volatile boolean cancelled = false;
+
+    AsyncSubscription(EventSubscriber<? super E> subscriber)
+    {
+      super(subscriber);
+      thread = new Thread(this, "EventBus subscriber");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    void deliver(E event)
+    {
+      queue.offer(event);
+      if (sleeping)
+        LockSupport.unpark(thread);
+    }
+
+    void cancel()
+    {
+      cancelled = true;
+      LockSupport.unpark(thread);
+    }
+
+    public void run()
+    {
+      while (true)
+      {
+        E event;
+        while ((event = queue.poll()) != null)
+        {
+          super.deliver(event);
+        }
+        if (cancelled)
+          return;
+
+        sleeping = true;
+        if (queue.isEmpty() && !cancelled)
+          LockSupport.park(this);
+        sleeping = false;
+      }
+    }
+  }
+
+  /**
+   * A subscriber with its own thread, fed by a bounded queue and given
+   * the events in batches.
+   */
+  static class BoundedSubscription<E> extends Subscription<E>
+    implements Runnable, QueueStats
+  {
+    private final ArrayBlockingQueue<E> queue;
+
+    private final int maxBatch;
+
+    private final OverflowPolicy policy;
+
+    private final Thread thread;
+
+    private volatile boolean cancelled = false;
+
+    private volatile int maxLag = 0;
+
+    private final AtomicLong delivered = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    BoundedSubscription(EventSubscriber<? super E> subscriber, int capacity,
+      int maxBatch, OverflowPolicy policy)
+    {
+      super(subscriber);
+      this.queue = new ArrayBlockingQueue<>(capacity);
+      this.maxBatch = Math.max(1, maxBatch);
+      this.policy = policy;
+      thread = new Thread(this, "EventBus subscriber");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    void deliver(E event)
+    {
+      if (cancelled)
+        return;
+
+      boolean queued = queue.offer(event);
+      if (!queued)
+      {
+        switch (policy)
+        {
+          case DROP_OLDEST:
+            while (!queued)
+            {
+              if (queue.poll() != null)
+                dropped.incrementAndGet();
+              queued = queue.offer(event);
+            }
+            break;
+
+          case BLOCK:
+            try
+            {
+              while (!queued && !cancelled)
+                queued = queue.offer(event, 100, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e)
+            {
+              Thread.currentThread().interrupt();
+            }
+            break;
+
+          default:
+            break;
+        }
+        if (!queued)
+          dropped.incrementAndGet();
+      }
+
+      int lag = queue.size();
+      if (lag > maxLag)
+        maxLag = lag;  // Racy, but only ever an underestimate
+    }
+
+    void cancel()
+    {
+      cancelled = true;
+      thread.interrupt();
+    }
+
+    public void run()
+    {
+      ArrayList<E> batch = new ArrayList<>(maxBatch);
+      while (true)
+      {
+        try
+        {
+          batch.add(queue.take());
+        }
+        catch (InterruptedException e)
+        {
+          if (!cancelled)
+            continue;
+        }
+        queue.drainTo(batch, maxBatch - batch.size());
+        if (!batch.isEmpty())
+        {
+          try
+          {
+            subscriber.onEvents(batch);
+          }
+          catch (RuntimeException ex) {}
+          delivered.addAndGet(batch.size());
+          batch.clear();
+        }
+        if (cancelled && queue.isEmpty())
+          return;
+      }
+    }
+
+    public int getLag()
+    {
+      return queue.size();
+    }
+
+    public int getMaxLag()
+    {
+      return maxLag;
+    }
+
+    public long getDelivered()
+    {
+      return delivered.get();
+    }
+
+    public long getDropped()
+    {
+      return dropped.get();
+    }
+  }
+}
+// End of EventBus class
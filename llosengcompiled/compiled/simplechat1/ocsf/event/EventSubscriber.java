@@ -0,0 +1,42 @@
+package ocsf.event;
+
+import java.util.List;
+
+/**
+ * Receives the events published on an <code>EventBus</code>.
+ * Replaces <code>java.util.Observer</code> in the observable layer
+ * of the OCSF.
+ *
+ * @param <E> the type of event received.
+ * @see ocsf.event.EventBus
+ */
+@FunctionalInterface
+public interface EventSubscriber<E>
+{
+  /**
+   * Called once for each event published on the bus. Depending on
+   * the delivery chosen when subscribing, it runs on the thread that
+   * published the event or on a thread owned by the subscription.
+   *
+   * @param event the event published.
+   */
+  void onEvent(E event);
+
+  /**
+   * Called by a bounded asynchronous subscription with the events taken
+   * from its queue at once, oldest first. Subscribers that can handle
+   * several events more cheaply than one at a time, such as a user
+   * interface that redraws once, override this method. By default
+   * calls onEvent() for each event.
+   *
+   * @param events the events, oldest first.
+   * @see ocsf.event.EventBus#subscribe(EventSubscriber, int, int, OverflowPolicy)
+   */
+  default void onEvents(List<? extends E> events)
+  {
+    for (E event : events)
+    {
+      onEvent(event);
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package ocsf.event;
+
+/**
+ * What a bounded asynchronous subscription does with an event published
+ * while its queue is full.
+ *
+ * @see ocsf.event.EventBus#subscribe(EventSubscriber, int, int, OverflowPolicy)
+ */
+public enum OverflowPolicy
+{
+  /**
+   * The new event is dropped.
+   */
+  DROP_NEWEST,
+
+  /**
+   * The oldest queued event is dropped to make room for the new one,
+   * for subscribers that only care about the latest state.
+   */
+  DROP_OLDEST,
+
+  /**
+   * The publisher waits for room. Nothing is lost, but a slow
+   * subscriber slows down the publishing thread.
+   */
+  BLOCK
+}
@@ -0,0 +1,30 @@
+package ocsf.event;
+
+/**
+ * The state of the queue of a bounded asynchronous subscription, for
+ * monitoring how far its subscriber lags behind the publisher.
+ *
+ * @see ocsf.event.EventBus#subscribe(EventSubscriber, int, int, OverflowPolicy)
+ */
+public interface QueueStats
+{
+  /**
+   * @return the number of events queued and not yet delivered.
+   */
+  int getLag();
+
+  /**
+   * @return the largest number of events that were queued at once.
+   */
+  int getMaxLag();
+
+  /**
+   * @return the number of events delivered to the subscriber.
+   */
+  long getDelivered();
+
+  /**
+   * @return the number of events dropped because the queue was full.
+   */
+  long getDropped();
+}
@@ -0,0 +1,44 @@
+package ocsf.protocol;
+
+import java.io.Serializable;
+
+/**
+ * A cumulative acknowledgement: every message of the session up to and
+ * including the given sequence number has been received. Acknowledgements
+ * normally travel inside the <code>Sequenced</code> messages going the
+ * other way; an <code>Ack</code> is only sent on its own after
+ * <code>INTERVAL</code> messages were received without any reply, or
+ * by a side whose window of messages unacknowledged is full. Either
+ * side answers an <code>Ack</code> with its own when it has received
+ * messages since it last acknowledged.
+ */
+public class Ack implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Number of messages received without sending anything back after
+   * which an <code>Ack</code> is sent on its own.
+   */
+  public static final int INTERVAL = 32;
+
+  private final long sequence;
+
+  /**
+   * Constructs an acknowledgement.
+   *
+   * @param sequence the last sequence number received.
+   */
+  public Ack(long sequence)
+  {
+    this.sequence = sequence;
+  }
+
+  /**
+   * @return the last sequence number received.
+   */
+  public long getSequence()
+  {
+    return sequence;
+  }
+}
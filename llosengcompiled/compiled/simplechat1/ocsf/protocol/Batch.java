@@ -0,0 +1,36 @@
+package ocsf.protocol;
+
+import java.io.Serializable;
+
+/**
+ * Several messages sent in one frame, in the order in which they were
+ * sent. The receiver handles each of them as if it had been sent on its
+ * own: the server those of a client batching its messages, the client
+ * those of a server echoing a burst at once.
+ *
+ * @see ocsf.client.AbstractClient#setBatching(int, long)
+ */
+public class Batch implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+
+  private final Object[] messages;
+
+  /**
+   * Constructs a batch.
+   *
+   * @param messages the messages, in order.
+   */
+  public Batch(Object[] messages)
+  {
+    this.messages = messages;
+  }
+
+  /**
+   * @return the messages, in order.
+   */
+  public Object[] getMessages()
+  {
+    return messages;
+  }
+}
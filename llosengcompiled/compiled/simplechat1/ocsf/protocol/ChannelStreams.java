@@ -0,0 +1,81 @@
+package ocsf.protocol;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Streams over a blocking <code>SocketChannel</code> that has no
+ * <code>Socket</code>, such as a Unix domain socket channel, so that
+ * frames can be read and written with the same code as over TCP.<p>
+ *
+ * Unlike the streams of <code>java.nio.channels.Channels</code>, which
+ * hold the blocking lock of the channel while reading, these let one
+ * thread write while another is blocked reading.
+ */
+public final class ChannelStreams
+{
+  private ChannelStreams() {}
+
+  // Class methods ***************************************************
+
+  /**
+   * @param channel a channel in blocking mode.
+   * @return a stream reading from the channel; closing it closes the
+   *         channel.
+   */
+  public static InputStream input(SocketChannel channel)
+  {
+    return new InputStream()
+    {
+      public int read() throws IOException
+      {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException
+      {
+        if (len == 0)
+          return 0;
+        return channel.read(ByteBuffer.wrap(b, off, len));
+      }
+
+      public void close() throws IOException
+      {
+        channel.close();
+      }
+    };
+  }
+
+  /**
+   * @param channel a channel in blocking mode.
+   * @return a stream writing to the channel; closing it closes the
+   *         channel.
+   */
+  public static OutputStream output(SocketChannel channel)
+  {
+    return new OutputStream()
+    {
+      public void write(int b) throws IOException
+      {
+        write(new byte[] {(byte)b}, 0, 1);
+      }
+
+      public void write(byte[] b, int off, int len) throws IOException
+      {
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        while (buffer.hasRemaining())
+        {
+          channel.write(buffer);
+        }
+      }
+
+      public void close() throws IOException
+      {
+        channel.close();
+      }
+    };
+  }
+}
+// End of ChannelStreams class
@@ -0,0 +1,110 @@
+package ocsf.protocol;
+
+import java.io.Serializable;
+
+/**
+ * A piece of a large message or of a stream, sent in a frame of its own
+ * so that other messages can be written between the pieces. The chunks
+ * of a stream share its id and arrive in order; the last one is marked.
+ * Each chunk is an ordinary message for the session, numbered and
+ * replayed like any other.<p>
+ *
+ * A stream without a header carries a serialized message, which the
+ * receiver reassembles and handles as if it had been sent whole. A
+ * stream with a header is opened by the application, and its data is
+ * handed to the receiver chunk by chunk.
+ *
+ * @see ocsf.server.ConnectionToClient#openStream(Serializable, Lane)
+ */
+public class Chunk implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The largest amount of data a chunk carries, in bytes. Messages that
+   * serialize to more are split.
+   */
+  public static final int SIZE = 64 * 1024;
+
+  private final long stream;
+
+  /**
+   * What the stream is about, in its first chunk only; null in the
+   * others and for a serialized message.
+   */
+  private final Serializable header;
+
+  /**
+   * The data, or null if the stream was aborted.
+   */
+  private final byte[] data;
+
+  private final boolean last;
+
+  /**
+   * Constructs a chunk.
+   *
+   * @param stream the id of the stream.
+   * @param header the header of the stream, in its first chunk only.
+   * @param data   the data.
+   * @param last   true for the last chunk of the stream.
+   */
+  public Chunk(long stream, Serializable header, byte[] data, boolean last)
+  {
+    this.stream = stream;
+    this.header = header;
+    this.data = data;
+    this.last = last;
+  }
+
+  /**
+   * Constructs the chunk that ends a stream that could not be finished.
+   *
+   * @param stream the id of the stream.
+   * @return the chunk.
+   */
+  public static Chunk abort(long stream)
+  {
+    return new Chunk(stream, null, null, true);
+  }
+
+  /**
+   * @return the id of the stream.
+   */
+  public long getStream()
+  {
+    return stream;
+  }
+
+  /**
+   * @return the header of the stream, or null.
+   */
+  public Serializable getHeader()
+  {
+    return header;
+  }
+
+  /**
+   * @return the data, or null if the stream was aborted.
+   */
+  public byte[] getData()
+  {
+    return data;
+  }
+
+  /**
+   * @return true for the last chunk of the stream.
+   */
+  public boolean isLast()
+  {
+    return last;
+  }
+
+  /**
+   * @return true if the stream was aborted.
+   */
+  public boolean isAborted()
+  {
+    return data == null;
+  }
+}
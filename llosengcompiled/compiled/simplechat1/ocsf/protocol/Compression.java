@@ -0,0 +1,433 @@
+package ocsf.protocol;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compression of the frames exchanged with peers that agree to it.
+ * A message is deflated on its own, without the zlib header, against a
+ * preset dictionary shared by both sides: short messages such as chat
+ * lines have too little data of their own to compress, but much in
+ * common with the dictionary, starting with the header of their
+ * serialized form. Messages smaller than a threshold are sent raw, and
+ * so are those that do not get smaller.<p>
+ *
+ * A client offers compression when it connects, giving the id of its
+ * dictionary; the server accepts if its own dictionary has the same id.
+ * A connection then carries compressed frames both ways. The messages
+ * of a session are sent with their sequence number and acknowledgement
+ * in front of the message, outside of the compressed data, so that a
+ * message broadcast to many clients is compressed once and only its
+ * header differs from one client to the next. Chunks of large messages
+ * are compressed as any other message.<p>
+ *
+ * The compression counts the frames it sent compressed and raw, the
+ * bytes it saved, and the time it spent compressing and decompressing.
+ * It may be shared by the connections of a server.
+ *
+ * @see ocsf.server.AbstractServer#setCompression(Compression)
+ * @see ocsf.client.AbstractClient#setCompression(Compression)
+ */
+public class Compression
+{
+  // Class variables *************************************************
+
+  /**
+   * The default size below which messages are sent raw, in bytes.
+   */
+  public static final int DEFAULT_THRESHOLD = 64;
+
+  /**
+   * The size of the largest useful dictionary: the window of deflate.
+   */
+  public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+  /**
+   * How many of the messages compressed last are remembered, so that a
+   * message sent to many clients is compressed once.
+   */
+  private static final int RECENT_SIZE = 64;
+
+  // Instance variables **********************************************
+
+  private final byte[] dictionary;
+
+  private final long dictionaryId;
+
+  private volatile int threshold = DEFAULT_THRESHOLD;
+
+  private volatile int level = Deflater.DEFAULT_COMPRESSION;
+
+  /**
+   * One deflater and inflater per thread, reset for each message. The
+   * deflaters are replaced when the level changes.
+   */
+  private volatile ThreadLocal<Deflater> deflaters = deflaters(level);
+
+  private final ThreadLocal<Inflater> inflaters =
+    ThreadLocal.withInitial(() -> new Inflater(true));
+
+  /**
+   * The messages compressed last, by identity, with their compressed
+   * form; an empty array for a message sent raw.
+   */
+  private final Map<byte[], byte[]> recent =
+    new LinkedHashMap<byte[], byte[]>(RECENT_SIZE * 2, 0.75f, true)
+    {
+      protected boolean removeEldestEntry(Map.Entry<byte[], byte[]> eldest)
+      {
+        return size() > RECENT_SIZE;
+      }
+    };
+
+  private final AtomicLong compressedFrames = new AtomicLong();
+
+  private final AtomicLong rawFrames = new AtomicLong();
+
+  private final AtomicLong compressions = new AtomicLong();
+
+  private final AtomicLong bytesIn = new AtomicLong();
+
+  private final AtomicLong bytesOut = new AtomicLong();
+
+  private final AtomicLong compressNanos = new AtomicLong();
+
+  private final AtomicLong decompressedFrames = new AtomicLong();
+
+  private final AtomicLong decompressNanos = new AtomicLong();
+
+  // Constructors ****************************************************
+
+  /**
+   * Constructs a compression with a preset dictionary, e.g. one built
+   * by <code>train</code>. Both sides of a connection must use the same
+   * dictionary.
+   *
+   * @param dictionary the dictionary, possibly empty; at most
+   *                   <code>MAX_DICTIONARY_SIZE</code> bytes.
+   */
+  public Compression(byte[] dictionary)
+  {
+    if (dictionary.length > MAX_DICTIONARY_SIZE)
+      throw new IllegalArgumentException("dictionary too large: "
+        + dictionary.length);
+    this.dictionary = dictionary.clone();
+    Adler32 checksum = new Adler32();
+    checksum.update(this.dictionary);
+    dictionaryId = checksum.getValue();
+  }
+
+  // Class methods ***************************************************
+
+  /**
+   * Builds a dictionary from sample messages, e.g. typical chat lines.
+   * The samples are serialized, and the distinct ones are laid out from
+   * the least to the most useful, i.e. by number of occurrences times
+   * size, since deflate finds the end of the dictionary with the
+   * shortest distances. The least useful ones are left out of a
+   * dictionary that would be larger than the size given.
+   *
+   * @param samples the messages; a message repeated counts as often as
+   *                it appears.
+   * @param size    the size of the dictionary, in bytes; at most
+   *                <code>MAX_DICTIONARY_SIZE</code>.
+   * @return the dictionary.
+   * @exception IOException if a sample cannot be serialized.
+   */
+  public static byte[] train(Iterable<?> samples, int size)
+    throws IOException
+  {
+    if (size < 0 || size > MAX_DICTIONARY_SIZE)
+      throw new IllegalArgumentException("invalid dictionary size " + size);
+
+    Map<String, Integer> counts = new HashMap<>();
+    for (Object sample : samples)
+    {
+      // ISO-8859-1 maps each byte to one char and back
+      String bytes = new String(FrameCodec.serialize(sample), "ISO-8859-1");
+      counts.merge(bytes, 1, Integer::sum);
+    }
+
+    List<String> ranked = new ArrayList<>(counts.keySet());
+    ranked.sort(Comparator
+      .comparingLong((String s) -> (long)counts.get(s) * s.length())
+      .reversed().thenComparing(Comparator.naturalOrder()));
+
+    // The most useful first, until the dictionary is full
+    Deque<byte[]> kept = new ArrayDeque<>();
+    int length = 0;
+    for (String sample : ranked)
+    {
+      if (length + sample.length() > size)
+        continue;
+      kept.addFirst(sample.getBytes("ISO-8859-1"));
+      length += sample.length();
+    }
+
+    ByteArrayOutputStream dictionary = new ByteArrayOutputStream(length);
+    for (byte[] sample : kept)
+      dictionary.write(sample);
+    return dictionary.toByteArray();
+  }
+
+  private static ThreadLocal<Deflater> deflaters(int level)
+  {
+    return ThreadLocal.withInitial(() -> new Deflater(level, true));
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * Sets the size below which messages are sent raw.
+   *
+   * @param threshold the size, in bytes.
+   */
+  public void setThreshold(int threshold)
+  {
+    if (threshold < 0)
+      throw new IllegalArgumentException("invalid threshold " + threshold);
+    this.threshold = threshold;
+  }
+
+  /**
+   * Sets the compression level, from <code>Deflater.BEST_SPEED</code>
+   * to <code>Deflater.BEST_COMPRESSION</code>.
+   *
+   * @param level the level, or <code>Deflater.DEFAULT_COMPRESSION</code>.
+   */
+  public void setLevel(int level)
+  {
+    if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION)
+      throw new IllegalArgumentException("invalid level " + level);
+    this.level = level;
+    deflaters = deflaters(level);
+  }
+
+  /**
+   * @return the size below which messages are sent raw, in bytes.
+   */
+  public int getThreshold()
+  {
+    return threshold;
+  }
+
+  /**
+   * @return the compression level.
+   */
+  public int getLevel()
+  {
+    return level;
+  }
+
+  /**
+   * @return the id of the dictionary, its Adler-32 checksum as in zlib;
+   *         peers only compress with the same id.
+   */
+  public long getDictionaryId()
+  {
+    return dictionaryId;
+  }
+
+  /**
+   * @return the number of frames sent compressed.
+   */
+  public long getCompressedFrames()
+  {
+    return compressedFrames.get();
+  }
+
+  /**
+   * @return the number of frames sent raw, being below the threshold or
+   *         not getting smaller.
+   */
+  public long getRawFrames()
+  {
+    return rawFrames.get();
+  }
+
+  /**
+   * @return the number of messages actually compressed; lower than the
+   *         number of frames sent compressed when messages were sent to
+   *         several peers.
+   */
+  public long getCompressions()
+  {
+    return compressions.get();
+  }
+
+  /**
+   * @return the size of the messages sent compressed, in bytes.
+   */
+  public long getBytesIn()
+  {
+    return bytesIn.get();
+  }
+
+  /**
+   * @return the size of those messages once compressed, in bytes.
+   */
+  public long getBytesOut()
+  {
+    return bytesOut.get();
+  }
+
+  /**
+   * @return the size of the messages sent compressed divided by their
+   *         compressed size; 1 if none was.
+   */
+  public double getRatio()
+  {
+    long out = bytesOut.get();
+    return out == 0 ? 1 : (double)bytesIn.get() / out;
+  }
+
+  /**
+   * @return the time spent compressing, in ns.
+   */
+  public long getCompressNanos()
+  {
+    return compressNanos.get();
+  }
+
+  /**
+   * @return the number of frames received compressed.
+   */
+  public long getDecompressedFrames()
+  {
+    return decompressedFrames.get();
+  }
+
+  /**
+   * @return the time spent decompressing, in ns.
+   */
+  public long getDecompressNanos()
+  {
+    return decompressNanos.get();
+  }
+
+  /**
+   * Compresses a serialized message about to be sent, unless it is
+   * below the threshold or does not get smaller. A message given again,
+   * as the same array, while it is among the last ones compressed is
+   * not compressed again.
+   *
+   * @param message the message, serialized; not modified afterwards.
+   * @return the message compressed, or null to send it raw.
+   */
+  public byte[] compress(byte[] message)
+  {
+    if (message.length < threshold)
+    {
+      rawFrames.incrementAndGet();
+      return null;
+    }
+
+    byte[] compressed;
+    synchronized (recent)
+    {
+      compressed = recent.get(message);
+    }
+    if (compressed == null)
+    {
+      compressed = deflate(message);
+      synchronized (recent)
+      {
+        recent.put(message, compressed);
+      }
+    }
+
+    if (compressed.length == 0)
+    {
+      rawFrames.incrementAndGet();
+      return null;
+    }
+    compressedFrames.incrementAndGet();
+    bytesIn.addAndGet(message.length);
+    bytesOut.addAndGet(compressed.length);
+    return compressed;
+  }
+
+  /**
+   * Decompresses a message received.
+   *
+   * @param data    the frame holding the message compressed.
+   * @param offset  the offset of the message in the frame.
+   * @param maxSize the size of the largest message accepted, in bytes.
+   * @return the message, serialized.
+   * @exception IOException if the data is corrupt or the message is too
+   *    large.
+   */
+  public byte[] decompress(byte[] data, int offset, int maxSize)
+    throws IOException
+  {
+    long start = System.nanoTime();
+    Inflater inflater = inflaters.get();
+    inflater.reset();
+    if (dictionary.length > 0)
+      inflater.setDictionary(dictionary);
+    inflater.setInput(data, offset, data.length - offset);
+
+    byte[] message = new byte[Math.min(Math.max(64, (data.length - offset) * 4),
+      maxSize)];
+    int length = 0;
+    try
+    {
+      while (!inflater.finished())
+      {
+        if (length == message.length)
+        {
+          if (length == maxSize)
+            throw new StreamCorruptedException("message larger than "
+              + maxSize + " bytes");
+          message = Arrays.copyOf(message,
+            (int)Math.min((long)length * 2, maxSize));
+        }
+        int n = inflater.inflate(message, length, message.length - length);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+          throw new EOFException("truncated compressed message");
+        length += n;
+      }
+    }
+    catch (DataFormatException e)
+    {
+      throw (IOException)new StreamCorruptedException(
+        "corrupt compressed message").initCause(e);
+    }
+    decompressedFrames.incrementAndGet();
+    decompressNanos.addAndGet(System.nanoTime() - start);
+    return length == message.length ? message : Arrays.copyOf(message, length);
+  }
+
+  /**
+   * @return the message compressed, or an empty array if it does not
+   *         get smaller.
+   */
+  private byte[] deflate(byte[] message)
+  {
+    long start = System.nanoTime();
+    Deflater deflater = deflaters.get();
+    deflater.reset();
+    if (dictionary.length > 0)
+      deflater.setDictionary(dictionary);
+    deflater.setInput(message);
+    deflater.finish();
+
+    // Only worth sending if smaller than the message itself
+    byte[] buffer = new byte[message.length];
+    int length = 0;
+    while (!deflater.finished() && length < buffer.length)
+      length += deflater.deflate(buffer, length, buffer.length - length);
+
+    compressions.incrementAndGet();
+    compressNanos.addAndGet(System.nanoTime() - start);
+    if (!deflater.finished() || length == message.length)
+      return new byte[0];
+    return Arrays.copyOf(buffer, length);
+  }
+}
+// End of Compression class
@@ -0,0 +1,41 @@
+package ocsf.protocol;
+
+import java.io.Serializable;
+
+/**
+ * Sent by a client as the first message of a connection when it has a
+ * <code>Compression</code>, and sent back by a server that compresses
+ * with the same dictionary. The server compresses the frames it sends
+ * from then on; the client from the moment it gets the answer. A
+ * server that does not compress, or has another dictionary, does not
+ * answer, and both sides keep sending raw frames.
+ *
+ * @see ocsf.protocol.Compression
+ */
+public class CompressionOffer implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The id of the dictionary.
+   */
+  private final long dictionaryId;
+
+  /**
+   * Constructs an offer, or its acceptance.
+   *
+   * @param dictionaryId the id of the dictionary.
+   */
+  public CompressionOffer(long dictionaryId)
+  {
+    this.dictionaryId = dictionaryId;
+  }
+
+  /**
+   * @return the id of the dictionary.
+   */
+  public long getDictionaryId()
+  {
+    return dictionaryId;
+  }
+}
@@ -0,0 +1,60 @@
+package ocsf.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A piece of a file in transfer, as read from a <code>DATA</code>
+ * frame. The data is carried raw in the frame, not serialized, so that
+ * the server can write it from the file to the socket with
+ * <code>FileChannel.transferTo</code>, and the client from the frame
+ * to the file; a frame holds at most <code>Chunk.SIZE</code> bytes, so
+ * that a transfer never holds more than one frame in memory.
+ *
+ * @see ocsf.protocol.FrameCodec#DATA
+ */
+public class FileData
+{
+  private final long id;
+
+  private final long offset;
+
+  private final ByteBuffer data;
+
+  /**
+   * Constructs a piece of a file.
+   *
+   * @param id     the id of the transfer.
+   * @param offset the offset of the data in the file.
+   * @param data   the data.
+   */
+  public FileData(long id, long offset, ByteBuffer data)
+  {
+    this.id = id;
+    this.offset = offset;
+    this.data = data;
+  }
+
+  /**
+   * @return the id of the transfer.
+   */
+  public long getId()
+  {
+    return id;
+  }
+
+  /**
+   * @return the offset of the data in the file.
+   */
+  public long getOffset()
+  {
+    return offset;
+  }
+
+  /**
+   * @return the data, from its position to its limit.
+   */
+  public ByteBuffer getData()
+  {
+    return data;
+  }
+}
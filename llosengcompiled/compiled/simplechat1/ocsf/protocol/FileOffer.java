@@ -0,0 +1,101 @@
+package ocsf.protocol;
+
+import java.io.Serializable;
+
+/**
+ * Sent by a server to offer a file to a client, with
+ * <code>ConnectionToClient.sendFile</code> or
+ * <code>AbstractServer.sendFileToAllClients</code>. The client takes
+ * the file with a <code>FileRequest</code>, from the start or from the
+ * data it already has, and receives it as <code>FileData</code> frames.
+ * The same message with a negative size tells the client the offer was
+ * withdrawn, and the transfer ends.
+ *
+ * @see ocsf.protocol.FileRequest
+ */
+public class FileOffer implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The id of the transfer, unguessable, by which the client asks for
+   * the file.
+   */
+  private final long id;
+
+  /**
+   * The name of the file, without its directory; null if withdrawn.
+   */
+  private final String name;
+
+  /**
+   * The size of the file in bytes, or -1 if withdrawn.
+   */
+  private final long size;
+
+  /**
+   * Constructs an offer.
+   *
+   * @param id   the id of the transfer.
+   * @param name the name of the file.
+   * @param size the size of the file, in bytes.
+   */
+  public FileOffer(long id, String name, long size)
+  {
+    this.id = id;
+    this.name = name;
+    this.size = size;
+  }
+
+  /**
+   * Constructs the withdrawal of an offer.
+   *
+   * @param id the id of the transfer.
+   * @return the withdrawal.
+   */
+  public static FileOffer withdrawn(long id)
+  {
+    return new FileOffer(id, null, -1);
+  }
+
+  /**
+   * @return the id of the transfer.
+   */
+  public long getId()
+  {
+    return id;
+  }
+
+  /**
+   * @return the name of the file, as given by the server; a client must
+   *         not trust it as a path.
+   */
+  public String getName()
+  {
+    return name;
+  }
+
+  /**
+   * @return the size of the file, in bytes.
+   */
+  public long getSize()
+  {
+    return size;
+  }
+
+  /**
+   * @return true if the offer was withdrawn.
+   */
+  public boolean isWithdrawn()
+  {
+    return size < 0;
+  }
+
+  /**
+   * @return the name and the size of the file.
+   */
+  public String toString()
+  {
+    return isWithdrawn() ? "withdrawn file" : name + " (" + size + " bytes)";
+  }
+}
@@ -0,0 +1,49 @@
+package ocsf.protocol;
+
+import java.io.Serializable;
+
+/**
+ * Sent by a client to take a file offered by the server, starting at a
+ * given offset: 0 for the whole file, or the size of the part it
+ * already has to resume a transfer cut by a lost connection or left
+ * unfinished. It is not part of a session, since the offset says what
+ * the client is missing.
+ *
+ * @see ocsf.protocol.FileOffer
+ */
+public class FileRequest implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+
+  private final long id;
+
+  private final long offset;
+
+  /**
+   * Constructs a request.
+   *
+   * @param id     the id of the transfer, from the offer.
+   * @param offset where the data sent must start, in bytes.
+   */
+  public FileRequest(long id, long offset)
+  {
+    this.id = id;
+    this.offset = offset;
+  }
+
+  /**
+   * @return the id of the transfer.
+   */
+  public long getId()
+  {
+    return id;
+  }
+
+  /**
+   * @return where the data sent must start, in bytes.
+   */
+  public long getOffset()
+  {
+    return offset;
+  }
+}
@@ -0,0 +1,521 @@
+package ocsf.protocol;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Encodes the messages exchanged by the clients and the server into
+ * frames, and decodes them.<p>
+ *
+ * A frame is the length of its payload as an <code>int</code>, a byte
+ * of flags, and the payload: the message serialized on its own. Since
+ * every message is self-contained and its length is known up front, a
+ * frame can be read from a blocking stream as well as reassembled from
+ * the pieces a non-blocking channel returns, and a long-lived
+ * connection does not accumulate the back-references an
+ * <code>ObjectOutputStream</code> keeps.<p>
+ *
+ * The two low bits of the flags hold the <code>Lane</code> of the
+ * frame; 0 is the normal lane. Between peers that negotiated a
+ * <code>Compression</code>, <code>COMPRESSED</code> marks a payload
+ * deflated against the dictionary, and <code>SEQUENCED</code> a
+ * payload that starts with the sequence number and acknowledgement of
+ * a <code>Sequenced</code> message, followed by the message itself.
+ * <code>DATA</code> marks a frame of raw file data, which is not
+ * serialized. Frames with other flags set are rejected.
+ */
+public class FrameCodec
+{
+  // Class variables *************************************************
+
+  /**
+   * Size of the length and the flags that precede the payload.
+   */
+  public static final int HEADER_SIZE = 5;
+
+  /**
+   * Largest payload accepted, in bytes. A larger length means the
+   * stream is corrupt or the peer does not speak this protocol.
+   */
+  public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+  /**
+   * Flag of a frame whose message is compressed.
+   */
+  public static final int COMPRESSED = 0x04;
+
+  /**
+   * Flag of a frame whose payload starts with the sequence number and
+   * acknowledgement of a <code>Sequenced</code> message.
+   */
+  public static final int SEQUENCED = 0x08;
+
+  /**
+   * Flag of a frame of file data: the id of the transfer and the offset
+   * of the data in the file, as longs, then the data as it is in the
+   * file. Decoded as a <code>FileData</code>.
+   */
+  public static final int DATA = 0x10;
+
+  /**
+   * Size of the sequence number and acknowledgement of a
+   * <code>SEQUENCED</code> frame, and of the id and offset of a
+   * <code>DATA</code> frame.
+   */
+  private static final int SEQUENCED_SIZE = 16;
+
+  // Class methods ***************************************************
+
+  /**
+   * Serializes a message.
+   *
+   * @param msg the message.
+   * @return the payload of its frame.
+   * @exception IOException if the message cannot be serialized.
+   */
+  public static byte[] serialize(Object msg) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+    {
+      out.writeObject(msg);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Deserializes a payload.
+   *
+   * @param payload the payload of a frame.
+   * @return the message.
+   * @exception IOException if the payload cannot be deserialized.
+   * @exception ClassNotFoundException if the class of the message is
+   *    not found.
+   */
+  public static Object deserialize(byte[] payload)
+    throws IOException, ClassNotFoundException
+  {
+    return deserialize(payload, null);
+  }
+
+  /**
+   * Deserializes a payload under a filter, which checks the classes
+   * and the size of the object graph as they are read.
+   *
+   * @param payload the payload of a frame.
+   * @param filter  the filter, or null for none.
+   * @return the message.
+   * @exception IOException if the payload cannot be deserialized, or
+   *    the filter rejects it.
+   * @exception ClassNotFoundException if the class of the message is
+   *    not found.
+   */
+  public static Object deserialize(byte[] payload, ObjectInputFilter filter)
+    throws IOException, ClassNotFoundException
+  {
+    return readObject(new ByteArrayInputStream(payload), filter);
+  }
+
+  /**
+   * Deserializes a message from a stream under a filter, e.g. one that
+   * reads the chunks of the message in turn.
+   *
+   * @param in     the stream.
+   * @param filter the filter, or null for none.
+   * @return the message.
+   * @exception IOException if the message cannot be deserialized, or
+   *    the filter rejects it.
+   * @exception ClassNotFoundException if the class of the message is
+   *    not found.
+   */
+  public static Object readObject(InputStream in, ObjectInputFilter filter)
+    throws IOException, ClassNotFoundException
+  {
+    try (ObjectInputStream objects = new ObjectInputStream(in))
+    {
+      if (filter != null)
+        objects.setObjectInputFilter(filter);
+      return objects.readObject();
+    }
+  }
+
+  /**
+   * Serializes the chunk of a serialized message that starts at an
+   * offset: at most <code>Chunk.SIZE</code> bytes, marked as the last
+   * chunk if they end the message.
+   *
+   * @param stream  the id of the stream carrying the message.
+   * @param payload the message, serialized.
+   * @param offset  the offset of the chunk in the payload.
+   * @return the chunk, serialized.
+   * @exception IOException if the chunk cannot be serialized.
+   */
+  public static byte[] chunk(long stream, byte[] payload, int offset)
+    throws IOException
+  {
+    int end = Math.min(payload.length, offset + Chunk.SIZE);
+    return serialize(new Chunk(stream, null,
+      Arrays.copyOfRange(payload, offset, end), end == payload.length));
+  }
+
+  /**
+   * Encodes a message into a whole frame.
+   *
+   * @param msg the message.
+   * @return the frame, ready to be written.
+   * @exception IOException if the message cannot be serialized.
+   */
+  public static ByteBuffer encode(Object msg) throws IOException
+  {
+    return encode(msg, Lane.NORMAL);
+  }
+
+  /**
+   * Encodes a message into a whole frame of a given lane.
+   *
+   * @param msg  the message.
+   * @param lane the lane of the frame.
+   * @return the frame, ready to be written.
+   * @exception IOException if the message cannot be serialized.
+   */
+  public static ByteBuffer encode(Object msg, Lane lane) throws IOException
+  {
+    byte[] payload = serialize(msg);
+    ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+    frame.putInt(payload.length).put((byte)lane.getFlag()).put(payload)
+      .flip();
+    return frame;
+  }
+
+  /**
+   * Encodes a message into a whole frame for a peer that negotiated
+   * compression. A <code>Sequenced</code> message is sent with its
+   * sequence number and acknowledgement in the frame header.
+   *
+   * @param msg         the message.
+   * @param lane        the lane of the frame.
+   * @param compression the compression.
+   * @return the frame, ready to be written.
+   * @exception IOException if the message cannot be serialized.
+   */
+  public static ByteBuffer encode(Object msg, Lane lane,
+    Compression compression) throws IOException
+  {
+    Sequenced numbered = msg instanceof Sequenced ? (Sequenced)msg : null;
+    byte[] message = numbered != null ? numbered.payload() : serialize(msg);
+    byte[] compressed = compression.compress(message);
+    byte[] body = compressed != null ? compressed : message;
+    int length = body.length + (numbered != null ? SEQUENCED_SIZE : 0);
+
+    ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + length);
+    frame.putInt(length).put((byte)flags(lane, numbered, compressed));
+    if (numbered != null)
+      frame.putLong(numbered.getSequence()).putLong(numbered.getAck());
+    frame.put(body).flip();
+    return frame;
+  }
+
+  /**
+   * Writes a frame to a stream. The stream is not flushed.
+   *
+   * @param out the stream.
+   * @param msg the message.
+   * @exception IOException if an I/O error occurs.
+   */
+  public static void write(DataOutputStream out, Object msg)
+    throws IOException
+  {
+    write(out, msg, Lane.NORMAL);
+  }
+
+  /**
+   * Writes a frame of a given lane to a stream. The stream is not
+   * flushed.
+   *
+   * @param out  the stream.
+   * @param msg  the message.
+   * @param lane the lane of the frame.
+   * @exception IOException if an I/O error occurs.
+   */
+  public static void write(DataOutputStream out, Object msg, Lane lane)
+    throws IOException
+  {
+    writeFrame(out, serialize(msg), lane);
+  }
+
+  /**
+   * Writes a frame around a message already serialized. The stream is
+   * not flushed.
+   *
+   * @param out     the stream.
+   * @param payload the message, serialized.
+   * @param lane    the lane of the frame.
+   * @exception IOException if an I/O error occurs.
+   */
+  public static void writeFrame(DataOutputStream out, byte[] payload,
+    Lane lane) throws IOException
+  {
+    out.writeInt(payload.length);
+    out.writeByte(lane.getFlag());
+    out.write(payload);
+  }
+
+  /**
+   * Writes a frame to a stream for a peer that negotiated compression.
+   * A <code>Sequenced</code> message is sent with its sequence number
+   * and acknowledgement in the frame header. The stream is not flushed.
+   *
+   * @param out         the stream.
+   * @param msg         the message.
+   * @param lane        the lane of the frame.
+   * @param compression the compression.
+   * @exception IOException if an I/O error occurs.
+   */
+  public static void write(DataOutputStream out, Object msg, Lane lane,
+    Compression compression) throws IOException
+  {
+    if (msg instanceof Sequenced)
+      writeFrame(out, (Sequenced)msg, lane, compression);
+    else
+      writeFrame(out, serialize(msg), lane, compression);
+  }
+
+  /**
+   * Writes a frame around a message already serialized, for a peer that
+   * negotiated compression. The same array given for several peers is
+   * only compressed once. The stream is not flushed.
+   *
+   * @param out         the stream.
+   * @param payload     the message, serialized.
+   * @param lane        the lane of the frame.
+   * @param compression the compression.
+   * @exception IOException if an I/O error occurs.
+   */
+  public static void writeFrame(DataOutputStream out, byte[] payload,
+    Lane lane, Compression compression) throws IOException
+  {
+    byte[] compressed = compression.compress(payload);
+    byte[] body = compressed != null ? compressed : payload;
+    out.writeInt(body.length);
+    out.writeByte(flags(lane, null, compressed));
+    out.write(body);
+  }
+
+  /**
+   * Writes a <code>Sequenced</code> message for a peer that negotiated
+   * compression: its sequence number and acknowledgement, then the
+   * message, compressed if worth it. A message given serialized, as the
+   * same array for several peers, is only compressed once. The stream
+   * is not flushed.
+   *
+   * @param out         the stream.
+   * @param numbered    the message.
+   * @param lane        the lane of the frame.
+   * @param compression the compression.
+   * @exception IOException if an I/O error occurs.
+   */
+  public static void writeFrame(DataOutputStream out, Sequenced numbered,
+    Lane lane, Compression compression) throws IOException
+  {
+    byte[] message = numbered.payload();
+    byte[] compressed = compression.compress(message);
+    byte[] body = compressed != null ? compressed : message;
+    out.writeInt(SEQUENCED_SIZE + body.length);
+    out.writeByte(flags(lane, numbered, compressed));
+    out.writeLong(numbered.getSequence());
+    out.writeLong(numbered.getAck());
+    out.write(body);
+  }
+
+  /**
+   * Writes the header of a frame of file data, which the caller follows
+   * with the data itself, e.g. with <code>FileChannel.transferTo</code>
+   * once the stream is flushed.
+   *
+   * @param out    the stream.
+   * @param id     the id of the transfer.
+   * @param offset the offset of the data in the file.
+   * @param length the length of the data, at most <code>Chunk.SIZE</code>.
+   * @param lane   the lane of the frame.
+   * @exception IOException if an I/O error occurs.
+   */
+  public static void writeData(DataOutputStream out, long id, long offset,
+    int length, Lane lane) throws IOException
+  {
+    out.writeInt(SEQUENCED_SIZE + length);
+    out.writeByte(lane.getFlag() | DATA);
+    out.writeLong(id);
+    out.writeLong(offset);
+  }
+
+  private static int flags(Lane lane, Sequenced numbered, byte[] compressed)
+  {
+    return lane.getFlag() | (numbered != null ? SEQUENCED : 0)
+      | (compressed != null ? COMPRESSED : 0);
+  }
+
+  /**
+   * Reads a frame from a stream, blocking until it is complete.
+   *
+   * @param in the stream.
+   * @return the message.
+   * @exception IOException if an I/O error occurs or the frame is
+   *    invalid.
+   * @exception ClassNotFoundException if the class of the message is
+   *    not found.
+   */
+  public static Object read(DataInputStream in)
+    throws IOException, ClassNotFoundException
+  {
+    return read(in, MAX_FRAME_SIZE);
+  }
+
+  /**
+   * Reads a frame from a stream, blocking until it is complete.
+   *
+   * @param in      the stream.
+   * @param maxSize the largest payload accepted, in bytes; no more than
+   *                <code>MAX_FRAME_SIZE</code> is ever accepted.
+   * @return the message.
+   * @exception IOException if an I/O error occurs or the frame is
+   *    invalid.
+   * @exception ClassNotFoundException if the class of the message is
+   *    not found.
+   */
+  public static Object read(DataInputStream in, int maxSize)
+    throws IOException, ClassNotFoundException
+  {
+    return read(in, maxSize, null);
+  }
+
+  /**
+   * Reads a frame from a stream, blocking until it is complete, and
+   * deserializes it under a filter.
+   *
+   * @param in      the stream.
+   * @param maxSize the largest payload accepted, in bytes; no more than
+   *                <code>MAX_FRAME_SIZE</code> is ever accepted.
+   * @param filter  the filter, or null for none.
+   * @return the message.
+   * @exception IOException if an I/O error occurs, the frame is
+   *    invalid or the filter rejects the message.
+   * @exception ClassNotFoundException if the class of the message is
+   *    not found.
+   */
+  public static Object read(DataInputStream in, int maxSize,
+    ObjectInputFilter filter) throws IOException, ClassNotFoundException
+  {
+    return read(in, maxSize, filter, null);
+  }
+
+  /**
+   * Reads a frame from a stream, blocking until it is complete, and
+   * decodes it under a filter. Compressed frames are only accepted with
+   * a compression.
+   *
+   * @param in          the stream.
+   * @param maxSize     the largest payload accepted, in bytes, and the
+   *                    largest message once decompressed.
+   * @param filter      the filter, or null for none.
+   * @param compression the compression negotiated, or null.
+   * @return the message.
+   * @exception IOException if an I/O error occurs, the frame is
+   *    invalid or the filter rejects the message.
+   * @exception ClassNotFoundException if the class of the message is
+   *    not found.
+   */
+  public static Object read(DataInputStream in, int maxSize,
+    ObjectInputFilter filter, Compression compression)
+    throws IOException, ClassNotFoundException
+  {
+    int length = in.readInt();
+    byte flags = in.readByte();
+    checkHeader(length, flags, maxSize);
+    byte[] payload = new byte[length];
+    in.readFully(payload);
+    return decode(payload, flags, maxSize, filter, compression);
+  }
+
+  /**
+   * Decodes the payload of a frame under a filter, decompressing it if
+   * its flags say so. A frame of file data is decoded as a
+   * <code>FileData</code> holding the payload.
+   *
+   * @param payload     the payload.
+   * @param flags       the flags of the frame.
+   * @param maxSize     the largest message accepted once decompressed,
+   *                    in bytes.
+   * @param filter      the filter, or null for none.
+   * @param compression the compression negotiated, or null.
+   * @return the message.
+   * @exception IOException if the payload is invalid, compressed
+   *    without a compression, or the filter rejects the message.
+   * @exception ClassNotFoundException if the class of the message is
+   *    not found.
+   */
+  public static Object decode(byte[] payload, byte flags, int maxSize,
+    ObjectInputFilter filter, Compression compression)
+    throws IOException, ClassNotFoundException
+  {
+    if ((flags & DATA) != 0)
+    {
+      if ((flags & (COMPRESSED | SEQUENCED)) != 0
+        || payload.length < SEQUENCED_SIZE)
+        throw new StreamCorruptedException("invalid data frame");
+      ByteBuffer data = ByteBuffer.wrap(payload);
+      return new FileData(data.getLong(), data.getLong(), data.slice());
+    }
+    if ((flags & (COMPRESSED | SEQUENCED)) == 0)
+      return deserialize(payload, filter);
+    if (compression == null)
+      throw new StreamCorruptedException("compression not negotiated");
+
+    boolean numbered = (flags & SEQUENCED) != 0;
+    if (numbered && payload.length < SEQUENCED_SIZE)
+      throw new StreamCorruptedException("invalid frame length "
+        + payload.length);
+    int offset = numbered ? SEQUENCED_SIZE : 0;
+    byte[] message = (flags & COMPRESSED) != 0
+      ? compression.decompress(payload, offset, Math.min(maxSize,
+        MAX_FRAME_SIZE))
+      : Arrays.copyOfRange(payload, offset, payload.length);
+    Object msg = deserialize(message, filter);
+    if (!numbered)
+      return msg;
+    ByteBuffer header = ByteBuffer.wrap(payload, 0, SEQUENCED_SIZE);
+    return new Sequenced(header.getLong(), header.getLong(), msg);
+  }
+
+  /**
+   * Checks the header of a frame.
+   *
+   * @param length the length of the payload.
+   * @param flags  the flags.
+   * @exception IOException if the header is invalid.
+   */
+  public static void checkHeader(int length, byte flags) throws IOException
+  {
+    checkHeader(length, flags, MAX_FRAME_SIZE);
+  }
+
+  /**
+   * Checks the header of a frame against a size limit.
+   *
+   * @param length  the length of the payload.
+   * @param flags   the flags.
+   * @param maxSize the largest payload accepted, in bytes; no more than
+   *                <code>MAX_FRAME_SIZE</code> is ever accepted.
+   * @exception IOException if the header is invalid.
+   */
+  public static void checkHeader(int length, byte flags, int maxSize)
+    throws IOException
+  {
+    if (length < 0 || length > Math.min(maxSize, MAX_FRAME_SIZE))
+      throw new StreamCorruptedException("invalid frame length " + length);
+    if ((flags & ~(Lane.MASK | COMPRESSED | SEQUENCED | DATA)) != 0
+      || Lane.fromFlags(flags) == null)
+      throw new StreamCorruptedException("unsupported frame flags " + flags);
+  }
+}
+// End of FrameCodec class
@@ -0,0 +1,69 @@
+package ocsf.protocol;
+
+/**
+ * The priority class of a frame. Each connection to a client queues
+ * the messages to send in one lane per class: control messages, such
+ * as notices from the server console, login replies and kicks, are
+ * written before anything else, and bulk traffic still gets a share of
+ * the connection while ordinary chat is flowing. Messages keep their
+ * order within a lane.<p>
+ *
+ * The lane travels in the flags of the frame, so that a peer relaying
+ * frames can keep the priority.
+ *
+ * @see ocsf.server.ConnectionToClient#sendToClient(Object, Lane)
+ */
+public enum Lane
+{
+  /**
+   * Written first, ahead of any queued chat.
+   */
+  CONTROL(1),
+
+  /**
+   * Ordinary traffic; the lane of messages sent without one.
+   */
+  NORMAL(0),
+
+  /**
+   * Large or low priority traffic, e.g. history or files, written
+   * between normal messages.
+   */
+  BULK(2);
+
+  /**
+   * The bits of the frame flags that hold the lane.
+   */
+  static final int MASK = 0x03;
+
+  private final int flag;
+
+  Lane(int flag)
+  {
+    this.flag = flag;
+  }
+
+  /**
+   * @return the value of the lane in the frame flags.
+   */
+  public int getFlag()
+  {
+    return flag;
+  }
+
+  /**
+   * @param flags the flags of a frame.
+   * @return the lane of the frame, or null if the flags name none.
+   */
+  public static Lane fromFlags(int flags)
+  {
+    switch (flags & MASK)
+    {
+      case 0: return NORMAL;
+      case 1: return CONTROL;
+      case 2: return BULK;
+      default: return null;
+    }
+  }
+}
+// End of Lane class
@@ -0,0 +1,282 @@
+package ocsf.protocol;
+
+import java.io.ObjectInputFilter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The policy applied while a message from a peer is deserialized, so
+ * that a peer cannot make the receiver spend its CPU and memory on a
+ * huge or deeply nested object graph before the message is handled.
+ * The limits are checked by the <code>ObjectInputStream</code> as it
+ * reads, before the objects are allocated; a message that breaks one
+ * is rejected with an <code>InvalidClassException</code>, which closes
+ * the connection.<p>
+ *
+ * By default any class is accepted. Once a class is allowed with
+ * <code>allow</code>, only the allowed classes are, besides the classes
+ * of the framework in <code>ocsf.protocol</code> and the superclasses
+ * <code>Object</code>, <code>Enum</code> and <code>Number</code>. Each
+ * rejection is counted by reason.<p>
+ *
+ * A filter may be shared by the connections of a server, and changed
+ * while they are open.
+ *
+ * @see ocsf.server.AbstractServer#setMessageFilter(MessageFilter)
+ * @see ocsf.client.AbstractClient#setMessageFilter(MessageFilter)
+ */
+public class MessageFilter implements ObjectInputFilter
+{
+  /**
+   * Why a message was rejected.
+   */
+  public enum Reason
+  {
+    /** Its class, or the class of one of its objects, is not allowed. */
+    CLASS,
+
+    /** Its objects are nested too deeply. */
+    DEPTH,
+
+    /** One of its arrays is too long. */
+    ARRAY_LENGTH,
+
+    /** It holds too many objects and references. */
+    REFERENCES,
+
+    /** It is too large. */
+    BYTES
+  }
+
+  // Class variables *************************************************
+
+  /**
+   * The default limit on the nesting of objects.
+   */
+  public static final long DEFAULT_MAX_DEPTH = 64;
+
+  /**
+   * The default limit on the number of objects and references.
+   */
+  public static final long DEFAULT_MAX_REFERENCES = 1000000;
+
+  // Instance variables **********************************************
+
+  private volatile long maxDepth = DEFAULT_MAX_DEPTH;
+
+  private volatile long maxArrayLength = FrameCodec.MAX_FRAME_SIZE;
+
+  private volatile long maxReferences = DEFAULT_MAX_REFERENCES;
+
+  /**
+   * By default, messages are only limited by the maximum message size
+   * of the connection.
+   */
+  private volatile long maxBytes = Long.MAX_VALUE;
+
+  /**
+   * The patterns of the allowed classes; empty to allow any class.
+   */
+  private final List<String> allowed = new CopyOnWriteArrayList<>();
+
+  /**
+   * The number of rejections, by reason.
+   */
+  private final AtomicLongArray rejected =
+    new AtomicLongArray(Reason.values().length);
+
+  // Instance methods ************************************************
+
+  /**
+   * Allows a class, or the classes of a package. A pattern is the name
+   * of a class, e.g. <code>java.lang.String</code>; a package followed
+   * by <code>.*</code> for the classes of the package, nested classes
+   * included; or a package followed by <code>.**</code> for those of
+   * its subpackages too. The arrays of allowed classes are allowed.
+   *
+   * @param patterns the classes allowed.
+   * @return this filter.
+   */
+  public MessageFilter allow(String... patterns)
+  {
+    for (String pattern : patterns)
+    {
+      if (pattern.isEmpty() || pattern.equals(".*") || pattern.equals(".**"))
+        throw new IllegalArgumentException("invalid pattern " + pattern);
+      allowed.add(pattern);
+    }
+    return this;
+  }
+
+  /**
+   * Sets how deeply the objects of a message may be nested.
+   *
+   * @param maxDepth the depth; the message itself is at depth 1.
+   */
+  public void setMaxDepth(long maxDepth)
+  {
+    this.maxDepth = check(maxDepth);
+  }
+
+  /**
+   * Sets the length of the longest array a message may hold.
+   *
+   * @param maxArrayLength the length, in elements.
+   */
+  public void setMaxArrayLength(long maxArrayLength)
+  {
+    this.maxArrayLength = check(maxArrayLength);
+  }
+
+  /**
+   * Sets how many objects and references to objects already read a
+   * message may hold.
+   *
+   * @param maxReferences the number of objects and references.
+   */
+  public void setMaxReferences(long maxReferences)
+  {
+    this.maxReferences = check(maxReferences);
+  }
+
+  /**
+   * Sets the size of the largest message, serialized. The connections
+   * also refuse frames larger than their maximum message size before
+   * reading them; this limit applies to the messages nested in others,
+   * e.g. in a <code>Sequenced</code>, as they are read.
+   *
+   * @param maxBytes the size, in bytes.
+   */
+  public void setMaxBytes(long maxBytes)
+  {
+    this.maxBytes = check(maxBytes);
+  }
+
+  /**
+   * @return how deeply the objects of a message may be nested.
+   */
+  public long getMaxDepth()
+  {
+    return maxDepth;
+  }
+
+  /**
+   * @return the length of the longest array a message may hold.
+   */
+  public long getMaxArrayLength()
+  {
+    return maxArrayLength;
+  }
+
+  /**
+   * @return how many objects and references a message may hold.
+   */
+  public long getMaxReferences()
+  {
+    return maxReferences;
+  }
+
+  /**
+   * @return the size of the largest message, in bytes.
+   */
+  public long getMaxBytes()
+  {
+    return maxBytes;
+  }
+
+  /**
+   * @param reason a reason for rejecting messages.
+   * @return the number of messages rejected for that reason.
+   */
+  public long getRejected(Reason reason)
+  {
+    return rejected.get(reason.ordinal());
+  }
+
+  /**
+   * @return the number of messages rejected.
+   */
+  public long getRejected()
+  {
+    long total = 0;
+    for (int i = 0; i < rejected.length(); i++)
+      total += rejected.get(i);
+    return total;
+  }
+
+  /**
+   * Checks the next step of the deserialization of a message. Called
+   * by the <code>ObjectInputStream</code>.
+   *
+   * @param info what is about to be read.
+   * @return <code>REJECTED</code> if the message breaks a limit or has
+   *         an object of a class not allowed, <code>ALLOWED</code> for
+   *         a class allowed, and <code>UNDECIDED</code> otherwise.
+   */
+  public Status checkInput(FilterInfo info)
+  {
+    if (info.depth() > maxDepth)
+      return reject(Reason.DEPTH);
+    if (info.references() > maxReferences)
+      return reject(Reason.REFERENCES);
+    if (info.streamBytes() > maxBytes)
+      return reject(Reason.BYTES);
+    if (info.arrayLength() > maxArrayLength)
+      return reject(Reason.ARRAY_LENGTH);
+
+    Class<?> type = info.serialClass();
+    if (type == null)
+      return Status.UNDECIDED;
+    while (type.isArray())
+      type = type.getComponentType();
+    return isAllowed(type) ? Status.ALLOWED : reject(Reason.CLASS);
+  }
+
+  /**
+   * @param type a class other than an array.
+   * @return true if its objects may be read.
+   */
+  private boolean isAllowed(Class<?> type)
+  {
+    List<String> patterns = allowed;
+    if (patterns.isEmpty() || type.isPrimitive()
+      || type.getPackageName().equals("ocsf.protocol")
+      || type == Object.class || type == Enum.class || type == Number.class)
+      return true;
+
+    String name = type.getName();
+    String packageName = type.getPackageName();
+    for (String pattern : patterns)
+    {
+      if (pattern.endsWith(".**"))
+      {
+        String prefix = pattern.substring(0, pattern.length() - 3);
+        if (packageName.equals(prefix) || packageName.startsWith(prefix + "."))
+          return true;
+      }
+      else if (pattern.endsWith(".*"))
+      {
+        if (packageName.equals(pattern.substring(0, pattern.length() - 2)))
+          return true;
+      }
+      else if (name.equals(pattern))
+        return true;
+    }
+    return false;
+  }
+
+  private Status reject(Reason reason)
+  {
+    rejected.incrementAndGet(reason.ordinal());
+    return Status.REJECTED;
+  }
+
+  private static long check(long limit)
+  {
+    if (limit <= 0)
+      throw new IllegalArgumentException("invalid limit " + limit);
+    return limit;
+  }
+}
+// End of MessageFilter class
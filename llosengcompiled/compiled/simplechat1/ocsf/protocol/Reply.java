@@ -0,0 +1,44 @@
+package ocsf.protocol;
+
+import java.io.Serializable;
+
+/**
+ * The answer of the server to a <code>Request</code>, carrying the
+ * correlation id of that request.
+ */
+public class Reply implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+
+  private final long id;
+
+  private final Object message;
+
+  /**
+   * Constructs a reply.
+   *
+   * @param id      the correlation id of the request answered.
+   * @param message the answer.
+   */
+  public Reply(long id, Object message)
+  {
+    this.id = id;
+    this.message = message;
+  }
+
+  /**
+   * @return the correlation id of the request answered.
+   */
+  public long getId()
+  {
+    return id;
+  }
+
+  /**
+   * @return the answer.
+   */
+  public Object getMessage()
+  {
+    return message;
+  }
+}
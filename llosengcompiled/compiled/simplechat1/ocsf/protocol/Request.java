@@ -0,0 +1,58 @@
+package ocsf.protocol;
+
+import java.io.Serializable;
+
+/**
+ * A message sent by <code>AbstractClient.request</code> that expects a
+ * reply. The server receives it as is and answers it with
+ * <code>ConnectionToClient.reply</code>; the correlation id lets the
+ * client match the reply to its request while many requests are in
+ * flight on the same connection.
+ *
+ * @see ocsf.client.AbstractClient#request(Object, long)
+ * @see ocsf.server.ConnectionToClient#reply(Request, Object)
+ */
+public class Request implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+
+  private final long id;
+
+  private final Object message;
+
+  /**
+   * Constructs a request.
+   *
+   * @param id      the correlation id, unique on its connection.
+   * @param message the message.
+   */
+  public Request(long id, Object message)
+  {
+    this.id = id;
+    this.message = message;
+  }
+
+  /**
+   * @return the correlation id.
+   */
+  public long getId()
+  {
+    return id;
+  }
+
+  /**
+   * @return the message.
+   */
+  public Object getMessage()
+  {
+    return message;
+  }
+
+  /**
+   * @return a description of the request.
+   */
+  public String toString()
+  {
+    return "#" + id + " " + message;
+  }
+}
@@ -0,0 +1,54 @@
+package ocsf.protocol;
+
+import java.io.Serializable;
+
+/**
+ * Sent by a client as the first message of a connection when session
+ * resume is enabled. A client that has never been granted a session
+ * sends a null token and is granted a new one.
+ *
+ * @see ocsf.protocol.SessionGrant
+ */
+public class ResumeRequest implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The token of the session to resume, or null.
+   */
+  private final String token;
+
+  /**
+   * The sequence number of the last message the client received.
+   */
+  private final long lastReceived;
+
+  /**
+   * Constructs a request.
+   *
+   * @param token        the token of the session to resume, or null.
+   * @param lastReceived the sequence number of the last message
+   *        received in that session.
+   */
+  public ResumeRequest(String token, long lastReceived)
+  {
+    this.token = token;
+    this.lastReceived = lastReceived;
+  }
+
+  /**
+   * @return the token of the session to resume, or null.
+   */
+  public String getToken()
+  {
+    return token;
+  }
+
+  /**
+   * @return the sequence number of the last message received.
+   */
+  public long getLastReceived()
+  {
+    return lastReceived;
+  }
+}
@@ -0,0 +1,121 @@
+package ocsf.protocol;
+
+import java.io.*;
+
+/**
+ * A message sent within a session, stamped with its position in that
+ * session and with a cumulative acknowledgement of the messages received
+ * from the other side. Each side remembers the last sequence number it
+ * received, drops duplicates, and keeps what it sent until the other
+ * side acknowledges it, so that a resumed session only retransmits the
+ * messages that were missed.<p>
+ *
+ * The message travels serialized on its own, so that a message already
+ * serialized, e.g. to find out whether it must be split into chunks, is
+ * not serialized again.
+ */
+public class Sequenced implements Serializable
+{
+  private static final long serialVersionUID = 2L;
+
+  private final long sequence;
+
+  /**
+   * The last sequence number received from the other side.
+   */
+  private final long ack;
+
+  /**
+   * The message; null on the sending side when it was given serialized.
+   */
+  private transient Object message;
+
+  /**
+   * The message serialized, or null if it is serialized when written.
+   */
+  private transient byte[] payload;
+
+  /**
+   * Constructs a sequenced message.
+   *
+   * @param sequence the position of the message in its session.
+   * @param ack      the last sequence number received from the other side.
+   * @param message  the message.
+   */
+  public Sequenced(long sequence, long ack, Object message)
+  {
+    this.sequence = sequence;
+    this.ack = ack;
+    this.message = message;
+  }
+
+  /**
+   * Constructs a sequenced message from a message already serialized.
+   *
+   * @param sequence the position of the message in its session.
+   * @param ack      the last sequence number received from the other side.
+   * @param payload  the message, serialized with
+   *                 <code>FrameCodec.serialize</code>.
+   * @return the sequenced message.
+   */
+  public static Sequenced serialized(long sequence, long ack, byte[] payload)
+  {
+    Sequenced sequenced = new Sequenced(sequence, ack, null);
+    sequenced.payload = payload;
+    return sequenced;
+  }
+
+  /**
+   * @return the position of the message in its session.
+   */
+  public long getSequence()
+  {
+    return sequence;
+  }
+
+  /**
+   * @return the last sequence number received from the other side.
+   */
+  public long getAck()
+  {
+    return ack;
+  }
+
+  /**
+   * @return the message; null on the sending side if it was given
+   *         serialized.
+   */
+  public Object getMessage()
+  {
+    return message;
+  }
+
+  /**
+   * @return the message serialized, as given or once serialized.
+   */
+  byte[] payload() throws IOException
+  {
+    return payload != null ? payload : FrameCodec.serialize(message);
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException
+  {
+    out.defaultWriteObject();
+    byte[] bytes = payload();
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private void readObject(ObjectInputStream in)
+    throws IOException, ClassNotFoundException
+  {
+    in.defaultReadObject();
+    int length = in.readInt();
+    if (length < 0 || length > FrameCodec.MAX_FRAME_SIZE)
+      throw new StreamCorruptedException("invalid message length " + length);
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    // Under the filter of the frame, so that its limits cover the message
+    message = FrameCodec.deserialize(bytes, in.getObjectInputFilter());
+  }
+}
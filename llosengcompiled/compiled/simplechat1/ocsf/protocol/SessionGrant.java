@@ -0,0 +1,73 @@
+package ocsf.protocol;
+
+import java.io.Serializable;
+
+/**
+ * The server's answer to a <code>ResumeRequest</code>. It gives the
+ * token the client must present to resume the session after losing its
+ * connection, and says whether the requested session was resumed. When
+ * it was, the messages the client missed follow this grant and the
+ * client is still logged in; otherwise a new session was started and
+ * the client must log in again. A server without session resume
+ * answers with no token: the client must log in again, and is given no
+ * session.
+ *
+ * @see ocsf.protocol.ResumeRequest
+ */
+public class SessionGrant implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+
+  private final String token;
+
+  /**
+   * True if an existing session was resumed.
+   */
+  private final boolean resumed;
+
+  /**
+   * The last sequence number the server received in the session. The
+   * client retransmits the messages that follow it.
+   */
+  private final long lastReceived;
+
+  /**
+   * Constructs a grant.
+   *
+   * @param token   the token of the session, or null for none.
+   * @param resumed true if an existing session was resumed.
+   * @param lastReceived the last sequence number received from the
+   *        client in the session.
+   */
+  public SessionGrant(String token, boolean resumed, long lastReceived)
+  {
+    this.token = token;
+    this.resumed = resumed;
+    this.lastReceived = lastReceived;
+  }
+
+  /**
+   * @return the token of the session, or null if the server keeps no
+   *         sessions.
+   */
+  public String getToken()
+  {
+    return token;
+  }
+
+  /**
+   * @return true if an existing session was resumed.
+   */
+  public boolean isResumed()
+  {
+    return resumed;
+  }
+
+  /**
+   * @return the last sequence number received from the client.
+   */
+  public long getLastReceived()
+  {
+    return lastReceived;
+  }
+}
@@ -0,0 +1,514 @@
+package ocsf.protocol;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.*;
+import java.util.UUID;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * A connection between two processes on the same host through a
+ * memory-mapped file, for the clients that cannot afford even a Unix
+ * domain socket. The file holds two single-producer, single-consumer
+ * ring buffers, one per direction; the frames written to one side's
+ * output stream are read from the other side's input stream without a
+ * system call.<p>
+ *
+ * A client connects by creating a ring file in the directory the
+ * server watches, and waits for the server to accept it. The file is
+ * deleted once accepted; both processes keep their mapping.<p>
+ *
+ * A thread waiting for data or for room spins briefly, then yields,
+ * then parks for up to <code>MAX_PARK_NANOS</code>: it cannot be woken
+ * by the other process, so an idle connection costs a thread waking up
+ * about once a millisecond, and a busy one is served within
+ * microseconds. Each side holds a lock on a byte of the file, which the
+ * system releases if its process dies, so that the other side sees the
+ * end of the stream instead of waiting forever.<p>
+ *
+ * Only one thread may write at a time and one read at a time; the
+ * OCSF already serializes its writes.
+ *
+ * @see ocsf.server.AbstractServer#addSharedMemoryEndpoint(Path)
+ * @see ocsf.client.AbstractClient#setSharedMemoryDirectory(Path)
+ */
+public final class SharedMemoryChannel implements Closeable
+{
+  // Class variables *************************************************
+
+  /**
+   * Size of each ring buffer, in bytes.
+   */
+  public static final int DEFAULT_CAPACITY = 1 << 20;
+
+  /**
+   * How long a client waits for the server to accept its ring, in ms.
+   */
+  public static final long CONNECT_TIMEOUT = 5000;
+
+  /**
+   * The suffix of the ring files waiting to be accepted.
+   */
+  public static final String SUFFIX = ".ring";
+
+  /**
+   * Longest a waiting thread parks before checking again, in ns.
+   */
+  public static final long MAX_PARK_NANOS = 1000000;
+
+  /**
+   * Busy waits before yielding; none on a single processor, where
+   * spinning only delays the thread that would end the wait.
+   */
+  private static final int SPINS =
+    Runtime.getRuntime().availableProcessors() > 1 ? 2000 : 0;
+
+  private static final int YIELDS = 100;
+
+  private static final long MIN_PARK_NANOS = 10000;
+
+  /**
+   * Waits between two checks that the other process is alive, once
+   * parking.
+   */
+  private static final int LIVENESS_INTERVAL = 64;
+
+  private static final int MAGIC = 0x4f435346;
+
+  // Layout of the file: each index on a cache line of its own
+  private static final int MAGIC_OFFSET = 0;
+  private static final int CAPACITY_OFFSET = 4;
+  private static final int ACCEPTED_OFFSET = 64;
+  private static final int CLIENT_CLOSED_OFFSET = 68;
+  private static final int SERVER_CLOSED_OFFSET = 72;
+  private static final int TO_SERVER_TAIL = 128;
+  private static final int TO_SERVER_HEAD = 192;
+  private static final int TO_CLIENT_TAIL = 256;
+  private static final int TO_CLIENT_HEAD = 320;
+  private static final int DATA_OFFSET = 512;
+
+  // The bytes locked by each side while its process is alive
+  private static final long CLIENT_LOCK = 0;
+  private static final long SERVER_LOCK = 1;
+
+  private static final VarHandle LONG =
+    MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+  private static final VarHandle INT =
+    MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+  // Instance variables **********************************************
+
+  private final FileChannel file;
+
+  private final MappedByteBuffer memory;
+
+  /**
+   * The lock held on this side's byte of the file.
+   */
+  private final FileLock lock;
+
+  private final boolean server;
+
+  private final Ring in;
+
+  private final Ring out;
+
+  private volatile boolean closed = false;
+
+  // Constructors ****************************************************
+
+  private SharedMemoryChannel(FileChannel file, MappedByteBuffer memory,
+    FileLock lock, boolean server, int capacity)
+  {
+    this.file = file;
+    this.memory = memory;
+    this.lock = lock;
+    this.server = server;
+
+    Ring toServer = new Ring(TO_SERVER_TAIL, TO_SERVER_HEAD, DATA_OFFSET,
+      capacity);
+    Ring toClient = new Ring(TO_CLIENT_TAIL, TO_CLIENT_HEAD,
+      DATA_OFFSET + capacity, capacity);
+    in = server ? toServer : toClient;
+    out = server ? toClient : toServer;
+  }
+
+  // Class methods ***************************************************
+
+  /**
+   * Connects to the server watching a directory, with rings of the
+   * default capacity.
+   *
+   * @param directory the directory of the server's endpoint.
+   * @return the connection, once accepted.
+   * @exception IOException if the ring cannot be created or the server
+   *    does not accept it in time.
+   */
+  public static SharedMemoryChannel connect(Path directory) throws IOException
+  {
+    return connect(directory, DEFAULT_CAPACITY, CONNECT_TIMEOUT);
+  }
+
+  /**
+   * Connects to the server watching a directory.
+   *
+   * @param directory the directory of the server's endpoint.
+   * @param capacity  the size of each ring, a power of two.
+   * @param timeout   how long to wait for the server, in ms.
+   * @return the connection, once accepted.
+   * @exception IOException if the ring cannot be created or the server
+   *    does not accept it in time.
+   */
+  public static SharedMemoryChannel connect(Path directory, int capacity,
+    long timeout) throws IOException
+  {
+    if (capacity <= 0 || Integer.bitCount(capacity) != 1
+      || capacity > (Integer.MAX_VALUE - DATA_OFFSET) / 2)
+      throw new IllegalArgumentException("invalid capacity " + capacity);
+
+    String name = UUID.randomUUID().toString();
+    Path created = directory.resolve(name + ".tmp");
+    Path ring = directory.resolve(name + SUFFIX);
+    FileChannel file = FileChannel.open(created, CREATE_NEW, READ, WRITE);
+    try
+    {
+      FileLock lock = file.lock(CLIENT_LOCK, 1, false);
+      MappedByteBuffer memory = file.map(FileChannel.MapMode.READ_WRITE, 0,
+        DATA_OFFSET + 2L * capacity);
+      memory.putInt(CAPACITY_OFFSET, capacity);
+      INT.setRelease(memory, MAGIC_OFFSET, MAGIC);
+      SharedMemoryChannel channel =
+        new SharedMemoryChannel(file, memory, lock, false, capacity);
+
+      // Only a complete ring appears in the directory
+      Files.move(created, ring, StandardCopyOption.ATOMIC_MOVE);
+
+      long deadline = System.nanoTime() + timeout * 1000000;
+      int idle = 0;
+      while ((int)INT.getAcquire(memory, ACCEPTED_OFFSET) == 0)
+      {
+        if (System.nanoTime() > deadline)
+          throw new ConnectException("no server accepted " + ring);
+        idle = await(idle);
+      }
+      return channel;
+    }
+    catch (IOException ex)
+    {
+      file.close();
+      Files.deleteIfExists(created);
+      Files.deleteIfExists(ring);
+      throw ex;
+    }
+  }
+
+  /**
+   * Accepts the ring file of a client. The file is deleted, whether the
+   * client is accepted or not.
+   *
+   * @param ring the ring file found in the server's directory.
+   * @return the connection to the client.
+   * @exception IOException if the file is not a ring or its client is
+   *    gone.
+   */
+  public static SharedMemoryChannel accept(Path ring) throws IOException
+  {
+    FileChannel file = FileChannel.open(ring, READ, WRITE);
+    try
+    {
+      long size = file.size();
+      if (size < DATA_OFFSET || size > Integer.MAX_VALUE)
+        throw new StreamCorruptedException("not a ring: " + ring);
+      MappedByteBuffer memory =
+        file.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      int capacity = memory.getInt(CAPACITY_OFFSET);
+      if ((int)INT.getAcquire(memory, MAGIC_OFFSET) != MAGIC
+        || capacity <= 0 || DATA_OFFSET + 2L * capacity != size)
+        throw new StreamCorruptedException("not a ring: " + ring);
+
+      FileLock lock = file.tryLock(SERVER_LOCK, 1, false);
+      if (lock == null)
+        throw new ConnectException("ring already accepted: " + ring);
+      SharedMemoryChannel channel =
+        new SharedMemoryChannel(file, memory, lock, true, capacity);
+      if (channel.peerDead())
+        throw new ConnectException("client gone: " + ring);
+
+      INT.setRelease(memory, ACCEPTED_OFFSET, 1);
+      return channel;
+    }
+    catch (IOException | OverlappingFileLockException ex)
+    {
+      file.close();
+      if (ex instanceof IOException)
+        throw (IOException)ex;
+      throw new ConnectException("ring already accepted: " + ring);
+    }
+    finally
+    {
+      Files.deleteIfExists(ring);
+    }
+  }
+
+  /**
+   * Waits a little, longer each time.
+   *
+   * @param idle how many times the caller has waited already.
+   * @return the new count.
+   */
+  private static int await(int idle)
+  {
+    if (idle < SPINS)
+      Thread.onSpinWait();
+    else if (idle < SPINS + YIELDS)
+      Thread.yield();
+    else
+      LockSupport.parkNanos(Math.min(MAX_PARK_NANOS,
+        MIN_PARK_NANOS << Math.min(idle - SPINS - YIELDS, 10)));
+    return idle + 1;
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * @return the stream of the frames from the other process; closing
+   *         it closes the connection.
+   */
+  public InputStream getInputStream()
+  {
+    return new InputStream()
+    {
+      public int read() throws IOException
+      {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException
+      {
+        return in.read(b, off, len);
+      }
+
+      public int available()
+      {
+        return in.available();
+      }
+
+      public void close() throws IOException
+      {
+        SharedMemoryChannel.this.close();
+      }
+    };
+  }
+
+  /**
+   * @return the stream of the frames to the other process; closing it
+   *         closes the connection.
+   */
+  public OutputStream getOutputStream()
+  {
+    return new OutputStream()
+    {
+      public void write(int b) throws IOException
+      {
+        write(new byte[] {(byte)b}, 0, 1);
+      }
+
+      public void write(byte[] b, int off, int len) throws IOException
+      {
+        out.write(b, off, len);
+      }
+
+      public void close() throws IOException
+      {
+        SharedMemoryChannel.this.close();
+      }
+    };
+  }
+
+  /**
+   * @return true if the connection is not closed on this side.
+   */
+  public boolean isOpen()
+  {
+    return !closed;
+  }
+
+  /**
+   * Closes the connection. The other side reads what was written before
+   * the end of the stream.
+   */
+  public synchronized void close() throws IOException
+  {
+    if (closed)
+      return;
+    closed = true;
+    INT.setRelease(memory, server ? SERVER_CLOSED_OFFSET
+      : CLIENT_CLOSED_OFFSET, 1);
+    try
+    {
+      lock.release();
+    }
+    finally
+    {
+      file.close();
+    }
+  }
+
+  /**
+   * @param idle how many times the caller has waited already.
+   * @return true if the other side closed the connection or its process
+   *         died.
+   */
+  private boolean peerGone(int idle)
+  {
+    if ((int)INT.getAcquire(memory, server ? CLIENT_CLOSED_OFFSET
+      : SERVER_CLOSED_OFFSET) != 0)
+      return true;
+    return idle > SPINS + YIELDS && idle % LIVENESS_INTERVAL == 0
+      && peerDead();
+  }
+
+  /**
+   * @return true if the lock of the other side is free, i.e. its process
+   *         died.
+   */
+  private boolean peerDead()
+  {
+    try
+    {
+      FileLock peer = file.tryLock(server ? CLIENT_LOCK : SERVER_LOCK, 1,
+        false);
+      if (peer == null)
+        return false;  // Held by another process
+      peer.release();
+      return true;
+    }
+    catch (OverlappingFileLockException e)
+    {
+      return false;  // Held by this process
+    }
+    catch (IOException e)
+    {
+      return true;
+    }
+  }
+
+// NESTED CLASSES ---------------------------------------------------
+
+  /**
+   * One direction of the connection. The indices only grow; their
+   * position in the data is taken modulo the capacity.
+   */
+  private class Ring
+  {
+    private final int tailOffset;
+
+    private final int headOffset;
+
+    private final int dataOffset;
+
+    private final int capacity;
+
+    Ring(int tailOffset, int headOffset, int dataOffset, int capacity)
+    {
+      this.tailOffset = tailOffset;
+      this.headOffset = headOffset;
+      this.dataOffset = dataOffset;
+      this.capacity = capacity;
+    }
+
+    int available()
+    {
+      return (int)((long)LONG.getAcquire(memory, tailOffset)
+        - (long)LONG.getOpaque(memory, headOffset));
+    }
+
+    /**
+     * Reads what is available, waiting for at least one byte.
+     */
+    int read(byte[] b, int off, int len) throws IOException
+    {
+      if (len == 0)
+        return 0;
+
+      long head = (long)LONG.getOpaque(memory, headOffset);
+      long available;
+      int idle = 0;
+      while ((available = (long)LONG.getAcquire(memory, tailOffset)
+        - head) == 0)
+      {
+        if (closed)
+          return -1;
+        if (peerGone(idle))
+        {
+          // What was written before the close is still to be read
+          if ((long)LONG.getAcquire(memory, tailOffset) == head)
+            return -1;
+          continue;
+        }
+        idle = await(idle);
+      }
+
+      int n = (int)Math.min(len, available);
+      int position = (int)(head & (capacity - 1));
+      int first = Math.min(n, capacity - position);
+      memory.get(dataOffset + position, b, off, first);
+      if (n > first)
+        memory.get(dataOffset, b, off + first, n - first);
+      LONG.setRelease(memory, headOffset, head + n);
+      return n;
+    }
+
+    /**
+     * Writes all the bytes, waiting for room as needed.
+     */
+    void write(byte[] b, int off, int len) throws IOException
+    {
+      if (peerGone(0))
+        throw new SocketException("connection closed by peer");
+
+      long tail = (long)LONG.getOpaque(memory, tailOffset);
+      int idle = 0;
+      while (len > 0)
+      {
+        if (closed)
+          throw new SocketException("connection closed");
+
+        long free = capacity
+          - (tail - (long)LONG.getAcquire(memory, headOffset));
+        if (free == 0)
+        {
+          if (peerGone(idle))
+            throw new SocketException("connection closed by peer");
+          idle = await(idle);
+          continue;
+        }
+
+        int n = (int)Math.min(len, free);
+        int position = (int)(tail & (capacity - 1));
+        int first = Math.min(n, capacity - position);
+        memory.put(dataOffset + position, b, off, first);
+        if (n > first)
+          memory.put(dataOffset, b, off + first, n - first);
+        tail += n;
+        LONG.setRelease(memory, tailOffset, tail);
+        off += n;
+        len -= n;
+        idle = 0;
+      }
+    }
+  }
+}
+// End of SharedMemoryChannel class
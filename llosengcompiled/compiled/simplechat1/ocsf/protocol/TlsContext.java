@@ -0,0 +1,214 @@
+package ocsf.protocol;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * The TLS configuration of a server or of clients: the
+ * <code>SSLContext</code> holding the keys and the trusted
+ * certificates, and the TLS sessions it caches. A client that
+ * reconnects to a server whose session it still has, or whose ticket
+ * it holds, resumes that session with an abbreviated handshake
+ * instead of a full one, so that a storm of reconnections does not cost
+ * a full handshake each. Clients share their sessions when they share
+ * a context.<p>
+ *
+ * The context counts the handshakes of the connections it secures,
+ * how many of them resumed a session or failed, and how long they
+ * took.
+ *
+ * @see ocsf.server.AbstractServer#setTlsContext(TlsContext)
+ * @see ocsf.client.AbstractClient#setTlsContext(TlsContext)
+ */
+public class TlsContext
+{
+  // Class variables *************************************************
+
+  /**
+   * The default number of sessions cached.
+   */
+  public static final int DEFAULT_SESSION_CACHE_SIZE = 10000;
+
+  /**
+   * The default lifetime of a cached session, in seconds.
+   */
+  public static final int DEFAULT_SESSION_TIMEOUT = 24 * 60 * 60;
+
+  /**
+   * The default time a peer has to complete a handshake, in ms.
+   */
+  public static final int DEFAULT_HANDSHAKE_TIMEOUT = 10000;
+
+  // Instance variables **********************************************
+
+  private final SSLContext context;
+
+  private volatile int handshakeTimeout = DEFAULT_HANDSHAKE_TIMEOUT;
+
+  private final AtomicLong handshakes = new AtomicLong();
+
+  private final AtomicLong resumed = new AtomicLong();
+
+  private final AtomicLong failed = new AtomicLong();
+
+  private final AtomicLong handshakeNanos = new AtomicLong();
+
+  private final AtomicLong maxHandshakeNanos = new AtomicLong();
+
+  // Constructors ****************************************************
+
+  /**
+   * Constructs a TLS configuration around an <code>SSLContext</code>,
+   * e.g. <code>SSLContext.getDefault()</code>, which is configured by
+   * the <code>javax.net.ssl</code> system properties. The session
+   * caches of the context are set to the default size and lifetime.
+   *
+   * @param context the context, initialized.
+   */
+  public TlsContext(SSLContext context)
+  {
+    this.context = Objects.requireNonNull(context);
+    setSessionCache(DEFAULT_SESSION_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT);
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * Sets how many sessions the context caches and for how long, on the
+   * server side and on the client side.
+   *
+   * @param size    the number of sessions; 0 for no limit.
+   * @param timeout the lifetime of a session, in seconds; 0 for no
+   *                limit.
+   */
+  public void setSessionCache(int size, int timeout)
+  {
+    context.getServerSessionContext().setSessionCacheSize(size);
+    context.getServerSessionContext().setSessionTimeout(timeout);
+    context.getClientSessionContext().setSessionCacheSize(size);
+    context.getClientSessionContext().setSessionTimeout(timeout);
+  }
+
+  /**
+   * Sets the time a peer has to complete a handshake over a blocking
+   * connection. A server thread is not held longer by a peer that
+   * connects and stays silent.
+   *
+   * @param handshakeTimeout the time, in ms; 0 for no limit.
+   */
+  public void setHandshakeTimeout(int handshakeTimeout)
+  {
+    if (handshakeTimeout < 0)
+      throw new IllegalArgumentException("invalid timeout " + handshakeTimeout);
+    this.handshakeTimeout = handshakeTimeout;
+  }
+
+  /**
+   * @return the time a peer has to complete a handshake, in ms.
+   */
+  public int getHandshakeTimeout()
+  {
+    return handshakeTimeout;
+  }
+
+  /**
+   * @return the <code>SSLContext</code>.
+   */
+  public SSLContext getSslContext()
+  {
+    return context;
+  }
+
+  /**
+   * Creates the engine of a new connection. A client engine checks that
+   * the certificate of the server is for its host, and offers to resume
+   * the session it last had with that host and port.
+   *
+   * @param host       the host of the server, for a client; null for a
+   *                   server.
+   * @param port       the port of the server, for a client.
+   * @param clientMode true for the client side of the connection.
+   * @return the engine.
+   */
+  public TlsEngine createEngine(String host, int port, boolean clientMode)
+  {
+    SSLEngine engine = host == null
+      ? context.createSSLEngine() : context.createSSLEngine(host, port);
+    engine.setUseClientMode(clientMode);
+    if (clientMode && host != null)
+    {
+      SSLParameters parameters = engine.getSSLParameters();
+      parameters.setEndpointIdentificationAlgorithm("HTTPS");
+      engine.setSSLParameters(parameters);
+    }
+    return new TlsEngine(engine, this);
+  }
+
+  /**
+   * @return the number of handshakes completed, full or abbreviated.
+   */
+  public long getHandshakes()
+  {
+    return handshakes.get();
+  }
+
+  /**
+   * @return the number of handshakes completed that resumed a session.
+   */
+  public long getResumedHandshakes()
+  {
+    return resumed.get();
+  }
+
+  /**
+   * @return the number of handshakes that failed or timed out.
+   */
+  public long getFailedHandshakes()
+  {
+    return failed.get();
+  }
+
+  /**
+   * @return the time spent in the handshakes completed, in ns; divided
+   *         by <code>getHandshakes()</code>, the average handshake time.
+   */
+  public long getHandshakeNanos()
+  {
+    return handshakeNanos.get();
+  }
+
+  /**
+   * @return the time of the longest handshake completed, in ns.
+   */
+  public long getMaxHandshakeNanos()
+  {
+    return maxHandshakeNanos.get();
+  }
+
+  /**
+   * Counts a handshake completed.
+   *
+   * @param nanos   how long it took.
+   * @param resumed true if it resumed a session.
+   */
+  void handshakeCompleted(long nanos, boolean resumed)
+  {
+    handshakes.incrementAndGet();
+    if (resumed)
+      this.resumed.incrementAndGet();
+    handshakeNanos.addAndGet(nanos);
+    maxHandshakeNanos.accumulateAndGet(nanos, Math::max);
+  }
+
+  /**
+   * Counts a handshake that failed.
+   */
+  void handshakeFailed()
+  {
+    failed.incrementAndGet();
+  }
+}
+// End of TlsContext class
@@ -0,0 +1,525 @@
+package ocsf.protocol;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * The TLS side of one connection, built on an <code>SSLEngine</code> so
+ * that it works the same over blocking streams and under an event
+ * loop.<p>
+ *
+ * Over blocking streams, <code>input</code> and <code>output</code> give
+ * the streams of plain data around those of the socket, and
+ * <code>handshake</code> performs the handshake; the writers wait for
+ * it to complete. An event loop instead calls
+ * <code>beginHandshake</code>, then <code>wrap</code> and
+ * <code>unwrap</code> as the channel is ready, sending the records
+ * <code>wrap</code> returns for the handshake whenever
+ * <code>needsWrap</code> is true.<p>
+ *
+ * Records are wrapped by one thread at a time, and unwrapped by the
+ * thread reading the connection; both can proceed at once.
+ *
+ * @see TlsContext#createEngine(String, int, boolean)
+ */
+public class TlsEngine
+{
+  // Class variables *************************************************
+
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  // Instance variables **********************************************
+
+  private final SSLEngine engine;
+
+  private final TlsContext context;
+
+  /**
+   * Held while records are wrapped and written.
+   */
+  private final Object wrapLock = new Object();
+
+  /**
+   * The records wrapped for the blocking output. Guarded by wrapLock.
+   */
+  private ByteBuffer netOut;
+
+  /**
+   * The streams of the socket, over blocking streams.
+   */
+  private InputStream rawIn;
+
+  private OutputStream rawOut;
+
+  /**
+   * The records read and not unwrapped yet, and the data unwrapped and
+   * not read yet, by the blocking input. Only used by the reader.
+   */
+  private ByteBuffer netIn;
+
+  private ByteBuffer appIn;
+
+  /**
+   * True until the handshake completes or fails. Guarded by this.
+   */
+  private boolean handshaking = true;
+
+  /**
+   * Why the handshake failed, or null. Guarded by this.
+   */
+  private IOException failure;
+
+  /**
+   * When the handshake began, in ns and in ms.
+   */
+  private long startNanos;
+
+  private long startMillis;
+
+  // Constructors ****************************************************
+
+  /**
+   * Constructs the TLS side of a connection.
+   *
+   * @param engine  the engine, in client or server mode.
+   * @param context the configuration counting the handshakes.
+   */
+  TlsEngine(SSLEngine engine, TlsContext context)
+  {
+    this.engine = engine;
+    this.context = context;
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * @return the configuration the connection was created from.
+   */
+  public TlsContext getContext()
+  {
+    return context;
+  }
+
+  /**
+   * @return the size of the largest record, in bytes.
+   */
+  public int getPacketSize()
+  {
+    return engine.getSession().getPacketBufferSize();
+  }
+
+  /**
+   * @return true until the handshake completes or fails.
+   */
+  public synchronized boolean isHandshaking()
+  {
+    return handshaking && failure == null;
+  }
+
+  /**
+   * @return true if the peer closed its side of the connection.
+   */
+  public boolean isInboundDone()
+  {
+    return engine.isInboundDone();
+  }
+
+  /**
+   * @return true if records must be wrapped and sent, with
+   *         <code>wrap</code>, before the handshake can go on.
+   */
+  public boolean needsWrap()
+  {
+    return engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP;
+  }
+
+  /**
+   * Starts the handshake and its clock.
+   *
+   * @exception IOException if the engine cannot start the handshake.
+   */
+  public void beginHandshake() throws IOException
+  {
+    synchronized (this)
+    {
+      startNanos = System.nanoTime();
+      startMillis = System.currentTimeMillis();
+    }
+    try
+    {
+      engine.beginHandshake();
+    }
+    catch (IOException ex)
+    {
+      throw fail(ex);
+    }
+  }
+
+  /**
+   * Counts the handshake as failed if it did not complete, and releases
+   * the writers waiting for it, e.g. when the connection is lost during
+   * the handshake.
+   *
+   * @param cause why the connection failed.
+   * @return the cause.
+   */
+  public IOException fail(IOException cause)
+  {
+    synchronized (this)
+    {
+      if (handshaking && failure == null)
+      {
+        failure = cause;
+        context.handshakeFailed();
+        notifyAll();
+      }
+    }
+    return cause;
+  }
+
+  /**
+   * Encrypts data into records. With no data, returns the records the
+   * handshake needs to send, if any.
+   *
+   * @param src the data; all of it is consumed.
+   * @return the records, ready to be written.
+   * @exception IOException if the data cannot be encrypted.
+   */
+  public ByteBuffer wrap(ByteBuffer src) throws IOException
+  {
+    synchronized (wrapLock)
+    {
+      ByteBuffer records = wrapInto(src,
+        ByteBuffer.allocate(src.remaining() + getPacketSize()));
+      records.flip();
+      return records;
+    }
+  }
+
+  /**
+   * Decrypts the records received, until they are consumed, the last
+   * one is incomplete, the peer closed the connection, or the handshake
+   * needs to send records.
+   *
+   * @param net the records received, ready to be read.
+   * @param app the buffer receiving the data, ready to be written.
+   * @return the buffer receiving the data, enlarged if it was too
+   *         small.
+   * @exception IOException if the records are invalid.
+   */
+  public ByteBuffer unwrap(ByteBuffer net, ByteBuffer app) throws IOException
+  {
+    try
+    {
+      while (net.hasRemaining())
+      {
+        SSLEngineResult result = engine.unwrap(net, app);
+        switch (result.getStatus())
+        {
+          case BUFFER_OVERFLOW:
+            app = enlarge(app, engine.getSession().getApplicationBufferSize());
+            continue;
+          case BUFFER_UNDERFLOW:
+          case CLOSED:
+            return app;
+          default:
+        }
+        HandshakeStatus status = check(result);
+        if (status == HandshakeStatus.NEED_WRAP
+          || result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+          return app;
+      }
+      return app;
+    }
+    catch (SSLException ex)
+    {
+      throw fail(ex);
+    }
+  }
+
+  /**
+   * Encrypts data into a buffer, enlarged as needed, along with the
+   * records the handshake needs to send.
+   */
+  private ByteBuffer wrapInto(ByteBuffer src, ByteBuffer dst)
+    throws IOException
+  {
+    try
+    {
+      do
+      {
+        SSLEngineResult result = engine.wrap(src, dst);
+        switch (result.getStatus())
+        {
+          case BUFFER_OVERFLOW:
+            dst = enlarge(dst, getPacketSize());
+            continue;
+          case CLOSED:
+            return dst;
+          default:
+        }
+        check(result);
+        if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+          && src.hasRemaining() && !needsWrap())
+          throw new SSLException("cannot send data during the handshake");
+      }
+      while (src.hasRemaining() || needsWrap());
+      return dst;
+    }
+    catch (SSLException ex)
+    {
+      throw fail(ex);
+    }
+  }
+
+  /**
+   * Runs the tasks of the engine and notes the end of the handshake.
+   *
+   * @return the status of the handshake.
+   */
+  private HandshakeStatus check(SSLEngineResult result)
+  {
+    HandshakeStatus status = result.getHandshakeStatus();
+    if (status == HandshakeStatus.NEED_TASK)
+    {
+      Runnable task;
+      while ((task = engine.getDelegatedTask()) != null)
+        task.run();
+      status = engine.getHandshakeStatus();
+    }
+    if (status == HandshakeStatus.FINISHED)
+      finished();
+    return status;
+  }
+
+  /**
+   * Counts the handshake, once complete, and releases the writers
+   * waiting for it. A session created before the handshake began was
+   * resumed.
+   */
+  private synchronized void finished()
+  {
+    if (!handshaking)
+      return;
+    handshaking = false;
+    context.handshakeCompleted(System.nanoTime() - startNanos,
+      engine.getSession().getCreationTime() < startMillis);
+    notifyAll();
+  }
+
+  /**
+   * Waits until the handshake completes.
+   *
+   * @exception IOException if the handshake failed or the thread was
+   *    interrupted.
+   */
+  private synchronized void awaitHandshake() throws IOException
+  {
+    while (handshaking && failure == null)
+    {
+      try
+      {
+        wait();
+      }
+      catch (InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted during the handshake");
+      }
+    }
+    if (failure != null)
+      throw new SSLException("handshake failed", failure);
+  }
+
+// BLOCKING STREAMS -------------------------------------------------
+
+  /**
+   * @param raw the stream of the socket.
+   * @return the stream of the data received, decrypted; closing it
+   *         closes the stream of the socket.
+   */
+  public InputStream input(InputStream raw)
+  {
+    rawIn = raw;
+    netIn = ByteBuffer.allocate(getPacketSize());
+    appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+    return new InputStream()
+    {
+      public int read() throws IOException
+      {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException
+      {
+        if (len == 0)
+          return 0;
+        while (appIn.position() == 0)
+        {
+          if (engine.isInboundDone() || !readRecords())
+            return -1;
+        }
+        appIn.flip();
+        int count = Math.min(len, appIn.remaining());
+        appIn.get(b, off, count);
+        appIn.compact();
+        return count;
+      }
+
+      public void close() throws IOException
+      {
+        rawIn.close();
+      }
+    };
+  }
+
+  /**
+   * @param raw the stream of the socket.
+   * @return the stream of the data to send, encrypted once the
+   *         handshake completes; closing it tells the peer and closes
+   *         the stream of the socket.
+   */
+  public OutputStream output(OutputStream raw)
+  {
+    rawOut = raw;
+    netOut = ByteBuffer.allocate(getPacketSize());
+    return new OutputStream()
+    {
+      public void write(int b) throws IOException
+      {
+        write(new byte[] {(byte)b}, 0, 1);
+      }
+
+      public void write(byte[] b, int off, int len) throws IOException
+      {
+        awaitHandshake();
+        writeRecords(ByteBuffer.wrap(b, off, len));
+      }
+
+      public void flush() throws IOException
+      {
+        rawOut.flush();
+      }
+
+      public void close() throws IOException
+      {
+        try
+        {
+          synchronized (wrapLock)
+          {
+            engine.closeOutbound();
+            writeRecords(EMPTY);
+          }
+        }
+        catch (IOException ex) {}
+        finally
+        {
+          rawOut.close();
+        }
+      }
+    };
+  }
+
+  /**
+   * Performs the handshake over the blocking streams.
+   *
+   * @exception IOException if the handshake fails, or the socket times
+   *    out or closes before it completes.
+   */
+  public void handshake() throws IOException
+  {
+    beginHandshake();
+    try
+    {
+      while (isHandshaking())
+      {
+        switch (engine.getHandshakeStatus())
+        {
+          case NEED_WRAP:
+            writeRecords(EMPTY);
+            break;
+          case NEED_UNWRAP:
+          case NEED_UNWRAP_AGAIN:
+            if (!readRecords())
+              throw new EOFException("connection closed during the handshake");
+            break;
+          case NEED_TASK:
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null)
+              task.run();
+            break;
+          default:
+            finished();
+        }
+      }
+    }
+    catch (IOException ex)
+    {
+      throw fail(ex);
+    }
+    awaitHandshake();
+  }
+
+  /**
+   * Wraps data, or the records of the handshake, and writes them to
+   * the socket.
+   */
+  private void writeRecords(ByteBuffer src) throws IOException
+  {
+    synchronized (wrapLock)
+    {
+      netOut.clear();
+      netOut = wrapInto(src, netOut);
+      rawOut.write(netOut.array(), 0, netOut.position());
+      if (src == EMPTY)
+        rawOut.flush();
+    }
+  }
+
+  /**
+   * Unwraps the records read, or reads more if they are not complete.
+   * Sends the records the handshake needs in reply, if any.
+   *
+   * @return false if the socket is closed.
+   */
+  private boolean readRecords() throws IOException
+  {
+    netIn.flip();
+    int available = netIn.remaining();
+    appIn = unwrap(netIn, appIn);
+    boolean consumed = netIn.remaining() < available;
+    netIn.compact();
+
+    if (needsWrap())
+      writeRecords(EMPTY);
+    if (consumed || engine.isInboundDone())
+      return true;
+
+    if (!netIn.hasRemaining())
+      netIn = enlarge(netIn, getPacketSize());
+    int count = rawIn.read(netIn.array(), netIn.position(), netIn.remaining());
+    if (count < 0)
+      return false;
+    netIn.position(netIn.position() + count);
+    return true;
+  }
+
+  /**
+   * @param buffer a buffer, ready to be written.
+   * @param room   the room needed.
+   * @return a larger buffer with the same content, ready to be written.
+   */
+  private static ByteBuffer enlarge(ByteBuffer buffer, int room)
+  {
+    ByteBuffer larger = ByteBuffer.allocate(
+      Math.max(buffer.capacity() * 2, buffer.position() + room));
+    buffer.flip();
+    return larger.put(buffer);
+  }
+}
+// End of TlsEngine class
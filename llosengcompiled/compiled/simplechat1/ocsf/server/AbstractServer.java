@@ -6,12 +6,29 @@ package ocsf.server;
 
 import common.AbstractConnectionFactory;
 import java.net.*;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.*;
 
+import ocsf.protocol.Compression;
+import ocsf.protocol.FileOffer;
+import ocsf.protocol.FrameCodec;
+import ocsf.protocol.Lane;
+import ocsf.protocol.MessageFilter;
+import ocsf.protocol.SharedMemoryChannel;
+import ocsf.protocol.TlsContext;
+
 /**
 * The <code> AbstractServer </code> class maintains a thread that waits
-* for connection attempts from clients. When a connection attempt occurs
+* for connection attempts from clients on each of its endpoints; it
+* listens on a single port unless more endpoints are added with
+* <code>addEndpoint</code>. When a connection attempt occurs
 * it creates a new <code> ConnectionToClient </code> instance which
 * runs as a thread. When a client is thus connected to the
 * server, the two programs can then exchange <code> Object </code>
@@ -33,22 +50,30 @@ import java.io.*;
 * @version February 2001 (2.12)
 * @see ocsf.server.ConnectionToClient
 */
-public abstract class AbstractServer implements Runnable
+public abstract class AbstractServer
 {
   // INSTANCE VARIABLES *********************************************
 
   /**
-   * The server socket: listens for clients who want to connect.
+   * The endpoints on which the server listens for clients who want
+   * to connect.
+   */
+  private final List<ListenEndpoint> endpoints =
+    new CopyOnWriteArrayList<>();
+
+  /**
+   * The number of endpoints whose accepting thread is running.
    */
-  private ServerSocket serverSocket = null;
+  private final AtomicInteger accepting = new AtomicInteger();
 
   /**
-   * The connection listener thread.
+   * The number of accepting threads that called serverStarted() and
+   * have not stopped yet.
    */
-  private Thread connectionListener;
+  private final AtomicInteger running = new AtomicInteger();
 
   /**
-   * The port number
+   * The port number of the endpoint opened by listen().
    */
   private int port;
 
@@ -68,18 +93,55 @@ public abstract class AbstractServer implements Runnable
    */
   private int backlog = 10;
 
+  /**
+   * The largest message, serialized, that the server sends or accepts,
+   * in bytes.
+   */
+  private volatile int maxMessageSize = FrameCodec.MAX_FRAME_SIZE;
+
+  /**
+   * The policy applied to the messages read from the clients as they
+   * are deserialized.
+   */
+  private volatile MessageFilter messageFilter = new MessageFilter();
+
+  /**
+   * The TLS configuration of the connections over TCP, or null if they
+   * are not encrypted.
+   */
+  private volatile TlsContext tlsContext;
+
+  /**
+   * The compression offered to the clients, or null if the frames are
+   * always raw.
+   */
+  private volatile Compression compression;
+
   /**
    * The thread group associated with client threads. Each member of the
    * thread group is a <code> ConnectionToClient </code>.
    */
   private ThreadGroup clientThreadGroup;
 
+    private AbstractConnectionFactory connectionFactory;
+
   /**
-   * Indicates if the listening thread is ready to stop.  Set to
-   * false by default.
+   * The sessions of the clients when session resume is enabled;
+   * null otherwise.
    */
-  private boolean readyToStop = false;
-    private AbstractConnectionFactory connectionFactory;
+  private volatile SessionRegistry sessions = null;
+
+  /**
+   * The files offered to the clients, by transfer id.
+   */
+  private final ConcurrentHashMap<Long, SharedFile> sharedFiles =
+    new ConcurrentHashMap<>();
+
+  /**
+   * Draws the transfer ids, so that a client cannot take a file offered
+   * to another by guessing its id.
+   */
+  private final SecureRandom fileIds = new SecureRandom();
 
 
 // CONSTRUCTOR ******************************************************
@@ -109,35 +171,128 @@ public abstract class AbstractServer implements Runnable
 // INSTANCE METHODS *************************************************
 
   /**
-   * Begins the thread that waits for new clients.
-   * If the server is already in listening mode, this
+   * Begins the threads that wait for new clients.
+   * If the server has no endpoint yet, one is opened on the port
+   * number; otherwise every endpoint that stopped listening starts
+   * again. If the server is already in listening mode, this
    * call has no effect.
    *
    * @exception IOException if an I/O error occurs
    * when creating the server socket.
    */
-  final public void listen() throws IOException
+  final synchronized public void listen() throws IOException
   {
-    if (!isListening())
+    if (endpoints.isEmpty())
     {
-      if (serverSocket == null)
-      {
-        serverSocket = new ServerSocket(getPort(), backlog);
-      }
+      addEndpoint(new InetSocketAddress(getPort()));
+      return;
+    }
 
-      serverSocket.setSoTimeout(timeout);
-      readyToStop = false;
-      connectionListener = new Thread(this);
-      connectionListener.start();
+    for (ListenEndpoint endpoint : endpoints)
+    {
+      if (endpoint.start())
+        accepting.incrementAndGet();
     }
   }
 
   /**
    * Causes the server to stop accepting new connections.
+   * The endpoints stay bound, so that listen() can resume accepting.
    */
   final public void stopListening()
   {
-    readyToStop = true;
+    for (ListenEndpoint endpoint : endpoints)
+    {
+      endpoint.stop();
+    }
+  }
+
+  /**
+   * Opens a new endpoint and starts accepting clients on it, alongside
+   * the endpoints already open. The clients already connected are not
+   * affected.
+   *
+   * @param address the address to bind to, e.g. a port on a given
+   *        interface, or a <code>UnixDomainSocketAddress</code> for the
+   *        clients on the same host.
+   * @return the endpoint opened.
+   * @exception IOException if the address cannot be bound.
+   */
+  final synchronized public ListenEndpoint addEndpoint(SocketAddress address)
+    throws IOException
+  {
+    ListenEndpoint endpoint =
+      new ListenEndpoint(this, address, backlog, timeout);
+    endpoints.add(endpoint);
+    if (endpoint.start())
+      accepting.incrementAndGet();
+    return endpoint;
+  }
+
+  /**
+   * Opens an endpoint for the clients on the same host that connect
+   * through shared memory, and starts accepting them. The clients
+   * create their rings in the directory.
+   *
+   * @param directory an existing directory, writable by the clients.
+   * @return the endpoint opened.
+   * @exception IOException if the directory cannot be watched.
+   * @see ocsf.protocol.SharedMemoryChannel
+   */
+  final synchronized public ListenEndpoint addSharedMemoryEndpoint(
+    Path directory) throws IOException
+  {
+    ListenEndpoint endpoint = new ListenEndpoint(this, directory, timeout);
+    endpoints.add(endpoint);
+    if (endpoint.start())
+      accepting.incrementAndGet();
+    return endpoint;
+  }
+
+  /**
+   * Closes an endpoint. The server stops accepting clients on it, but
+   * the clients that connected through it stay connected.
+   *
+   * @param endpoint the endpoint to close.
+   * @exception IOException if an I/O error occurs while
+   * closing the server socket.
+   */
+  final synchronized public void removeEndpoint(ListenEndpoint endpoint)
+    throws IOException
+  {
+    if (endpoints.remove(endpoint))
+      endpoint.close();
+  }
+
+  /**
+   * Moves the server to another port without disconnecting its
+   * clients: an endpoint is opened on the new port before those on the
+   * current port are closed, so that the server is never unreachable.
+   * If the server has no endpoint, this only sets the port for the
+   * next call to listen().
+   *
+   * @param port the new port number.
+   * @exception IOException if the new port cannot be bound; the
+   * server then keeps its current endpoints.
+   */
+  final synchronized public void changePort(int port) throws IOException
+  {
+    if (!endpoints.isEmpty() && port != this.port)
+    {
+      boolean wasListening = isListening();
+      ListenEndpoint added =
+        new ListenEndpoint(this, new InetSocketAddress(port), backlog, timeout);
+      endpoints.add(added);
+      if (wasListening && added.start())
+        accepting.incrementAndGet();
+
+      for (ListenEndpoint endpoint : endpoints)
+      {
+        if (endpoint != added && endpoint.getPort() == this.port)
+          removeEndpoint(endpoint);
+      }
+    }
+    this.port = port;
   }
 
   /**
@@ -154,12 +309,25 @@ public abstract class AbstractServer implements Runnable
    */
   final synchronized public void close() throws IOException
   {
-    if (serverSocket == null)
+    if (endpoints.isEmpty())
       return;
-      stopListening();
+    IOException closeException = null;
     try
     {
-      serverSocket.close();
+      for (ListenEndpoint endpoint : endpoints)
+      {
+        endpoints.remove(endpoint);
+        try
+        {
+          endpoint.close();
+        }
+        catch (IOException ex)
+        {
+          closeException = ex;
+        }
+      }
+      if (closeException != null)
+        throw closeException;
     }
     finally
     {
@@ -174,7 +342,8 @@ public abstract class AbstractServer implements Runnable
          // Ignore all exceptions when closing clients.
          catch(Exception ex) {}
       }
-      serverSocket = null;
+      if (sessions != null)
+        sessions.clear();
       serverClosed();
     }
   }
@@ -192,18 +361,91 @@ public abstract class AbstractServer implements Runnable
    */
   public void sendToAllClients(Object msg)
   {
+    sendToAllClients(msg, Lane.NORMAL);
+  }
+
+  /**
+   * Sends a message to every client connected to the server in a given
+   * lane, e.g. <code>Lane.CONTROL</code> for a notice that must not
+   * wait behind the chat queued for each client. Any exception thrown
+   * while sending the message to a particular client is ignored.
+   *
+   * @param msg  the message to be sent.
+   * @param lane the lane of the message.
+   * @see ConnectionToClient#sendToClient(Object, Lane)
+   */
+  public void sendToAllClients(Object msg, Lane lane)
+  {
+    // Serialized once for all the clients
+    byte[] payload;
+    try
+    {
+      payload = FrameCodec.serialize(msg);
+    }
+    catch (IOException ex)
+    {
+      return;
+    }
+    if (payload.length > maxMessageSize)
+      return;
+
     Thread[] clientThreadList = getClientConnections();
+    Set<SessionRegistry.Session> reached =
+      Collections.newSetFromMap(new IdentityHashMap<>());
 
     for (int i=0; i<clientThreadList.length; i++)
+    {
+      SessionRegistry.Session session =
+        ((ConnectionToClient)clientThreadList[i]).broadcast(payload, lane);
+      if (session != null)
+        reached.add(session);
+    }
+
+    // Clients that lost their connection get the message on resume
+    SessionRegistry current = sessions;
+    if (current != null)
     {
       try
       {
-        ((ConnectionToClient)clientThreadList[i]).sendToClient(msg);
+        current.recordForDetached(payload, reached);
       }
-      catch (Exception ex) {}
+      catch (IOException ex) {}
     }
   }
 
+  /**
+   * Offers a file to every client connected to the server. Each client
+   * that takes it gets the file from its own thread, at its own pace,
+   * and resumes from the data it has if its connection is lost; the
+   * data goes from the file to the sockets without being copied into
+   * memory. A client that resumes its session after the offer gets it
+   * then.
+   *
+   * @param file the file, which must not change while it is offered.
+   * @return the offer sent, which can be withdrawn with
+   *         <code>withdrawFile</code>.
+   * @exception IOException if the file cannot be read.
+   * @see ConnectionToClient#sendFile(Path)
+   */
+  public FileOffer sendFileToAllClients(Path file) throws IOException
+  {
+    FileOffer offer = shareFile(file);
+    sendToAllClients(offer, Lane.NORMAL);
+    return offer;
+  }
+
+  /**
+   * Withdraws the offer of a file. The transfers under way go on; the
+   * clients that ask for the file from now on, including to resume a
+   * transfer, are told it was withdrawn.
+   *
+   * @param offer the offer.
+   */
+  final public void withdrawFile(FileOffer offer)
+  {
+    sharedFiles.remove(offer.getId());
+  }
+
 
 // ACCESSING METHODS ------------------------------------------------
 
@@ -214,7 +456,18 @@ public abstract class AbstractServer implements Runnable
    */
   final public boolean isListening()
   {
-    return (connectionListener != null);
+    return accepting.get() > 0;
+  }
+
+  /**
+   * Returns the endpoints on which the server listens, with their
+   * accept metrics.
+   *
+   * @return the open endpoints, in the order they were added.
+   */
+  final public List<ListenEndpoint> getEndpoints()
+  {
+    return List.copyOf(endpoints);
   }
 
   /**
@@ -262,7 +515,8 @@ public abstract class AbstractServer implements Runnable
   /**
    * Sets the port number for the next connection.
    * The server must be closed and restarted for the port
-   * change to be in effect.
+   * change to be in effect; use changePort() to move a running
+   * server without disconnecting its clients.
    *
    * @param port the port number.
    */
@@ -275,8 +529,7 @@ public abstract class AbstractServer implements Runnable
    * Sets the timeout time when accepting connections.
    * The default is half a second. This means that stopping the
    * server may take up to timeout duration to actually stop.
-   * The server must be stopped and restarted for the timeout
-   * change to be effective.
+   * The change applies to the endpoints opened afterwards.
    *
    * @param timeout the timeout time in ms.
    */
@@ -287,9 +540,8 @@ public abstract class AbstractServer implements Runnable
 
   /**
    * Sets the maximum number of waiting connections accepted by the
-   * operating system. The default is 20.
-   * The server must be closed and restarted for the backlog
-   * change to be in effect.
+   * operating system. The default is 10.
+   * The change applies to the endpoints opened afterwards.
    *
    * @param backlog the maximum number of connections.
    */
@@ -298,66 +550,148 @@ public abstract class AbstractServer implements Runnable
     this.backlog = backlog;
   }
 
-// RUN METHOD -------------------------------------------------------
+  /**
+   * Enables session resume. Each client that asks for it is given a
+   * session token; the last <code>replaySize</code> messages sent to
+   * it are kept, including those broadcast while it is disconnected.
+   * A client that reconnects within <code>timeout</code> ms resumes its
+   * session: the attributes of the client are restored and only
+   * the messages it missed are sent. Should be called before the server
+   * starts listening.
+   *
+   * @param replaySize the number of messages kept per session, or 0 to
+   *        disable session resume.
+   * @param timeout how long a disconnected session is kept, in ms.
+   */
+  final public void setSessionResume(int replaySize, long timeout)
+  {
+    sessions = replaySize > 0
+      ? new SessionRegistry(replaySize, timeout) : null;
+  }
 
   /**
-   * Runs the listening thread that allows clients to connect.
-   * Not to be called.
+   * Sets the size of the largest message the server sends or accepts,
+   * serialized. Larger messages are refused by sendToClient, and a
+   * client that sends one is disconnected. Messages larger than
+   * <code>Chunk.SIZE</code> are sent in chunks, so the limit may exceed
+   * the size of a frame; frames read from the clients are never larger
+   * than <code>FrameCodec.MAX_FRAME_SIZE</code>, the default.
+   *
+   * @param maxMessageSize the size, in bytes.
    */
-  final public void run()
+  final public void setMaxMessageSize(int maxMessageSize)
   {
-    // call the hook method to notify that the server is starting
-    serverStarted();
+    if (maxMessageSize <= 0)
+      throw new IllegalArgumentException("invalid size " + maxMessageSize);
+    this.maxMessageSize = maxMessageSize;
+  }
 
-    try
-    {
-      // Repeatedly waits for a new client connection, accepts it, and
-      // starts a new thread to handle data exchange.
-      while(!readyToStop)
-      {
-        try
-        {
-          // Wait here for new connection attempts, or a timeout
-          Socket clientSocket = serverSocket.accept();
+  /**
+   * @return the size of the largest message the server sends or
+   *         accepts, in bytes.
+   */
+  final public int getMaxMessageSize()
+  {
+    return maxMessageSize;
+  }
 
-          // When a client is accepted, create a thread to handle
-          // the data exchange, then add it to thread group
+  /**
+   * Sets the policy applied to the messages read from the clients: the
+   * classes allowed and the limits on the size of their object graphs,
+   * checked as they are deserialized. A client that sends a message the
+   * filter rejects is disconnected, and the rejection is counted by the
+   * filter. By default, any class is allowed, within the default limits
+   * of <code>MessageFilter</code>.
+   *
+   * @param messageFilter the filter, shared by all the connections.
+   */
+  final public void setMessageFilter(MessageFilter messageFilter)
+  {
+    this.messageFilter = Objects.requireNonNull(messageFilter);
+  }
 
-          synchronized(this)
-          {
-            ConnectionToClient c = connectionFactory.createConnection(
-              this.clientThreadGroup, clientSocket, this);
-          }
-        }
-        catch (InterruptedIOException exception)
-        {
-          // This will be thrown when a timeout occurs.
-          // The server will continue to listen if not ready to stop.
-        }
-      }
+  /**
+   * @return the policy applied to the messages read from the clients,
+   *         with the number of messages it rejected.
+   */
+  final public MessageFilter getMessageFilter()
+  {
+    return messageFilter;
+  }
 
-      // call the hook method to notify that the server has stopped
-      serverStopped();
-    }
-    catch (IOException exception)
-    {
-      if (!readyToStop)
-      {
-        // Closing the socket must have thrown a SocketException
-        listeningException(exception);
-      }
-      else
-      {
-        serverStopped();
-      }
-    }
-    finally
-    {
-      readyToStop = true;
-      connectionListener = null;
-    }
+  /**
+   * Encrypts the connections accepted over TCP from now on with TLS.
+   * Each connection performs its handshake in its own thread before
+   * <code>clientConnected</code> is called, so that slow handshakes do
+   * not hold up the others; a client that fails it, or does not
+   * complete it within the handshake timeout of the context, is
+   * disconnected. Clients that reconnect resume their TLS session from
+   * the cache of the context with an abbreviated handshake. The
+   * connections through a Unix domain socket or shared memory, which
+   * do not leave the host, are not encrypted.
+   *
+   * @param tlsContext the TLS configuration, which also counts the
+   *                   handshakes; null to accept plain connections.
+   */
+  final public void setTlsContext(TlsContext tlsContext)
+  {
+    this.tlsContext = tlsContext;
+  }
+
+  /**
+   * @return the TLS configuration of the connections over TCP, with
+   *         the handshake counts and times; null if they are not
+   *         encrypted.
+   */
+  final public TlsContext getTlsContext()
+  {
+    return tlsContext;
+  }
+
+  /**
+   * Compresses the frames exchanged with the clients that offer the
+   * same dictionary from now on. The connections already open keep
+   * what they negotiated when they connected. A message sent to every
+   * client is compressed once for all of them.
+   *
+   * @param compression the compression, which also counts the frames
+   *                    and bytes it compressed; null to accept no more
+   *                    offers.
+   */
+  final public void setCompression(Compression compression)
+  {
+    this.compression = compression;
+  }
+
+  /**
+   * @return the compression offered to the clients, with its ratio and
+   *         the time spent on it; null if the frames are raw.
+   */
+  final public Compression getCompression()
+  {
+    return compression;
   }
 
+  /**
+   * @return the number of resumable sessions, connected or not.
+   */
+  final public int getNumberOfSessions()
+  {
+    return sessions == null ? 0 : sessions.size();
+  }
+
+  /**
+   * Returns the number of messages lost to the sessions: pushed out of
+   * the replay buffer of a disconnected client before it acknowledged
+   * them. A connected client is never sent more than the buffer holds
+   * ahead of its acknowledgements.
+   *
+   * @return the number of messages, since the server was constructed.
+   */
+  final public long getReplayOverflows()
+  {
+    return sessions == null ? 0 : sessions.getOverflows();
+  }
 
 // METHODS DESIGNED TO BE OVERRIDDEN BY CONCRETE SUBCLASSES ---------
 
@@ -368,6 +702,16 @@ public abstract class AbstractServer implements Runnable
    */
   protected void clientConnected(ConnectionToClient client) {}
 
+  /**
+   * Hook method called each time a client resumes its session on a new
+   * connection. The attributes of the client have already been
+   * restored and the missed messages sent. The default implementation
+   * does nothing.
+   *
+   * @param client the new connection of the client.
+   */
+  protected void clientResumed(ConnectionToClient client) {}
+
   /**
    * Hook method called each time a client disconnects.
    * The default implementation does nothing. The method
@@ -427,7 +771,11 @@ public abstract class AbstractServer implements Runnable
    * This MUST be implemented by subclasses, who should respond to
    * messages.
    * This method is called by a synchronized method so it is also
-   * implcitly synchronized.
+   * implcitly synchronized.<p>
+   *
+   * A message sent with <code>AbstractClient.request</code> arrives as
+   * an <code>ocsf.protocol.Request</code>, to be answered with
+   * <code>ConnectionToClient.reply</code>.
    *
    * @param msg   the message sent.
    * @param client the connection connected to the client that
@@ -436,25 +784,159 @@ public abstract class AbstractServer implements Runnable
   protected abstract void handleMessageFromClient(
     Object msg, ConnectionToClient client);
 
+  /**
+   * Handles the commands that a client sent in a burst: those that had
+   * already arrived when the connection read the first of them, in the
+   * order in which they were sent.
+   * This method is called by a synchronized method so it is also
+   * implcitly synchronized.<p>
+   *
+   * The default implementation calls <code>handleMessageFromClient</code>
+   * for each of them, until the connection is closed. It may be
+   * overriden by subclasses that do something once for a whole burst,
+   * such as logging or broadcasting it in one go.
+   *
+   * @param messages the messages sent; the list may be kept.
+   * @param client the connection connected to the client that
+   *  sent the messages.
+   */
+  protected void handleMessagesFromClient(
+    List<Object> messages, ConnectionToClient client)
+  {
+    for (Object msg : messages)
+    {
+      if (client.isClosing())
+        return;
+      handleMessageFromClient(msg, client);
+    }
+  }
+
 
 // METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
   /**
-   * Receives a command sent from the client to the server.
+   * @return the sessions of the clients, or null when session resume
+   * is not enabled.
+   */
+  final SessionRegistry getSessions()
+  {
+    return sessions;
+  }
+
+  /**
+   * Registers a file to offer, under a new transfer id.
+   *
+   * @param file the file.
+   * @return the offer.
+   * @exception IOException if the file cannot be read.
+   */
+  final FileOffer shareFile(Path file) throws IOException
+  {
+    if (!Files.isRegularFile(file) || !Files.isReadable(file))
+      throw new FileNotFoundException(file.toString());
+    FileOffer offer = new FileOffer(fileIds.nextLong(),
+      file.getFileName().toString(), Files.size(file));
+    sharedFiles.put(offer.getId(), new SharedFile(offer, file));
+    return offer;
+  }
+
+  /**
+   * @param id the id of a transfer.
+   * @return the file offered under that id, or null if it is not.
+   */
+  final SharedFile getSharedFile(long id)
+  {
+    return sharedFiles.get(id);
+  }
+
+  /**
+   * Called by the accepting thread of an endpoint when it starts.
+   * The server is started when its first endpoint starts accepting.
+   */
+  final void endpointStarted(ListenEndpoint endpoint)
+  {
+    if (running.incrementAndGet() == 1)
+      serverStarted();
+  }
+
+  /**
+   * Called by the accepting thread of an endpoint when it stops,
+   * normally or because of an exception. The server is stopped when
+   * its last endpoint stops accepting.
+   *
+   * @param exception the exception that stopped the endpoint, or null.
+   */
+  final void endpointStopped(ListenEndpoint endpoint, IOException exception)
+  {
+    if (exception != null)
+      listeningException(exception);
+    accepting.decrementAndGet();
+    if (running.decrementAndGet() == 0 && exception == null)
+      serverStopped();
+  }
+
+  /**
+   * Creates the connection of a client accepted on one of the
+   * endpoints, and starts its thread.
+   *
+   * @param client the socket of the client, or its channel if it
+   *        connected through a Unix domain socket or shared memory.
+   * @exception IOException if the connection cannot be set up.
+   */
+  final void clientAccepted(Closeable client) throws IOException
+  {
+    // When a client is accepted, create a thread to handle
+    // the data exchange, then add it to thread group
+    synchronized(this)
+    {
+      if (client instanceof SharedMemoryChannel)
+        connectionFactory.createConnection(
+          this.clientThreadGroup, (SharedMemoryChannel)client, this);
+      else if (client instanceof SocketChannel)
+        connectionFactory.createConnection(
+          this.clientThreadGroup, (SocketChannel)client, this);
+      else
+        connectionFactory.createConnection(
+          this.clientThreadGroup, (Socket)client, this);
+    }
+  }
+
+  /**
+   * Receives the commands sent from a client to the server, in the
+   * order in which they were sent.
    * Called by the run method of <code>ConnectionToClient</code>
    * instances that are watching for messages coming from the server
    * This method is synchronized to ensure that whatever effects it has
-   * do not conflict with work being done by other threads. The method
-   * simply calls the <code>handleMessageFromClient</code> slot method.
+   * do not conflict with work being done by other threads; the lock is
+   * taken once for all the messages. The method simply calls the
+   * <code>handleMessagesFromClient</code> slot method.
    *
-   * @param msg   the message sent.
+   * @param messages the messages sent.
    * @param client the connection connected to the client that
-   *  sent the message.
+   *  sent the messages.
    */
-  final synchronized void receiveMessageFromClient(
-    Object msg, ConnectionToClient client)
+  final synchronized void receiveMessagesFromClient(
+    List<Object> messages, ConnectionToClient client)
   {
-    this.handleMessageFromClient(msg, client);
+    this.handleMessagesFromClient(messages, client);
+  }
+
+// NESTED CLASSES ---------------------------------------------------
+
+  /**
+   * A file offered to the clients.
+   */
+  static final class SharedFile
+  {
+    final FileOffer offer;
+
+    final Path path;
+
+    SharedFile(FileOffer offer, Path path)
+    {
+      this.offer = offer;
+      this.path = path;
+    }
   }
 }
 // End of AbstractServer Class
@@ -56,6 +56,16 @@ class AdaptableServer extends AbstractServer
     server.clientConnected(client);
   }
 
+  /**
+   * Hook method called each time a client resumes its session.
+   *
+   * @param client the new connection of the client.
+   */
+  final protected void clientResumed(ConnectionToClient client)
+  {
+    server.clientResumed(client);
+  }
+
   /**
    * Hook method called each time a client disconnects.
    *
@@ -128,4 +138,17 @@ class AdaptableServer extends AbstractServer
   {
     server.handleMessageFromClient(msg, client);
   }
+
+  /**
+   * Handles the commands sent from the client to the server in a burst.
+   *
+   * @param messages the messages sent.
+   * @param client the connection connected to the client that
+   *  sent the messages.
+   */
+  final protected void handleMessagesFromClient(List<Object> messages,
+                                          ConnectionToClient client)
+  {
+    server.handleMessagesFromClient(messages, client);
+  }
 }
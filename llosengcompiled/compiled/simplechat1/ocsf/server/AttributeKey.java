@@ -0,0 +1,155 @@
+package ocsf.server;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Identifies a typed attribute of the clients, such as their login id.
+ * A key is registered once, usually in a static field, and is given a
+ * slot: each <code>ConnectionToClient</code> keeps its attributes in an
+ * array indexed by slot, so reading one costs neither hashing nor a
+ * lock.<p>
+ *
+ * Registering a name that is already registered returns the same key,
+ * so keys can be registered independently by the classes that use
+ * them.
+ *
+ * @param <T> the type of the values of the attribute.
+ * @see ocsf.server.ConnectionToClient#getAttribute(AttributeKey)
+ */
+public final class AttributeKey<T>
+{
+  // Class variables *************************************************
+
+  private static final ConcurrentHashMap<String, AttributeKey<?>> keys =
+    new ConcurrentHashMap<>();
+
+  /**
+   * The number of slots given so far. Guarded by the class.
+   */
+  private static int slots = 0;
+
+  // Instance variables **********************************************
+
+  private final String name;
+
+  private final Class<T> type;
+
+  /**
+   * The index of the attribute in the array of every connection.
+   */
+  final int slot;
+
+  // Constructor *****************************************************
+
+  private AttributeKey(String name, Class<T> type, int slot)
+  {
+    this.name = name;
+    this.type = type;
+    this.slot = slot;
+  }
+
+  // Class methods ***************************************************
+
+  /**
+   * Registers an attribute, or returns the key already registered
+   * under its name.
+   *
+   * @param name the name of the attribute.
+   * @param type the type of its values.
+   * @return the key.
+   * @exception IllegalArgumentException if the name is registered with
+   *    another type.
+   */
+  @SuppressWarnings("unchecked")
+  public static synchronized <T> AttributeKey<T> register(String name,
+    Class<T> type)
+  {
+    AttributeKey<?> key = keys.get(name);
+    if (key == null)
+    {
+      key = new AttributeKey<>(name, type, slots++);
+      keys.put(name, key);
+    }
+    else if (key.type != type)
+    {
+      throw new IllegalArgumentException("attribute " + name
+        + " is registered as " + key.type.getName());
+    }
+    return (AttributeKey<T>)key;
+  }
+
+  /**
+   * Returns the key registered under a name, registering it with
+   * values of any type if there is none. Used by the string based
+   * <code>setInfo</code> and <code>getInfo</code>.
+   *
+   * @param name the name of the attribute.
+   * @return the key.
+   */
+  static AttributeKey<?> forName(String name)
+  {
+    AttributeKey<?> key = keys.get(name);
+    if (key != null)
+      return key;
+
+    synchronized (AttributeKey.class)
+    {
+      key = keys.get(name);
+      return key != null ? key : register(name, Object.class);
+    }
+  }
+
+  /**
+   * @return every key registered.
+   */
+  static Collection<AttributeKey<?>> all()
+  {
+    return keys.values();
+  }
+
+  /**
+   * @return the number of slots given so far.
+   */
+  static synchronized int countSlots()
+  {
+    return slots;
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * @return the name of the attribute.
+   */
+  public String getName()
+  {
+    return name;
+  }
+
+  /**
+   * @return the type of the values of the attribute.
+   */
+  public Class<T> getType()
+  {
+    return type;
+  }
+
+  /**
+   * Checks that a value can be stored under this key.
+   *
+   * @exception ClassCastException if it cannot.
+   */
+  Object check(Object value)
+  {
+    return type.cast(value);
+  }
+
+  /**
+   * @return the name of the attribute.
+   */
+  public String toString()
+  {
+    return name;
+  }
+}
+// End of AttributeKey class
@@ -0,0 +1,97 @@
+package ocsf.server;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * An immutable copy of the attributes of a client, taken with
+ * <code>ConnectionToClient.snapshotAttributes</code> and given back to
+ * a connection with <code>restoreAttributes</code>. The server takes one
+ * when a client with a session disconnects, so that the client gets
+ * its attributes back when it resumes.<p>
+ *
+ * A snapshot is serializable so that a client can be migrated to
+ * another server. Since slots are only meaningful within one JVM, the
+ * attributes are written by name and their slots looked up again when
+ * read; the values must then be serializable themselves.
+ */
+public final class AttributeSnapshot implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * A snapshot of a client without attributes.
+   */
+  public static final AttributeSnapshot EMPTY =
+    new AttributeSnapshot(new Object[0]);
+
+  /**
+   * The values, indexed by slot. Never modified.
+   */
+  private transient Object[] values;
+
+  AttributeSnapshot(Object[] values)
+  {
+    this.values = values;
+  }
+
+  /**
+   * @return the values, indexed by slot; not to be modified.
+   */
+  Object[] values()
+  {
+    return values;
+  }
+
+  /**
+   * Returns the value of an attribute in the snapshot.
+   *
+   * @param key the attribute.
+   * @return its value, or null.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T get(AttributeKey<T> key)
+  {
+    return key.slot < values.length ? (T)values[key.slot] : null;
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException
+  {
+    Map<String, Object> named = new HashMap<>();
+    for (AttributeKey<?> key : keysOf(values))
+    {
+      named.put(key.getName(), values[key.slot]);
+    }
+    out.writeObject(named);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void readObject(ObjectInputStream in)
+    throws IOException, ClassNotFoundException
+  {
+    Map<String, Object> named = (Map<String, Object>)in.readObject();
+    values = new Object[AttributeKey.countSlots() + named.size()];
+    for (Map.Entry<String, Object> entry : named.entrySet())
+    {
+      AttributeKey<?> key = AttributeKey.forName(entry.getKey());
+      if (key.slot >= values.length)
+        values = Arrays.copyOf(values, key.slot + 1);
+      values[key.slot] = key.check(entry.getValue());
+    }
+  }
+
+  /**
+   * @return the keys of the attributes that have a value.
+   */
+  private static List<AttributeKey<?>> keysOf(Object[] values)
+  {
+    List<AttributeKey<?>> keys = new ArrayList<>();
+    for (AttributeKey<?> key : AttributeKey.all())
+    {
+      if (key.slot < values.length && values[key.slot] != null)
+        keys.add(key);
+    }
+    return keys;
+  }
+}
+// End of AttributeSnapshot class
@@ -0,0 +1,24 @@
+package ocsf.server;
+
+/**
+ * Consumes the events of an <code>ObservableOriginatorServer</code>
+ * running with an event ring. Each observer has its own thread, which
+ * hands it every event that has been published since its last call, in
+ * order, flagging the last one of the batch.
+ *
+ * @see ocsf.server.ObservableOriginatorServer#addBatchObserver
+ */
+@FunctionalInterface
+public interface BatchObserver
+{
+  /**
+   * Called for each event of the ring. The event is a reused slot and
+   * must not be kept after this method returns.
+   *
+   * @param event      the event.
+   * @param sequence   the sequence number of the event.
+   * @param endOfBatch true if no other event is currently available;
+   *        a good time to flush work accumulated for the batch.
+   */
+  void onEvent(OriginatorMessage event, long sequence, boolean endOfBatch);
+}
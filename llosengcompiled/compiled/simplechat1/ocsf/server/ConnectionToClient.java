@@ -1 +1,1706 @@
-// This file contains material supporting section 3.8 of the textbook:// "Object Oriented Software Engineering" and is issued under the open-source// license found at www.lloseng.com package ocsf.server;import java.io.*;import java.net.*;import java.util.*;/*** An instance of this class is created by the server when a client* connects. It accepts messages coming from the client and is* responsible for sending data to the client since the socket is* private to this class. The AdaptableServer contains a set of* instances of this class and is responsible for adding and deleting* them.<p>** Project Name: OCSF (Object Client-Server Framework)<p>** @author Dr Robert Lagani&egrave;re* @author Dr Timothy C. Lethbridge* @author Fran&ccedil;ois B&eacute;langer* @author Paul Holden* @version February 2001 (2.12)*/public class ConnectionToClient extends Thread{// INSTANCE VARIABLES ***********************************************  /**  * A reference to the Server that created this instance.  */  private AdaptableServer server;  /**  * Sockets are used in the operating system as channels  * of communication between two processes.  * @see java.net.Socket  */  private Socket clientSocket;  /**  * Stream used to read from the client.  */  private ObjectInputStream input;  /**  * Stream used to write to the client.  */  private ObjectOutputStream output;  /**  * Indicates if the thread is ready to stop. Set to true when closing  * of the connection is initiated.  */  private boolean readyToStop;  /**   * Map to save information about the client such as its login ID.   * The initial size of the map is small since it is not expected   * that concrete servers will want to store many different types of   * information about each client. Used by the setInfo and getInfo   * methods.   */  private HashMap savedInfo = new HashMap(10);// CONSTRUCTORS *****************************************************  /**   * Constructs a new connection to a client.   *   * @param group the thread group that contains the connections.   * @param clientSocket contains the client's socket.   * @param server a reference to the server that created   *        this instance   * @exception IOException if an I/O error occur when creating   *        the connection.   */  ConnectionToClient(ThreadGroup group, Socket clientSocket, AdaptableServer server) throws IOException  {    super(group,(Runnable)null);    // Initialize variables    this.clientSocket = clientSocket;    this.server = server;    //Initialize the objects streams    try    {      input = new ObjectInputStream(clientSocket.getInputStream());      output = new ObjectOutputStream(clientSocket.getOutputStream());    }    catch (IOException ex)    {      try      {        closeAll();      }      catch (Exception exc) { }      throw ex;  // Rethrow the exception.    }    readyToStop = false;    start(); // Start the thread waits for data from the socket  }// INSTANCE METHODS *************************************************  /**   * Sends an object to the client.   *   * @param msg the message to be sent.   * @exception IOException if an I/O error occur when sending the    *    message.   */  final public void sendToClient(Object msg) throws IOException  {    if (clientSocket == null || output == null)      throw new SocketException("socket does not exist");    output.writeObject(msg);  }  /**   * Closes the client.   * If the connection is already closed, this   * call has no effect.   *   * @exception IOException if an error occurs when closing the socket.   */  final public void close() throws IOException  {    readyToStop = true; // Set the flag that tells the thread to stop    try    {      closeAll();    }    finally    {      server.clientDisconnected(this);    }  }// ACCESSING METHODS ------------------------------------------------  /**   * Returns the address of the client.   *   * @return the client's Internet address.   */  final public InetAddress getInetAddress()  {    return clientSocket == null ? null : clientSocket.getInetAddress();  }  /**   * Returns a string representation of the client.   *   * @return the client's description.   */  public String toString()  {    return clientSocket == null ? null :      clientSocket.getInetAddress().getHostName()        +" (" + clientSocket.getInetAddress().getHostAddress() + ")";  }  /**   * Saves arbitrary information about this client. Designed to be   * used by concrete subclasses of AdaptableServer. Based on a hash map.   *   * @param infoType   identifies the type of information   * @param info       the information itself.   */  public void setInfo(String infoType, Object info)  {    savedInfo.put(infoType, info);  }  /**   * Returns information about the client saved using setInfo.   * Based on a hash map.   *   * @param infoType   identifies the type of information   */  public Object getInfo(String infoType)  {    return savedInfo.get(infoType);  }// RUN METHOD -------------------------------------------------------  /**   * Constantly reads the client's input stream.   * Sends all objects that are read to the server.   * Not to be called.   */  final public void run()  {    server.clientConnected(this);    // This loop reads the input stream and responds to messages    // from clients    try    {      // The message from the client      Object msg;      while (!readyToStop)      {        // This block waits until it reads a message from the client        // and then sends it for handling by the server        msg = input.readObject();        server.receiveMessageFromClient(msg, this);      }    }    catch (Exception exception)    {      if (!readyToStop)      {        try        {          closeAll();        }        catch (Exception ex) { }        server.clientException(this, exception);      }    }  }// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------  /**   * Closes all connection to the server.   *   * @exception IOException if an I/O error occur when closing the    *     connection.   */  private void closeAll() throws IOException  {    try    {      // Close the socket      if (clientSocket != null)        clientSocket.close();      // Close the output stream      if (output != null)        output.close();      // Close the input stream      if (input != null)        input.close();    }    finally    {      // Set the streams and the sockets to NULL no matter what      // Doing so allows, but does not require, any finalizers      // of these objects to reclaim system resources if and      // when they are garbage collected.      output = null;      input = null;      clientSocket = null;    }  }  /**   * This method is called by garbage collection.   */  protected void finalize()  {    try    {      closeAll();    }    catch(IOException e) {}  }}// End of ConnectionToClient class
\ No newline at end of file
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com 
+
+package ocsf.server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ocsf.protocol.*;
+
+/**
+* An instance of this class is created by the server when a client
+* connects. It accepts messages coming from the client and is
+* responsible for sending data to the client since the socket is
+* private to this class. The AdaptableServer contains a set of
+* instances of this class and is responsible for adding and deleting
+* them.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @author Dr Robert Lagani&egrave;re
+* @author Dr Timothy C. Lethbridge
+* @author Fran&ccedil;ois B&eacute;langer
+* @author Paul Holden
+* @version February 2001 (2.12)
+*/
+public class ConnectionToClient extends Thread
+{
+// INSTANCE VARIABLES ***********************************************
+
+  /**
+  * A reference to the Server that created this instance.
+  */
+  private AbstractServer server;
+
+  /**
+  * Sockets are used in the operating system as channels
+  * of communication between two processes.
+  * @see java.net.Socket
+  */
+  private Socket clientSocket;
+
+  /**
+  * The channel of a client connected through a Unix domain socket or
+  * shared memory, which has no <code>Socket</code>; null for a TCP
+  * client.
+  */
+  private Closeable clientChannel;
+
+  /**
+  * Stream used to read the frames of the client.
+  */
+  private DataInputStream input;
+
+  /**
+  * Stream used to write frames to the client.
+  */
+  private DataOutputStream output;
+
+  /**
+   * The TLS side of the connection, or null if it is not encrypted.
+   */
+  private TlsEngine tls;
+
+  /**
+   * The compression negotiated with the client, or null if its frames
+   * are raw.
+   */
+  private volatile Compression compression;
+
+  /**
+   * The channel of the socket, to which the data of the files sent is
+   * written straight from the files; null if it must go through the
+   * output stream, e.g. to be encrypted.
+   */
+  private WritableByteChannel rawChannel;
+
+  /**
+  * Indicates if the thread is ready to stop. Set to true when closing
+  * of the connection is initiated.
+  */
+  private boolean readyToStop;
+
+  /**
+   * The messages read from the client and not yet handed to the server;
+   * used by the thread of the connection only.
+   */
+  private List<Object> received = new ArrayList<>();
+
+  /**
+   * The attributes of the client, such as its login ID, indexed by the
+   * slot of their key. The array is replaced, never modified, when an
+   * attribute is set, so that reading one takes no lock and a snapshot
+   * is the array itself.
+   */
+  private volatile Object[] attributes = AttributeSnapshot.EMPTY.values();
+
+  /**
+   * Orders the changes of the attributes.
+   */
+  private final Object attributesLock = new Object();
+
+  /**
+   * The session of this client when the server supports session
+   * resume and the client asked for one; null otherwise.
+   */
+  private volatile SessionRegistry.Session session;
+
+  /**
+   * The messages waiting to be written, one queue per lane: serialized
+   * messages, and the <code>OutboundStream</code> of the messages and
+   * streams written chunk by chunk. Guarded by outboundLock.
+   */
+  private final ArrayDeque<Object> controlQueue = new ArrayDeque<>();
+  private final ArrayDeque<Object> normalQueue = new ArrayDeque<>();
+  private final ArrayDeque<Object> bulkQueue = new ArrayDeque<>();
+
+  /**
+   * Guards the queues. Not this, which is also the monitor of the
+   * thread.
+   */
+  private final Object outboundLock = new Object();
+
+  /**
+   * The number of normal and bulk messages queued. Guarded by
+   * outboundLock.
+   */
+  private int queued = 0;
+
+  /**
+   * Set while a sender is writing the queued messages. Guarded by
+   * outboundLock.
+   */
+  private boolean draining = false;
+
+  /**
+   * Set while the client has not acknowledged a whole replay buffer of
+   * messages: the sender draining the queues stopped, and the sender
+   * stays the one draining until an acknowledgement resumes it. Guarded
+   * by outboundLock.
+   */
+  private boolean stalled = false;
+
+  /**
+   * When the writing last stopped for an acknowledgement, in ms since
+   * the epoch. Guarded by outboundLock.
+   */
+  private long stalledSince;
+
+  /**
+   * The number of normal messages written since the last bulk one.
+   * Guarded by outboundLock.
+   */
+  private int normalRun = 0;
+
+  /**
+   * The number of normal and bulk messages that can be queued before
+   * the senders wait. Control messages are never held back.
+   */
+  public static final int MAX_QUEUED = 4096;
+
+  /**
+   * How long the writing to a client of a session waits for the client
+   * to acknowledge the messages it was sent, in ms, before the client
+   * is disconnected.
+   */
+  public static final long ACK_TIMEOUT = 30000;
+
+  /**
+   * While bulk messages are queued, one is written after this many
+   * normal ones.
+   */
+  public static final int BULK_SHARE = 4;
+
+  /**
+   * How long close waits for the queued messages to be written, in ms.
+   */
+  private static final long CLOSE_LINGER = 1000;
+
+  /**
+   * The most messages read from the client handed to the server at once.
+   */
+  public static final int MAX_RECEIVED = 256;
+
+  /**
+   * The number of chunks a stream opened with openStream can have
+   * waiting to be written before its writer waits.
+   */
+  public static final int STREAM_WINDOW = 4;
+
+  /**
+   * Set once the connection is closed; nothing more can be queued.
+   * Guarded by outboundLock.
+   */
+  private boolean closed = false;
+
+  /**
+   * The session the connection was detached from when it closed, or
+   * null. Guarded by outboundLock.
+   */
+  private SessionRegistry.Session lostSession;
+
+  /**
+   * The streams opened with openStream and not closed yet. Guarded by
+   * outboundLock.
+   */
+  private final List<OutboundStream> openStreams = new ArrayList<>();
+
+  /**
+   * The files being sent. Guarded by outboundLock.
+   */
+  private final List<OutboundFile> openFiles = new ArrayList<>();
+
+  /**
+   * The id of the last stream sent, by any connection, so that the
+   * chunks replayed to a resumed client cannot be mistaken for those of
+   * another stream.
+   */
+  private static final AtomicLong lastStreamId = new AtomicLong();
+
+
+// CONSTRUCTORS *****************************************************
+
+  /**
+   * Constructs a new connection to a client.
+   *
+   * @param group the thread group that contains the connections.
+   * @param clientSocket contains the client's socket.
+   * @param server a reference to the server that created
+   *        this instance
+   * @exception IOException if an I/O error occur when creating
+   *        the connection.
+   */
+
+  ConnectionToClient(ThreadGroup group, Socket clientSocket, AbstractServer server) throws IOException
+  {
+    super(group,(Runnable)null);
+    // Initialize variables
+    this.clientSocket = clientSocket;
+    this.server = server;
+    initialize();
+  }
+
+  /**
+   * Constructs a new connection to a client on the same host, connected
+   * through a Unix domain socket.
+   *
+   * @param group the thread group that contains the connections.
+   * @param clientChannel the client's channel, in blocking mode.
+   * @param server a reference to the server that created
+   *        this instance
+   * @exception IOException if an I/O error occur when creating
+   *        the connection.
+   */
+  ConnectionToClient(ThreadGroup group, SocketChannel clientChannel, AbstractServer server) throws IOException
+  {
+    super(group,(Runnable)null);
+    this.clientChannel = clientChannel;
+    this.server = server;
+    initialize();
+  }
+
+  /**
+   * Constructs a new connection to a client on the same host, connected
+   * through shared memory.
+   *
+   * @param group the thread group that contains the connections.
+   * @param clientChannel the client's rings.
+   * @param server a reference to the server that created
+   *        this instance
+   * @exception IOException if an I/O error occur when creating
+   *        the connection.
+   */
+  ConnectionToClient(ThreadGroup group, SharedMemoryChannel clientChannel, AbstractServer server) throws IOException
+  {
+    super(group,(Runnable)null);
+    this.clientChannel = clientChannel;
+    this.server = server;
+    initialize();
+  }
+
+  /**
+   * Opens the streams and starts the thread.
+   */
+  private void initialize() throws IOException
+  {
+    //Initialize the objects streams
+    try
+    {
+      InputStream in;
+      OutputStream out;
+      if (clientSocket != null)
+      {
+        in = clientSocket.getInputStream();
+        out = clientSocket.getOutputStream();
+        TlsContext tlsContext = server.getTlsContext();
+        if (tlsContext != null)
+        {
+          tls = tlsContext.createEngine(null, 0, false);
+          in = tls.input(in);
+          out = tls.output(out);
+        }
+        else
+          rawChannel = clientSocket.getChannel();
+      }
+      else if (clientChannel instanceof SharedMemoryChannel)
+      {
+        in = ((SharedMemoryChannel)clientChannel).getInputStream();
+        out = ((SharedMemoryChannel)clientChannel).getOutputStream();
+      }
+      else
+      {
+        in = ChannelStreams.input((SocketChannel)clientChannel);
+        out = ChannelStreams.output((SocketChannel)clientChannel);
+        rawChannel = (SocketChannel)clientChannel;
+      }
+      input = new DataInputStream(new BufferedInputStream(in));
+      output = new DataOutputStream(new BufferedOutputStream(out));
+    }
+    catch (IOException ex)
+    {
+      try
+      {
+        closeAll();
+      }
+      catch (Exception exc) { }
+
+      throw ex;  // Rethrow the exception.
+    }
+
+    readyToStop = false;
+    start(); // Start the thread waits for data from the socket
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Sends an object to the client in the normal lane.
+   *
+   * @param msg the message to be sent.
+   * @exception IOException if an I/O error occur when sending the 
+   *    message.
+   */
+  final public void sendToClient(Object msg) throws IOException
+  {
+    sendToClient(msg, Lane.NORMAL);
+  }
+
+  /**
+   * Sends an object to the client in a given lane. The message is
+   * serialized by the calling thread and queued behind the messages of
+   * its lane; control messages are written before any other, and one
+   * bulk message is written after every <code>BULK_SHARE</code> normal
+   * ones. The first sender to find nothing being written writes the
+   * queues out, so that a message is sent by the calling thread when
+   * the connection is idle.<p>
+   *
+   * A message that serializes to more than <code>Chunk.SIZE</code>
+   * bytes is written one chunk at a time, going back to the end of its
+   * lane after each chunk, so that the messages queued behind it are
+   * not held up; the client reassembles it. Smaller messages sent
+   * after it may thus reach the client first.<p>
+   *
+   * A sender waits while <code>MAX_QUEUED</code> normal and bulk
+   * messages are queued. When the writing itself waits for the client
+   * to acknowledge the messages of its session, a sender that reads
+   * from a client does not wait, since it may be the one to read the
+   * acknowledgement: a client that lets <code>MAX_QUEUED</code>
+   * messages pile up meanwhile, or that does not acknowledge within
+   * <code>ACK_TIMEOUT</code> ms, is disconnected instead, and can
+   * resume its session.
+   *
+   * @param msg  the message to be sent.
+   * @param lane the lane of the message.
+   * @exception IOException if the message cannot be serialized or is
+   *    larger than the maximum message size of the server, if an I/O
+   *    error occur when writing the queued messages, or if the
+   *    connection is closed.
+   * @see AbstractServer#setMaxMessageSize(int)
+   */
+  final public void sendToClient(Object msg, Lane lane) throws IOException
+  {
+    sendSerializedToClient(FrameCodec.serialize(msg), lane);
+  }
+
+  /**
+   * Sends a message already serialized with <code>FrameCodec.serialize</code>
+   * in a given lane, e.g. a message read back from a log, without it
+   * being deserialized and serialized again. The message is queued as
+   * by <code>sendToClient</code>.
+   *
+   * @param payload the message, serialized; not to be modified once
+   *                sent.
+   * @param lane    the lane of the message.
+   * @exception IOException if the message is larger than the maximum
+   *    message size of the server, if an I/O error occur when writing
+   *    the queued messages, or if the connection is closed.
+   * @see #sendToClient(Object, Lane)
+   */
+  final public void sendSerializedToClient(byte[] payload, Lane lane)
+    throws IOException
+  {
+    int maxSize = server.getMaxMessageSize();
+    if (payload.length > maxSize)
+      throw new IOException("message of " + payload.length
+        + " bytes exceeds the maximum of " + maxSize);
+    if (!offer(payload.length > Chunk.SIZE
+      ? new OutboundStream(payload, lane) : payload, lane))
+      throw new SocketException("socket does not exist");
+  }
+
+  /**
+   * Opens a stream to the client, for data too large to be held in
+   * memory at once, such as a file. The data is sent in chunks of
+   * <code>Chunk.SIZE</code> bytes, queued in the given lane between the
+   * other messages, and handed to the client chunk by chunk with
+   * <code>AbstractClient.handleStreamFromServer</code>. The writer
+   * waits while <code>STREAM_WINDOW</code> chunks of the stream are
+   * queued, so that neither side buffers the whole data.<p>
+   *
+   * Closing the stream sends its last chunk. A stream is not resumed
+   * with a session: if the connection is lost, writing fails and the
+   * client is told the stream was aborted.
+   *
+   * @param header what the stream is about, e.g. the name of a file;
+   *               given to the client with the data.
+   * @param lane   the lane of the chunks, e.g. <code>Lane.BULK</code>.
+   * @return the stream.
+   * @exception IOException if the connection is closed.
+   */
+  final public OutputStream openStream(Serializable header, Lane lane)
+    throws IOException
+  {
+    OutboundStream stream = new OutboundStream(
+      Objects.requireNonNull(header), lane);
+    synchronized (outboundLock)
+    {
+      if (closed)
+        throw new SocketException("socket does not exist");
+      openStreams.add(stream);
+    }
+    return stream;
+  }
+
+  /**
+   * Offers a file to the client. A client that takes it asks for the
+   * data from the offset it needs, and the file is sent from there in
+   * frames of <code>Chunk.SIZE</code> bytes in the bulk lane, between
+   * the other messages, by a thread of its own. The data goes from the
+   * file to the socket with <code>FileChannel.transferTo</code>, without
+   * being copied into memory, unless the connection is encrypted or
+   * through shared memory. A transfer cut by a lost connection is
+   * resumed by the client from the data it has; the file must not
+   * change while it is offered.
+   *
+   * @param file the file.
+   * @return the offer sent, which can be withdrawn with
+   *         <code>AbstractServer.withdrawFile</code>.
+   * @exception IOException if the file cannot be read, or the offer
+   *    cannot be sent.
+   */
+  final public FileOffer sendFile(Path file) throws IOException
+  {
+    FileOffer offer = server.shareFile(file);
+    sendToClient(offer);
+    return offer;
+  }
+
+  /**
+   * Queues a message broadcast by the server, serialized once for all
+   * the clients. If the connection is closed, the message is recorded
+   * in the session it was detached from instead, so that the client
+   * gets it when it resumes. Failures to write are ignored: the
+   * messages queued are recorded in the session when the connection
+   * closes.
+   *
+   * @param payload the message, serialized.
+   * @param lane    the lane of the message.
+   * @return the session that has or will have the message, so that it
+   *         is not recorded twice; null if the client has none.
+   */
+  SessionRegistry.Session broadcast(byte[] payload, Lane lane)
+  {
+    SessionRegistry.Session current = session;
+    try
+    {
+      if (offer(payload.length > Chunk.SIZE
+        ? new OutboundStream(payload, lane) : payload, lane))
+        return current;
+
+      SessionRegistry.Session lost;
+      synchronized (outboundLock)
+      {
+        lost = lostSession;
+      }
+      if (lost != null)
+        lost.recordIfDetached(split(payload));
+      return lost;
+    }
+    catch (IOException ex)
+    {
+      return current;
+    }
+  }
+
+  /**
+   * Queues a serialized message or a stream in its lane, and writes the
+   * queues out unless another sender is already doing so.
+   *
+   * @return false if the connection is closed.
+   * @exception IOException if an I/O error occur when writing.
+   */
+  private boolean offer(Object entry, Lane lane) throws IOException
+  {
+    boolean behind = false;
+    synchronized (outboundLock)
+    {
+      if (lane != Lane.CONTROL)
+      {
+        // While the writing waits for the acknowledgement, a reader
+        // does not wait, since it may be the one to read it
+        boolean reader = Thread.currentThread() instanceof ConnectionToClient;
+        try
+        {
+          long left;
+          while (queued >= MAX_QUEUED && draining && !closed)
+          {
+            if (!stalled)
+              outboundLock.wait();
+            else if (!reader && (left = stalledSince + ACK_TIMEOUT
+              - System.currentTimeMillis()) > 0)
+              outboundLock.wait(left);
+            else
+              break;
+          }
+        }
+        catch (InterruptedException ex)
+        {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("interrupted while queued");
+        }
+      }
+      if (closed)
+        return false;
+
+      // Queued anyway, to be kept in the session when it is detached
+      queueOf(lane).add(entry);
+      if (lane != Lane.CONTROL)
+        queued++;
+      if (stalled && (queued > MAX_QUEUED
+        || System.currentTimeMillis() - stalledSince > ACK_TIMEOUT))
+        behind = true;
+      else if (draining)
+        return true;  // Written by the sender already draining
+      else
+        draining = true;
+    }
+    if (behind)
+    {
+      disconnect();
+      return true;
+    }
+    drain();
+    return true;
+  }
+
+  /**
+   * Closes the connection of a client that falls behind without
+   * acknowledging what it was sent. Its session is kept for a resume
+   * with the messages queued, and the reader thread then handles the
+   * client as lost.
+   */
+  private void disconnect()
+  {
+    try
+    {
+      closeAll();
+    }
+    catch (IOException ex) { }
+  }
+
+  /**
+   * Answers a request sent by the client with
+   * <code>AbstractClient.request</code>. Requests can be answered in any
+   * order and from any thread.
+   *
+   * @param request the request received in handleMessageFromClient.
+   * @param msg     the answer.
+   * @exception IOException if an I/O error occur when sending the
+   *    answer.
+   */
+  final public void reply(Request request, Object msg) throws IOException
+  {
+    sendToClient(new Reply(request.getId(), msg));
+  }
+
+  /**
+   * Closes the client.
+   * If the connection is already closed, this
+   * call has no effect.
+   *
+   * @exception IOException if an error occurs when closing the socket.
+   */
+  final public void close() throws IOException
+  {
+    readyToStop = true; // Set the flag that tells the thread to stop
+
+    // Give the messages queued, e.g. a notice of why the client is
+    // closed, a chance to be written
+    synchronized (outboundLock)
+    {
+      long deadline = System.currentTimeMillis() + CLOSE_LINGER;
+      long left;
+      try
+      {
+        while (draining && !stalled
+          && (left = deadline - System.currentTimeMillis()) > 0)
+        {
+          outboundLock.wait(left);
+        }
+      }
+      catch (InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    // A connection closed on purpose cannot be resumed
+    SessionRegistry.Session current = session;
+    if (current != null)
+      server.getSessions().end(current);
+
+    try
+    {
+      closeAll();
+    }
+    finally
+    {
+      server.clientDisconnected(this);
+    }
+  }
+
+// ACCESSING METHODS ------------------------------------------------
+
+  /**
+   * Returns the address of the client.
+   *
+   * @return the client's Internet address, or null if it connected
+   *         through a Unix domain socket or shared memory.
+   */
+  final public InetAddress getInetAddress()
+  {
+    return clientSocket == null ? null : clientSocket.getInetAddress();
+  }
+
+  /**
+   * Returns the number of messages sent to the client in its session
+   * that the client has not acknowledged yet.
+   *
+   * @return the number of unacknowledged messages; 0 if the client has
+   *         no session.
+   */
+  final public long getUnacknowledgedCount()
+  {
+    SessionRegistry.Session current = session;
+    return current == null ? 0 : current.getUnacknowledged();
+  }
+
+  /**
+   * Returns the number of messages queued to be written to the client.
+   *
+   * @return the number of messages queued in all the lanes.
+   */
+  final public int getQueuedCount()
+  {
+    synchronized (outboundLock)
+    {
+      return queued + controlQueue.size();
+    }
+  }
+
+  /**
+   * @return true if the connection is being closed; the messages that
+   *         the client sent before it should no longer be handled.
+   */
+  final public boolean isClosing()
+  {
+    return readyToStop;
+  }
+
+  /**
+   * Returns a string representation of the client.
+   *
+   * @return the client's description.
+   */
+  public String toString()
+  {
+    if (clientChannel instanceof SharedMemoryChannel)
+      return "localhost (shared memory)";
+    if (clientChannel != null)
+      return "localhost (unix)";
+    return clientSocket == null ? null :
+      clientSocket.getInetAddress().getHostName()
+        +" (" + clientSocket.getInetAddress().getHostAddress() + ")";
+  }
+
+  /**
+   * Returns an attribute of the client. Takes no lock; meant to be
+   * called for every message.
+   *
+   * @param key the attribute.
+   * @return its value, or null if it was not set.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T getAttribute(AttributeKey<T> key)
+  {
+    Object[] current = attributes;
+    return key.slot < current.length ? (T)current[key.slot] : null;
+  }
+
+  /**
+   * Sets an attribute of the client.
+   *
+   * @param key   the attribute.
+   * @param value its value, or null to clear it.
+   */
+  public <T> void setAttribute(AttributeKey<T> key, T value)
+  {
+    put(key, key.check(value));
+  }
+
+  /**
+   * Returns a copy of the attributes of the client, which can be given
+   * back to this or another connection with restoreAttributes.
+   *
+   * @return the snapshot.
+   */
+  public AttributeSnapshot snapshotAttributes()
+  {
+    return new AttributeSnapshot(attributes);
+  }
+
+  /**
+   * Sets the attributes found in a snapshot; the other attributes are
+   * left as they are.
+   *
+   * @param snapshot the snapshot.
+   */
+  public void restoreAttributes(AttributeSnapshot snapshot)
+  {
+    Object[] restored = snapshot.values();
+    synchronized (attributesLock)
+    {
+      Object[] next = Arrays.copyOf(attributes,
+        Math.max(attributes.length, restored.length));
+      for (int slot = 0; slot < restored.length; slot++)
+      {
+        if (restored[slot] != null)
+          next[slot] = restored[slot];
+      }
+      attributes = next;
+    }
+  }
+
+  /**
+   * Saves arbitrary information about this client. Designed to be
+   * used by concrete subclasses of AdaptableServer. The information is
+   * kept as an attribute named after its type; servers that read it
+   * for every message should register an <code>AttributeKey</code>
+   * and use getAttribute instead.
+   *
+   * @param infoType   identifies the type of information
+   * @param info       the information itself.
+   */
+  public void setInfo(String infoType, Object info)
+  {
+    put(AttributeKey.forName(infoType), info);
+  }
+
+  /**
+   * Returns information about the client saved using setInfo.
+   *
+   * @param infoType   identifies the type of information
+   */
+  public Object getInfo(String infoType)
+  {
+    return getAttribute(AttributeKey.forName(infoType));
+  }
+
+// RUN METHOD -------------------------------------------------------
+
+  /**
+   * Constantly reads the client's input stream.
+   * Sends all objects that are read to the server: when a message is
+   * read, those that already arrived after it are read as well, up to
+   * <code>MAX_RECEIVED</code>, and all are handed to the server at once.
+   * Not to be called.
+   */
+  final public void run()
+  {
+    if (tls != null && !handshake())
+      return;
+
+    server.clientConnected(this);
+
+    // This loop reads the input stream and responds to messages
+    // from clients
+    try
+    {
+      // The message from the client
+      Object msg;
+
+      while (!readyToStop)
+      {
+        // This block waits until it reads a message from the client,
+        // takes those already buffered behind it, and then sends them
+        // for handling by the server
+        do
+        {
+          msg = FrameCodec.read(input, server.getMaxMessageSize(),
+            server.getMessageFilter(), compression);
+
+          if (msg instanceof Batch)
+          {
+            for (Object batched : ((Batch)msg).getMessages())
+            {
+              receive(batched);
+            }
+          }
+          else
+            receive(msg);
+        }
+        while (!readyToStop && received.size() < MAX_RECEIVED
+          && input.available() > 0);
+
+        handOver();
+      }
+    }
+    catch (Exception exception)
+    {
+      if (!readyToStop)
+      {
+        try
+        {
+          handOver();  // The messages read before the failure
+        }
+        catch (Exception ex) { }
+
+        try
+        {
+          closeAll();
+        }
+        catch (Exception ex) { }
+
+        server.clientException(this, exception);
+      }
+    }
+  }
+
+
+// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+  /**
+   * Performs the TLS handshake within the handshake timeout, so that a
+   * client that connects and stays silent does not hold the thread. A
+   * client that fails the handshake is disconnected without the server
+   * being told of it, since it never was connected.
+   *
+   * @return true if the handshake completed.
+   */
+  private boolean handshake()
+  {
+    try
+    {
+      clientSocket.setSoTimeout(tls.getContext().getHandshakeTimeout());
+      tls.handshake();
+      clientSocket.setSoTimeout(0);
+      return true;
+    }
+    catch (IOException ex)
+    {
+      try
+      {
+        closeAll();
+      }
+      catch (Exception exc) { }
+      return false;
+    }
+  }
+
+  /**
+   * Handles one message read from the client: the session control
+   * messages are handled here, the others are kept to be handed to the
+   * server. The messages kept are handed over first when a control
+   * message is handled, so that the server sees everything in order.
+   */
+  private void receive(Object msg) throws IOException
+  {
+    if (msg instanceof FileRequest || msg instanceof FileData
+      || msg instanceof CompressionOffer || msg instanceof ResumeRequest)
+      handOver();
+    if (msg instanceof FileRequest)
+    {
+      transferFile((FileRequest)msg);
+      return;
+    }
+    if (msg instanceof FileData)
+      throw new StreamCorruptedException("file data from a client");
+    if (msg instanceof CompressionOffer)
+    {
+      // Accepted with the same dictionary only; the client stays raw
+      // until it gets the answer
+      Compression offered = server.getCompression();
+      if (offered != null && offered.getDictionaryId()
+        == ((CompressionOffer)msg).getDictionaryId())
+      {
+        compression = offered;
+        write(new CompressionOffer(offered.getDictionaryId()));
+      }
+      return;
+    }
+    if (msg instanceof ResumeRequest)
+    {
+      // Without sessions, the client is told to log in again
+      if (server.getSessions() == null)
+        write(new SessionGrant(null, false, 0));
+      else if (server.getSessions().resume(this, (ResumeRequest)msg))
+        server.clientResumed(this);
+      return;
+    }
+    if (msg instanceof Sequenced || msg instanceof Ack)
+    {
+      // Unwrap in order and once; the session has moved on otherwise
+      SessionRegistry.Session current = session;
+      boolean next = current != null && current.receive(this, msg);
+      resumeDrain();  // The window may have opened
+      if (!next)
+        return;
+      msg = ((Sequenced)msg).getMessage();
+    }
+    received.add(msg);
+  }
+
+  /**
+   * Hands the messages kept to the server, in one call.
+   */
+  private void handOver()
+  {
+    if (received.isEmpty())
+      return;
+    List<Object> messages = received;
+    received = new ArrayList<>();  // The server may keep the list
+    server.receiveMessagesFromClient(messages, this);
+  }
+
+
+  /**
+   * Starts sending a file the client asked for, from the offset it
+   * gave; a request for a file no longer offered, or that cannot be
+   * read, is answered with the withdrawal of the offer.
+   */
+  private void transferFile(FileRequest request) throws IOException
+  {
+    AbstractServer.SharedFile shared = server.getSharedFile(request.getId());
+    FileChannel file = null;
+    if (shared != null && request.getOffset() >= 0
+      && request.getOffset() <= shared.offer.getSize())
+    {
+      try
+      {
+        file = FileChannel.open(shared.path, StandardOpenOption.READ);
+      }
+      catch (IOException ex) { }
+    }
+    if (file == null)
+    {
+      sendToClient(FileOffer.withdrawn(request.getId()));
+      return;
+    }
+
+    OutboundFile transfer =
+      new OutboundFile(shared.offer, file, request.getOffset());
+    synchronized (outboundLock)
+    {
+      if (closed)
+      {
+        file.close();
+        return;
+      }
+      openFiles.add(transfer);
+    }
+    Thread thread = new Thread(transfer,
+      "ConnectionToClient file " + shared.offer.getName());
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Writes an object to the client's stream at once, in the control
+   * lane, ahead of the queued messages; used for the messages of the
+   * session itself. Writes from different threads are serialized so
+   * that they cannot corrupt the stream.
+   *
+   * @param msg the object to write.
+   * @exception IOException if an I/O error occur when writing.
+   */
+  void write(Object msg) throws IOException
+  {
+    DataOutputStream out = output;
+    if (out == null)
+      throw new SocketException("socket does not exist");
+
+    Compression current = compression;
+    synchronized (out)
+    {
+      if (current != null)
+        FrameCodec.write(out, msg, Lane.CONTROL, current);
+      else
+        FrameCodec.write(out, msg, Lane.CONTROL);
+      out.flush();
+    }
+  }
+
+  /**
+   * Writes the queued messages until the queues are empty, then
+   * flushes the stream. Messages and chunks are numbered for the
+   * session as they are written, so that the client receives them in
+   * sequence whatever their lane. When the client has not acknowledged
+   * as many messages as the replay buffer holds, writing stops until
+   * it does, so that no message it may miss is pushed out of the buffer.
+   *
+   * @exception IOException if an I/O error occur when writing; the
+   *    messages left stay queued for the next sender.
+   */
+  private void drain() throws IOException
+  {
+    boolean flushed = true;
+    try
+    {
+      while (true)
+      {
+        Lane lane;
+        byte[] payload = null;
+        Sequenced numbered = null;
+        OutboundFile file = null;
+        long fileOffset = 0;
+        SessionRegistry.Session resumable = session;
+        boolean stop = false;
+        synchronized (outboundLock)
+        {
+          lane = nextLane();
+          if (lane == null && flushed)
+          {
+            draining = false;
+            outboundLock.notifyAll();
+            return;
+          }
+          if (lane != null && resumable != null
+            && !(queueOf(lane).peek() instanceof OutboundFile)
+            && resumable.isWindowFull(this))
+          {
+            stalled = stop = true;  // Resumed by the acknowledgement
+            stalledSince = System.currentTimeMillis();
+            outboundLock.notifyAll();  // The readers waiting queue anyway
+          }
+          else if (lane != null)
+          {
+            Object entry = queueOf(lane).poll();
+            if (lane != Lane.CONTROL && queued-- == MAX_QUEUED)
+              outboundLock.notifyAll();  // Room for the senders waiting
+
+            if (entry instanceof OutboundStream)
+            {
+              // One chunk, then back to the end of the lane
+              OutboundStream stream = (OutboundStream)entry;
+              payload = stream.take();
+              if (stream.hasReady())
+              {
+                queueOf(lane).add(stream);
+                if (lane != Lane.CONTROL)
+                  queued++;
+              }
+              else
+                stream.inLane = false;
+            }
+            else if (entry instanceof OutboundFile)
+            {
+              // One frame, then back to the end of the lane
+              file = (OutboundFile)entry;
+              fileOffset = file.take();
+              if (file.hasReady())
+              {
+                queueOf(lane).add(file);
+                if (lane != Lane.CONTROL)
+                  queued++;
+              }
+              else
+                file.inLane = false;
+            }
+            else
+              payload = (byte[])entry;
+
+            // Numbered and kept for replay before closeAll can see the
+            // queues without it; not the data of a file, which the
+            // client resumes by offset
+            if (resumable != null && file == null)
+              numbered = resumable.number(this, payload);
+          }
+        }
+
+        DataOutputStream out = output;
+        if (out == null)
+          throw new SocketException("socket does not exist");
+
+        if (stop)
+        {
+          // What is written must reach the client for it to answer
+          synchronized (out)
+          {
+            out.flush();
+          }
+          resumable.requestAck(this);
+          return;
+        }
+
+        if (lane == null)
+        {
+          // Flush once nothing is left, then look again
+          synchronized (out)
+          {
+            out.flush();
+          }
+          flushed = true;
+          continue;
+        }
+
+        // A payload broadcast to every client is the same array for
+        // each, so the compression compresses it once
+        Compression current = compression;
+        synchronized (out)
+        {
+          if (file != null)
+            file.write(out, fileOffset);
+          else if (current != null && numbered != null)
+            FrameCodec.writeFrame(out, numbered, lane, current);
+          else if (current != null)
+            FrameCodec.writeFrame(out, payload, lane, current);
+          else if (numbered != null)
+            FrameCodec.write(out, numbered, lane);
+          else
+            FrameCodec.writeFrame(out, payload, lane);
+        }
+        flushed = false;
+      }
+    }
+    catch (IOException | RuntimeException ex)
+    {
+      synchronized (outboundLock)
+      {
+        draining = false;
+        outboundLock.notifyAll();
+      }
+      throw ex;
+    }
+  }
+
+  /**
+   * Resumes writing the queues once the client has acknowledged
+   * messages, if writing had stopped for it.
+   *
+   * @exception IOException if an I/O error occur when writing.
+   */
+  private void resumeDrain() throws IOException
+  {
+    synchronized (outboundLock)
+    {
+      if (!stalled)
+        return;
+      stalled = false;  // This thread drains now
+    }
+    drain();
+  }
+
+  /**
+   * Picks the lane of the next message to write: control first, then
+   * normal, with one bulk message every <code>BULK_SHARE</code> normal
+   * ones. Called with outboundLock held.
+   *
+   * @return the lane, or null if nothing is queued.
+   */
+  private Lane nextLane()
+  {
+    if (!controlQueue.isEmpty())
+      return Lane.CONTROL;
+    if (!bulkQueue.isEmpty()
+      && (normalQueue.isEmpty() || normalRun >= BULK_SHARE))
+    {
+      normalRun = 0;
+      return Lane.BULK;
+    }
+    if (!normalQueue.isEmpty())
+    {
+      normalRun++;
+      return Lane.NORMAL;
+    }
+    return null;
+  }
+
+  private ArrayDeque<Object> queueOf(Lane lane)
+  {
+    switch (lane)
+    {
+      case CONTROL: return controlQueue;
+      case BULK: return bulkQueue;
+      default: return normalQueue;
+    }
+  }
+
+  /**
+   * Makes this connection the current one of a session and restores the
+   * attributes saved about the client.
+   */
+  void attachSession(SessionRegistry.Session session,
+    AttributeSnapshot saved)
+  {
+    this.session = session;
+    restoreAttributes(saved);
+  }
+
+  /**
+   * Forgets the session, which has moved to another connection.
+   */
+  void releaseSession()
+  {
+    session = null;
+  }
+
+  /**
+   * Sets the value of a slot, copying the array.
+   */
+  private void put(AttributeKey<?> key, Object value)
+  {
+    synchronized (attributesLock)
+    {
+      Object[] next = Arrays.copyOf(attributes, Math.max(attributes.length,
+        Math.max(key.slot + 1, AttributeKey.countSlots())));
+      next[key.slot] = value;
+      attributes = next;
+    }
+  }
+
+  /**
+   * Closes all connection to the server.
+   *
+   * @exception IOException if an I/O error occur when closing the 
+   *     connection.
+   */
+  private void closeAll() throws IOException
+  {
+    // Drop the messages not written yet, and tell the client the open
+    // streams were aborted; the waiting senders fail
+    List<byte[]> pending = new ArrayList<>();
+    synchronized (outboundLock)
+    {
+      closed = true;
+      for (ArrayDeque<Object> queue
+        : Arrays.asList(controlQueue, normalQueue, bulkQueue))
+      {
+        for (Object entry : queue)
+        {
+          if (entry instanceof OutboundStream)
+          {
+            OutboundStream stream = (OutboundStream)entry;
+            while (stream.hasReady())
+            {
+              pending.add(stream.take());
+            }
+          }
+          else if (entry instanceof byte[])
+            pending.add((byte[])entry);
+        }
+        queue.clear();
+      }
+      for (OutboundStream stream : openStreams)
+      {
+        pending.add(FrameCodec.serialize(Chunk.abort(stream.id)));
+      }
+      openStreams.clear();
+      for (OutboundFile file : openFiles)
+      {
+        file.close();
+      }
+      openFiles.clear();
+      queued = 0;
+      outboundLock.notifyAll();
+
+      // Keep the session, the messages it missed and what is known
+      // about the client for a resume; before anything else can be
+      // queued, so that no message is lost or recorded twice
+      SessionRegistry.Session current = session;
+      session = null;
+      if (current != null
+        && current.detach(this, snapshotAttributes(), pending))
+        lostSession = current;
+    }
+
+    try
+    {
+      // Close the socket
+      if (clientSocket != null)
+        clientSocket.close();
+      if (clientChannel != null)
+        clientChannel.close();
+
+      // Close the output stream
+      if (output != null)
+        output.close();
+
+      // Close the input stream
+      if (input != null)
+        input.close();
+    }
+    finally
+    {
+      // Set the streams and the sockets to NULL no matter what
+      // Doing so allows, but does not require, any finalizers
+      // of these objects to reclaim system resources if and
+      // when they are garbage collected.
+      output = null;
+      input = null;
+      clientSocket = null;
+      clientChannel = null;
+    }
+  }
+
+  /**
+   * Splits a serialized message into the serialized chunks that carry
+   * it, if it is too large for one frame.
+   *
+   * @param payload the message, serialized.
+   * @return the payloads to send in its place.
+   */
+  static List<byte[]> split(byte[] payload) throws IOException
+  {
+    if (payload.length <= Chunk.SIZE)
+      return List.of(payload);
+
+    long id = lastStreamId.incrementAndGet();
+    List<byte[]> chunks = new ArrayList<>();
+    for (int offset = 0; offset < payload.length; offset += Chunk.SIZE)
+    {
+      chunks.add(FrameCodec.chunk(id, payload, offset));
+    }
+    return chunks;
+  }
+
+  /**
+   * This method is called by garbage collection.
+   */
+  protected void finalize()
+  {
+    try
+    {
+      closeAll();
+    }
+    catch(IOException e) {}
+  }
+
+// NESTED CLASSES ---------------------------------------------------
+
+  /**
+   * A message too large for one frame, or a stream opened with
+   * openStream, written to the client one chunk at a time. It waits in
+   * its lane like a message while it has a chunk ready, and goes back
+   * to the end of the lane after each chunk. Its fields are guarded by
+   * outboundLock, except the buffer, which only the writer of a stream
+   * uses.
+   */
+  private class OutboundStream extends OutputStream
+  {
+    final long id = lastStreamId.incrementAndGet();
+
+    private final Lane lane;
+
+    /**
+     * The message being split; null for a stream.
+     */
+    private final byte[] message;
+
+    /**
+     * The offset in the message of the next chunk.
+     */
+    private int offset = 0;
+
+    /**
+     * The chunks of a stream written and not sent yet, serialized.
+     */
+    private final ArrayDeque<byte[]> ready = new ArrayDeque<>();
+
+    /**
+     * The header of a stream, until its first chunk is made.
+     */
+    private Serializable header;
+
+    private final byte[] buffer;
+
+    private int count = 0;
+
+    /**
+     * True while the stream waits in its lane.
+     */
+    boolean inLane = false;
+
+    private boolean closed = false;
+
+    /**
+     * A message to split.
+     */
+    OutboundStream(byte[] message, Lane lane)
+    {
+      this.message = message;
+      this.lane = lane;
+      buffer = null;
+      inLane = true;  // Queued by its sender
+    }
+
+    /**
+     * A stream opened by the application.
+     */
+    OutboundStream(Serializable header, Lane lane)
+    {
+      this.header = header;
+      this.lane = lane;
+      message = null;
+      buffer = new byte[Chunk.SIZE];
+    }
+
+    /**
+     * @return true if a chunk can be taken. Called with outboundLock
+     *         held.
+     */
+    boolean hasReady()
+    {
+      return message != null ? offset < message.length : !ready.isEmpty();
+    }
+
+    /**
+     * Takes the next chunk, serialized. Called with outboundLock held.
+     */
+    byte[] take() throws IOException
+    {
+      if (message == null)
+      {
+        outboundLock.notifyAll();  // Room in the window of the writer
+        return ready.poll();
+      }
+      byte[] chunk = FrameCodec.chunk(id, message, offset);
+      offset += Chunk.SIZE;
+      return chunk;
+    }
+
+    public void write(int b) throws IOException
+    {
+      write(new byte[] {(byte)b}, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+      Objects.checkFromIndexSize(off, len, b.length);
+      while (len > 0)
+      {
+        if (count == buffer.length)
+          emit(false);
+        int n = Math.min(len, buffer.length - count);
+        System.arraycopy(b, off, buffer, count, n);
+        count += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    /**
+     * Sends what was written so far as a chunk.
+     */
+    public void flush() throws IOException
+    {
+      if (count > 0)
+        emit(false);
+    }
+
+    /**
+     * Sends the last chunk of the stream.
+     */
+    public void close() throws IOException
+    {
+      if (!closed)
+        emit(true);
+    }
+
+    /**
+     * Queues the buffer as a chunk, once fewer than
+     * <code>STREAM_WINDOW</code> chunks are waiting.
+     */
+    private void emit(boolean last) throws IOException
+    {
+      if (closed)
+        throw new IOException("stream closed");
+
+      Chunk chunk = new Chunk(id, header, Arrays.copyOf(buffer, count), last);
+      byte[] payload = FrameCodec.serialize(chunk);
+      boolean drainNow = false;
+      synchronized (outboundLock)
+      {
+        try
+        {
+          while (ready.size() >= STREAM_WINDOW && !closed)
+          {
+            outboundLock.wait();
+          }
+        }
+        catch (InterruptedException ex)
+        {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("interrupted while queued");
+        }
+        if (closed || !openStreams.contains(this))
+          throw new SocketException("socket does not exist");
+
+        header = null;
+        count = 0;
+        if (last)
+        {
+          closed = true;
+          openStreams.remove(this);
+        }
+        ready.add(payload);
+        if (!inLane)
+        {
+          inLane = true;
+          queueOf(lane).add(this);
+          if (lane != Lane.CONTROL)
+            queued++;
+          if (!draining)
+            drainNow = draining = true;
+        }
+      }
+      if (drainNow)
+        drain();
+    }
+  }
+
+  /**
+   * A file sent with sendFile, written to the client one frame of
+   * <code>Chunk.SIZE</code> bytes at a time. The thread of the transfer
+   * releases <code>STREAM_WINDOW</code> frames at a time; the file waits
+   * in the bulk lane like a stream while it has a frame released, so
+   * that a sender writing the queues out writes no more than that of
+   * the file. Its offsets are guarded by outboundLock.
+   */
+  private class OutboundFile implements Runnable
+  {
+    private final FileOffer offer;
+
+    private final FileChannel file;
+
+    /**
+     * The offset of the next frame to write.
+     */
+    private long next;
+
+    /**
+     * The offset up to which the frames are released.
+     */
+    private long released;
+
+    /**
+     * True while the file waits in its lane.
+     */
+    boolean inLane = false;
+
+    OutboundFile(FileOffer offer, FileChannel file, long offset)
+    {
+      this.offer = offer;
+      this.file = file;
+      next = released = offset;
+    }
+
+    /**
+     * @return true if a frame can be taken. Called with outboundLock
+     *         held.
+     */
+    boolean hasReady()
+    {
+      return next < released;
+    }
+
+    /**
+     * Takes the next frame. Called with outboundLock held.
+     *
+     * @return the offset of its data in the file.
+     */
+    long take()
+    {
+      long offset = next;
+      next = Math.min(released, offset + Chunk.SIZE);
+      outboundLock.notifyAll();  // Room in the window of the transfer
+      return offset;
+    }
+
+    /**
+     * Writes the frame whose data starts at an offset, its header then
+     * the data from the file. Called with the stream locked.
+     */
+    void write(DataOutputStream out, long offset) throws IOException
+    {
+      long end = Math.min(offer.getSize(), offset + Chunk.SIZE);
+      FrameCodec.writeData(out, offer.getId(), offset, (int)(end - offset),
+        Lane.BULK);
+      WritableByteChannel target = rawChannel;
+      if (target != null)
+        out.flush();  // The header goes first
+      else
+        target = Channels.newChannel(out);
+
+      for (long position = offset; position < end; )
+      {
+        long n = file.transferTo(position, end - position, target);
+        if (n <= 0)
+        {
+          // The frame cannot be completed; the client must not read on
+          closeAll();
+          throw new EOFException(offer.getName() + " was truncated");
+        }
+        position += n;
+      }
+
+      if (end == offer.getSize())
+      {
+        synchronized (outboundLock)
+        {
+          openFiles.remove(this);
+        }
+        close();
+      }
+    }
+
+    /**
+     * Releases the frames of the file as the window allows, and writes
+     * the queues out when no other sender does.
+     */
+    public void run()
+    {
+      try
+      {
+        while (true)
+        {
+          boolean drainNow = false;
+          synchronized (outboundLock)
+          {
+            while (released - next >= STREAM_WINDOW * Chunk.SIZE && !closed)
+            {
+              outboundLock.wait();
+            }
+            if (closed || released == offer.getSize())
+              return;
+
+            released = Math.min(offer.getSize(), released + Chunk.SIZE);
+            if (!inLane)
+            {
+              inLane = true;
+              bulkQueue.add(this);
+              queued++;
+              if (!draining)
+                drainNow = draining = true;
+            }
+          }
+          if (drainNow)
+            drain();
+        }
+      }
+      catch (InterruptedException | IOException ex)
+      {
+        // The connection is lost; closeAll closes the file
+      }
+    }
+
+    void close()
+    {
+      try
+      {
+        file.close();
+      }
+      catch (IOException ex) {}
+    }
+  }
+}
+// End of ConnectionToClient class
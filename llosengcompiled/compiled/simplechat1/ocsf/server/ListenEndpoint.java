@@ -0,0 +1,492 @@
+package ocsf.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ocsf.protocol.SharedMemoryChannel;
+
+/**
+ * An address on which an <code>AbstractServer</code> accepts clients.
+ * A server may listen on several endpoints at once, each with its own
+ * server socket and accepting thread, and endpoints can be added and
+ * removed while the server runs: the clients connected through an
+ * endpoint stay connected when it is removed.<p>
+ *
+ * An endpoint is a TCP port, or a <code>UnixDomainSocketAddress</code>
+ * for the clients on the same host: these skip the TCP stack but
+ * exchange the same frames and go through the same hooks. The socket
+ * file of a Unix domain endpoint is deleted when it is removed. An
+ * endpoint can also be a directory in which the clients create the
+ * memory-mapped rings of a <code>SharedMemoryChannel</code>.<p>
+ *
+ * Each endpoint counts the connections it accepted, so that one can
+ * tell when the clients have moved off an endpoint about to be removed.
+ *
+ * @see ocsf.server.AbstractServer#addEndpoint(SocketAddress)
+ */
+public final class ListenEndpoint
+{
+  // Instance variables **********************************************
+
+  private final AbstractServer server;
+
+  /**
+   * The address actually bound, e.g. with the port chosen by the
+   * system.
+   */
+  private final SocketAddress localAddress;
+
+  /**
+   * The TCP server socket; null for a Unix domain endpoint.
+   */
+  private final ServerSocket serverSocket;
+
+  /**
+   * The Unix domain server channel; null for a TCP endpoint. It is
+   * non-blocking, so that accepting can time out like the server socket.
+   */
+  private final ServerSocketChannel serverChannel;
+
+  /**
+   * Waits for clients on the Unix domain server channel, or null.
+   */
+  private final Selector selector;
+
+  /**
+   * The directory watched for the rings of shared memory clients; null
+   * for a socket endpoint.
+   */
+  private final Path sharedDirectory;
+
+  private final WatchService watcher;
+
+  /**
+   * The rings found in the directory and not accepted yet. Only used
+   * by the accepting thread.
+   */
+  private final ArrayDeque<Path> pending;
+
+  private final int timeout;
+
+  /**
+   * The accepting thread; null when the endpoint does not accept.
+   * Guarded by this.
+   */
+  private Thread acceptor = null;
+
+  /**
+   * Set to make the accepting thread stop at its next timeout.
+   * Guarded by this.
+   */
+  private boolean readyToStop = true;
+
+  private volatile boolean closed = false;
+
+  private final AtomicLong accepted = new AtomicLong();
+
+  private final AtomicLong failed = new AtomicLong();
+
+  private volatile long lastAcceptTime = 0;
+
+  // Constructor *****************************************************
+
+  /**
+   * Binds a server socket to an address. The endpoint does not accept
+   * clients until started.
+   */
+  ListenEndpoint(AbstractServer server, SocketAddress address, int backlog,
+    int timeout) throws IOException
+  {
+    this.server = server;
+    this.timeout = timeout;
+    sharedDirectory = null;
+    watcher = null;
+    pending = null;
+
+    if (address instanceof UnixDomainSocketAddress)
+    {
+      serverSocket = null;
+      serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+      Selector opened = null;
+      try
+      {
+        serverChannel.bind(address, backlog);
+        serverChannel.configureBlocking(false);
+        opened = Selector.open();
+        serverChannel.register(opened, SelectionKey.OP_ACCEPT);
+      }
+      catch (IOException ex)
+      {
+        serverChannel.close();
+        if (opened != null)
+          opened.close();
+        throw ex;
+      }
+      selector = opened;
+      localAddress = serverChannel.getLocalAddress();
+    }
+    else
+    {
+      serverChannel = null;
+      selector = null;
+      // Accepts sockets with a channel, to which files are transferred
+      serverSocket = ServerSocketChannel.open().socket();
+      try
+      {
+        serverSocket.bind(address, backlog);
+        serverSocket.setSoTimeout(timeout);
+      }
+      catch (IOException ex)
+      {
+        serverSocket.close();
+        throw ex;
+      }
+      localAddress = serverSocket.getLocalSocketAddress();
+    }
+  }
+
+  /**
+   * Watches a directory for the rings of shared memory clients. The
+   * endpoint does not accept clients until started.
+   */
+  ListenEndpoint(AbstractServer server, Path directory, int timeout)
+    throws IOException
+  {
+    this.server = server;
+    this.timeout = timeout;
+    localAddress = null;
+    serverSocket = null;
+    serverChannel = null;
+    selector = null;
+    sharedDirectory = directory;
+    pending = new ArrayDeque<>();
+
+    watcher = directory.getFileSystem().newWatchService();
+    try
+    {
+      directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+      findRings();
+    }
+    catch (IOException ex)
+    {
+      watcher.close();
+      throw ex;
+    }
+  }
+
+// ACCESSING METHODS ------------------------------------------------
+
+  /**
+   * @return the address the endpoint is bound to, or null for a shared
+   *         memory endpoint.
+   */
+  public SocketAddress getLocalAddress()
+  {
+    return localAddress;
+  }
+
+  /**
+   * @return the port the endpoint is bound to, or -1 for a Unix domain
+   *         or shared memory endpoint.
+   */
+  public int getPort()
+  {
+    return serverSocket == null ? -1 : serverSocket.getLocalPort();
+  }
+
+  /**
+   * @return the directory of a shared memory endpoint, or null.
+   */
+  public Path getSharedMemoryDirectory()
+  {
+    return sharedDirectory;
+  }
+
+  /**
+   * @return true if the endpoint is accepting new clients.
+   */
+  public synchronized boolean isListening()
+  {
+    return acceptor != null && !readyToStop;
+  }
+
+  /**
+   * @return true if the endpoint was removed from its server.
+   */
+  public boolean isClosed()
+  {
+    return closed;
+  }
+
+  /**
+   * @return the number of clients accepted through this endpoint.
+   */
+  public long getAcceptedCount()
+  {
+    return accepted.get();
+  }
+
+  /**
+   * @return the number of clients accepted through this endpoint whose
+   *         connection could not be set up.
+   */
+  public long getFailedCount()
+  {
+    return failed.get();
+  }
+
+  /**
+   * @return the time the last client was accepted, in ms since the
+   *         epoch, or 0 if none was.
+   */
+  public long getLastAcceptTime()
+  {
+    return lastAcceptTime;
+  }
+
+  public String toString()
+  {
+    return (sharedDirectory != null ? "shm:" + sharedDirectory
+      : getLocalAddress()) + (isListening() ? " listening" : " stopped")
+      + ", " + accepted.get() + " accepted, " + failed.get() + " failed";
+  }
+
+// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+  /**
+   * Starts accepting clients. If the endpoint is still accepting, this
+   * call just cancels a pending stop.
+   *
+   * @return true if a new accepting thread was started.
+   * @exception IOException if the endpoint is closed.
+   */
+  synchronized boolean start() throws IOException
+  {
+    if (closed)
+      throw new SocketException("endpoint closed");
+
+    readyToStop = false;
+    if (acceptor != null)
+      return false;
+
+    acceptor = new Thread(this::run, "AbstractServer accept "
+      + (sharedDirectory != null ? sharedDirectory : localAddress));
+    acceptor.start();
+    return true;
+  }
+
+  /**
+   * Makes the accepting thread stop at its next timeout. The server
+   * socket stays bound.
+   */
+  synchronized void stop()
+  {
+    readyToStop = true;
+  }
+
+  /**
+   * Stops accepting and releases the server socket.
+   */
+  void close() throws IOException
+  {
+    boolean idle;
+    synchronized (this)
+    {
+      closed = true;
+      readyToStop = true;
+      idle = acceptor == null;
+    }
+
+    if (sharedDirectory != null)
+    {
+      watcher.close();  // Wakes the accepting thread up
+      return;
+    }
+    if (serverChannel == null)
+    {
+      serverSocket.close();
+      return;
+    }
+
+    try
+    {
+      serverChannel.close();
+      // The accepting thread closes the selector on its way out
+      if (idle)
+        selector.close();
+      else
+        selector.wakeup();
+    }
+    finally
+    {
+      Files.deleteIfExists(((UnixDomainSocketAddress)localAddress).getPath());
+    }
+  }
+
+  /**
+   * Waits for the next client until the timeout.
+   *
+   * @return the socket of the client, its channel for a Unix domain
+   *    endpoint, or null if none came.
+   */
+  private Closeable accept() throws IOException
+  {
+    if (sharedDirectory != null)
+      return acceptRing();
+    if (serverChannel == null)
+    {
+      try
+      {
+        return serverSocket.accept();
+      }
+      catch (SocketTimeoutException ex)
+      {
+        return null;
+      }
+    }
+
+    if (selector.select(timeout) > 0)
+      selector.selectedKeys().clear();
+    SocketChannel clientChannel = serverChannel.accept();
+    if (clientChannel != null)
+      clientChannel.configureBlocking(true);
+    return clientChannel;
+  }
+
+  /**
+   * Waits for the next ring in the directory of a shared memory
+   * endpoint until the timeout, and accepts it.
+   *
+   * @return the connection to the client, or null if none came.
+   */
+  private Closeable acceptRing() throws IOException
+  {
+    try
+    {
+      if (pending.isEmpty())
+      {
+        WatchKey key = watcher.poll(timeout, TimeUnit.MILLISECONDS);
+        if (key == null)
+          return null;
+        for (WatchEvent<?> event : key.pollEvents())
+        {
+          if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+            findRings();
+          else if (event.context().toString()
+            .endsWith(SharedMemoryChannel.SUFFIX))
+            pending.add(sharedDirectory.resolve((Path)event.context()));
+        }
+        key.reset();
+      }
+    }
+    catch (ClosedWatchServiceException | InterruptedException ex)
+    {
+      throw new SocketException("endpoint closed");
+    }
+
+    Path ring = pending.poll();
+    if (ring == null)
+      return null;
+    try
+    {
+      return SharedMemoryChannel.accept(ring);
+    }
+    catch (IOException ex)
+    {
+      // A stale or foreign file: it was deleted
+      accepted.incrementAndGet();
+      failed.incrementAndGet();
+      return null;
+    }
+  }
+
+  /**
+   * Queues the rings already in the directory, e.g. left by clients
+   * that connected before the endpoint started.
+   */
+  private void findRings() throws IOException
+  {
+    try (DirectoryStream<Path> rings = Files.newDirectoryStream(
+      sharedDirectory, "*" + SharedMemoryChannel.SUFFIX))
+    {
+      for (Path ring : rings)
+      {
+        if (!pending.contains(ring))
+          pending.add(ring);
+      }
+    }
+  }
+
+  /**
+   * Accepts clients until stopped or closed.
+   */
+  private void run()
+  {
+    server.endpointStarted(this);
+
+    IOException exception = null;
+    try
+    {
+      while (true)
+      {
+        synchronized (this)
+        {
+          if (readyToStop)
+          {
+            acceptor = null;
+            break;
+          }
+        }
+
+        // Wait here for new connection attempts, or a timeout
+        Closeable client = accept();
+        if (client == null)
+          continue;  // Check whether the endpoint is to stop
+
+        accepted.incrementAndGet();
+        lastAcceptTime = System.currentTimeMillis();
+        try
+        {
+          server.clientAccepted(client);
+        }
+        catch (IOException ex)
+        {
+          // Only this client is lost; keep accepting the others
+          failed.incrementAndGet();
+          try
+          {
+            client.close();
+          }
+          catch (IOException e) {}
+        }
+      }
+    }
+    catch (IOException ex)
+    {
+      // Closing the socket must have thrown a SocketException
+      synchronized (this)
+      {
+        acceptor = null;
+        if (!closed)
+          exception = ex;
+      }
+    }
+
+    if (selector != null && closed)
+    {
+      try
+      {
+        selector.close();
+      }
+      catch (IOException e) {}
+    }
+    server.endpointStopped(this, exception);
+  }
+}
+// End of ListenEndpoint class
@@ -8,11 +8,19 @@ import common.AbstractConnectionFactory;
 
 /**
 * The <code> ObservableOriginatorServer </code> is a subclass
-* of <code> ObservableServer </code> that sends
-* <code> OriginatorMessage </code> instances to its observers.
-* This class should be used when the observers need to know
-* the orginator of the messages received. The originator
-* is null when the message sent concerns the server.
+* of <code> ObservableServer </code> for observers that need to know
+* the orginator of the messages received. Every
+* <code> ServerEvent </code> now carries the originating connection,
+* so this class publishes the same events as its superclass; the
+* originator is null when the event concerns the server.<p>
+*
+* A server constructed with a ring size runs in ring mode: events are
+* written into a ring of preallocated <code> OriginatorMessage </code>
+* slots and read in batches by <code> BatchObserver </code> instances,
+* each on its own thread, so publishing an event allocates nothing.
+* Subscribers of the event bus still receive events in that mode.
+* When the server is closed, the batch observers read the events
+* published so far, the closing included, and their threads stop.
 *
 * Project Name: OCSF (Object Client-Server Framework)<p>
 *
@@ -21,12 +29,19 @@ import common.AbstractConnectionFactory;
 * @author Fran&ccedil;ois B&eacute;langer
 * @author Paul Holden
 * @version February 2001 (2.12)
-* @see ocsf.server.OriginatorMessage
+* @see ocsf.server.ServerEvent#getClient()
 */
 public class ObservableOriginatorServer extends ObservableServer
 {
+  // Instance variables **********************************************
+
+  /**
+   * The ring of preallocated events, or null when not in ring mode.
+   */
+  private final OriginatorEventRing ring;
+
   // Constructor ******************************************************
-  
+
   /**
    * Constructs a new server.
    *
@@ -35,133 +50,114 @@ public class ObservableOriginatorServer extends ObservableServer
   public ObservableOriginatorServer(int port, AbstractConnectionFactory connectionFactory)
   {
     super(port, connectionFactory);
+    ring = null;
   }
 
-  // Instance methods ************************************************
-  
   /**
-   * This method is used to handle messages coming from the client.
-   * Observers are notfied by receiveing an instance of OriginatorMessage
-   * that contains both the message received and a reference to the
-   * client who sent the message.
+   * Constructs a new server in ring mode.
    *
-   * @param message The message received from the client.
-   * @param client The connection to the client.
+   * @param port the port on which to listen.
+   * @param ringSize the number of preallocated events, rounded up to a
+   *        power of two. Publishing waits when the slowest batch
+   *        observer is that many events behind.
    */
-  protected synchronized void handleMessageFromClient
-    (Object message, ConnectionToClient client)
+  public ObservableOriginatorServer(int port, AbstractConnectionFactory connectionFactory, int ringSize)
   {
-    setChanged();
-    notifyObservers(new OriginatorMessage(client, message));
+    super(port, connectionFactory);
+    ring = new OriginatorEventRing(ringSize);
   }
 
+  // Instance methods ************************************************
+
   /**
-   * Method called each time a new client connection is
-   * accepted. It notifies observers by sending an
-   * <code> OriginatorMessage </code> instance
-   * containing a reference to that client and
-   * the message defined by the static variable CLIENT_CONNECTED.
+   * Adds an observer that reads the events of the ring in batches on
+   * its own thread. Observers should be added before the server starts
+   * listening; an observer receives the events published after it was
+   * added.
    *
-   * @param client the connection connected to the client.
+   * @param observer the observer to add.
+   * @exception IllegalStateException if the server is not in ring mode.
    */
-  protected synchronized void clientConnected(ConnectionToClient client)
+  public void addBatchObserver(BatchObserver observer)
   {
-    setChanged();
-    notifyObservers(new OriginatorMessage(client, CLIENT_CONNECTED));
+    if (ring == null)
+      throw new IllegalStateException("server is not in ring mode");
+
+    ring.add(observer);
   }
 
   /**
-   * Method called each time a client connection is
-   * disconnected. It notifies observers by sending an
-   * <code> OriginatorMessage </code> instance
-   * containing a reference to that client and
-   * the message defined by the static variable CLIENT_DISCONNECTED.
+   * Removes a batch observer, and stops its thread. It may be called by
+   * the observer itself, from <code>onEvent</code>.
    *
-   * @param client the connection connected to the client.
+   * @param observer the observer to remove.
+   * @return true if it was an observer of this server.
    */
-  synchronized protected void clientDisconnected(ConnectionToClient client)
+  public boolean removeBatchObserver(BatchObserver observer)
   {
-    setChanged();
-    notifyObservers(new OriginatorMessage(client, CLIENT_DISCONNECTED));
+    return ring != null && ring.remove(observer);
   }
 
+  /**
+   * Stops every batch observer once it has read the events published
+   * so far. This is done when the server is closed; observers must be
+   * added again if the server listens again.
+   */
+  public void closeBatchObservers()
+  {
+    if (ring != null)
+      ring.close();
+  }
 
   /**
-   * Method called each time an exception is raised
-   * by a client connection.
-   * It notifies observers by sending an
-   * <code> OriginatorMessage </code> instance
-   * containing a reference to that client and
-   * the message defined by the static variable CLIENT_EXCEPTION
-   * to which is appended the exception message.
+   * Returns how many events an observer has still to read.
    *
-   * @param client the client that raised the exception.
-   * @param Throwable the exception thrown.
+   * @param observer a batch observer of this server.
+   * @return the observer's lag, or -1 if it is not an observer of
+   *         this server.
    */
-  synchronized protected void clientException(
-    ConnectionToClient client, Throwable exception)
+  public long getObserverLag(BatchObserver observer)
   {
-    setChanged();
-    notifyObservers(
-      new OriginatorMessage(client,
-        CLIENT_EXCEPTION + exception.getMessage()));
+    return ring == null ? -1 : ring.getLag(observer);
   }
 
   /**
-   * Method called each time an exception is raised
-   * while listening.
-   * It notifies observers by sending an
-   * <code> OriginatorMessage </code> instance
-   * containing the message defined by the static variable LISTENING_EXCEPTION
-   * to which is appended the exception message.
-   * The originator is set to null.
-   *
-   * @param exception the exception raised.
+   * @return the lag of the slowest batch observer.
    */
-  protected synchronized void listeningException(Throwable exception)
+  public long getMaxObserverLag()
   {
-    setChanged();
-    notifyObservers(
-      new OriginatorMessage(null,
-        LISTENING_EXCEPTION + exception.getMessage()));
+    return ring == null ? 0 : ring.getMaxLag();
   }
 
   /**
-   * Method called each time the server is started.
-   * It notifies observers by sending an
-   * <code> OriginatorMessage </code> instance
-   * containing the message defined by the static variable SERVER_STARTED.
-   * The originator is set to null.
+   * @return the number of times an event had to wait for the slowest
+   *         batch observer to free a slot.
    */
-  protected synchronized void serverStarted()
+  public long getRingStalls()
   {
-    setChanged();
-    notifyObservers(new OriginatorMessage(null, SERVER_STARTED));
+    return ring == null ? 0 : ring.getStalls();
   }
 
   /**
-   * Method called each time the server is stopped.
-   * It notifies observers by sending an
-   * <code> OriginatorMessage </code> instance
-   * containing the message defined by the static variable SERVER_STOPPED.
-   * The originator is set to null.
+   * Publishes the closing of the server, then stops the batch observers
+   * once they have read it.
    */
-  synchronized protected void serverStopped()
+  protected void serverClosed()
   {
-    setChanged();
-    notifyObservers(new OriginatorMessage(null, SERVER_STOPPED));
+    super.serverClosed();
+    closeBatchObservers();
   }
 
   /**
-   * Method called each time the server is closed.
-   * It notifies observers by sending an
-   * <code> OriginatorMessage </code> instance
-   * containing the message defined by the static variable SERVER_CLOSED.
-   * The originator is set to null.
+   * Writes the event into the ring when in ring mode, and hands it to
+   * the subscribers of the event bus if there are any.
    */
-  synchronized protected void serverClosed()
+  protected void publish(ServerEvent.Type type, ConnectionToClient client,
+    Object message, Throwable exception)
   {
-    setChanged();
-    notifyObservers(new OriginatorMessage(null, SERVER_CLOSED));
+    if (ring != null)
+      ring.publish(type, client, message, exception);
+
+    super.publish(type, client, message, exception);
   }
 }
@@ -6,107 +6,173 @@ package ocsf.server;
 
 import common.AbstractConnectionFactory;
 
-import java.util.*;
 import java.io.*;
-import java.net.*;
+import java.net.SocketAddress;
+import java.nio.file.Path;
+import java.util.List;
+import ocsf.event.*;
+import ocsf.protocol.Compression;
+import ocsf.protocol.FileOffer;
+import ocsf.protocol.Lane;
+import ocsf.protocol.MessageFilter;
+import ocsf.protocol.TlsContext;
 
 /**
  * This class acts as a subclass of <code>AbstractServer</code>
- * and is also an <code>Observable</code> class.
- * This means that when a message is received, all observers
- * are notified.
+ * and publishes a <code>ServerEvent</code> to its subscribers each
+ * time a message is received or the state of a client or of the
+ * server changes. Events go through an <code>EventBus</code> instead
+ * of <code>java.util.Observable</code>: publishing takes no lock of its
+ * own, and the hooks are not synchronized on this class. The server
+ * still calls some hooks under its own monitor, though: messages are
+ * handed over by the synchronized <code>receiveMessagesFromClient</code>,
+ * and <code>close</code> disconnects the clients and reports the server
+ * closed while holding it. A synchronous subscriber to those events
+ * runs under the monitor and holds up every client meanwhile; one that
+ * does slow work should subscribe asynchronously instead.
  *
  * @author Fran&ccedil;ois B&eacute;lange
  * @author Dr Timothy C. Lethbridge
  * @author Dr Robert Lagani&egrave;re
  * @version August 2000
+ * @see ocsf.server.ServerEvent
  */
 
-public class ObservableServer extends Observable
+public class ObservableServer
 {
-  // Class variables ************************************************
+  //Instance variables **********************************************
 
   /**
-   * The string sent to the observers when a client has connected.
+   * The service used to simulate multiple class inheritance.
    */
-  public static final String CLIENT_CONNECTED= "#OS:Client connected.";
+  private AdaptableServer service;
 
   /**
-   * The string sent to the observers when a client has disconnected.
+   * The bus on which server events are published.
    */
-  public static final String CLIENT_DISCONNECTED= "#OS:Client disconnected.";
+  private final EventBus<ServerEvent> events = new EventBus<>();
+
+  //Constructor *****************************************************
 
   /**
-   * The string sent to the observers when an exception occurred with a client.
-   * The error message of that exception will be appended to this string.
+   * Constructs a new server.
+   *
+   * @param port the port on which to listen.
    */
-  public static final String CLIENT_EXCEPTION= "#OS:Client exception.";
+  public ObservableServer(int port, AbstractConnectionFactory connectionFactory)
+  {
+    service = new AdaptableServer(port, connectionFactory, this);
+  }
+
+  //Instance methods ************************************************
 
   /**
-   * The string sent to the observers when a listening exception occurred.
-   * The error message of that exception will be appended to this string.
+   * Begins the thread that waits for new clients
    */
-  public static final String LISTENING_EXCEPTION= "#OS:Listening exception.";
+  final public void listen() throws IOException
+  {
+    service.listen();
+  }
 
   /**
-   * The string sent to the observers when the server has closed.
+   * Causes the server to stop accepting new connections.
    */
-  public static final String SERVER_CLOSED= "#OS:Server closed.";
+  final public void stopListening()
+  {
+    service.stopListening();
+  }
 
   /**
-   * The string sent to the observers when the server has started.
+   * Closes the server's connections with all clients.
    */
-  public static final String SERVER_STARTED= "#OS:Server started.";
+  final public void close() throws IOException
+  {
+    service.close();
+  }
 
   /**
-   * The string sent to the observers when the server has stopped.
+   * Opens a new endpoint alongside those already open.
+   *
+   * @see ocsf.server.AbstractServer#addEndpoint(SocketAddress)
    */
-  public static final String SERVER_STOPPED= "#OS:Server stopped.";
-  
-
-  //Instance variables **********************************************
+  final public ListenEndpoint addEndpoint(SocketAddress address)
+    throws IOException
+  {
+    return service.addEndpoint(address);
+  }
 
   /**
-   * The service used to simulate multiple class inheritance.
+   * Opens an endpoint for the clients that connect through shared memory.
+   *
+   * @see ocsf.server.AbstractServer#addSharedMemoryEndpoint(Path)
    */
-  private AdaptableServer service;
-
-  //Constructor *****************************************************
+  final public ListenEndpoint addSharedMemoryEndpoint(Path directory)
+    throws IOException
+  {
+    return service.addSharedMemoryEndpoint(directory);
+  }
 
   /**
-   * Constructs a new server.
+   * Closes an endpoint without disconnecting its clients.
    *
-   * @param port the port on which to listen.
+   * @see ocsf.server.AbstractServer#removeEndpoint(ListenEndpoint)
    */
-  public ObservableServer(int port, AbstractConnectionFactory connectionFactory)
+  final public void removeEndpoint(ListenEndpoint endpoint)
+    throws IOException
   {
-    service = new AdaptableServer(port, connectionFactory, this);
+    service.removeEndpoint(endpoint);
   }
 
-  //Instance methods ************************************************
+  /**
+   * Moves the server to another port without disconnecting its clients.
+   *
+   * @see ocsf.server.AbstractServer#changePort(int)
+   */
+  final public void changePort(int port) throws IOException
+  {
+    service.changePort(port);
+  }
 
   /**
-   * Begins the thread that waits for new clients
+   * Subscribes to the events of this server.
+   *
+   * @param subscriber the subscriber to add.
+   * @param delivery   whether the subscriber runs on the thread that
+   *        raised the event or on its own thread.
    */
-  final public void listen() throws IOException
+  public void subscribe(EventSubscriber<? super ServerEvent> subscriber,
+    Delivery delivery)
   {
-    service.listen();
+    events.subscribe(subscriber, delivery);
   }
 
   /**
-   * Causes the server to stop accepting new connections.
+   * Subscribes to the events of this server through a bounded queue, so
+   * that a slow subscriber does not hold up the thread handling the client
+   * unless the policy is <code>BLOCK</code>.
+   *
+   * @param subscriber the subscriber to add.
+   * @param capacity   the maximum number of events queued.
+   * @param maxBatch   the maximum number of events passed at once to
+   *        the subscriber's onEvents().
+   * @param policy     what to do with an event when the queue is full.
+   * @return the state of the queue, to watch the subscriber's lag.
+   * @see ocsf.event.EventBus#subscribe(EventSubscriber, int, int, OverflowPolicy)
    */
-  final public void stopListening()
+  public QueueStats subscribe(EventSubscriber<? super ServerEvent> subscriber,
+    int capacity, int maxBatch, OverflowPolicy policy)
   {
-    service.stopListening();
+    return events.subscribe(subscriber, capacity, maxBatch, policy);
   }
 
   /**
-   * Closes the server's connections with all clients.
+   * Stops a subscriber from receiving the events of this server.
+   *
+   * @param subscriber the subscriber to remove.
    */
-  final public void close() throws IOException
+  public void unsubscribe(EventSubscriber<? super ServerEvent> subscriber)
   {
-    service.close();
+    events.unsubscribe(subscriber);
   }
 
   /**
@@ -119,6 +185,41 @@ public class ObservableServer extends Observable
     service.sendToAllClients(msg);
   }
 
+  /**
+   * Sends a message to every client connected to the server in a given
+   * lane.
+   *
+   * @param msg  the message to be sent.
+   * @param lane the lane of the message.
+   */
+  public void sendToAllClients(Object msg, Lane lane)
+  {
+    service.sendToAllClients(msg, lane);
+  }
+
+  /**
+   * Offers a file to every client connected to the server.
+   *
+   * @param file the file.
+   * @return the offer sent.
+   * @exception IOException if the file cannot be read.
+   * @see ocsf.server.AbstractServer#sendFileToAllClients(Path)
+   */
+  public FileOffer sendFileToAllClients(Path file) throws IOException
+  {
+    return service.sendFileToAllClients(file);
+  }
+
+  /**
+   * Withdraws the offer of a file.
+   *
+   * @param offer the offer.
+   */
+  final public void withdrawFile(FileOffer offer)
+  {
+    service.withdrawFile(offer);
+  }
+
 // ACCESSING METHODS ------------------------------------------------
 
   /**
@@ -151,6 +252,14 @@ public class ObservableServer extends Observable
     return service.getNumberOfClients();
   }
 
+  /**
+   * @return the endpoints on which the server listens.
+   */
+  final public List<ListenEndpoint> getEndpoints()
+  {
+    return service.getEndpoints();
+  }
+
   /**
    * @return the port number.
    */
@@ -170,6 +279,115 @@ public class ObservableServer extends Observable
     service.setPort(port);
   }
 
+  /**
+   * Enables session resume: clients that lose their connection can
+   * reconnect within the timeout and receive the messages they missed.
+   *
+   * @param replaySize the number of messages kept per session, or 0 to
+   *        disable session resume.
+   * @param timeout how long a disconnected session is kept, in ms.
+   * @see ocsf.server.AbstractServer#setSessionResume(int, long)
+   */
+  final public void setSessionResume(int replaySize, long timeout)
+  {
+    service.setSessionResume(replaySize, timeout);
+  }
+
+  /**
+   * Sets the size of the largest message the server sends or accepts.
+   *
+   * @param maxMessageSize the size, in bytes.
+   * @see ocsf.server.AbstractServer#setMaxMessageSize(int)
+   */
+  final public void setMaxMessageSize(int maxMessageSize)
+  {
+    service.setMaxMessageSize(maxMessageSize);
+  }
+
+  /**
+   * @return the size of the largest message the server sends or
+   *         accepts, in bytes.
+   */
+  final public int getMaxMessageSize()
+  {
+    return service.getMaxMessageSize();
+  }
+
+  /**
+   * Sets the policy applied to the messages read from the clients.
+   *
+   * @param messageFilter the filter.
+   * @see ocsf.server.AbstractServer#setMessageFilter(MessageFilter)
+   */
+  final public void setMessageFilter(MessageFilter messageFilter)
+  {
+    service.setMessageFilter(messageFilter);
+  }
+
+  /**
+   * @return the policy applied to the messages read from the clients.
+   */
+  final public MessageFilter getMessageFilter()
+  {
+    return service.getMessageFilter();
+  }
+
+  /**
+   * Encrypts the connections accepted over TCP with TLS.
+   *
+   * @param tlsContext the TLS configuration; null for none.
+   * @see ocsf.server.AbstractServer#setTlsContext(TlsContext)
+   */
+  final public void setTlsContext(TlsContext tlsContext)
+  {
+    service.setTlsContext(tlsContext);
+  }
+
+  /**
+   * @return the TLS configuration of the connections over TCP, or null.
+   */
+  final public TlsContext getTlsContext()
+  {
+    return service.getTlsContext();
+  }
+
+  /**
+   * Compresses the frames exchanged with the clients that offer it.
+   *
+   * @param compression the compression; null for none.
+   * @see ocsf.server.AbstractServer#setCompression(Compression)
+   */
+  final public void setCompression(Compression compression)
+  {
+    service.setCompression(compression);
+  }
+
+  /**
+   * @return the compression offered to the clients, or null.
+   */
+  final public Compression getCompression()
+  {
+    return service.getCompression();
+  }
+
+  /**
+   * @return the number of resumable sessions, connected or not.
+   */
+  final public int getNumberOfSessions()
+  {
+    return service.getNumberOfSessions();
+  }
+
+  /**
+   * @return the number of messages pushed out of the replay buffer of
+   *         a disconnected client before it acknowledged them.
+   * @see ocsf.server.AbstractServer#getReplayOverflows()
+   */
+  final public long getReplayOverflows()
+  {
+    return service.getReplayOverflows();
+  }
+
   /**
    * Sets the timeout time when accepting connection.
    * The default is half a second.
@@ -203,10 +421,20 @@ public class ObservableServer extends Observable
    *
    * @param client the connection connected to the client.
    */
-  protected synchronized void clientConnected(ConnectionToClient client) 
+  protected void clientConnected(ConnectionToClient client)
   {
-    setChanged();
-    notifyObservers(CLIENT_CONNECTED);
+    publish(ServerEvent.Type.CLIENT_CONNECTED, client, null, null);
+  }
+
+  /**
+   * Hook method called each time a client resumes its session on a
+   * new connection. The method may be overridden by subclasses.
+   *
+   * @param client the new connection of the client.
+   */
+  protected void clientResumed(ConnectionToClient client)
+  {
+    publish(ServerEvent.Type.CLIENT_RESUMED, client, null, null);
   }
 
   /**
@@ -215,10 +443,9 @@ public class ObservableServer extends Observable
    *
    * @param client the connection with the client.
    */
-  protected synchronized void clientDisconnected(ConnectionToClient client) 
+  protected void clientDisconnected(ConnectionToClient client)
   {
-    setChanged();
-    notifyObservers(CLIENT_DISCONNECTED);
+    publish(ServerEvent.Type.CLIENT_DISCONNECTED, client, null, null);
   }
 
   /**
@@ -231,11 +458,10 @@ public class ObservableServer extends Observable
    * @param client the client that raised the exception.
    * @param exception the exception raised.
    */
-  protected synchronized void clientException(ConnectionToClient client,
+  protected void clientException(ConnectionToClient client,
                                         Throwable exception)
   {
-    setChanged();
-    notifyObservers(CLIENT_EXCEPTION);
+    publish(ServerEvent.Type.CLIENT_EXCEPTION, client, null, exception);
     try
     {
       client.close();
@@ -252,10 +478,9 @@ public class ObservableServer extends Observable
    *
    * @param exception the exception raised.
    */
-  protected synchronized void listeningException(Throwable exception)
+  protected void listeningException(Throwable exception)
   {
-    setChanged();
-    notifyObservers(LISTENING_EXCEPTION);
+    publish(ServerEvent.Type.LISTENING_EXCEPTION, null, null, exception);
     stopListening();
   }
 
@@ -264,47 +489,98 @@ public class ObservableServer extends Observable
    * connections for any reason.  This method may be overriden by 
    * subclasses.
    */
-  synchronized protected void serverStopped() 
+  protected void serverStopped()
   {
-    setChanged();
-    notifyObservers(SERVER_STOPPED);
+    publish(ServerEvent.Type.SERVER_STOPPED, null, null, null);
   }
 
   /**
    * This method is called when the server is closed.
    * This method may be overriden by subclasses.
    */
-  synchronized protected void serverClosed() 
+  protected void serverClosed()
   {
-    setChanged();
-    notifyObservers(SERVER_CLOSED);
+    publish(ServerEvent.Type.SERVER_CLOSED, null, null, null);
   }
 
   /**
    * This method is called when the server starts listening for
    * connections. The method may be overridden by subclasses.
    */
-  protected synchronized void serverStarted() 
+  protected void serverStarted()
   {
-    setChanged();
-    notifyObservers(SERVER_STARTED);
+    publish(ServerEvent.Type.SERVER_STARTED, null, null, null);
   }
 
   /**
    * This method is used to handle messages coming from the client.
-   * Observers are notfied by receiveing the transmitted message.
-   * Note that, in this implementation, the information concerning
-   * the client that sent the message is lost.
-   * It can be overriden, but is still expected to call notifyObservers().
+   * Subscribers receive a <code>MESSAGE</code> event that holds both
+   * the message and the connection it came from.
+   * It can be overriden, but is still expected to call publish().
    *
    * @param message The message received from the client.
    * @param client The connection to the client.
    * @see ocsf.server.ObservableOriginatorServer
    */
-  protected synchronized void handleMessageFromClient
+  protected void handleMessageFromClient
     (Object message, ConnectionToClient client)
   {
-     setChanged();
-     notifyObservers(message);
+    publish(ServerEvent.Type.MESSAGE, client, message, null);
+  }
+
+  /**
+   * This method is used to handle the messages that a client sent in a
+   * burst. It calls handleMessageFromClient() for each of them, until
+   * the connection is closed.
+   * It can be overriden to handle a whole burst at once.
+   *
+   * @param messages The messages received from the client, in order.
+   * @param client The connection to the client.
+   */
+  protected void handleMessagesFromClient
+    (List<Object> messages, ConnectionToClient client)
+  {
+    for (Object message : messages)
+    {
+      if (client.isClosing())
+        return;
+      handleMessageFromClient(message, client);
+    }
+  }
+
+  /**
+   * Called by every hook of this class to report an event. Builds a
+   * <code>ServerEvent</code> and publishes it, unless nobody subscribed.
+   * Subclasses may override it to deliver events differently.
+   *
+   * @param type      the kind of event.
+   * @param client    the connection concerned, or null.
+   * @param message   the message received, or null.
+   * @param exception the exception raised, or null.
+   */
+  protected void publish(ServerEvent.Type type, ConnectionToClient client,
+    Object message, Throwable exception)
+  {
+    if (events.hasSubscribers())
+      events.publish(new ServerEvent(type, client, message, exception));
+  }
+
+  /**
+   * Delivers an event to the subscribers of this server.
+   *
+   * @param event the event to publish.
+   */
+  protected void publish(ServerEvent event)
+  {
+    events.publish(event);
+  }
+
+  /**
+   * @return true if the server has at least one subscriber. Subclasses
+   * can use it to avoid building events that nobody receives.
+   */
+  protected boolean hasSubscribers()
+  {
+    return events.hasSubscribers();
   }
 }
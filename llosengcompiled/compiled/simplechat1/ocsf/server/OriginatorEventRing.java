@@ -0,0 +1,339 @@
+package ocsf.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A ring of preallocated <code>OriginatorMessage</code> slots used by
+ * an <code>ObservableOriginatorServer</code> to hand events to its
+ * batch observers without allocating anything per event.<p>
+ *
+ * A publisher claims the next sequence number, fills the slot it maps
+ * to and marks it published. Each observer runs on its own thread and
+ * remembers the next sequence it has to read; a slot is only reused
+ * once every observer has read it, so a publisher waits when the
+ * slowest observer is a full ring behind. The distance between the
+ * last claimed sequence and an observer's sequence is that observer's
+ * lag. A removed observer's thread stops at once; closing the ring lets
+ * each observer read what was published, then stops its thread.
+ *
+ * @see ocsf.server.BatchObserver
+ */
+class OriginatorEventRing
+{
+  // Class variables *************************************************
+
+  /**
+   * How long an idle observer thread sleeps before checking again.
+   */
+  private static final long IDLE_PARK_NANOS = 1_000_000L;
+
+  // Instance variables **********************************************
+
+  private final OriginatorMessage[] slots;
+
+  /**
+   * For each slot, the sequence number of the event it holds once the
+   * event is completely written.
+   */
+  private final AtomicLongArray published;
+
+  private final int mask;
+
+  /**
+   * The next sequence number to be claimed.
+   */
+  private final AtomicLong claimed = new AtomicLong();
+
+  /**
+   * Number of times a publisher had to wait for an observer.
+   */
+  private final AtomicLong stalls = new AtomicLong();
+
+  /**
+   * The observers, copied on write.
+   */
+  private volatile Consumer[] consumers = new Consumer[0];
+
+  // Constructor *****************************************************
+
+  /**
+   * Constructs a ring.
+   *
+   * @param size the number of slots, rounded up to a power of two.
+   */
+  OriginatorEventRing(int size)
+  {
+    size = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+    slots = new OriginatorMessage[size];
+    published = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++)
+    {
+      slots[i] = new OriginatorMessage(null, null);
+      published.set(i, -1);
+    }
+    mask = size - 1;
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * Adds an observer. It receives the events published from now on.
+   *
+   * @param observer the observer to add.
+   */
+  synchronized void add(BatchObserver observer)
+  {
+    Consumer consumer = new Consumer(observer, claimed.get());
+    Consumer[] next = new Consumer[consumers.length + 1];
+    System.arraycopy(consumers, 0, next, 0, consumers.length);
+    next[consumers.length] = consumer;
+    consumers = next;
+    consumer.thread.start();
+  }
+
+  /**
+   * Removes an observer. Its thread stops before the next event, and
+   * once it has stopped the publishers no longer wait for it; when
+   * called from another thread, this method waits for that.
+   *
+   * @param observer the observer to remove.
+   * @return true if the observer was observing this ring.
+   */
+  boolean remove(BatchObserver observer)
+  {
+    Consumer consumer = find(observer);
+    if (consumer == null)
+      return false;
+
+    consumer.stopped = true;
+    LockSupport.unpark(consumer.thread);
+    if (Thread.currentThread() != consumer.thread)
+    {
+      try
+      {
+        consumer.thread.join();
+      }
+      catch (InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Stops every observer once it has read the events published so far.
+   * Observers added afterwards run as usual.
+   */
+  void close()
+  {
+    Consumer[] current = consumers;
+    for (int i = 0; i < current.length; i++)
+    {
+      current[i].closing = true;
+      LockSupport.unpark(current[i].thread);
+    }
+  }
+
+  /**
+   * Claims a slot, fills it and makes it visible to the observers.
+   */
+  void publish(ServerEvent.Type type, ConnectionToClient originator,
+    Object message, Throwable exception)
+  {
+    long sequence = claimed.getAndIncrement();
+    long wrapPoint = sequence - slots.length;
+
+    if (wrapPoint >= 0 && wrapPoint >= minimumSequence())
+    {
+      stalls.incrementAndGet();
+      do
+      {
+        wakeConsumers();
+        Thread.yield();
+      }
+      while (wrapPoint >= minimumSequence());
+    }
+
+    int index = (int)(sequence & mask);
+    slots[index].set(sequence, type, originator, message, exception);
+    published.lazySet(index, sequence);
+    wakeConsumers();
+  }
+
+// ACCESSING METHODS ------------------------------------------------
+
+  /**
+   * @return the number of events an observer has still to read, or -1
+   * if it does not observe this ring.
+   */
+  long getLag(BatchObserver observer)
+  {
+    Consumer consumer = find(observer);
+    return consumer == null ? -1 : claimed.get() - consumer.sequence;
+  }
+
+  /**
+   * @return the lag of the slowest observer.
+   */
+  long getMaxLag()
+  {
+    Consumer[] current = consumers;
+    return current.length == 0 ? 0 : claimed.get() - minimumSequence();
+  }
+
+  /**
+   * @return the number of times a publisher waited for an observer.
+   */
+  long getStalls()
+  {
+    return stalls.get();
+  }
+
+  /**
+   * @return the number of slots.
+   */
+  int getSize()
+  {
+    return slots.length;
+  }
+
+// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+  private Consumer find(BatchObserver observer)
+  {
+    Consumer[] current = consumers;
+    for (int i = 0; i < current.length; i++)
+    {
+      if (current[i].observer == observer)
+        return current[i];
+    }
+    return null;
+  }
+
+  /**
+   * Drops the consumer of an observer that stopped, so that the
+   * publishers no longer wait for it.
+   */
+  private synchronized void drop(Consumer consumer)
+  {
+    Consumer[] next = new Consumer[consumers.length - 1];
+    int j = 0;
+    for (int i = 0; i < consumers.length; i++)
+    {
+      if (consumers[i] != consumer)
+        next[j++] = consumers[i];
+    }
+    consumers = next;
+  }
+
+  /**
+   * @return the sequence of the slowest observer.
+   */
+  private long minimumSequence()
+  {
+    Consumer[] current = consumers;
+    long minimum = Long.MAX_VALUE;
+    for (int i = 0; i < current.length; i++)
+    {
+      minimum = Math.min(minimum, current[i].sequence);
+    }
+    return minimum;
+  }
+
+  private void wakeConsumers()
+  {
+    Consumer[] current = consumers;
+    for (int i = 0; i < current.length; i++)
+    {
+      if (current[i].sleeping)
+        LockSupport.unpark(current[i].thread);
+    }
+  }
+
+// NESTED CLASSES ---------------------------------------------------
+
+  /**
+   * The thread and the read position of one observer.
+   */
+  private class Consumer implements Runnable
+  {
+    final BatchObserver observer;
+
+    final Thread thread;
+
+    /**
+     * The next sequence this observer has to read.
+     */
+    volatile long sequence;
+
+    volatile boolean sleeping = false;
+
+    /**
+     * Set to stop at once, or once the events published are read.
+     */
+    volatile boolean stopped = false;
+
+    volatile boolean closing = false;
+
+    Consumer(BatchObserver observer, long sequence)
+    {
+      this.observer = observer;
+      this.sequence = sequence;
+      thread = new Thread(this, "OriginatorEventRing observer");
+      thread.setDaemon(true);
+    }
+
+    public void run()
+    {
+      try
+      {
+        consume();
+      }
+      finally
+      {
+        drop(this);
+      }
+    }
+
+    private void consume()
+    {
+      long next = sequence;
+
+      while (!stopped)
+      {
+        long available = next - 1;
+        while (published.get((int)((available + 1) & mask)) == available + 1)
+        {
+          available++;
+        }
+
+        if (available >= next)
+        {
+          for (long s = next; s <= available && !stopped; s++)
+          {
+            try
+            {
+              observer.onEvent(slots[(int)(s & mask)], s, s == available);
+            }
+            catch (RuntimeException ex) {}
+          }
+          next = available + 1;
+          sequence = next; // Frees the slots for the publishers
+        }
+        else if (closing)
+          return;
+        else
+        {
+          sleeping = true;
+          if (published.get((int)(next & mask)) != next)
+            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+          sleeping = false;
+        }
+      }
+    }
+  }
+}
+// End of OriginatorEventRing class
@@ -6,7 +6,11 @@ package ocsf.server;
 
 /**
  * A message class used by the Observable layer of the OCSF in order to conserve
- * information about the originator of a message.
+ * information about the originator of a message.<p>
+ *
+ * When an <code>ObservableOriginatorServer</code> runs with an event ring,
+ * instances are preallocated slots of that ring and are reused for later
+ * events: an observer must copy what it needs before returning.
  *
  * @author Dr. Robert Lagani&egrave;re
  * @version July 2001
@@ -23,6 +27,21 @@ public class OriginatorMessage
    */
   private Object message;
 
+  /**
+   * The kind of event; a message received unless set by the ring.
+   */
+  private ServerEvent.Type type = ServerEvent.Type.MESSAGE;
+
+  /**
+   * The exception raised, for the exception events.
+   */
+  private Throwable exception;
+
+  /**
+   * The position of the event in the ring, or -1.
+   */
+  private long sequence = -1;
+
 // Constructor ***************************************************************
 
   /**
@@ -58,4 +77,49 @@ public class OriginatorMessage
   {
     return message;
   }
+
+  /**
+   * Returns the kind of event.
+   *
+   * @return The kind of event this message reports.
+   */
+  public ServerEvent.Type getType()
+  {
+    return type;
+  }
+
+  /**
+   * Returns the exception raised, if any.
+   *
+   * @return The exception, or null.
+   */
+  public Throwable getException()
+  {
+    return exception;
+  }
+
+  /**
+   * Returns the sequence number of the event in the server's event ring.
+   *
+   * @return The sequence number, or -1 if the message is not in a ring.
+   */
+  public long getSequence()
+  {
+    return sequence;
+  }
+
+// Methods used by the ring *************************************************
+
+  /**
+   * Fills a ring slot with a new event.
+   */
+  void set(long sequence, ServerEvent.Type type,
+    ConnectionToClient originator, Object message, Throwable exception)
+  {
+    this.sequence = sequence;
+    this.type = type;
+    this.originator = originator;
+    this.message = message;
+    this.exception = exception;
+  }
 }
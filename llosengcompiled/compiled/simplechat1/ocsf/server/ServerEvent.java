@@ -0,0 +1,119 @@
+package ocsf.server;
+
+/**
+ * An event published by an <code>ObservableServer</code> to its
+ * subscribers. Replaces the <code>"#OS:..."</code> strings that were
+ * sent to observers: the kind of event is given by its type, and the
+ * client, message and exception concerned are kept as fields.
+ *
+ * @see ocsf.server.ObservableServer#subscribe
+ */
+public class ServerEvent
+{
+  /**
+   * The kinds of events published by the server.
+   */
+  public enum Type
+  {
+    /** A client has connected. */
+    CLIENT_CONNECTED,
+    /** A client has resumed its session on a new connection. */
+    CLIENT_RESUMED,
+    /** A client has disconnected. */
+    CLIENT_DISCONNECTED,
+    /** An exception was raised in a client thread. */
+    CLIENT_EXCEPTION,
+    /** A message was received from a client. */
+    MESSAGE,
+    /** The server stopped listening because of an exception. */
+    LISTENING_EXCEPTION,
+    /** The server started listening. */
+    SERVER_STARTED,
+    /** The server stopped listening. */
+    SERVER_STOPPED,
+    /** The server was closed. */
+    SERVER_CLOSED
+  }
+
+  private final Type type;
+
+  /**
+   * The connection concerned; null for events about the server itself.
+   */
+  private final ConnectionToClient client;
+
+  /**
+   * The message received, for <code>MESSAGE</code> events.
+   */
+  private final Object message;
+
+  /**
+   * The exception raised, for the exception events.
+   */
+  private final Throwable exception;
+
+// Constructor ***************************************************************
+
+  /**
+   * Constructs an event.
+   *
+   * @param type      the kind of event.
+   * @param client    the connection concerned, or null.
+   * @param message   the message received, or null.
+   * @param exception the exception raised, or null.
+   */
+  public ServerEvent(Type type, ConnectionToClient client, Object message,
+    Throwable exception)
+  {
+    this.type = type;
+    this.client = client;
+    this.message = message;
+    this.exception = exception;
+  }
+
+// Accessor methods *********************************************************
+
+  /**
+   * @return the kind of event.
+   */
+  public Type getType()
+  {
+    return type;
+  }
+
+  /**
+   * @return the connection concerned, or null if the event concerns
+   * the server itself.
+   */
+  public ConnectionToClient getClient()
+  {
+    return client;
+  }
+
+  /**
+   * @return the message received, or null if this is not a
+   * <code>MESSAGE</code> event.
+   */
+  public Object getMessage()
+  {
+    return message;
+  }
+
+  /**
+   * @return the exception raised, or null.
+   */
+  public Throwable getException()
+  {
+    return exception;
+  }
+
+  /**
+   * @return a description of the event.
+   */
+  public String toString()
+  {
+    return type + (client == null ? "" : " " + client)
+      + (message == null ? "" : ": " + message)
+      + (exception == null ? "" : ": " + exception.getMessage());
+  }
+}
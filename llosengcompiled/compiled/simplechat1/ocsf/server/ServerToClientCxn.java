@@ -2,6 +2,8 @@ package ocsf.server;
 
 import common.AbstractConnectionFactory;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import ocsf.protocol.SharedMemoryChannel;
 import java.io.IOException;
 
 //like ClientConsole, the server needs to implement the interface
@@ -11,7 +13,21 @@ public class ServerToClientCxn implements AbstractConnectionFactory {
     public ConnectionToClient createConnection(ThreadGroup group, Socket socket, AbstractServer server)
             throws IOException
     {
-        return new ConnectionToClient(group, socket, (AdaptableServer) server);
+        return new ConnectionToClient(group, socket, server);
+    }
+
+    @Override
+    public ConnectionToClient createConnection(ThreadGroup group, SocketChannel channel, AbstractServer server)
+            throws IOException
+    {
+        return new ConnectionToClient(group, channel, server);
+    }
+
+    @Override
+    public ConnectionToClient createConnection(ThreadGroup group, SharedMemoryChannel channel, AbstractServer server)
+            throws IOException
+    {
+        return new ConnectionToClient(group, channel, server);
     }
 }
 
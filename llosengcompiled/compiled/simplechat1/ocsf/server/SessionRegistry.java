@@ -0,0 +1,434 @@
+package ocsf.server;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ocsf.protocol.*;
+
+/**
+ * The sessions of a server that supports session resume.<p>
+ *
+ * A session outlives its connection. Every message sent to a client
+ * that has a session is numbered and kept in a bounded replay buffer;
+ * while the client is disconnected the messages broadcast by the server
+ * are still added to it. A client that reconnects within the timeout
+ * presents its token and the number of the last message it received,
+ * gets back the attributes saved about it (such as its login id) and
+ * receives only the messages it missed.<p>
+ *
+ * Delivery is reliable in both directions. The client numbers its own
+ * messages as well; each side acknowledges what it received inside the
+ * messages it sends back, or with an <code>Ack</code> of its own every
+ * <code>Ack.INTERVAL</code> messages when it has nothing to send. A
+ * session accepts the messages of its client only in order, dropping
+ * duplicates and anything that follows a gap, so the client can simply
+ * retransmit everything not yet acknowledged when it resumes.<p>
+ *
+ * The replay buffer is also the window of the messages sent: a
+ * connection stops writing to a client that has not acknowledged as
+ * many messages as the buffer holds, asks it for an acknowledgement,
+ * and goes on once it gets one. Only while the client is disconnected
+ * can messages it has not received be pushed out of the buffer; they
+ * are counted, and the session can then no longer be resumed.
+ *
+ * @see ocsf.server.AbstractServer#setSessionResume(int, long)
+ */
+class SessionRegistry
+{
+  // Instance variables **********************************************
+
+  /**
+   * Number of messages kept per session.
+   */
+  private final int replaySize;
+
+  /**
+   * How long a detached session can be resumed, in ms.
+   */
+  private final long timeout;
+
+  private final ConcurrentHashMap<String, Session> sessions =
+    new ConcurrentHashMap<>();
+
+  private final SecureRandom random = new SecureRandom();
+
+  /**
+   * Number of messages pushed out of a replay buffer before the client
+   * acknowledged them.
+   */
+  private final AtomicLong overflows = new AtomicLong();
+
+  // Constructor *****************************************************
+
+  SessionRegistry(int replaySize, long timeout)
+  {
+    this.replaySize = replaySize;
+    this.timeout = timeout;
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * Answers the resume request of a newly connected client: either
+   * resumes its session and replays what it missed, or grants it a new
+   * session. If the session was still attached to an older connection
+   * of the same client, that connection is closed.
+   *
+   * @return true if an existing session was resumed.
+   */
+  boolean resume(ConnectionToClient client, ResumeRequest request)
+    throws IOException
+  {
+    expire();
+
+    Session session = request.getToken() == null
+      ? null : sessions.get(request.getToken());
+    ConnectionToClient previous = null;
+    boolean resumed = false;
+
+    if (session != null)
+    {
+      synchronized (session)
+      {
+        resumed = session.canResume(request.getLastReceived());
+        if (resumed)
+          previous = session.attach(client, request.getLastReceived(), true);
+      }
+    }
+
+    if (!resumed)
+    {
+      session = new Session(newToken());
+      sessions.put(session.token, session);
+      session.attach(client, 0, false);
+    }
+
+    if (previous != null)
+    {
+      try
+      {
+        previous.close();
+      }
+      catch (IOException e) {}
+    }
+    return resumed;
+  }
+
+  /**
+   * Adds a message broadcast by the server to the sessions whose
+   * client is currently disconnected.
+   *
+   * @param payload the message, serialized.
+   * @param reached the sessions the broadcast already reached through
+   *                a connection.
+   */
+  void recordForDetached(byte[] payload, Set<Session> reached)
+    throws IOException
+  {
+    List<byte[]> split = null;
+    for (Session session : sessions.values())
+    {
+      if (!reached.contains(session) && session.isDetached())
+      {
+        if (split == null)
+          split = ConnectionToClient.split(payload);
+        session.recordIfDetached(split);
+      }
+    }
+  }
+
+  /**
+   * Ends a session; it can no longer be resumed.
+   */
+  void end(Session session)
+  {
+    sessions.remove(session.token, session);
+  }
+
+  /**
+   * Ends every session.
+   */
+  void clear()
+  {
+    sessions.clear();
+  }
+
+  /**
+   * @return the number of sessions, attached or not.
+   */
+  int size()
+  {
+    return sessions.size();
+  }
+
+  /**
+   * @return the number of messages pushed out of a replay buffer before
+   *         the client acknowledged them.
+   */
+  long getOverflows()
+  {
+    return overflows.get();
+  }
+
+// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+  /**
+   * Ends the sessions that have been detached for longer than the
+   * timeout.
+   */
+  private void expire()
+  {
+    long now = System.currentTimeMillis();
+    sessions.values().removeIf(session -> session.isExpired(now));
+  }
+
+  private String newToken()
+  {
+    byte[] bytes = new byte[18];
+    random.nextBytes(bytes);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+  }
+
+// NESTED CLASSES ---------------------------------------------------
+
+  /**
+   * One session: its token, its replay buffer and the attributes
+   * of the client.
+   */
+  class Session
+  {
+    final String token;
+
+    /**
+     * The last messages sent, indexed by sequence number.
+     */
+    private final Sequenced[] replay = new Sequenced[replaySize];
+
+    /**
+     * The sequence number of the last message sent.
+     */
+    private long lastSent = 0;
+
+    /**
+     * The last sequence number acknowledged by the client.
+     */
+    private long lastAcknowledged = 0;
+
+    /**
+     * The sequence number of the last message received from the client.
+     */
+    private long lastReceived = 0;
+
+    /**
+     * Messages received since an acknowledgement was last sent.
+     */
+    private int receivedSinceAck = 0;
+
+    /**
+     * The current connection, or null while detached.
+     */
+    private ConnectionToClient client;
+
+    /**
+     * The attributes of the client when it was detached.
+     */
+    private AttributeSnapshot saved = AttributeSnapshot.EMPTY;
+
+    /**
+     * When the session was detached, in ms.
+     */
+    private long detachedAt;
+
+    Session(String token)
+    {
+      this.token = token;
+    }
+
+    /**
+     * @return true if every message after lastReceived is still in the
+     *         replay buffer.
+     */
+    synchronized boolean canResume(long lastReceived)
+    {
+      return lastReceived >= 0 && lastReceived <= lastSent
+        && lastSent - lastReceived <= replaySize;
+    }
+
+    /**
+     * Attaches the session to a new connection, restores the saved
+     * information, and sends the grant followed by the messages after
+     * lastReceived.
+     *
+     * @return the connection the session was still attached to, if any.
+     */
+    synchronized ConnectionToClient attach(ConnectionToClient connection,
+      long lastReceived, boolean resumed) throws IOException
+    {
+      ConnectionToClient previous = client;
+      if (previous != null)
+      {
+        saved = previous.snapshotAttributes();
+        previous.releaseSession();
+      }
+
+      acknowledge(lastReceived);
+      client = connection;
+      connection.attachSession(this, saved);
+      connection.write(new SessionGrant(token, resumed, this.lastReceived));
+      for (long seq = lastReceived + 1; seq <= lastSent; seq++)
+      {
+        connection.write(replay[(int)(seq % replaySize)]);
+      }
+      return previous;
+    }
+
+    /**
+     * Numbers a message about to be written and keeps it for replay.
+     *
+     * @param payload the message, serialized.
+     * @return the message to write, or null to write the payload as it
+     *         is to a stale connection, which is not part of the session.
+     */
+    synchronized Sequenced number(ConnectionToClient connection,
+      byte[] payload)
+    {
+      if (connection != client)
+        return null;
+      return record(payload);
+    }
+
+    /**
+     * Handles a <code>Sequenced</code> message or an <code>Ack</code>
+     * received from the client, acknowledging it when
+     * <code>Ack.INTERVAL</code> messages have gone unacknowledged.
+     *
+     * @return true if the message is the next one of the session and
+     *         must be handled; false for an acknowledgement, a duplicate
+     *         or a message that follows a gap.
+     */
+    synchronized boolean receive(ConnectionToClient connection, Object msg)
+      throws IOException
+    {
+      if (msg instanceof Ack)
+      {
+        acknowledge(((Ack)msg).getSequence());
+
+        // The client is waiting for room in its window too
+        if (receivedSinceAck > 0 && connection == client)
+        {
+          receivedSinceAck = 0;
+          connection.write(new Ack(lastReceived));
+        }
+        return false;
+      }
+
+      Sequenced sequenced = (Sequenced)msg;
+      acknowledge(sequenced.getAck());
+      if (sequenced.getSequence() != lastReceived + 1)
+        return false;
+
+      lastReceived++;
+      if (++receivedSinceAck >= Ack.INTERVAL && connection == client)
+      {
+        receivedSinceAck = 0;
+        connection.write(new Ack(lastReceived));
+      }
+      return true;
+    }
+
+    /**
+     * @return true if the connection is the current one and the client
+     *         has not acknowledged as many messages as the replay buffer
+     *         holds; another one would push out a message it may miss.
+     */
+    synchronized boolean isWindowFull(ConnectionToClient connection)
+    {
+      return connection == client && lastSent - lastAcknowledged >= replaySize;
+    }
+
+    /**
+     * Asks the client to acknowledge what it received, with an
+     * <code>Ack</code> of the messages received from it.
+     */
+    synchronized void requestAck(ConnectionToClient connection)
+      throws IOException
+    {
+      if (connection != client)
+        return;
+      receivedSinceAck = 0;
+      connection.write(new Ack(lastReceived));
+    }
+
+    /**
+     * @return the number of messages sent that the client has not
+     *         acknowledged yet.
+     */
+    synchronized long getUnacknowledged()
+    {
+      return lastSent - lastAcknowledged;
+    }
+
+    /**
+     * Detaches the session from its connection, keeping a snapshot of the
+     * attributes of the client and the messages still queued for it.
+     *
+     * @return false if the session had moved to another connection.
+     */
+    synchronized boolean detach(ConnectionToClient connection,
+      AttributeSnapshot attributes, List<byte[]> pending)
+    {
+      if (connection != client)
+        return false;
+
+      for (byte[] payload : pending)
+      {
+        record(payload);
+      }
+      client = null;
+      saved = attributes;
+      detachedAt = System.currentTimeMillis();
+      return true;
+    }
+
+    synchronized boolean isDetached()
+    {
+      return client == null;
+    }
+
+    synchronized void recordIfDetached(List<byte[]> payloads)
+    {
+      if (client != null)
+        return;
+      for (byte[] payload : payloads)
+      {
+        record(payload);
+      }
+    }
+
+    synchronized boolean isExpired(long now)
+    {
+      return client == null && now - detachedAt > timeout;
+    }
+
+    private void acknowledge(long sequence)
+    {
+      if (sequence > lastAcknowledged && sequence <= lastSent)
+        lastAcknowledged = sequence;
+    }
+
+    private Sequenced record(byte[] payload)
+    {
+      if (lastSent - lastAcknowledged >= replaySize)
+        overflows.incrementAndGet();  // Only while detached
+      receivedSinceAck = 0;  // The acknowledgement travels with the message
+      Sequenced sequenced =
+        Sequenced.serialized(++lastSent, lastReceived, payload);
+      replay[(int)(lastSent % replaySize)] = sequenced;
+      return sequenced;
+    }
+  }
+}
+// End of SessionRegistry class